@@ -0,0 +1,148 @@
+package ca.weblite.shellmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads and renders a synthetic catalog that is written to a temporary SHELLMARKS_PATH.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatalogBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int scripts;
+
+    private File dir;
+    private String userHome;
+    private CatalogViewer viewer;
+    private CatalogIndex index;
+    private CatalogViewer.ScriptCategory root;
+    private List<String> sectionDescriptions;
+    private File editedScript;
+    private int edits;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("shellmarks-bench").toFile();
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.numScripts = scripts;
+        generator.generate(dir);
+        // generateDocs() saves the catalog index under ~/.shellmarks, which shouldn't be the real one
+        userHome = System.getProperty("user.home");
+        System.setProperty("user.home", new File(dir, ".home").getAbsolutePath());
+        Map<String,String> env = new HashMap<String,String>();
+        env.put("SHELLMARKS_PATH", dir.getAbsolutePath());
+        viewer = new CatalogViewer(Main.withEnvironment(env));
+
+        // A script without headings in its description, so that it is rendered as a fragment
+        editedScript = new File(dir, "edited.sh");
+        writeEditedScript();
+
+        index = new CatalogIndex(new File(dir, ".catalog.index"));
+        root = viewer.loadAllScriptCategories(index);
+
+        sectionDescriptions = new ArrayList<String>();
+        for (int i=0; i<generator.getNumSections(); i++) {
+            sectionDescriptions.add(generator.section(i));
+        }
+    }
+
+    private void writeEditedScript() throws IOException {
+        String sep = System.lineSeparator();
+        FileUtils.writeStringToFile(editedScript, "#!/bin/bash" + sep + "echo edited" + sep + "---" + sep
+                + "__title__=\"Edited\"" + sep + "__description__='''" + sep + "Edited " + edits + " times." + sep
+                + "'''" + sep, "UTF-8");
+        // Edits can be less than a timestamp tick apart, and the index goes by mtime and size
+        editedScript.setLastModified(1000000000000L + edits * 1000L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.setProperty("user.home", userHome);
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * Loads the catalog with an empty index, so every script and section is read and parsed.
+     */
+    @Benchmark
+    public CatalogViewer.ScriptCategory loadAllScriptCategories() throws IOException {
+        return viewer.loadAllScriptCategories(new CatalogIndex(new File(dir, ".unused.index")));
+    }
+
+    /**
+     * Loads the catalog with an up-to-date index, which only needs to stat each file.
+     */
+    @Benchmark
+    public CatalogViewer.ScriptCategory loadAllScriptCategoriesIndexed() throws IOException {
+        return viewer.loadAllScriptCategories(index);
+    }
+
+    @Benchmark
+    public void appendToDocs(Blackhole bh) {
+        StringBuilder out = new StringBuilder();
+        List<RenderCache.Fragment> fragments = new ArrayList<RenderCache.Fragment>();
+        viewer.appendToDocs(out, root, 0, fragments);
+        bh.consume(out);
+        bh.consume(fragments);
+    }
+
+    @Benchmark
+    public void prefixAsciidocHeadings(Blackhole bh) {
+        for (String description : sectionDescriptions) {
+            bh.consume(CatalogViewer.prefixAsciidocHeadings(description, 3));
+        }
+    }
+
+    /**
+     * Regenerates the catalog when nothing has changed, so every fragment comes from the
+     * render cache.
+     */
+    @Benchmark
+    public String generateDocs() throws IOException {
+        return viewer.generateDocs();
+    }
+
+    /**
+     * Regenerates the catalog after one script's description was edited, which only needs that
+     * script's fragment to be converted.
+     */
+    @Benchmark
+    public String generateDocsAfterEdit() throws IOException {
+        edits++;
+        writeEditedScript();
+        return viewer.generateDocs();
+    }
+
+    /**
+     * Renders the catalog in a single conversion, without the render cache.
+     */
+    @Benchmark
+    public String renderCatalogSinglePass() throws IOException {
+        return viewer.renderCatalogSinglePass(root);
+    }
+
+    /**
+     * Generates the catalog from scratch, converting every fragment with Asciidoctor.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public String generateDocsCold() throws IOException {
+        CatalogViewer.renderCache.retainAll(Collections.<String>emptyList());
+        return viewer.generateDocs();
+    }
+}
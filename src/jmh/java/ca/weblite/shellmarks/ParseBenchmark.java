@@ -0,0 +1,82 @@
+package ca.weblite.shellmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses every script of a synthetic catalog.  Each operation parses the whole catalog, so
+ * the scores scale with the number of scripts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int scripts;
+
+    private String[] tomlScripts;
+    private String[] legacyScripts;
+    private String[] tomlHashes;
+    private File formCacheDir;
+    private FormCache formCache;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.numScripts = scripts;
+        tomlScripts = new String[scripts];
+        legacyScripts = new String[scripts];
+        for (int i=0; i<scripts; i++) {
+            tomlScripts[i] = generator.script(i, CorpusGenerator.Format.Toml);
+            legacyScripts[i] = generator.script(i, CorpusGenerator.Format.Legacy);
+        }
+        formCacheDir = Files.createTempDirectory("shellmarks-forms").toFile();
+        formCache = new FormCache(formCacheDir);
+        tomlHashes = new String[scripts];
+        for (int i=0; i<scripts; i++) {
+            tomlHashes[i] = CatalogIndex.hash(tomlScripts[i].getBytes(StandardCharsets.UTF_8));
+            formCache.put(tomlHashes[i], new FormCache.Entry(Main.parseUI(tomlScripts[i]), null));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(formCacheDir);
+    }
+
+    @Benchmark
+    public void parseUI2(Blackhole bh) {
+        for (String script : tomlScripts) {
+            bh.consume(Main.parseUI2(script));
+        }
+    }
+
+    @Benchmark
+    public void parseUILegacy(Blackhole bh) {
+        for (String script : legacyScripts) {
+            bh.consume(Main.parseUI(script));
+        }
+    }
+
+    /**
+     * Loads the forms of the TOML scripts from the form cache, which is what running a script
+     * does instead of parseUI2 once its form has been cached.
+     */
+    @Benchmark
+    public void loadCachedForm(Blackhole bh) {
+        for (String hash : tomlHashes) {
+            bh.consume(formCache.get(hash));
+        }
+    }
+}
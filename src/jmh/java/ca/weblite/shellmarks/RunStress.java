@@ -0,0 +1,152 @@
+package ca.weblite.shellmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Runs a large number of trivial scripts at once through {@link ParallelRunner}, once with
+ * platform threads and once with virtual threads, and compares thread counts and memory use.
+ *
+ * <pre>
+ * mvn -Pbenchmark,java21 package
+ * java -cp target/shellmarks-cli-1.0-SNAPSHOT.jar:target/test-classes ca.weblite.shellmarks.RunStress [scripts]
+ * </pre>
+ *
+ * Each mode runs in its own JVM, with user.home pointing at a temporary directory so that the
+ * runs don't end up in the real journal and logs.  Virtual threads are only used when the JVM
+ * is Java 21 or later and the classes come from the multi-release jar, so on older JVMs only
+ * the platform thread run is reported.
+ */
+public class RunStress {
+    private static final String RESULT = "RESULT ";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--child")) {
+            runChild(new File(args[1]));
+            return;
+        }
+        int numScripts = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        File dir = Files.createTempDirectory("shellmarks-stress").toFile();
+        try {
+            File scripts = new File(dir, "scripts");
+            scripts.mkdirs();
+            for (int i=0; i<numScripts; i++) {
+                File script = new File(scripts, "trivial-"+i+".sh");
+                FileUtils.writeStringToFile(script, "#!/bin/sh\necho run "+i+"\n", StandardCharsets.UTF_8);
+                script.setExecutable(true);
+            }
+            System.out.println("Running "+numScripts+" trivial scripts at once on Java "+System.getProperty("java.version"));
+            System.out.println();
+            System.out.println(String.format(Locale.ROOT, "%-9s %8s %10s %22s %10s %7s",
+                    "Threads", "Wall ms", "Peak heap", "Peak platform threads", "Peak RSS", "Failed"));
+            String[] modes = Runtime.version().feature() >= 21 ? new String[]{"false", "true"} : new String[]{"false"};
+            for (String virtual : modes) {
+                Map<String,String> result = fork(dir, scripts, virtual);
+                System.out.println(String.format(Locale.ROOT, "%-9s %8s %9sM %22s %9sM %7s",
+                        result.get("mode"), result.get("wall_ms"), result.get("peak_heap_mb"), result.get("peak_threads"),
+                        result.get("rss_mb"), result.get("failed")));
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private static Map<String,String> fork(File dir, File scripts, String virtual) throws IOException, InterruptedException {
+        File home = new File(dir, "home-"+virtual);
+        home.mkdirs();
+        ProcessBuilder pb = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-Duser.home="+home.getAbsolutePath(),
+                "-Dshellmarks.virtualThreads="+virtual,
+                "-cp", System.getProperty("java.class.path"),
+                RunStress.class.getName(), "--child", scripts.getAbsolutePath());
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process = pb.start();
+        Map<String,String> result = new HashMap<String,String>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(RESULT)) {
+                    for (String pair : line.substring(RESULT.length()).split(" ")) {
+                        String[] kv = pair.split("=", 2);
+                        result.put(kv[0], kv[1]);
+                    }
+                }
+            }
+        }
+        if (process.waitFor() != 0 || result.isEmpty()) {
+            throw new IOException("Stress run with virtualThreads="+virtual+" failed");
+        }
+        return result;
+    }
+
+    private static void runChild(File scripts) throws Exception {
+        List<File> files = new ArrayList<File>(Arrays.asList(scripts.listFiles()));
+        Collections.sort(files);
+        Main session = new Main().newSession(NullOutputStream.NULL_OUTPUT_STREAM, NullOutputStream.NULL_OUTPUT_STREAM);
+        ScriptGraph graph = ScriptGraph.resolve(session, files);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        threads.resetPeakThreadCount();
+        long[] peakHeap = new long[1];
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap[0] = Math.max(peakHeap[0], runtime.totalMemory() - runtime.freeMemory());
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }, "stress-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+
+        long started = System.nanoTime();
+        new ParallelRunner(session, files.size(), false).run(graph);
+        long wall = System.nanoTime() - started;
+        sampler.interrupt();
+        sampler.join();
+
+        // The summary went to the null stream, so count the failures from the journal.  Scripts
+        // that never ran count as failures too.
+        int[] runs = new int[2];
+        new RunJournal(RunJournal.getDefaultDir()).read(record -> {
+            runs[0]++;
+            if (record.exitCode != 0) {
+                runs[1]++;
+            }
+        }, false);
+        System.out.println(RESULT + "mode=" + (Threads.isVirtual() ? "virtual" : "platform")
+                + " wall_ms=" + wall / 1000000
+                + " peak_heap_mb=" + peakHeap[0] / (1024 * 1024)
+                + " peak_threads=" + threads.getPeakThreadCount()
+                + " rss_mb=" + peakRss()
+                + " failed=" + (runs[1] + files.size() - runs[0]));
+    }
+
+    /**
+     * The peak resident set size in MB, or "n/a" where /proc isn't available.
+     */
+    private static String peakRss() {
+        try {
+            for (String line : Files.readAllLines(new File("/proc/self/status").toPath())) {
+                if (line.startsWith("VmHWM:")) {
+                    return String.valueOf(Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024);
+                }
+            }
+        } catch (IOException ex) {
+            // Not Linux
+        }
+        return "n/a";
+    }
+}
@@ -0,0 +1,105 @@
+package ca.weblite.shellmarks;
+
+import org.asciidoctor.Asciidoctor;
+import org.asciidoctor.OptionsBuilder;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Process-wide Asciidoctor engine.
+ *
+ * Creating an Asciidoctor instance boots a JRuby runtime, which takes seconds and a lot of
+ * heap, so a single instance is shared by every conversion in the process.  It can be warmed
+ * up on a background thread as soon as we know that a conversion is coming, and it is shut
+ * down when the JVM exits.
+ *
+ * The engine is guarded by a ReentrantLock rather than a monitor, because conversions are
+ * requested from virtual threads on Java 21, and a virtual thread that blocks on a monitor, or
+ * holds one through a long conversion, pins its carrier thread.
+ */
+class AsciidocEngine {
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static Asciidoctor asciidoctor;
+    private static Thread warmUpThread;
+    private static boolean shutdownHookInstalled;
+
+    /**
+     * Starts creating the engine on a background thread if it hasn't been created yet.
+     */
+    static void warmUp() {
+        lock.lock();
+        try {
+            if (asciidoctor != null || warmUpThread != null) {
+                return;
+            }
+            // A dedicated platform thread rather than one from Threads, since the JRuby start-up
+            // is seconds of CPU-bound work that shouldn't occupy a virtual thread's carrier
+            warmUpThread = new Thread(() -> {
+                try {
+                    get();
+                } catch (Exception ex) {
+                    System.err.println("Failed to start Asciidoctor. "+ex.getMessage());
+                    ex.printStackTrace(System.err);
+                }
+            }, "asciidoctor-warmup");
+            warmUpThread.setDaemon(true);
+            warmUpThread.start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Asciidoctor get() {
+        lock.lock();
+        try {
+            if (asciidoctor == null) {
+                try (PhaseTimer.Phase phase = PhaseTimer.start("start asciidoctor")) {
+                    asciidoctor = Asciidoctor.Factory.create();
+                }
+                if (!shutdownHookInstalled) {
+                    shutdownHookInstalled = true;
+                    Runtime.getRuntime().addShutdownHook(new Thread(AsciidocEngine::shutdown, "asciidoctor-shutdown"));
+                }
+            }
+            return asciidoctor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Converts the given Asciidoc source and returns the result as a string.  Conversions are
+     * serialized because the engine's JRuby runtime is shared.  If the engine is still warming
+     * up, this waits for it to finish.
+     */
+    static String convert(String source, OptionsBuilder options) {
+        JfrEvents.AsciidocConvert event = new JfrEvents.AsciidocConvert();
+        event.begin();
+        String html;
+        lock.lock();
+        try {
+            html = get().convert(source, options);
+        } finally {
+            lock.unlock();
+        }
+        if (event.shouldCommit()) {
+            event.bytes = source.length();
+            event.htmlBytes = html == null ? 0 : html.length();
+            event.commit();
+        }
+        return html;
+    }
+
+    static void shutdown() {
+        lock.lock();
+        try {
+            if (asciidoctor != null) {
+                asciidoctor.shutdown();
+                asciidoctor = null;
+            }
+            warmUpThread = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package ca.weblite.shellmarks;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Installs a bundle of scripts and section files from a zip or tar.gz archive.
+ *
+ * A bundle has a manifest named SHA256SUMS, in the format that sha256sum writes, listing the
+ * files to install:
+ *
+ * <pre>
+ * e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855  hello.sh
+ * 9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08  deployment.adoc
+ * </pre>
+ *
+ * The manifest may be at the root of the archive or in a top level directory, and the names in
+ * it are relative to it.  Files that aren't in the manifest aren't installed.
+ *
+ * The archive is read as a stream, so it is never held in memory or written to disk as a whole.
+ * Each file is extracted into the {@link ScriptStore} while its SHA-256 hash is computed, and is
+ * verified against the manifest as soon as both are known.  Nothing is installed until every file
+ * in the manifest has been extracted and verified, and then the files are installed all or
+ * nothing, so a bad bundle or a failed install leaves the script path as it was.  Putting the manifest first in the archive lets files that it doesn't list be skipped
+ * without extracting them.
+ */
+class BundleInstaller {
+    static final String MANIFEST = "SHA256SUMS";
+
+    private static final int MAX_MANIFEST_SIZE = 1024 * 1024;
+
+    private final ScriptStore store;
+    private final File installDir;
+    private final boolean overwrite;
+
+    /**
+     * @param overwrite Whether to replace files that are already installed.
+     */
+    BundleInstaller(ScriptStore store, File installDir, boolean overwrite) {
+        this.store = store;
+        this.installDir = installDir;
+        this.overwrite = overwrite;
+    }
+
+    static boolean isBundle(String source) {
+        String path = source;
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        path = path.toLowerCase(Locale.ROOT);
+        return path.endsWith(".zip") || path.endsWith(".tar.gz") || path.endsWith(".tgz");
+    }
+
+    /**
+     * Files that have been extracted and verified, but not installed yet.
+     */
+    class Bundle {
+        private final String source;
+        private final Map<String,String> digests = new LinkedHashMap<String,String>();
+        private final Map<String,File> temps = new LinkedHashMap<String,File>();
+        private final Map<String,Boolean> executable = new HashMap<String,Boolean>();
+
+        private Bundle(String source) {
+            this.source = source;
+        }
+
+        int size() {
+            return digests.size();
+        }
+
+        /**
+         * Installs every file in the bundle, or none of them.  Every file is copied next to its
+         * destination first, and the copies are only renamed into place once they have all been
+         * made.  If a rename fails, the files that were already installed are removed, and the
+         * ones they replaced are restored.
+         * @return The installed files, in manifest order.
+         */
+        List<File> commit() throws IOException {
+            if (!overwrite) {
+                for (String name : digests.keySet()) {
+                    File dest = new File(installDir, name);
+                    if (dest.exists()) {
+                        throw new IOException("A script already exists at "+dest+".  Use -f option to force overwite");
+                    }
+                }
+            }
+            Map<File,File> staged = new LinkedHashMap<File,File>();
+            // Copies of the files that were replaced, or null for files that didn't exist
+            Map<File,File> backups = new LinkedHashMap<File,File>();
+            boolean succeeded = false;
+            try {
+                for (Map.Entry<String,String> entry : digests.entrySet()) {
+                    String name = entry.getKey();
+                    File blob = store.add(temps.remove(name), entry.getValue(), null, source+"!/"+name);
+                    File dest = new File(installDir, name);
+                    staged.put(dest, store.stage(blob, dest, Boolean.TRUE.equals(executable.get(name))));
+                }
+                for (Map.Entry<File,File> entry : staged.entrySet()) {
+                    File dest = entry.getKey();
+                    File backup = null;
+                    if (dest.exists()) {
+                        backup = File.createTempFile("."+dest.getName()+"-", ".backup", dest.getAbsoluteFile().getParentFile());
+                        Files.copy(dest.toPath(), backup.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                    }
+                    try {
+                        store.moveIntoPlace(entry.getValue(), dest, overwrite);
+                    } catch (IOException | RuntimeException ex) {
+                        // dest wasn't touched, so there is nothing to roll back for it
+                        if (backup != null) {
+                            backup.delete();
+                        }
+                        throw ex;
+                    }
+                    backups.put(dest, backup);
+                }
+                succeeded = true;
+                return new ArrayList<File>(staged.keySet());
+            } finally {
+                for (File temp : staged.values()) {
+                    temp.delete();
+                }
+                if (!succeeded) {
+                    rollBack(backups);
+                }
+                for (File backup : backups.values()) {
+                    if (backup != null) {
+                        backup.delete();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Puts back the files that a failed commit replaced, and removes the ones it added.
+         */
+        private void rollBack(Map<File,File> backups) {
+            for (Map.Entry<File,File> entry : backups.entrySet()) {
+                File dest = entry.getKey();
+                File backup = entry.getValue();
+                try {
+                    if (backup != null) {
+                        Files.move(backup.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } else {
+                        Files.deleteIfExists(dest.toPath());
+                    }
+                } catch (IOException ex) {
+                    System.err.println("Failed to roll back "+dest+" after a failed install. "+ex.getMessage());
+                    ex.printStackTrace(System.err);
+                }
+            }
+        }
+
+        /**
+         * Deletes the extracted files that weren't installed.
+         */
+        void discard() {
+            for (File temp : temps.values()) {
+                temp.delete();
+            }
+            temps.clear();
+        }
+    }
+
+    /**
+     * Extracts and verifies a bundle.  The caller must call {@link Bundle#discard()} when it is
+     * done with the result.  The stream is read to its end, so that a digest of the whole archive
+     * can be checked before the bundle is committed.
+     * @param source The bundle's URL or path, for messages and the store's index.
+     */
+    Bundle extract(InputStream in, String source) throws IOException {
+        Bundle bundle = new Bundle(source);
+        // Paths in the archive, for files that were extracted before the manifest was found
+        Map<String,String> staged = new HashMap<String,String>();
+        Map<String,File> stagedTemps = new HashMap<String,File>();
+        Map<String,Boolean> stagedExecutable = new HashMap<String,Boolean>();
+        String prefix = null;
+        boolean succeeded = false;
+        try {
+            Entries entries = source.toLowerCase(Locale.ROOT).split("\\?")[0].endsWith(".zip")
+                    ? new ZipEntries(new ZipInputStream(in))
+                    : new TarEntries(new TarReader(new GZIPInputStream(in, 64 * 1024)));
+            Set<String> paths = new HashSet<String>();
+            while (entries.next()) {
+                String path = entries.path();
+                if (!paths.add(path)) {
+                    throw new IOException(source+" has more than one entry named "+path);
+                }
+                String name = path.substring(path.lastIndexOf('/') + 1);
+                if (name.equals(MANIFEST)) {
+                    if (prefix != null || path.chars().filter(c -> c == '/').count() > 1) {
+                        continue;
+                    }
+                    prefix = path.substring(0, path.length() - MANIFEST.length());
+                    readManifest(bundle, entries.stream());
+                    // Verify the files that came before the manifest
+                    for (Map.Entry<String,String> entry : staged.entrySet()) {
+                        String stagedPath = entry.getKey();
+                        if (stagedPath.startsWith(prefix) && bundle.digests.containsKey(stagedPath.substring(prefix.length()))) {
+                            String stagedName = stagedPath.substring(prefix.length());
+                            accept(bundle, stagedName, entry.getValue(), stagedTemps.remove(stagedPath), stagedExecutable.get(stagedPath));
+                        }
+                    }
+                    continue;
+                }
+                if (prefix != null) {
+                    if (!path.startsWith(prefix) || !bundle.digests.containsKey(path.substring(prefix.length()))) {
+                        continue;
+                    }
+                } else if (!isPlainName(name) || path.chars().filter(c -> c == '/').count() > 1) {
+                    // Can't be in a manifest that is at the root or in a top level directory
+                    continue;
+                }
+                if (!entries.isFile()) {
+                    continue;
+                }
+                MessageDigest digest = ScriptDownloader.newDigest("SHA-256");
+                File temp = store.createTempFile();
+                try (OutputStream out = new FileOutputStream(temp)) {
+                    InputStream data = entries.stream();
+                    byte[] buf = new byte[64 * 1024];
+                    int count;
+                    while ((count = data.read(buf)) >= 0) {
+                        digest.update(buf, 0, count);
+                        out.write(buf, 0, count);
+                    }
+                } catch (IOException ex) {
+                    temp.delete();
+                    throw ex;
+                }
+                String sha256 = ScriptDownloader.toHex(digest.digest(), 64);
+                boolean exec = (entries.mode() & 0100) != 0;
+                if (prefix != null) {
+                    accept(bundle, path.substring(prefix.length()), sha256, temp, exec);
+                } else {
+                    staged.put(path, sha256);
+                    stagedTemps.put(path, temp);
+                    stagedExecutable.put(path, exec);
+                }
+            }
+            // Read to the end, e.g. the zip central directory
+            byte[] buf = new byte[8192];
+            while (in.read(buf) >= 0);
+
+            if (prefix == null) {
+                throw new IOException(source+" is not a shellmarks bundle.  It has no "+MANIFEST+" manifest.");
+            }
+            for (String name : bundle.digests.keySet()) {
+                if (!bundle.temps.containsKey(name)) {
+                    throw new IOException(name+" is listed in the manifest of "+source+" but is not in the bundle");
+                }
+            }
+            succeeded = true;
+            return bundle;
+        } finally {
+            for (File temp : stagedTemps.values()) {
+                temp.delete();
+            }
+            if (!succeeded) {
+                bundle.discard();
+            }
+        }
+    }
+
+    private void accept(Bundle bundle, String name, String sha256, File temp, Boolean exec) throws IOException {
+        String expected = bundle.digests.get(name);
+        if (!expected.equals(sha256)) {
+            temp.delete();
+            throw new IOException("SHA-256 Hash of "+name+" in "+bundle.source+" did not match the bundle manifest.  Found "
+                    +sha256+" but expected "+expected);
+        }
+        bundle.temps.put(name, temp);
+        bundle.executable.put(name, exec);
+    }
+
+    private void readManifest(Bundle bundle, InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int count;
+        while ((count = in.read(buf)) >= 0) {
+            bytes.write(buf, 0, count);
+            if (bytes.size() > MAX_MANIFEST_SIZE) {
+                throw new IOException("The "+MANIFEST+" manifest in "+bundle.source+" is too large");
+            }
+        }
+        int lineNum = 0;
+        for (String line : new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\r?\n")) {
+            lineNum++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            // <hash>, a space, then a space (text mode) or * (binary mode), then the name
+            if (line.length() < 67 || line.charAt(64) != ' ' || (line.charAt(65) != ' ' && line.charAt(65) != '*')
+                    || !line.substring(0, 64).matches("[0-9a-fA-F]+")) {
+                throw new IOException("Invalid line "+lineNum+" in the "+MANIFEST+" manifest of "+bundle.source
+                        +".  Expected a SHA-256 hash followed by a file name.");
+            }
+            String name = line.substring(66);
+            if (!isPlainName(name)) {
+                throw new IOException("Invalid file name "+name+" in the "+MANIFEST+" manifest of "+bundle.source
+                        +".  Bundles can only contain files at the top level.");
+            }
+            if (bundle.digests.put(name, line.substring(0, 64).toLowerCase(Locale.ROOT)) != null) {
+                throw new IOException(name+" is listed more than once in the "+MANIFEST+" manifest of "+bundle.source);
+            }
+        }
+        if (bundle.digests.isEmpty()) {
+            throw new IOException("The "+MANIFEST+" manifest in "+bundle.source+" is empty");
+        }
+    }
+
+    /**
+     * Whether the name can be installed, i.e. it can't escape the install directory and won't be
+     * hidden from the catalog.
+     */
+    private static boolean isPlainName(String name) {
+        return !name.isEmpty() && !name.startsWith(".") && name.indexOf('/') < 0 && name.indexOf('\\') < 0
+                && !name.equals(MANIFEST);
+    }
+
+    /**
+     * The entries of a zip or tar archive.
+     */
+    private interface Entries {
+        boolean next() throws IOException;
+        String path();
+        boolean isFile();
+        int mode();
+        InputStream stream();
+    }
+
+    private static class ZipEntries implements Entries {
+        private final ZipInputStream in;
+        private ZipEntry entry;
+
+        ZipEntries(ZipInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            entry = in.getNextEntry();
+            return entry != null;
+        }
+
+        @Override
+        public String path() {
+            return entry.getName();
+        }
+
+        @Override
+        public boolean isFile() {
+            return !entry.isDirectory();
+        }
+
+        @Override
+        public int mode() {
+            // ZipInputStream doesn't see the unix mode, which is in the central directory
+            return 0;
+        }
+
+        @Override
+        public InputStream stream() {
+            return in;
+        }
+    }
+
+    private static class TarEntries implements Entries {
+        private final TarReader in;
+        private TarReader.Entry entry;
+
+        TarEntries(TarReader in) {
+            this.in = in;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            entry = in.next();
+            if (entry != null && entry.name.startsWith("./")) {
+                entry.name = entry.name.substring(2);
+            }
+            return entry != null;
+        }
+
+        @Override
+        public String path() {
+            return entry.name;
+        }
+
+        @Override
+        public boolean isFile() {
+            return entry.isFile;
+        }
+
+        @Override
+        public int mode() {
+            return entry.mode;
+        }
+
+        @Override
+        public InputStream stream() {
+            return in.getEntryStream();
+        }
+    }
+}
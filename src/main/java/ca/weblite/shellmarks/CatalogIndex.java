@@ -0,0 +1,435 @@
+package ca.weblite.shellmarks;
+
+import ca.weblite.shellmarks.Main.Form;
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk index of the script and section files found on the SHELLMARKS_PATH.
+ *
+ * Each entry is keyed by the file's absolute path and is considered current when the
+ * file's mtime and size match.  If they don't match, the file's content hash is compared
+ * before the entry is discarded, so that a touched-but-unchanged file doesn't need to be
+ * parsed again.  For scripts, the hash covers the script's shellmarks markup (or the whole
+ * script if it only has legacy markup), since that is all the catalog depends on.
+ */
+class CatalogIndex {
+    private static final int MAGIC = 0x53484d49; // SHMI
+    private static final int VERSION = 2;
+
+    private final File indexFile;
+    private final Map<String,ScriptEntry> scripts = new ConcurrentHashMap<>();
+    private final Map<String,SectionEntry> sections = new ConcurrentHashMap<>();
+    private final Set<String> seen = ConcurrentHashMap.newKeySet();
+    private volatile boolean dirty;
+
+    static class ScriptEntry {
+        String path;
+        long lastModified;
+        long size;
+        String hash;
+        String title;
+        String description;
+        String docString;
+        String categoryPath;
+        Set<String> tags = new HashSet<String>();
+        // The form that the entry was parsed from, if it was parsed since the index was loaded
+        Form form;
+
+        Form toForm() {
+            return form != null ? form : new Form(title, description, docString, categoryPath, tags, null);
+        }
+    }
+
+    static class SectionEntry {
+        String path;
+        long lastModified;
+        long size;
+        String hash;
+        String name;
+        String label;
+        String description;
+        String parentName;
+    }
+
+    CatalogIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    static File getDefaultIndexFile() {
+        return new File(Main.getShellmarksDir(), "catalog.index");
+    }
+
+    /**
+     * Loads the index from disk.  A missing or unreadable index results in an empty index,
+     * which will cause every file to be parsed on the next scan.
+     */
+    static CatalogIndex load(File indexFile) {
+        CatalogIndex index = new CatalogIndex(indexFile);
+        if (!indexFile.exists()) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return index;
+            }
+            int numScripts = in.readInt();
+            for (int i=0; i<numScripts; i++) {
+                ScriptEntry entry = new ScriptEntry();
+                entry.path = readString(in);
+                entry.lastModified = in.readLong();
+                entry.size = in.readLong();
+                entry.hash = readString(in);
+                entry.title = readString(in);
+                entry.description = readString(in);
+                entry.docString = readString(in);
+                entry.categoryPath = readString(in);
+                int numTags = in.readInt();
+                for (int j=0; j<numTags; j++) {
+                    entry.tags.add(readString(in));
+                }
+                index.scripts.put(entry.path, entry);
+            }
+            int numSections = in.readInt();
+            for (int i=0; i<numSections; i++) {
+                SectionEntry entry = new SectionEntry();
+                entry.path = readString(in);
+                entry.lastModified = in.readLong();
+                entry.size = in.readLong();
+                entry.hash = readString(in);
+                entry.name = readString(in);
+                entry.label = readString(in);
+                entry.description = readString(in);
+                entry.parentName = readString(in);
+                index.sections.put(entry.path, entry);
+            }
+        } catch (IOException ex) {
+            System.err.println("Failed to read catalog index "+indexFile+".  Rebuilding.");
+            index.scripts.clear();
+            index.sections.clear();
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index entry for the given script file if its mtime and size are unchanged,
+     * or null otherwise.
+     */
+    ScriptEntry getScript(File file) {
+        String path = file.getAbsolutePath();
+        seen.add(path);
+        ScriptEntry entry = scripts.get(path);
+        if (entry != null && entry.lastModified == file.lastModified() && entry.size == file.length()) {
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the index entry for the given script file if its content hash is unchanged, or
+     * null if the file needs to be parsed again.  The entry's mtime and size are updated to
+     * the given values.
+     */
+    ScriptEntry getScript(File file, long lastModified, long size, String hash) {
+        ScriptEntry entry = scripts.get(file.getAbsolutePath());
+        if (entry != null && hash.equals(entry.hash)) {
+            entry.lastModified = lastModified;
+            entry.size = size;
+            dirty = true;
+            return entry;
+        }
+        return null;
+    }
+
+    void putScript(File file, long lastModified, long size, String hash, ScriptEntry entry) {
+        entry.path = file.getAbsolutePath();
+        entry.lastModified = lastModified;
+        entry.size = size;
+        entry.hash = hash;
+        seen.add(entry.path);
+        scripts.put(entry.path, entry);
+        dirty = true;
+    }
+
+    /**
+     * Returns the entry for the given script, parsing the script and updating the index if the
+     * entry isn't current.  Only the script's markup is read, unless the script has no TOML
+     * markup, in which case it is read in full for the legacy parser.  The entry is keyed on the
+     * hash of whatever was read.
+     */
+    ScriptEntry loadScript(File file) throws IOException {
+        ScriptEntry entry = getScript(file);
+        if (entry != null) {
+            return entry;
+        }
+        long lastModified = file.lastModified();
+        long size = file.length();
+        String header = ScriptHeaderReader.readHeader(file);
+        String contents = null;
+        String hash;
+        if (header == null || header.trim().isEmpty()) {
+            byte[] bytes = FileUtils.readFileToByteArray(file);
+            contents = new String(bytes, "UTF-8");
+            hash = hash(bytes);
+        } else {
+            hash = hash(header.getBytes("UTF-8"));
+        }
+        entry = getScript(file, lastModified, size, hash);
+        if (entry != null) {
+            return entry;
+        }
+        Form form = contents == null ? Main.parseToml(header) : Main.parseUI(contents);
+        entry = new ScriptEntry();
+        entry.title = form.title;
+        entry.description = form.description;
+        entry.docString = form.docString;
+        entry.categoryPath = form.categoryPath;
+        entry.tags.addAll(form.tags);
+        entry.form = form;
+        putScript(file, lastModified, size, hash, entry);
+        return entry;
+    }
+
+    /**
+     * Returns the entry for the given section file, parsing the file and updating the index if
+     * the entry isn't current.
+     */
+    SectionEntry loadSection(File file) throws IOException {
+        SectionEntry entry = getSection(file);
+        if (entry != null) {
+            return entry;
+        }
+        long lastModified = file.lastModified();
+        byte[] bytes = FileUtils.readFileToByteArray(file);
+        entry = parseSection(file.getName(), new String(bytes, "UTF-8"));
+        putSection(file, lastModified, bytes, entry);
+        return entry;
+    }
+
+    static boolean isSectionFile(File file) {
+        return file.getName().endsWith(".adoc") || file.getName().endsWith(".asciidoc");
+    }
+
+    /**
+     * Brings the entries for the given script and section files up to date without loading the
+     * rest of the catalog, e.g. after they were installed.
+     */
+    void update(Collection<File> files) throws IOException {
+        for (File file : files) {
+            if (!file.isFile() || file.getName().startsWith(".")) {
+                continue;
+            }
+            if (isSectionFile(file)) {
+                loadSection(file);
+            } else {
+                loadScript(file);
+            }
+        }
+    }
+
+    /**
+     * Parses a section file.  The section is named after the file, and its label comes from
+     * its first heading, if it starts with one.  A ":parent: " line names its parent section,
+     * and the rest is its description.
+     */
+    static SectionEntry parseSection(String fileName, String contents) {
+        SectionEntry entry = new SectionEntry();
+        String name = fileName;
+        if (name.endsWith(".adoc") || name.endsWith(".asciidoc")) {
+            name = name.substring(0, name.lastIndexOf("."));
+        }
+        entry.name = name;
+        StringBuilder labelBuilder = new StringBuilder();
+        int len = name.length();
+        char[] nameChars = name.toCharArray();
+        for (int i=0; i<len; i++) {
+            char c = nameChars[i];
+            if (c == '-') {
+                if (len > i + 1) {
+                    labelBuilder.append(" ").append(Character.toTitleCase(nameChars[i + 1]));
+                    i++;
+                }
+            } else {
+                labelBuilder.append(c);
+            }
+        }
+        entry.label = labelBuilder.toString();
+
+        LineTokenizer lines = new LineTokenizer(contents);
+        StringBuilder descriptionBuilder = new StringBuilder(contents.length());
+        String sep = System.lineSeparator();
+        boolean firstLine = true;
+        while (lines.next()) {
+            if (firstLine && lines.isBlank()) {
+                continue;
+            }
+            if (firstLine && lines.headingLevel() > 0) {
+                String line = lines.line();
+                entry.label = line.substring(line.indexOf(" ") + 1).trim();
+                firstLine = false;
+            } else if (lines.startsWith(":parent: ")) {
+                String line = lines.line();
+                entry.parentName = line.substring(line.indexOf(" ")+1).trim();
+            } else {
+                descriptionBuilder.append(contents, lines.start(), lines.end()).append(sep);
+            }
+        }
+        entry.description = descriptionBuilder.toString();
+        return entry;
+    }
+
+    /**
+     * Returns the index entry for the given section file if it is still current, or null if the
+     * file needs to be parsed again.
+     */
+    SectionEntry getSection(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        seen.add(path);
+        SectionEntry entry = sections.get(path);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.lastModified == file.lastModified() && entry.size == file.length()) {
+            return entry;
+        }
+        if (entry.hash.equals(hash(file))) {
+            entry.lastModified = file.lastModified();
+            entry.size = file.length();
+            dirty = true;
+            return entry;
+        }
+        return null;
+    }
+
+    void putSection(File file, long lastModified, byte[] contents, SectionEntry entry) {
+        entry.path = file.getAbsolutePath();
+        entry.lastModified = lastModified;
+        entry.size = contents.length;
+        entry.hash = hash(contents);
+        seen.add(entry.path);
+        sections.put(entry.path, entry);
+        dirty = true;
+    }
+
+    /**
+     * Writes the index back to disk if anything changed.  Entries that weren't visited since the
+     * index was loaded are dropped if their file no longer exists.  Entries for files outside the
+     * scanned directories are kept so that alternating SHELLMARKS_PATH settings can share an index.
+     */
+    void save() throws IOException {
+        for (String path : new ArrayList<String>(scripts.keySet())) {
+            if (!seen.contains(path) && !new File(path).exists()) {
+                scripts.remove(path);
+                dirty = true;
+            }
+        }
+        for (String path : new ArrayList<String>(sections.keySet())) {
+            if (!seen.contains(path) && !new File(path).exists()) {
+                sections.remove(path);
+                dirty = true;
+            }
+        }
+        if (!dirty) {
+            return;
+        }
+        File dir = indexFile.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File temp = File.createTempFile(indexFile.getName(), ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(scripts.size());
+                for (ScriptEntry entry : scripts.values()) {
+                    writeString(out, entry.path);
+                    out.writeLong(entry.lastModified);
+                    out.writeLong(entry.size);
+                    writeString(out, entry.hash);
+                    writeString(out, entry.title);
+                    writeString(out, entry.description);
+                    writeString(out, entry.docString);
+                    writeString(out, entry.categoryPath);
+                    out.writeInt(entry.tags.size());
+                    for (String tag : entry.tags) {
+                        writeString(out, tag);
+                    }
+                }
+                out.writeInt(sections.size());
+                for (SectionEntry entry : sections.values()) {
+                    writeString(out, entry.path);
+                    out.writeLong(entry.lastModified);
+                    out.writeLong(entry.size);
+                    writeString(out, entry.hash);
+                    writeString(out, entry.name);
+                    writeString(out, entry.label);
+                    writeString(out, entry.description);
+                    writeString(out, entry.parentName);
+                }
+            }
+            Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } finally {
+            temp.delete();
+        }
+    }
+
+    static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    static String hash(byte[] contents) {
+        return toHex(newDigest().digest(contents));
+    }
+
+    static String hash(File file) throws IOException {
+        MessageDigest md = newDigest();
+        try (InputStream in = new DigestInputStream(new FileInputStream(file), md)) {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) > -1) {
+                // Digest is updated as the stream is read
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
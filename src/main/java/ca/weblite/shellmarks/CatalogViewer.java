@@ -0,0 +1,1300 @@
+package ca.weblite.shellmarks;
+
+import ca.weblite.shellmarks.Main.Form;
+import javafx.application.Platform;
+import org.apache.commons.io.FileUtils;
+import org.asciidoctor.OptionsBuilder;
+import org.asciidoctor.SafeMode;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.*;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.List;
+
+/**
+ * The shellmarks catalog.  Loads the scripts and sections on the SHELLMARKS_PATH, renders them
+ * to HTML with Asciidoctor, and shows the result in the catalog viewer.
+ *
+ * This lives outside of {@link Main} so that only the catalog command loads JavaFX and
+ * Asciidoctor.
+ */
+class CatalogViewer {
+    private final Main main;
+
+    /**
+     *
+     * @param main The session whose options (e.g. --hash for imports) apply to the viewer.
+     */
+    CatalogViewer(Main main) {
+        this.main = main;
+    }
+
+    private void startConsoleListener() {
+        Threads.start("shellmarks-console", ()->{
+            Scanner scanner = new Scanner(System.in);
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine();
+                if (line.trim().isEmpty()) continue;
+                try {
+                    Process p = Runtime.getRuntime().exec(line);
+                    InputStream inputStream = p.getInputStream();
+                    Threads.start("shellmarks-console-output", ()->{
+                        Scanner inputScanner = new Scanner(inputStream);
+                        while (inputScanner.hasNextLine()) {
+                            System.out.println(inputScanner.nextLine());
+                        }
+
+                    });
+
+                } catch (Exception ex) {
+                    ex.printStackTrace(System.err);
+                }
+
+            }
+        });
+    }
+
+    void runDocs() {
+        Main.doNotExit = true;
+        System.out.println("Generating Documentation.  Please wait...");
+        if (useJavaFX) {
+            try {
+                startConsoleListener();
+                showDocs();
+
+            } catch (Exception ex) {
+                System.err.println("Failed to show docs");
+                ex.printStackTrace(System.err);
+            }
+        } else {
+            EventQueue.invokeLater(() -> {
+                try {
+                    showDocs();
+
+                } catch (Exception ex) {
+                    System.err.println("Failed to show docs");
+                    ex.printStackTrace(System.err);
+                }
+            });
+        }
+
+    }
+
+    private File[] getAllScriptFiles() {
+        List<File> out = new ArrayList<File>();
+        for (File dir : main.getScriptPaths()) {
+            for (File file : dir.listFiles()) {
+                if (!file.getName().startsWith(".") && !file.getName().endsWith(".adoc") && !file.getName().endsWith(".asciidoc")) {
+                    out.add(file);
+                }
+            }
+
+        }
+        return out.toArray(new File[out.size()]);
+    }
+
+    private File[] getAllSectionFiles() {
+        List<File> out = new ArrayList<File>();
+        for (File dir : main.getScriptPaths()) {
+            for (File file : dir.listFiles()) {
+                if (!file.getName().startsWith(".") && (file.getName().endsWith(".adoc") || file.getName().endsWith(".asciidoc"))) {
+                    out.add(file);
+                }
+            }
+
+        }
+        return out.toArray(new File[out.size()]);
+    }
+
+    /**
+     * Loads all of the scripts on the script path.  Scripts are parsed in parallel, but are
+     * returned in the same order as getAllScriptFiles().
+     */
+    private Script[] loadAllScripts(CatalogIndex index) throws IOException {
+        try {
+            return Arrays.stream(getAllScriptFiles())
+                    .parallel()
+                    .map(f -> {
+                        Script script = new Script();
+                        try {
+                            script.load(f, index);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                        return script;
+                    })
+                    .toArray(Script[]::new);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private ScriptCategory loadAllScriptCategories() throws IOException {
+        return loadScriptCategories(null);
+    }
+
+    /**
+     * Loads the catalog, reloading only the given files if the catalog has been loaded before.
+     * @param changed The files that changed since the catalog was last loaded, or null to reload
+     *                every file.
+     */
+    private ScriptCategory loadScriptCategories(Set<File> changed) throws IOException {
+        CatalogIndex index;
+        try (PhaseTimer.Phase phase = PhaseTimer.start("load catalog index")) {
+            index = CatalogIndex.load(CatalogIndex.getDefaultIndexFile());
+        }
+        ScriptCategory root;
+        try (PhaseTimer.Phase phase = PhaseTimer.start("load scripts")) {
+            if (changed == null || loadedScripts == null) {
+                root = loadAllScriptCategories(index);
+            } else {
+                root = reloadScriptCategories(index, changed);
+            }
+        }
+        try (PhaseTimer.Phase phase = PhaseTimer.start("save catalog index")) {
+            index.save();
+        } catch (IOException ex) {
+            System.err.println("Failed to save catalog index. "+ex.getMessage());
+            ex.printStackTrace(System.err);
+        }
+        return root;
+    }
+
+    ScriptCategory loadAllScriptCategories(CatalogIndex index) throws IOException {
+        Map<File,ScriptCategory> sections = new LinkedHashMap<File,ScriptCategory>();
+        for (File f : getAllSectionFiles()) {
+            ScriptCategory cat = new ScriptCategory();
+            cat.load(f, index);
+            sections.put(f, cat);
+        }
+        Map<File,Script> scripts = new LinkedHashMap<File,Script>();
+        for (Script script : loadAllScripts(index)) {
+            scripts.put(script.file, script);
+        }
+        loadedSections = sections;
+        loadedScripts = scripts;
+        return buildScriptCategories();
+    }
+
+    /**
+     * Reloads the given files into the catalog that was loaded last, and leaves the other files
+     * as they were loaded.
+     */
+    ScriptCategory reloadScriptCategories(CatalogIndex index, Set<File> changed) throws IOException {
+        Set<File> scriptPaths = new HashSet<File>(Arrays.asList(main.getScriptPaths()));
+        for (File f : changed) {
+            loadedSections.remove(f);
+            loadedScripts.remove(f);
+            if (!f.isFile() || f.getName().startsWith(".") || !scriptPaths.contains(f.getParentFile())) {
+                continue;
+            }
+            if (CatalogIndex.isSectionFile(f)) {
+                ScriptCategory cat = new ScriptCategory();
+                cat.load(f, index);
+                loadedSections.put(f, cat);
+            } else {
+                Script script = new Script();
+                script.load(f, index);
+                loadedScripts.put(f, script);
+            }
+        }
+        return buildScriptCategories();
+    }
+
+    /**
+     * Builds the category tree from the sections and scripts that were loaded last.
+     */
+    private ScriptCategory buildScriptCategories() {
+        List<ScriptCategory> out = new ArrayList<ScriptCategory>();
+        Map<String,ScriptCategory> categoryMap = new HashMap<String,ScriptCategory>();
+
+        ScriptCategory root = new ScriptCategory("");
+        out.add(root);
+        categoryMap.put("", root);
+        for (ScriptCategory loaded : loadedSections.values()) {
+            // The tree is rebuilt on every reload, so it gets copies of the loaded sections
+            ScriptCategory cat = loaded.copy();
+            categoryMap.put(cat.name, cat);
+            out.add(cat);
+        }
+
+        for (ScriptCategory cat : new ArrayList<ScriptCategory>(out)) {
+            if (cat == root) continue;
+            if (cat.parentName != null && !categoryMap.containsKey(cat.parentName)) {
+                // A parent category is referenced but it doesn't have
+                // an explicit asciidoc file
+                ScriptCategory parentCategory = new ScriptCategory(cat.parentName);
+                parentCategory.add(cat);
+                categoryMap.put(parentCategory.name, parentCategory);
+                root.add(parentCategory);
+                out.add(parentCategory);
+            } else if (cat.parentName != null) {
+                ScriptCategory parentCategory = categoryMap.get(cat.parentName);
+                parentCategory.add(cat);
+
+            } else {
+                root.add(cat);
+            }
+        }
+
+        for (Script script : loadedScripts.values()) {
+            if (script.getTags().isEmpty()) {
+                root.add(script);
+            } else {
+
+                for (String tag : script.getTags()) {
+                    if (!categoryMap.containsKey(tag)) {
+                        ScriptCategory cat = new ScriptCategory(tag);
+                        categoryMap.put(tag, cat);
+                        out.add(cat);
+                        root.add(cat);
+                    }
+                    categoryMap.get(tag).add(script);
+                }
+            }
+
+        }
+
+        out.sort((cat1, cat2) -> {
+            return cat1.name.compareTo(cat2.name);
+        });
+
+        root.pruneEmptyCategories();
+
+        return root;
+    }
+
+    class Script {
+        File file;
+        Form form;
+
+        /**
+         * Loads the script's catalog metadata.  Only the script's markup is read, unless the
+         * script has no TOML markup, in which case it is read in full for the legacy parser.
+         * The index entry is keyed on the hash of whatever was read.
+         */
+        private void load(File file, CatalogIndex index) throws IOException {
+            JfrEvents.ScriptLoad event = new JfrEvents.ScriptLoad();
+            event.begin();
+            boolean fromIndex = loadForm(file, index);
+            if (event.shouldCommit()) {
+                event.scriptName = file.getName();
+                event.bytes = file.length();
+                event.fieldCount = form.fields.size();
+                event.fromIndex = fromIndex;
+                event.commit();
+            }
+        }
+
+        /**
+         * @return True if the form came from the catalog index.
+         */
+        private boolean loadForm(File file, CatalogIndex index) throws IOException {
+            this.file = file;
+            CatalogIndex.ScriptEntry entry = index.loadScript(file);
+            this.form = entry.toForm();
+            return entry.form == null;
+        }
+
+        private String getCategoryPath() {
+            if (form.categoryPath == null) {
+                return "";
+            }
+            return form.categoryPath;
+        }
+
+        private String getTitle() {
+            if (form != null && form.title != null) return form.title;
+            return file.getName();
+        }
+
+        Set<String> getTags() {
+            return form.tags;
+        }
+
+        private String _getDocString() {
+            if (form != null && form.docString != null) return form.docString;
+            if (form != null && form.description != null) return form.description;
+            return "";
+        }
+
+        private String getDocString() {
+            String sep = System.lineSeparator();
+            String str = _getDocString();
+            if (str.startsWith("<asciidoc>")) {
+                int endPos = str.indexOf("</asciidoc>");
+                if (endPos >= 0) {
+                    return str.substring("<asciidoc>".length(), endPos);
+                } else {
+                    return str.substring("<asciidoc>".length());
+                }
+            } else if (str.startsWith("<html>")) {
+                int endPos = str.indexOf("</html>");
+                if (endPos >= 0) {
+                    return "++++"+sep+"<br>"+str.substring("<html>".length(), endPos)+sep+"++++"+sep;
+                } else {
+                    return "++++"+sep+"<br>"+str.substring("<html>".length())+sep+"++++"+sep;
+                }
+            } else {
+                return str;
+            }
+        }
+    }
+
+    static String prefixAsciidocHeadings(String content, int minHeadingLevel) {
+        int currMinLevel = -1;
+        LineTokenizer lines = new LineTokenizer(content);
+        while (lines.next()) {
+            int headingLevel = lines.headingLevel();
+            if (headingLevel > 0) {
+                if (currMinLevel < 0 || currMinLevel > headingLevel) {
+                    currMinLevel = headingLevel;
+                }
+            }
+        }
+
+        if (currMinLevel > 0 && currMinLevel < minHeadingLevel) {
+            int levelsToAdd = minHeadingLevel - currMinLevel;
+            String sep = System.lineSeparator();
+            StringBuilder out = new StringBuilder(content.length() + 64);
+            lines = new LineTokenizer(content);
+            while (lines.next()) {
+                if (lines.headingLevel() > 0) {
+                    for (int i=0; i<levelsToAdd; i++) {
+                        out.append('=');
+                    }
+                }
+                out.append(content, lines.start(), lines.end()).append(sep);
+            }
+            return out.toString();
+        }
+        return content;
+
+    }
+
+    class ScriptCategory {
+        private String parentName;
+        private ScriptCategory parent;
+        private String name;
+        private String label;
+        private String description;
+        private LinkedHashMap<String,ScriptCategory> subCategories = new LinkedHashMap<String,ScriptCategory>();
+        private List<Script> scripts = new ArrayList<Script>();
+
+
+        ScriptCategory() {
+
+        }
+
+        void pruneEmptyCategories() {
+            List<String> emptyCategories = new ArrayList<String>();
+            for (String catName : subCategories.keySet()) {
+                ScriptCategory cat = subCategories.get(catName);
+                if (cat.isEmpty()) {
+                    emptyCategories.add(catName);
+                }
+            }
+            for (String catName : emptyCategories) {
+                subCategories.remove(catName);
+            }
+            for (ScriptCategory cat : subCategories.values()) {
+                cat.pruneEmptyCategories();
+            }
+        }
+
+        boolean isEmpty() {
+            return subCategories.isEmpty() && scripts.isEmpty() && (description == null || description.trim().isEmpty());
+        }
+
+        ScriptCategory(String name) {
+            this.name = name;
+            StringBuilder labelBuilder = new StringBuilder();
+            int len = name.length();
+            char[] nameChars = name.toCharArray();
+            for (int i=0; i<len; i++) {
+                char c = nameChars[i];
+                if (c == '-') {
+                    if (len > i + 1) {
+                        labelBuilder.append(" ").append(Character.toTitleCase(nameChars[i + 1]));
+                        i++;
+                    }
+                } else {
+                    labelBuilder.append(c);
+                }
+            }
+            label = labelBuilder.toString();
+        }
+
+        String getLabel() {
+            if (label == null) {
+                if (name != null) {
+                    return name;
+                }
+                return "";
+            }
+            return label;
+        }
+
+        private boolean isRoot() {
+            return parent == null;
+        }
+
+        private void add(ScriptCategory subcategory) {
+            subcategory.parent = this;
+            subCategories.put(subcategory.name, subcategory);
+            subcategory.parentName = name;
+        }
+
+        private void add(Script script) {
+            scripts.add(script);
+        }
+
+        /**
+         * A copy of a loaded section, without its subcategories and scripts.
+         */
+        private ScriptCategory copy() {
+            ScriptCategory copy = new ScriptCategory();
+            copy.name = name;
+            copy.label = label;
+            copy.description = description;
+            copy.parentName = parentName;
+            return copy;
+        }
+
+
+
+        public void load(File f, CatalogIndex index) throws IOException {
+            CatalogIndex.SectionEntry entry = index.loadSection(f);
+            name = entry.name;
+            label = entry.label;
+            description = entry.description;
+            parentName = entry.parentName;
+        }
+    }
+
+    private boolean useJavaFX = true;
+
+    static final RenderCache renderCache = new RenderCache();
+
+    File findSectionFile(String name) {
+        File[] files = getAllSectionFiles();
+        for (File f : files) {
+            if (f.getName().equals(name)) {
+                return f;
+            }
+        }
+        for (File f : files) {
+            if (f.getName().equalsIgnoreCase(name+".adoc") || f.getName().equalsIgnoreCase(name+".asciidoc")) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+
+    private static Map<String, String> parseQuerystring(String queryString) {
+        Map<String, String> map = new HashMap<String, String>();
+        if ((queryString == null) || (queryString.equals(""))) {
+            return map;
+        }
+        String[] params = queryString.split("&");
+        for (String param : params) {
+            try {
+                String[] keyValuePair = param.split("=", 2);
+                String name = URLDecoder.decode(keyValuePair[0], "UTF-8");
+                if (name == "") {
+                    continue;
+                }
+                String value = keyValuePair.length > 1 ? URLDecoder.decode(
+                        keyValuePair[1], "UTF-8") : "";
+                map.put(name, value);
+            } catch (UnsupportedEncodingException e) {
+                // ignore this parameter if it can't be decoded
+            }
+        }
+        return map;
+    }
+
+
+
+
+    private String newSectionTemplate(String sectionName) {
+        String label = sectionName;
+        StringBuilder labelBuilder = new StringBuilder();
+        int len = sectionName.length();
+        char[] nameChars = sectionName.toCharArray();
+        for (int i=0; i<len; i++) {
+            char c = nameChars[i];
+            if (c == '-') {
+                if (len > i + 1) {
+                    labelBuilder.append(" ").append(Character.toTitleCase(nameChars[i + 1]));
+                    i++;
+                }
+            } else {
+                labelBuilder.append(c);
+            }
+        }
+        label = labelBuilder.toString();
+        StringBuilder contents = new StringBuilder();
+        contents
+                .append("= ").append(label).append(System.lineSeparator())
+                .append(System.lineSeparator())
+                .append("This is the section description formatted as https://asciidoctor.org/docs/asciidoc-writers-guide/[Asciidoc]").append(System.lineSeparator())
+                .append(System.lineSeparator()).append("Lorem ipsum, etc...").append(System.lineSeparator());
+        return contents.toString();
+
+    }
+
+    private File getOrCreateSection(String sectionName) throws IOException {
+        File sectionFile = findSectionFile(sectionName);
+        if (sectionFile != null && sectionFile.exists()) {
+            return sectionFile;
+        }
+
+        if (sectionFile == null) {
+            sectionFile = new File(main.getScriptPaths()[0], sectionName+".adoc");
+        }
+        FileUtils.writeStringToFile(sectionFile, newSectionTemplate(sectionName), "UTF-8");
+        return sectionFile;
+
+    }
+
+
+
+
+    private void showDocs() throws IOException {
+        if (useJavaFX) {
+            RunScriptListener listener = JfrEvents.record(new RunScriptListener() {
+                @Override
+                public void runScript(DocumentationAppFX app, String name) {
+                    Threads.start("shellmarks-run-script", ()->{
+                        try {
+                            String scriptName = name;
+                            Map<String,String> query;
+                            if (name.contains("?")) {
+                                scriptName = name.substring(0, name.indexOf("?"));
+                                query = parseQuerystring(name.substring(name.indexOf("?")+1));
+
+
+                            } else {
+                                query = new HashMap<String,String>();
+                            }
+                            new Main().run(main.findScript(scriptName), query);
+                        } catch (Exception ex) {
+                            System.err.println("Script execution failed: "+ex.getMessage());
+                            ex.printStackTrace(System.err);
+                        }
+                    });
+                }
+
+                @Override
+                public void newSection(DocumentationAppFX app) {
+
+                    EventQueue.invokeLater(()->{
+                        String sectionName = JOptionPane.showInputDialog("Please enter a section name.");
+                        if (sectionName == null) {
+                            return;
+                        }
+                        String sectionLabel = sectionName;
+                        sectionName = sectionName.replace(' ', '-').replaceAll("[^A-Z0-9a-z\\._\\-]", "");
+                        if (sectionName.isEmpty()) {
+                            JOptionPane.showMessageDialog((Component)null, "Invalid name.  Name should only contain letters, numbers, hyphens, periods, and underscores.", "Invalid name", JOptionPane.ERROR_MESSAGE);
+                            return;
+                        }
+                        String fileName = sectionName;
+                        if (fileName.endsWith(".adoc")) {
+                            sectionName = sectionName.substring(0, sectionName.lastIndexOf("."));
+                            sectionLabel = sectionLabel.substring(0, sectionLabel.lastIndexOf("."));
+                        } else {
+                            fileName += ".adoc";
+                        }
+                        editSection(app, sectionName);
+
+
+                    });
+                }
+
+                @Override
+                public void editSection(DocumentationAppFX app, String sectionName) {
+                    Threads.start("shellmarks-edit-section", ()->{
+                        File sectionFile = findSectionFile(sectionName);
+                        if (sectionFile == null || !sectionFile.exists()) {
+                            try {
+                                sectionFile = getOrCreateSection(sectionName);
+                            } catch (Exception ex) {
+                                final File fSectionFile = sectionFile;
+                                EventQueue.invokeLater(()->{
+                                    JOptionPane.showMessageDialog((Component)null, "Failed to write file: "+ex.getMessage(), "Oops", JOptionPane.ERROR_MESSAGE);
+                                    System.err.println("Failed to write section file "+fSectionFile);
+                                    ex.printStackTrace(System.err);
+                                });
+                            }
+
+                        }
+                        if (sectionFile != null && sectionFile.exists()) {
+                            if (Desktop.isDesktopSupported()) {
+                                try {
+                                    Desktop.getDesktop().edit(sectionFile);
+                                } catch (Exception ex) {
+                                    final File fSectionFile = sectionFile;
+                                    EventQueue.invokeLater(()->{
+                                        JOptionPane.showMessageDialog((Component)null, "Error opening file: "+ex.getMessage(), "Oops", JOptionPane.ERROR_MESSAGE);
+                                        System.err.println("Failed to open section file "+fSectionFile);
+                                        ex.printStackTrace(System.err);
+                                    });
+                                }
+                            } else {
+                                EventQueue.invokeLater(()->{
+                                    JOptionPane.showMessageDialog((Component)null, "Sorry, this platform doesn't support opening asciidoc files for editing", "Not supported", JOptionPane.ERROR_MESSAGE);
+                                });
+
+                            }
+                        }
+
+                    });
+                }
+
+                @Override
+                public void editScript(DocumentationAppFX app, String name) {
+                    Threads.start("shellmarks-edit-script", ()->{
+
+                        try {
+                            File script = main.findScript(name);
+                            if (script != null && script.exists()) {
+                                if (Desktop.isDesktopSupported()) {
+                                    Desktop.getDesktop().edit(script);
+                                } else {
+                                    System.err.println("Editing not supported on this platform.");
+                                }
+                            }
+                        } catch (Exception ex) {
+                            System.err.println("Failed to open script for editing: "+ex.getMessage());
+                            ex.printStackTrace(System.err);
+                        }
+                    });
+                }
+
+                @Override
+                public void deleteScript(DocumentationAppFX app, String name) {
+                    Threads.start("shellmarks-delete-script", ()->{
+                        int[] result = new int[1];
+                        try {
+                            EventQueue.invokeAndWait(() -> {
+                                result[0] = JOptionPane.showConfirmDialog(null, "Are you sure you want to delete this script?");
+                            });
+                        } catch (Exception ex) {
+                            ex.printStackTrace(System.err);
+                        }
+                        if (result[0] != JOptionPane.OK_OPTION) {
+                            return;
+                        }
+
+                        File script = main.findScript(name);
+                        if (script == null || !script.exists()) {
+                            try {
+                                EventQueue.invokeAndWait(() -> {
+                                    JOptionPane.showMessageDialog((Component)null,"Could not delete this script because it could not be found","Failed", JOptionPane.ERROR_MESSAGE);
+                                });
+                            } catch (Exception ex) {
+                                ex.printStackTrace(System.err);
+                            }
+                            return;
+                        }
+
+                        if (Desktop.isDesktopSupported()) {
+                            Desktop.getDesktop().moveToTrash(script);
+                        }
+                        ScriptResolver.getDefault().invalidate();
+                        try {
+                            EventQueue.invokeAndWait(() -> {
+                                JOptionPane.showMessageDialog((Component)null,"The script has been moved to the trash.", "Moved to trash", JOptionPane.INFORMATION_MESSAGE);
+                            });
+                        } catch (Exception ex) {
+                            ex.printStackTrace(System.err);
+                        }
+                        return;
+                    });
+                }
+
+                @Override
+                public void refresh(DocumentationAppFX app) {
+                    EventQueue.invokeLater(()->{
+                        JOptionPane opt = new JOptionPane("Please regenerating shellmarks catalog.  Please wait.", JOptionPane.INFORMATION_MESSAGE);
+                        Threads.start("shellmarks-refresh", ()-> {
+                            try {
+                                refreshCatalog(app);
+                                EventQueue.invokeLater(()->{
+                                    opt.setVisible(false);
+                                });
+                            } catch (Exception ex) {
+                                opt.setVisible(false);
+                                System.err.println("Failed to regenerate shellmarks catalog: "+ex.getMessage());
+                                ex.printStackTrace(System.err);
+                                EventQueue.invokeLater(()-> {
+                                    JOptionPane.showMessageDialog(null, "Failed to regenerate catalog: "+ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                                });
+                            }
+                        });
+                    });
+                }
+
+                @Override
+                public void newScript(DocumentationAppFX app) {
+                    EventQueue.invokeLater(()->{
+                        String name = JOptionPane.showInputDialog("Script name", "myscript.sh");
+                        if (name == null) return;
+                        File file = new File(main.getScriptPaths()[0], name);
+                        if (file.exists()) {
+                            JOptionPane.showMessageDialog((Component)null, "A script by this name already exists", "Cannot create script", JOptionPane.ERROR_MESSAGE);
+                            return;
+                        }
+                        String sep = System.lineSeparator();
+                        String contents = "#!/bin/bash\n" +
+                                "echo \"Hello ${firstName} ${lastName}\"" + sep +
+                                "echo \"You selected ${selectedFile}\"" + sep +
+                                "if [ ! -z \"${option1}\" ]; then " + sep +
+                                "  echo \"Option1 was selected\"" + sep +
+                                "fi" + System.lineSeparator() +
+                                "if [ ! -z \"${option2}\" ]; then " + sep +
+                                "  echo \"Option2 was selected\"" +   sep+
+                                "fi" + sep +
+                                "exit 0" + sep +
+                                "---" + sep +
+                                "# The script title" + sep +
+                                "__title__=\"" + name + "\"" + sep +
+                                sep +
+                                "# Script description in Asciidoc format" + sep +
+                                "__description__='''" + sep +
+                                //"  <asciidoc>" + sep +
+                                "This description will be displayed at the top of the form." + sep +
+                                sep +
+                                "It can be multiline and include https://example.com[Links]" + sep +
+                                //"</asciidoc>" + sep +
+                                "'''" + sep +
+                                sep +
+                                "# Doc string.  In asciidoc format.  Displayed in Shellmarks catalog" + sep +
+                                "__doc__='''" + sep +
+                                "This will be displayed in the shellmarks catalog. " + sep +
+                                sep +
+                                "You can include _asciidoc_ markup, as well as https://www.example.com[links]." + sep +
+                                "'''" + sep +
+                                sep +
+                                "# Tags used to place script into one or more sections of the catalog" + sep +
+                                "__tags__=\"#custom-tag1 #custom-tag2\"" + sep +
+                                sep +
+                                "[firstName]\n" +
+                                "  label=\"First Name\"" + sep +
+                                "  required=true" + sep +
+                                sep +
+                                "[lastName]" + sep +
+                                "  label=\"Last Name\"" + sep +
+                                sep +
+                                "[selectedFile]" + sep +
+                                "  label=\"Please select a file\"" + sep +
+                                "  type=\"file\"" + sep +
+                                sep +
+                                "[option1]" + sep +
+                                "  label=\"Option 1\"" + sep +
+                                "  type=\"checkbox\"" + sep +
+                                sep +
+                                "[option2]" + sep +
+                                "  label=\"Option 2\"" + sep +
+                                "  type=\"checkbox\"" + sep +
+                                sep; //+
+                                //"</shellmarks>";
+                        try {
+                            FileUtils.writeStringToFile(file, contents, "UTF-8");
+                        } catch (IOException ex) {
+                            JOptionPane.showMessageDialog((Component)null, "Failed to create script. "+ex.getMessage(), "Cannot create script", JOptionPane.ERROR_MESSAGE);
+                            ex.printStackTrace(System.err);
+                            return;
+                        }
+                        if (Desktop.isDesktopSupported()) {
+                            try {
+                                Desktop.getDesktop().edit(file);
+                            } catch (IOException ex) {
+                                System.err.println("Failed to open script for editing");
+                                ex.printStackTrace(System.err);
+                            }
+                        } else {
+                            System.err.println("Script was created at "+file+" but was not opened for editing because this platform doesn't support it.");
+                        }
+
+                        Threads.start("shellmarks-refresh", () -> {
+                            try {
+                                refreshCatalog(app);
+                            } catch (IOException ex) {
+                                System.err.println("Failed to generate catalog. "+ex.getMessage());
+                                ex.printStackTrace(System.err);
+                            }
+                        });
+
+                    });
+                }
+
+                @Override
+                public void importScriptFromFileSystem(DocumentationAppFX app) {
+                    EventQueue.invokeLater(()->{
+                        FileDialog fileDialog = new FileDialog((Frame)null, "Select script", FileDialog.LOAD);
+
+                        fileDialog.setVisible(true);
+                        File[] files = fileDialog.getFiles();
+                        File file = null;
+                        if (files == null) return;
+                        for (File f : files) {
+                            if (f.isDirectory() || !f.exists()) continue;
+                            try {
+                                String contents = FileUtils.readFileToString(f, "UTF-8");
+                                if (!contents.startsWith("#!")) {
+                                    continue;
+                                }
+                            } catch (Exception ex) {
+
+                            }
+                            file = f;
+                        }
+
+                        if (file == null) {
+                            JOptionPane.showMessageDialog((Component)null, "The file you selected could not be imported.  Make sure that the file includes a hashbang (#!) on its first line.", "Invalid script", JOptionPane.ERROR_MESSAGE );
+                            return;
+                        }
+
+                        File fFile = file;
+                        Threads.start("shellmarks-import", ()->{
+                            main.runInstall((URL)null, fFile);
+
+                            try {
+                                refreshCatalog(app);
+                            } catch (Exception ex) {
+                                System.err.println("Failed to generate catalog: "+ex.getMessage());
+                                ex.printStackTrace(System.err);
+                            }
+
+
+                        });
+
+                    });
+                }
+
+                @Override
+                public void importScriptFromURL(DocumentationAppFX app) {
+                    EventQueue.invokeLater(()->{
+                        String url = JOptionPane.showInputDialog("Please enter the URL of the script you want to import");
+                        if (url == null) return;
+                        Threads.start("shellmarks-import", ()->{
+                            try {
+                                URL u = new URL(url);
+                                main.runInstall(u, null);
+
+
+                            } catch (Exception ex) {
+                                EventQueue.invokeLater(()->{
+                                    JOptionPane.showMessageDialog((Component)null, "Failed to parse URL. "+ex.getMessage(), "Check URL", JOptionPane.ERROR_MESSAGE);
+                                    ex.printStackTrace(System.err);
+                                });
+                                return;
+                            }
+                            try {
+                                refreshCatalog(app);
+                            } catch (Exception ex) {
+                                System.err.println("Failed to generate catalog: "+ex.getMessage());
+                                ex.printStackTrace(System.err);
+                            }
+
+                        });
+
+                    });
+
+                }
+
+                @Override
+                public void cloneScript(DocumentationAppFX app, String name) {
+                    EventQueue.invokeLater(()->{
+                        String newName = JOptionPane.showInputDialog("Please enter a name for the cloned script", name+"-copy");
+                        if (newName == null) {
+                            return;
+                        }
+                        boolean validated = true;
+                        String message = null;
+
+                        if (!newName.matches("^[a-zA-Z_\\-]+$")) {
+                            validated = false;
+                            message = "Invalid name.  Name can only include letters, numbers, underscores, and dashes";
+                        }
+
+                        if (validated) {
+                            File existing = main.findScript(newName);
+                            if (existing != null && existing.exists()) {
+                                validated = false;
+                                message = "A script by that name already exists.";
+
+                            }
+                        }
+
+                        File original = main.findScript(name);
+                        if (validated) {
+                            if (original == null || !original.exists()) {
+                                validated = false;
+                                message = "Cannot find original script named "+name+".  It may have been moved or deleted.";
+                            }
+                        }
+
+                        if (!validated) {
+                            JOptionPane.showMessageDialog((Component) null, message, "Invalid name", JOptionPane.ERROR_MESSAGE);
+                            return;
+                        }
+                        try {
+                            FileUtils.copyFile(original, new File(main.getScriptPaths()[0], newName));
+                        } catch (Exception ex) {
+                            message = "Failed to copy script: "+ex.getMessage();
+                            ex.printStackTrace(System.err);
+                            JOptionPane.showMessageDialog((Component) null, message, "Copy failure", JOptionPane.ERROR_MESSAGE);
+                            return;
+                        }
+
+                        JOptionPane opt = new JOptionPane("Please regenerating shellmarks catalog.  Please wait.", JOptionPane.INFORMATION_MESSAGE);
+                        Threads.start("shellmarks-refresh", ()-> {
+                            try {
+                                refreshCatalog(app);
+                                EventQueue.invokeLater(()->{
+                                    opt.setVisible(false);
+                                });
+                            } catch (Exception ex) {
+                                opt.setVisible(false);
+                                System.err.println("Failed to regenerate shellmarks catalog: "+ex.getMessage());
+                                ex.printStackTrace(System.err);
+                                EventQueue.invokeLater(()-> {
+                                    JOptionPane.showMessageDialog(null, "Failed to regenerate catalog: "+ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                                });
+                            }
+                        });
+
+
+
+                    });
+                }
+
+
+            });
+
+            synchronized (catalogLock) {
+                currentCatalog = generateCatalog(null);
+            }
+            CatalogWatcher watcher = new CatalogWatcher(main.getScriptPaths(), 200, changed -> {
+                DocumentationAppFX app = DocumentationAppFX.getInstance();
+                if (app == null) {
+                    return;
+                }
+                try {
+                    // An empty set means that the watcher lost track of the changes
+                    refreshCatalog(app, changed.isEmpty() ? null : changed);
+                } catch (IOException ex) {
+                    System.err.println("Failed to regenerate shellmarks catalog: "+ex.getMessage());
+                    ex.printStackTrace(System.err);
+                }
+            });
+            try {
+                watcher.start();
+            } catch (IOException ex) {
+                System.err.println("Failed to watch script directories for changes.  Use the refresh button to update the catalog.");
+                ex.printStackTrace(System.err);
+            }
+            DocumentationAppFX.launchNow("ShellMarks", currentCatalog.html, listener);
+            watcher.stop();
+        } else {
+            JEditorPane editor = new JEditorPane();
+            editor.setEditable(false);
+            editor.setContentType("text/html");
+            editor.setText(generateDocs());
+
+            JFrame frame = new JFrame();
+            JScrollPane scrollPane = new JScrollPane(editor);
+            frame.getContentPane().add(scrollPane, BorderLayout.CENTER);
+            frame.pack();
+            frame.setLocationRelativeTo(null);
+
+
+            frame.setVisible(true);
+        }
+
+    }
+
+
+    private final Object catalogLock = new Object();
+    private RenderCache.Page currentCatalog;
+
+    // The sections and scripts that the catalog was last loaded from
+    private Map<File,ScriptCategory> loadedSections;
+    private Map<File,Script> loadedScripts;
+
+    /**
+     * Regenerates the catalog and applies it to the given viewer.  If only the contents of some
+     * scripts or section descriptions changed, they are patched into the live page.  Otherwise the
+     * whole page is reloaded.
+     */
+    private void refreshCatalog(DocumentationAppFX app) throws IOException {
+        refreshCatalog(app, null);
+    }
+
+    /**
+     * @param changedFiles The files that changed, which are the only ones that need to be
+     *                     reloaded, or null to reload the whole catalog.
+     */
+    private void refreshCatalog(DocumentationAppFX app, Set<File> changedFiles) throws IOException {
+        ScriptResolver.getDefault().invalidate();
+        synchronized (catalogLock) {
+            RenderCache.Page previous = currentCatalog;
+            RenderCache.Page page = generateCatalog(changedFiles);
+            currentCatalog = page;
+            if (previous != null && previous.key.equals(page.key)) {
+                Map<String,String> changed = new LinkedHashMap<String,String>();
+                for (Map.Entry<String,String> fragment : page.fragmentHtml.entrySet()) {
+                    if (!fragment.getValue().equals(previous.fragmentHtml.get(fragment.getKey()))) {
+                        changed.put(fragment.getKey(), fragment.getValue());
+                    }
+                }
+                if (!changed.isEmpty()) {
+                    Platform.runLater(() -> {
+                        app.patchContents(changed, page.html);
+                    });
+                }
+            } else {
+                Platform.runLater(() -> {
+                    app.updateContents(page.html);
+                });
+            }
+        }
+    }
+
+    private void appendScripts(StringBuilder out) {
+
+    }
+
+    String generateDocs() throws IOException {
+        return generateCatalog(null).html;
+    }
+
+    /**
+     * @param changed The files that changed since the catalog was last generated, or null to
+     *                reload every file.
+     */
+    private RenderCache.Page generateCatalog(Set<File> changed) throws IOException {
+        long started = System.nanoTime();
+        JfrEvents.GenerateCatalog event = new JfrEvents.GenerateCatalog();
+        event.begin();
+        RenderCache.Page page;
+        try (PhaseTimer.Phase phase = PhaseTimer.start("generate catalog")) {
+            page = generateCatalogPage(event, changed);
+        }
+        Metrics.get().recordCatalogGeneration(System.nanoTime() - started);
+        if (page != null && event.shouldCommit()) {
+            event.fragmentCount = page.fragmentHtml.size();
+            event.bytes = page.html.length();
+            event.commit();
+        }
+        return page;
+    }
+
+    private RenderCache.Page generateCatalogPage(JfrEvents.GenerateCatalog event, Set<File> changed) throws IOException {
+        ScriptCategory root = loadScriptCategories(changed);
+        try {
+            RenderCache.Page result = renderCatalog(root, event);
+            FileUtils.writeStringToFile(new File("/tmp/docs.html"), result.html, "UTF-8");
+            return result;
+        } catch (Exception ex) {
+            System.err.println("Failed to convert Asciidoc. "+ex.getMessage());
+            ex.printStackTrace(System.err);
+            System.exit(1);
+        }
+        return null;
+
+    }
+
+    private static OptionsBuilder pageOptions() {
+        return OptionsBuilder.options()
+                .safe(SafeMode.UNSAFE)
+                .docType("html")
+                .headerFooter(true)
+                .compact(true);
+    }
+
+    /**
+     * Builds the Asciidoc source of the catalog page.
+     * @param fragments Receives the fragments whose placeholders were written into the page.  If
+     *                  null, every fragment is written into the page in full, for a single pass
+     *                  conversion.
+     */
+    String buildCatalogSource(ScriptCategory root, List<RenderCache.Fragment> fragments) throws IOException {
+        StringBuilder out = new StringBuilder();
+        String sep = System.lineSeparator();
+        out.append(sep).append("= Shellmarks").append(sep)
+                .append(":doctype: book").append(sep)
+                .append(":encoding: utf-8").append(sep)
+                .append(":lang: en").append(sep)
+                .append(":toc: left").append(sep)
+                // The page is cached, so a "last updated" time in it would be stale
+                .append(":reproducible:").append(sep)
+                .append(":docinfo: private").append(sep).append(sep);
+
+        out.append(new String(Main.class.getResourceAsStream("welcome.adoc")
+                        .readAllBytes()));
+
+        out.append(sep).append(sep).append("++++").append(sep)
+
+                .append("<style>a.command {border: 1px solid gray; padding: 8px; font-family:sans-serif; color:#333333; border-radius: 3px; text-decoration:none;}" +
+                        "a.command:active {background-color: #eaeaea} .section-menu {float:right; margin-top: 20px;    } div.section-menu-content {display:none; float:right; clear:right;  border: 1px solid #cccccc;" +
+                        "margin-top:10px;" +
+                        "background-color: #eaeaea;" +
+                        "padding: 5px;" +
+                        "font-family: sans-serif;" +
+                        "color: black;" +
+                        "border-radius: 3px;} div.section-menu-content.active {display:block} div.section-menu-content a {text-decoration: none; padding: 5px;} " +
+                        "div.section-menu-content a span {padding-left: 10px;}</style>")
+                .append(sep).append("++++").append(sep);
+        try (PhaseTimer.Phase phase = PhaseTimer.start("build asciidoc")) {
+            appendToDocs(out, root, 0, fragments);
+        }
+
+        out.append("++++").append(sep).append("<script>").append(sep);
+        out.append(new String(Main.class.getResourceAsStream("documentation.js")
+                .readAllBytes()));
+
+        out.append(sep).append("</script>").append(sep).append("++++").append(sep);
+        return out.toString();
+    }
+
+    /**
+     * Renders the catalog, converting only the page and the fragments that aren't in the render
+     * cache.
+     * @param event Counts the fragments that were converted.
+     */
+    RenderCache.Page renderCatalog(ScriptCategory root, JfrEvents.GenerateCatalog event) throws IOException {
+        List<RenderCache.Fragment> fragments = new ArrayList<RenderCache.Fragment>();
+        String page = buildCatalogSource(root, fragments);
+
+        // The page itself only contains headings, descriptions that can't be rendered on their
+        // own, and fragment placeholders, so it only needs to be reconverted when one of those
+        // changes.
+        String pageKey = RenderCache.key(page);
+        String pageHtml = renderCache.get(pageKey);
+        if (pageHtml == null) {
+            try (PhaseTimer.Phase phase = PhaseTimer.start("convert page")) {
+                pageHtml = AsciidocEngine.convert(page, pageOptions());
+            }
+            renderCache.put(pageKey, pageHtml);
+        }
+
+        PhaseTimer.Phase fragmentsPhase = PhaseTimer.start("convert fragments");
+        List<String> renderedFragments = new ArrayList<String>();
+        List<String> usedKeys = new ArrayList<String>();
+        for (RenderCache.Fragment fragment : fragments) {
+            String html = renderCache.get(fragment.key);
+            if (html == null) {
+                html = AsciidocEngine.convert(fragment.source, OptionsBuilder.options()
+                        .safe(SafeMode.UNSAFE)
+                        .docType("html")
+                        .compact(true));
+                renderCache.put(fragment.key, html);
+                event.convertedFragments++;
+            }
+            renderedFragments.add(html);
+            usedKeys.add(fragment.key);
+        }
+        fragmentsPhase.close();
+        usedKeys.add(pageKey);
+        renderCache.retainAll(usedKeys);
+
+        return renderCache.assemble(pageKey, pageHtml, fragments, renderedFragments);
+    }
+
+    /**
+     * Renders the catalog in one conversion, without the render cache.  The result is the same
+     * as {@link #renderCatalog}'s.
+     */
+    String renderCatalogSinglePass(ScriptCategory root) throws IOException {
+        return AsciidocEngine.convert(buildCatalogSource(root, null), pageOptions());
+    }
+
+    /**
+     * Writes a fragment's placeholder into the page, or, if fragments is null or the fragment
+     * can't be rendered on its own, the fragment itself.
+     * @param selfContained Whether the source can be rendered on its own.
+     */
+    private void appendFragment(StringBuilder out, List<RenderCache.Fragment> fragments, String id, String source, boolean selfContained) {
+        String sep = System.lineSeparator();
+        if (!selfContained) {
+            out.append(source).append(sep).append(sep);
+        } else if (fragments == null) {
+            out.append("++++").append(sep).append(RenderCache.openWrapper(id)).append(sep).append("++++").append(sep).append(sep);
+            out.append(source).append(sep).append(sep);
+            out.append("++++").append(sep).append(RenderCache.closeWrapper()).append(sep).append("++++").append(sep).append(sep);
+        } else {
+            out.append("++++").append(sep).append(RenderCache.placeholder(fragments.size())).append(sep).append("++++").append(sep).append(sep);
+            fragments.add(new RenderCache.Fragment(id, source));
+        }
+    }
+
+    /**
+     * Appends the catalog skeleton for the given category to out.  Section headings are written
+     * directly so that they still end up in the table of contents, but the category description
+     * and the body of each script are written as placeholders, and their Asciidoc source is
+     * added to fragments so that they can be rendered (and cached) individually.  Descriptions and
+     * doc strings that can't be rendered on their own, e.g. because they have headings of their
+     * own, are written directly too.
+     */
+    void appendToDocs(StringBuilder out, ScriptCategory category, int depth, List<RenderCache.Fragment> fragments) {
+        String sep = System.lineSeparator();
+        if (!category.isRoot()) {
+            out.append("[#").append(category.name).append("]\n");
+            out.append("=");
+            for (int i=0; i < depth; i++) {
+                out.append("=");
+            }
+            out.append(" ").append(category.getLabel()).append(sep).append(sep);
+        }
+
+        if (category.description != null) {
+            String description = prefixAsciidocHeadings(category.description, depth+2);
+            appendFragment(out, fragments, "shellmarks-section:"+category.name, description + sep + sep,
+                    RenderCache.isSelfContained(description));
+        }
+
+        List<Script> sortedScripts = new ArrayList<Script>(category.scripts);
+        sortedScripts.sort((script1, script2) -> {
+            return script1.getTitle().compareTo(script2.getTitle());
+        });
+        for (Script script : sortedScripts) {
+
+            out.append("==");
+            for (int i=0; i < depth; i++) {
+                out.append("=");
+            }
+            out.append(" ").append(script.getTitle()).append(sep).append(sep);
+            StringBuilder body = new StringBuilder();
+            String docString = script.getDocString();
+            body.append(docString).append(sep).append(sep);
+            body.append(".Script Command").append(sep).append("[source,bash]").append(sep).append("----").append(sep).append("shellmarks ").append(script.file.getName()).append(sep).append("----").append(sep);
+            body.append("++++").append(sep)
+
+                    .append("<p><a class='command' href='run:").append(script.file.getName()).append("'>Run</a>")
+                    .append(" <a class='command' href='edit:").append(script.file.getName()).append("'>Edit</a>")
+                    .append(" <a class='command' href='delete:").append(script.file.getName()).append("'>Delete</a>")
+                    .append(" <a class='command' href='clone:").append(script.file.getName()).append("'>Clone</a>")
+                    .append("</p>").append(sep);
+            body.append("++++").append(sep);
+            appendFragment(out, fragments, "shellmarks-script:"+category.name+"/"+script.file.getName(), body.toString(),
+                    RenderCache.isSelfContained(docString));
+
+        }
+        List<ScriptCategory> subcategories = new ArrayList<ScriptCategory>(category.subCategories.values());
+        subcategories.sort((c1, c2) -> {
+            return c1.name.compareTo(c2.name);
+        });
+        for (ScriptCategory subcategory : subcategories) {
+            appendToDocs(out, subcategory, depth+1, fragments);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ca.weblite.shellmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the script directories for changes, and notifies a listener once a burst of
+ * changes has settled.
+ */
+class CatalogWatcher {
+    private final File[] directories;
+    private final long debounceMillis;
+    private final Consumer<Set<File>> listener;
+    private WatchService watchService;
+    private Thread thread;
+
+    /**
+     *
+     * @param directories The directories to watch.
+     * @param debounceMillis How long the directories need to be quiet before the listener is notified.
+     * @param listener Receives the set of files that changed.  An empty set means that events
+     *                 were lost, and the whole catalog should be considered changed.
+     */
+    CatalogWatcher(File[] directories, long debounceMillis, Consumer<Set<File>> listener) {
+        this.directories = directories;
+        this.debounceMillis = debounceMillis;
+        this.listener = listener;
+    }
+
+    void start() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        for (File dir : directories) {
+            dir.toPath().register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        }
+        thread = new Thread(this::watch, "catalog-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                Set<File> changed = new HashSet<File>();
+                boolean overflow = collect(watchService.take(), changed);
+
+                // Keep collecting until the directories have been quiet for debounceMillis
+                WatchKey key;
+                while ((key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+                    overflow = collect(key, changed) || overflow;
+                }
+                if (overflow) {
+                    changed.clear();
+                } else if (changed.isEmpty()) {
+                    continue;
+                }
+                try {
+                    listener.accept(changed);
+                } catch (Exception ex) {
+                    System.err.println("Failed to update catalog. "+ex.getMessage());
+                    ex.printStackTrace(System.err);
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException ex) {
+            // Watcher was stopped
+        }
+    }
+
+    private boolean collect(WatchKey key, Set<File> changed) {
+        boolean overflow = false;
+        Path dir = (Path)key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            Path name = (Path)event.context();
+            if (name.toString().startsWith(".")) {
+                // Hidden files (e.g. editor swap files) aren't part of the catalog
+                continue;
+            }
+            changed.add(dir.resolve(name).toFile());
+        }
+        key.reset();
+        return overflow;
+    }
+}
@@ -0,0 +1,265 @@
+package ca.weblite.shellmarks;
+
+import org.apache.commons.io.FileUtils;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates synthetic SHELLMARKS_PATH trees for benchmarks and soak tests.
+ *
+ * The same seed and options always produce the same files.  Each script and section is
+ * generated from its own random stream derived from the seed and its index, so changing the
+ * number of scripts doesn't change the scripts that were already there.
+ *
+ * Usage: java -cp shellmarks-cli.jar ca.weblite.shellmarks.CorpusGenerator -n 1000 /tmp/corpus
+ */
+@CommandLine.Command(name = "shellmarks-corpus", mixinStandardHelpOptions = true,
+        description = "Generates a synthetic shellmarks script catalog")
+public class CorpusGenerator implements Runnable {
+
+    enum Format {
+        /** TOML markup after a "---" line at the end of the script. */
+        Toml,
+        /** TOML markup inside a &lt;shellmarks&gt; tag. */
+        Tag,
+        /** Legacy "#:" comment markup. */
+        Legacy
+    }
+
+    private static final Main.FieldType[] LEGACY_FIELD_TYPES = {
+            Main.FieldType.Text, Main.FieldType.File, Main.FieldType.Number, Main.FieldType.Date
+    };
+
+    @CommandLine.Parameters(paramLabel = "<dir>", description = "Directory to write the scripts to")
+    File dir;
+
+    @CommandLine.Option(names = {"-n", "--scripts"}, description = "Number of scripts (default: ${DEFAULT-VALUE})")
+    int numScripts = 1000;
+
+    @CommandLine.Option(names = {"--seed"}, description = "Random seed (default: ${DEFAULT-VALUE})")
+    long seed = 42;
+
+    @CommandLine.Option(names = {"--tag-ratio"}, description = "Fraction of scripts that use the <shellmarks> tag format (default: ${DEFAULT-VALUE})")
+    double tagRatio = 0.4;
+
+    @CommandLine.Option(names = {"--legacy-ratio"}, description = "Fraction of scripts that use the legacy #: format (default: ${DEFAULT-VALUE})")
+    double legacyRatio = 0.1;
+
+    @CommandLine.Option(names = {"--min-fields"}, description = "Minimum number of fields per script (default: ${DEFAULT-VALUE})")
+    int minFields = 1;
+
+    @CommandLine.Option(names = {"--max-fields"}, description = "Maximum number of fields per script (default: ${DEFAULT-VALUE})")
+    int maxFields = 6;
+
+    @CommandLine.Option(names = {"--field-types"}, split = ",", description = "Field types to choose from (default: all of ${COMPLETION-CANDIDATES})")
+    Main.FieldType[] fieldTypes = Main.FieldType.values();
+
+    @CommandLine.Option(names = {"--sections"}, description = "Number of .adoc sections.  Defaults to one per 20 scripts.")
+    int numSections = -1;
+
+    @CommandLine.Option(names = {"--section-depth"}, description = "Maximum length of :parent: chains (default: ${DEFAULT-VALUE})")
+    int sectionDepth = 3;
+
+    @CommandLine.Option(names = {"--max-tags"}, description = "Maximum number of section tags per script (default: ${DEFAULT-VALUE})")
+    int maxTags = 2;
+
+    @CommandLine.Option(names = {"--category-ratio"}, description = "Fraction of scripts with a __category__ (default: ${DEFAULT-VALUE})")
+    double categoryRatio = 0.2;
+
+    @CommandLine.Option(names = {"--description-words"}, description = "Average number of words in each Asciidoc description (default: ${DEFAULT-VALUE})")
+    int descriptionWords = 60;
+
+    @CommandLine.Option(names = {"--payload-ratio"}, description = "Fraction of scripts with an embedded payload (default: ${DEFAULT-VALUE})")
+    double payloadRatio = 0.0;
+
+    @CommandLine.Option(names = {"--payload-size"}, description = "Size of each embedded payload in bytes (default: ${DEFAULT-VALUE})")
+    int payloadSize = 1024 * 1024;
+
+    public static void main(String[] args) {
+        System.exit(new CommandLine(new CorpusGenerator()).execute(args));
+    }
+
+    @Override
+    public void run() {
+        try {
+            generate(dir);
+            System.out.println("Generated "+numScripts+" scripts and "+getNumSections()+" sections in "+dir);
+        } catch (IOException ex) {
+            System.err.println("Failed to generate corpus in "+dir+". "+ex.getMessage());
+            ex.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+
+    int getNumSections() {
+        return numSections >= 0 ? numSections : Math.max(1, numScripts / 20);
+    }
+
+    /**
+     * Writes the scripts and sections to the given directory.
+     */
+    void generate(File dir) throws IOException {
+        dir.mkdirs();
+        for (int i=0; i<getNumSections(); i++) {
+            FileUtils.writeStringToFile(new File(dir, "section-"+i+".adoc"), section(i), "UTF-8");
+        }
+        for (int i=0; i<numScripts; i++) {
+            FileUtils.writeStringToFile(new File(dir, "script-"+i+".sh"), script(i), "UTF-8");
+        }
+    }
+
+    /**
+     * The format of the script with the given index.
+     */
+    Format format(int index) {
+        double r = random("format", index).nextDouble();
+        if (r < legacyRatio) {
+            return Format.Legacy;
+        }
+        if (r < legacyRatio + tagRatio) {
+            return Format.Tag;
+        }
+        return Format.Toml;
+    }
+
+    String script(int index) {
+        return script(index, format(index));
+    }
+
+    String script(int index, Format format) {
+        Random random = random("script", index);
+        String sep = System.lineSeparator();
+        switch (format) {
+            case Legacy:
+                return "#!/bin/bash" + sep + legacyMarkup(random) + body(random, index);
+            case Tag:
+                return "#!/bin/bash" + sep + body(random, index)
+                        + ": <<'SHELLMARKS'" + sep + "<shellmarks>" + sep + toml(random, index)
+                        + "</shellmarks>" + sep + "SHELLMARKS" + sep;
+            default:
+                return "#!/bin/bash" + sep + body(random, index) + "---" + sep + toml(random, index);
+        }
+    }
+
+    /**
+     * The .adoc file of the section with the given index.  Sections form :parent: chains of up
+     * to sectionDepth sections.
+     */
+    String section(int index) {
+        Random random = random("section", index);
+        String sep = System.lineSeparator();
+        StringBuilder out = new StringBuilder();
+        out.append("= Section ").append(index).append(sep).append(sep);
+        if (sectionDepth > 1 && index % sectionDepth != 0) {
+            out.append(":parent: section-").append(index - 1).append(sep).append(sep);
+        }
+        out.append(paragraph(random, descriptionWords)).append(sep).append(sep)
+                .append("== Details").append(sep).append(sep)
+                .append(paragraph(random, descriptionWords)).append(sep);
+        return out.toString();
+    }
+
+    private Random random(String kind, int index) {
+        return new Random(seed * 31 + kind.hashCode() * 1_000_003L + index);
+    }
+
+    private String body(Random random, int index) {
+        String sep = System.lineSeparator();
+        StringBuilder out = new StringBuilder();
+        int numLines = 5 + random.nextInt(40);
+        for (int i=0; i<numLines; i++) {
+            out.append("echo \"Script ").append(index).append(" line ").append(i).append(" ${field0}\"").append(sep);
+        }
+        if (random.nextDouble() < payloadRatio) {
+            // Scripts that carry an archive or binary after the code
+            out.append("cat > /dev/null <<'PAYLOAD'").append(sep);
+            appendPayload(out, random, payloadSize);
+            out.append("PAYLOAD").append(sep);
+        }
+        out.append("exit 0").append(sep);
+        return out.toString();
+    }
+
+    private static void appendPayload(StringBuilder out, Random random, int size) {
+        String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        String sep = System.lineSeparator();
+        int lineLength = 76;
+        for (int written=0; written<size; written+=lineLength) {
+            int len = Math.min(lineLength, size - written);
+            for (int i=0; i<len; i++) {
+                out.append(chars.charAt(random.nextInt(chars.length())));
+            }
+            out.append(sep);
+        }
+    }
+
+    private String toml(Random random, int index) {
+        String sep = System.lineSeparator();
+        StringBuilder out = new StringBuilder();
+        out.append("__title__=\"Script ").append(index).append("\"").append(sep).append(sep)
+                .append("__description__='''").append(sep)
+                .append("== Usage").append(sep).append(sep)
+                .append(paragraph(random, descriptionWords)).append(sep)
+                .append("'''").append(sep).append(sep);
+        int sections = getNumSections();
+        int numTags = sections == 0 ? 0 : random.nextInt(maxTags + 1);
+        if (numTags > 0) {
+            out.append("__tags__=\"");
+            for (int i=0; i<numTags; i++) {
+                if (i > 0) out.append(' ');
+                out.append("#section-").append(random.nextInt(sections));
+            }
+            out.append("\"").append(sep).append(sep);
+        }
+        if (random.nextDouble() < categoryRatio) {
+            out.append("__category__=\"category-").append(random.nextInt(10))
+                    .append("/sub-").append(random.nextInt(5)).append("\"").append(sep).append(sep);
+        }
+        int numFields = minFields + random.nextInt(Math.max(1, maxFields - minFields + 1));
+        for (int i=0; i<numFields; i++) {
+            Main.FieldType type = fieldTypes[random.nextInt(fieldTypes.length)];
+            out.append("[field").append(i).append("]").append(sep)
+                    .append("type=\"").append(type.name().toLowerCase()).append("\"").append(sep)
+                    .append("label=\"Field ").append(i).append("\"").append(sep)
+                    .append("help=\"Help for field ").append(i).append("\"").append(sep);
+            if (random.nextBoolean()) {
+                out.append("required=true").append(sep);
+            }
+            if (type == Main.FieldType.Button && random.nextBoolean()) {
+                out.append("disposeOnSubmit=false").append(sep);
+            }
+            out.append(sep);
+        }
+        return out.toString();
+    }
+
+    private String legacyMarkup(Random random) {
+        String sep = System.lineSeparator();
+        StringBuilder out = new StringBuilder();
+        int numFields = minFields + random.nextInt(Math.max(1, maxFields - minFields + 1));
+        for (int i=0; i<numFields; i++) {
+            Main.FieldType type = LEGACY_FIELD_TYPES[random.nextInt(LEGACY_FIELD_TYPES.length)];
+            out.append("#:field").append(i).append(" {").append(sep)
+                    .append("# label: Field ").append(i).append(sep)
+                    .append("# type: ").append(type.name().toLowerCase()).append(sep);
+            if (random.nextBoolean()) {
+                out.append("# required").append(sep);
+            }
+            out.append("# }").append(sep);
+        }
+        return out.toString();
+    }
+
+    private static String paragraph(Random random, int averageWords) {
+        int numWords = averageWords / 2 + random.nextInt(Math.max(1, averageWords));
+        StringBuilder out = new StringBuilder();
+        for (int i=0; i<numWords; i++) {
+            if (i > 0) out.append(' ');
+            out.append("word").append(random.nextInt(500));
+        }
+        return out.append('.').toString();
+    }
+}
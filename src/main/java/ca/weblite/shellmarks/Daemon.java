@@ -0,0 +1,129 @@
+package ca.weblite.shellmarks;
+
+import java.awt.*;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A resident shellmarks process that runs scripts on behalf of {@link DaemonClient}.
+ *
+ * The daemon keeps the JVM, the Asciidoctor engine, the script index and the AWT toolkit
+ * loaded, so a client only pays for connecting to the socket.  Each client connection is
+ * handled on its own thread, and the script's output is streamed back to the client.
+ */
+class Daemon {
+    private final File socketFile;
+    private final File metricsFile;
+
+    /**
+     * @param socketFile The Unix domain socket to listen on.
+     * @param metricsFile The Prometheus text file that metrics are added to after each client
+     *                    session, or null.
+     */
+    Daemon(File socketFile, File metricsFile) {
+        this.socketFile = socketFile;
+        this.metricsFile = metricsFile;
+    }
+
+    /**
+     * Listens for clients until the process is killed.
+     */
+    void serve() throws IOException {
+        if (!DaemonProtocol.isSupported()) {
+            throw new IOException("The shellmarks daemon requires Java 16 or later");
+        }
+        File dir = socketFile.getParentFile();
+        dir.mkdirs();
+        try {
+            Files.setPosixFilePermissions(dir.toPath(), PosixFilePermissions.fromString("rwx------"));
+        } catch (UnsupportedOperationException ex) {
+            // Not a POSIX file system
+        }
+        if (socketFile.exists()) {
+            if (DaemonClient.isRunning(socketFile)) {
+                throw new IOException("A shellmarks daemon is already listening on "+socketFile);
+            }
+            // Left behind by a daemon that didn't shut down cleanly
+            socketFile.delete();
+        }
+
+        ServerSocketChannel server = DaemonProtocol.openServerSocketChannel();
+        server.bind(DaemonProtocol.address(socketFile));
+        Runtime.getRuntime().addShutdownHook(new Thread(socketFile::delete, "shellmarks-daemon-shutdown"));
+        warmUp();
+        System.out.println("Shellmarks daemon listening on "+socketFile);
+
+        while (true) {
+            SocketChannel channel = server.accept();
+            Threads.start("shellmarks-daemon-session", () -> handle(channel));
+        }
+    }
+
+    private void warmUp() {
+        AsciidocEngine.warmUp();
+        ScriptResolver.getDefault().getScriptPaths();
+        if (!GraphicsEnvironment.isHeadless()) {
+            try {
+                // Starts the AWT toolkit and the event dispatch thread
+                EventQueue.invokeAndWait(() -> Toolkit.getDefaultToolkit());
+            } catch (Exception ex) {
+                System.err.println("Failed to initialize AWT. "+ex.getMessage());
+            }
+        }
+    }
+
+    private void handle(SocketChannel channel) {
+        try (SocketChannel c = channel) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(c)));
+            if (in.readInt() != DaemonProtocol.MAGIC || in.readInt() != DaemonProtocol.VERSION) {
+                System.err.println("Ignoring connection from an incompatible shellmarks client");
+                return;
+            }
+            String workingDirectory = CatalogIndex.readString(in);
+            String[] args = new String[in.readInt()];
+            for (int i=0; i<args.length; i++) {
+                args[i] = CatalogIndex.readString(in);
+            }
+            int numEnv = in.readInt();
+            Map<String,String> env = new HashMap<String,String>();
+            for (int i=0; i<numEnv; i++) {
+                String key = CatalogIndex.readString(in);
+                env.put(key, CatalogIndex.readString(in));
+            }
+
+            OutputStream stdout = new DaemonProtocol.FrameOutputStream(out, DaemonProtocol.STDOUT);
+            OutputStream stderr = new DaemonProtocol.FrameOutputStream(out, DaemonProtocol.STDERR);
+            int exitCode;
+            try {
+                exitCode = Main.runForClient(args, env, new File(workingDirectory), stdout, stderr);
+            } catch (Exception ex) {
+                PrintStream err = new PrintStream(stderr, true);
+                err.println("Shellmarks daemon failed to run "+String.join(" ", args));
+                ex.printStackTrace(err);
+                exitCode = 1;
+            }
+            synchronized (out) {
+                out.writeByte(DaemonProtocol.EXIT);
+                out.writeInt(4);
+                out.writeInt(exitCode);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            System.err.println("Shellmarks daemon session failed. "+ex.getMessage());
+        }
+        if (metricsFile != null) {
+            try {
+                Metrics.get().flush(metricsFile);
+            } catch (IOException ex) {
+                System.err.println("Failed to write metrics to "+metricsFile+". "+ex.getMessage());
+            }
+        }
+    }
+}
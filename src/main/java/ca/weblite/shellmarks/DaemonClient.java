@@ -0,0 +1,100 @@
+package ca.weblite.shellmarks;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Forwards a shellmarks invocation to a running {@link Daemon}.
+ */
+class DaemonClient {
+
+    /**
+     * Only plain script runs are forwarded.  Invocations with options (install, list, edit,
+     * etc.) and the catalog viewer always run in-process.
+     */
+    static boolean canForward(String[] args) {
+        if (args.length == 0 || !DaemonProtocol.isSupported()) {
+            return false;
+        }
+        for (String arg : args) {
+            if (arg.startsWith("-")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isRunning(File socketFile) {
+        try (SocketChannel channel = DaemonProtocol.openSocketChannel()) {
+            channel.connect(DaemonProtocol.address(socketFile));
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs the given scripts in the daemon, copying their output to this process' stdout
+     * and stderr.
+     * @return The exit code, or -1 if no daemon is running, in which case the caller should
+     * run the scripts itself.
+     */
+    static int forward(String[] args) {
+        File socketFile = DaemonProtocol.getSocketFile();
+        if (!socketFile.exists()) {
+            return -1;
+        }
+        SocketChannel channel;
+        try {
+            channel = DaemonProtocol.openSocketChannel();
+        } catch (IOException ex) {
+            return -1;
+        }
+        try {
+            channel.connect(DaemonProtocol.address(socketFile));
+        } catch (IOException ex) {
+            close(channel);
+            return -1;
+        }
+
+        try (SocketChannel c = channel) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(c)));
+            DaemonProtocol.writeRequest(out, System.getProperty("user.dir"), args, System.getenv());
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c)));
+            byte[] buffer = new byte[8192];
+            while (true) {
+                byte type = in.readByte();
+                int len = in.readInt();
+                if (type == DaemonProtocol.EXIT) {
+                    return in.readInt();
+                }
+                PrintStream dest = type == DaemonProtocol.STDERR ? System.err : System.out;
+                while (len > 0) {
+                    int count = in.read(buffer, 0, Math.min(len, buffer.length));
+                    if (count < 0) {
+                        throw new EOFException();
+                    }
+                    if (type == DaemonProtocol.STDOUT || type == DaemonProtocol.STDERR) {
+                        dest.write(buffer, 0, count);
+                    }
+                    len -= count;
+                }
+                dest.flush();
+            }
+        } catch (IOException ex) {
+            // The request was already sent, so it isn't safe to fall back to running in-process
+            System.err.println("Lost connection to the shellmarks daemon. "+ex.getMessage());
+            return 1;
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            // Nothing to do
+        }
+    }
+}
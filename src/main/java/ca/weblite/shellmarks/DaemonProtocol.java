@@ -0,0 +1,157 @@
+package ca.weblite.shellmarks;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Wire format and socket plumbing shared by the shellmarks daemon and its client.
+ *
+ * The client sends a single request containing its working directory, arguments and
+ * environment.  The daemon answers with a sequence of frames, each consisting of a type
+ * byte, a length and a payload: output frames carry bytes written by the script to stdout
+ * or stderr, and the final exit frame carries the exit code.
+ *
+ * Unix domain socket channels were added in Java 16.  They are looked up reflectively so that
+ * shellmarks still builds and runs on Java 11, where the daemon is simply unavailable.
+ */
+final class DaemonProtocol {
+    static final int MAGIC = 0x53484d44; // SHMD
+    static final int VERSION = 1;
+
+    static final byte STDOUT = 1;
+    static final byte STDERR = 2;
+    static final byte EXIT = 3;
+
+    private DaemonProtocol() {
+
+    }
+
+    /**
+     * The socket that the daemon listens on.  It lives in a directory that only the current
+     * user can access, since anyone who can connect to it can run scripts as this user.
+     */
+    static File getSocketFile() {
+        return new File(new File(Main.getShellmarksDir(), "daemon"), "daemon.sock");
+    }
+
+    static void writeRequest(DataOutputStream out, String workingDirectory, String[] args, Map<String,String> env) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        CatalogIndex.writeString(out, workingDirectory);
+        out.writeInt(args.length);
+        for (String arg : args) {
+            CatalogIndex.writeString(out, arg);
+        }
+        out.writeInt(env.size());
+        for (Map.Entry<String,String> entry : env.entrySet()) {
+            CatalogIndex.writeString(out, entry.getKey());
+            CatalogIndex.writeString(out, entry.getValue());
+        }
+        out.flush();
+    }
+
+    static boolean isSupported() {
+        try {
+            Class.forName("java.net.UnixDomainSocketAddress");
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    static SocketAddress address(File socketFile) throws IOException {
+        try {
+            return (SocketAddress)Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", Path.class)
+                    .invoke(null, socketFile.toPath());
+        } catch (InvocationTargetException ex) {
+            throw unwrap(ex);
+        } catch (ReflectiveOperationException ex) {
+            throw new IOException("Unix domain sockets require Java 16 or later", ex);
+        }
+    }
+
+    static SocketChannel openSocketChannel() throws IOException {
+        try {
+            return (SocketChannel)SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix());
+        } catch (InvocationTargetException ex) {
+            throw unwrap(ex);
+        } catch (ReflectiveOperationException ex) {
+            throw new IOException("Unix domain sockets require Java 16 or later", ex);
+        }
+    }
+
+    static ServerSocketChannel openServerSocketChannel() throws IOException {
+        try {
+            return (ServerSocketChannel)ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix());
+        } catch (InvocationTargetException ex) {
+            throw unwrap(ex);
+        } catch (ReflectiveOperationException ex) {
+            throw new IOException("Unix domain sockets require Java 16 or later", ex);
+        }
+    }
+
+    private static ProtocolFamily unix() throws IOException {
+        try {
+            return StandardProtocolFamily.valueOf("UNIX");
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Unix domain sockets require Java 16 or later", ex);
+        }
+    }
+
+    private static IOException unwrap(InvocationTargetException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof IOException) {
+            return (IOException)cause;
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * An output stream that wraps everything written to it in frames of the given type.
+     * Writes after the client has disconnected are discarded, so that a script keeps running
+     * if its client goes away.
+     */
+    static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte type;
+        private boolean closed;
+
+        FrameOutputStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (out) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    out.writeByte(type);
+                    out.writeInt(len);
+                    out.write(b, off, len);
+                    out.flush();
+                } catch (IOException ex) {
+                    closed = true;
+                }
+            }
+        }
+    }
+}
@@ -41,6 +41,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.Locale;
+import java.util.Map;
 
 
 public class DocumentationAppFX extends Application {
@@ -50,6 +51,10 @@ public class DocumentationAppFX extends Application {
     private CustomTextField searchField;
     private static RunScriptListener runScriptListener;
     private WebEngine webEngine;
+    private EventListener linkListener;
+    private Object[] pendingScrollPosition;
+    // Set on the FX thread in start(), and read by the catalog watcher's thread
+    private static volatile DocumentationAppFX instance;
 
     public static void launchNow(String title, String content, RunScriptListener listener) {
         DocumentationAppFX.title = title;
@@ -93,10 +98,70 @@ public class DocumentationAppFX extends Application {
         }
     }
 
+    static DocumentationAppFX getInstance() {
+        return instance;
+    }
+
+    /**
+     * Replaces the whole page.  The current scroll position is restored once the new
+     * page has loaded.
+     */
     public void updateContents(String contents) {
+        try {
+            Object x = webEngine.executeScript("window.scrollX");
+            Object y = webEngine.executeScript("window.scrollY");
+            if (x instanceof Number && y instanceof Number) {
+                pendingScrollPosition = new Object[]{x, y};
+            }
+        } catch (Exception ex) {
+            pendingScrollPosition = null;
+        }
         webEngine.loadContent(contents);
     }
 
+    /**
+     * Swaps the given catalog fragments into the live page, leaving the rest of the page
+     * (and the scroll position) alone.  If any of the fragments can't be found in the page,
+     * the whole page is replaced with fullContents instead.
+     *
+     * @param fragments Map of fragment element ids to their new HTML.
+     * @param fullContents The complete page to fall back to.
+     */
+    public void patchContents(Map<String,String> fragments, String fullContents) {
+        Document doc = webEngine.getDocument();
+        if (doc == null) {
+            updateContents(fullContents);
+            return;
+        }
+        for (String id : fragments.keySet()) {
+            if (doc.getElementById(id) == null) {
+                updateContents(fullContents);
+                return;
+            }
+        }
+        for (Map.Entry<String,String> fragment : fragments.entrySet()) {
+            webEngine.executeScript("document.getElementById(" + JSONObject.quote(fragment.getKey()) + ").innerHTML = "
+                    + JSONObject.quote(fragment.getValue()));
+            attachLinkListener(doc.getElementById(fragment.getKey()));
+        }
+    }
+
+    private void attachLinkListener(Element root) {
+        if (root == null) {
+            return;
+        }
+        NodeList nodeList = root.getElementsByTagName("a");
+        for (int i = 0; i < nodeList.getLength(); i++) {
+            //String href = ((Element) nodeList.item(i)).getAttribute("href");
+
+            ((EventTarget) nodeList.item(i)).addEventListener("click", linkListener, true);
+            //((EventTarget) nodeList.item(i)).addEventListener("mouseover", listener, false);
+            //((EventTarget) nodeList.item(i)).addEventListener("mouseout", listener, false);
+
+
+        }
+    }
+
     private static int indexAfter(String haystack, String needle) {
         return haystack.indexOf(needle) + needle.length();
     }
@@ -110,6 +175,133 @@ public class DocumentationAppFX extends Application {
         return href;
     }
 
+    private EventListener createLinkListener() {
+        return new EventListener() {
+            @Override
+            public void handleEvent(Event ev) {
+                String domEventType = ev.getType();
+
+                String href = ((Element) ev.getCurrentTarget()).getAttribute("href");
+                if (href == null) return;
+                for (String command : new String[]{"run", "newScript", "importURL", "importFile", "help", "newSection", "open"}) {
+                    href = convertHref(ev, href, command);
+                }
+
+
+
+                if (domEventType.equals("click")) {
+
+                    if (href.startsWith("http://") || href.startsWith("https://")) {
+
+                        ev.preventDefault();
+                        ev.stopPropagation();
+                        openLinkInSystemBrowser(href);
+                        return;
+
+                    }
+
+                    if (href.startsWith("#")) {
+                        webEngine.executeScript("document.querySelector('"+href+"').scrollIntoView()");
+                        return;
+                    }
+
+                    if (href.startsWith("run:")) {
+                        if (runScriptListener != null) {
+
+                            runScriptListener.runScript(DocumentationAppFX.this, href.substring(href.indexOf(":")+1));
+                        }
+                        return;
+                    }
+
+                    if (href.startsWith("open:")) {
+                        ev.preventDefault();
+                        ev.stopPropagation();
+                        File file = new File(href.substring(href.indexOf(":")+1).replace("%20", " "));
+
+                        Threads.start("shellmarks-open-file", ()->{
+
+                            if (Desktop.isDesktopSupported()) {
+                                try {
+                                    if (file.exists()) {
+                                        Desktop.getDesktop().open(file);
+                                    } else {
+                                        EventQueue.invokeLater(()->{
+                                            JOptionPane.showMessageDialog((Component)null, "The file "+file+" does not exist", "Could not open", JOptionPane.ERROR_MESSAGE);
+                                        });
+                                    }
+                                } catch (IOException ex) {
+                                    EventQueue.invokeLater(()->{
+                                        JOptionPane.showMessageDialog((Component)null, "Failed to open file: "+ex.getMessage(), "Failed", JOptionPane.ERROR_MESSAGE);
+                                    });
+                                    System.err.println("Failed to open directory.");
+                                    ex.printStackTrace(System.err);
+                                }
+                            }
+                        });
+
+                        return;
+                    }
+
+                    if (href.startsWith("edit:")) {
+                        if (runScriptListener != null) {
+                            runScriptListener.editScript(DocumentationAppFX.this, href.substring(href.indexOf(":")+1));
+                        }
+                        return;
+                    }
+                    if (href.startsWith("delete:")) {
+                        if (runScriptListener != null) {
+                            runScriptListener.deleteScript(DocumentationAppFX.this, href.substring(href.indexOf(":")+1));
+                        }
+                        return;
+                    }
+
+                    if (href.startsWith("clone:")) {
+                        if (runScriptListener != null) {
+                            runScriptListener.cloneScript(DocumentationAppFX.this, href.substring(href.indexOf(":")+1));
+                        }
+                        return;
+                    }
+                    if (href.toLowerCase().startsWith("editsection:")) {
+                        if (runScriptListener != null) {
+
+                            runScriptListener.editSection(DocumentationAppFX.this, href.substring(href.indexOf(":")+1));
+                        }
+                        return;
+                    }
+
+                    if (href.toLowerCase().startsWith("newscript:")) {
+                        if (runScriptListener != null) {
+                            runScriptListener.newScript(DocumentationAppFX.this);
+                        }
+                        return;
+                    }
+
+                    if (href.toLowerCase().startsWith("importurl:")) {
+                        if (runScriptListener != null) {
+                            runScriptListener.importScriptFromURL(DocumentationAppFX.this);
+                        }
+                        return;
+                    }
+
+                    if (href.toLowerCase().startsWith("importfile:")) {
+                        if (runScriptListener != null) {
+                            runScriptListener.importScriptFromFileSystem(DocumentationAppFX.this);
+                        }
+                        return;
+                    }
+
+                    if (href.toLowerCase().startsWith("newsection:")) {
+                        if (runScriptListener != null) {
+                            runScriptListener.newSection(DocumentationAppFX.this);
+                        }
+                        return;
+                    }
+
+                }
+            }
+        };
+    }
+
     @Override
     public void start(Stage primaryStage) throws Exception {
 
@@ -124,6 +316,7 @@ public class DocumentationAppFX extends Application {
 
         webEngine= webview.getEngine();
         webEngine.setJavaScriptEnabled(true);
+        linkListener = createLinkListener();
         webEngine.loadContent(content);
         webEngine.getLoadWorker().stateProperty().addListener(
                 new ChangeListener<Worker.State>() {
@@ -137,141 +330,10 @@ public class DocumentationAppFX extends Application {
 
                                     + "</body></html>");
                         } else if (newState == Worker.State.SUCCEEDED) {
-                            EventListener listener = new EventListener() {
-                                @Override
-                                public void handleEvent(Event ev) {
-                                    String domEventType = ev.getType();
-
-                                    String href = ((Element) ev.getCurrentTarget()).getAttribute("href");
-                                    if (href == null) return;
-                                    for (String command : new String[]{"run", "newScript", "importURL", "importFile", "help", "newSection", "open"}) {
-                                        href = convertHref(ev, href, command);
-                                    }
-
-
-
-                                    if (domEventType.equals("click")) {
-
-                                        if (href.startsWith("http://") || href.startsWith("https://")) {
-
-                                            ev.preventDefault();
-                                            ev.stopPropagation();
-                                            openLinkInSystemBrowser(href);
-                                            return;
-
-                                        }
-
-                                        if (href.startsWith("#")) {
-                                            webEngine.executeScript("document.querySelector('"+href+"').scrollIntoView()");
-                                            return;
-                                        }
-
-                                        if (href.startsWith("run:")) {
-                                            if (runScriptListener != null) {
-
-                                                runScriptListener.runScript(DocumentationAppFX.this, href.substring(href.indexOf(":")+1));
-                                            }
-                                            return;
-                                        }
-
-                                        if (href.startsWith("open:")) {
-                                            ev.preventDefault();
-                                            ev.stopPropagation();
-                                            File file = new File(href.substring(href.indexOf(":")+1).replace("%20", " "));
-
-                                            new Thread(()->{
-
-                                                if (Desktop.isDesktopSupported()) {
-                                                    try {
-                                                        if (file.exists()) {
-                                                            Desktop.getDesktop().open(file);
-                                                        } else {
-                                                            EventQueue.invokeLater(()->{
-                                                                JOptionPane.showMessageDialog((Component)null, "The file "+file+" does not exist", "Could not open", JOptionPane.ERROR_MESSAGE);
-                                                            });
-                                                        }
-                                                    } catch (IOException ex) {
-                                                        EventQueue.invokeLater(()->{
-                                                            JOptionPane.showMessageDialog((Component)null, "Failed to open file: "+ex.getMessage(), "Failed", JOptionPane.ERROR_MESSAGE);
-                                                        });
-                                                        System.err.println("Failed to open directory.");
-                                                        ex.printStackTrace(System.err);
-                                                    }
-                                                }
-                                            }).start();
-
-                                            return;
-                                        }
-
-                                        if (href.startsWith("edit:")) {
-                                            if (runScriptListener != null) {
-                                                runScriptListener.editScript(DocumentationAppFX.this, href.substring(href.indexOf(":")+1));
-                                            }
-                                            return;
-                                        }
-                                        if (href.startsWith("delete:")) {
-                                            if (runScriptListener != null) {
-                                                runScriptListener.deleteScript(DocumentationAppFX.this, href.substring(href.indexOf(":")+1));
-                                            }
-                                            return;
-                                        }
-
-                                        if (href.startsWith("clone:")) {
-                                            if (runScriptListener != null) {
-                                                runScriptListener.cloneScript(DocumentationAppFX.this, href.substring(href.indexOf(":")+1));
-                                            }
-                                            return;
-                                        }
-                                        if (href.toLowerCase().startsWith("editsection:")) {
-                                            if (runScriptListener != null) {
-
-                                                runScriptListener.editSection(DocumentationAppFX.this, href.substring(href.indexOf(":")+1));
-                                            }
-                                            return;
-                                        }
-
-                                        if (href.toLowerCase().startsWith("newscript:")) {
-                                            if (runScriptListener != null) {
-                                                runScriptListener.newScript(DocumentationAppFX.this);
-                                            }
-                                            return;
-                                        }
-
-                                        if (href.toLowerCase().startsWith("importurl:")) {
-                                            if (runScriptListener != null) {
-                                                runScriptListener.importScriptFromURL(DocumentationAppFX.this);
-                                            }
-                                            return;
-                                        }
-
-                                        if (href.toLowerCase().startsWith("importfile:")) {
-                                            if (runScriptListener != null) {
-                                                runScriptListener.importScriptFromFileSystem(DocumentationAppFX.this);
-                                            }
-                                            return;
-                                        }
-
-                                        if (href.toLowerCase().startsWith("newsection:")) {
-                                            if (runScriptListener != null) {
-                                                runScriptListener.newSection(DocumentationAppFX.this);
-                                            }
-                                            return;
-                                        }
-
-                                    }
-                                }
-                            };
-
-                            Document doc = webEngine.getDocument();
-                            NodeList nodeList = doc.getElementsByTagName("a");
-                            for (int i = 0; i < nodeList.getLength(); i++) {
-                                //String href = ((Element) nodeList.item(i)).getAttribute("href");
-
-                                ((EventTarget) nodeList.item(i)).addEventListener("click", listener, true);
-                                //((EventTarget) nodeList.item(i)).addEventListener("mouseover", listener, false);
-                                //((EventTarget) nodeList.item(i)).addEventListener("mouseout", listener, false);
-
-
+                            attachLinkListener(webEngine.getDocument().getDocumentElement());
+                            if (pendingScrollPosition != null) {
+                                webEngine.executeScript("window.scrollTo("+pendingScrollPosition[0]+", "+pendingScrollPosition[1]+")");
+                                pendingScrollPosition = null;
                             }
                         }
 
@@ -372,7 +434,7 @@ public class DocumentationAppFX extends Application {
 
         MenuItem help = new MenuItem("Help");
         help.setOnAction(evt->{
-            new Thread(()->{
+            Threads.start("shellmarks-open-manual", ()->{
                 if (Desktop.isDesktopSupported()) {
                     try {
                         Desktop.getDesktop().browse(new URI("https://shannah.github.io/shellmarks/manual/"));
@@ -385,7 +447,7 @@ public class DocumentationAppFX extends Application {
                         JOptionPane.showMessageDialog((Component)null, "Opening web pages is not supported on this platform.", "Failed", JOptionPane.ERROR_MESSAGE);
                     });
                 }
-            }).start();
+            });
         });
         contextMenu.getItems().add(help);
 
@@ -435,6 +497,7 @@ public class DocumentationAppFX extends Application {
         primaryStage.setHeight(primaryScreenBounds.getHeight());
 
         primaryStage.show();
+        instance = this;
 
     }
 }
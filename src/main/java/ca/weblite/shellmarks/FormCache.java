@@ -0,0 +1,210 @@
+package ca.weblite.shellmarks;
+
+import ca.weblite.shellmarks.Main.Field;
+import ca.weblite.shellmarks.Main.FieldType;
+import ca.weblite.shellmarks.Main.Form;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Cache of parsed forms in ~/.shellmarks/forms, so that running a script doesn't have to parse
+ * its markup, or boot Asciidoctor to render its description, every time.
+ *
+ * Each entry is a file named after the SHA-256 hash of the script's contents, so an edited
+ * script simply misses and the old entry ages out.  The format is
+ *
+ * <pre>
+ * int magic, int version,
+ * string title, string description, string docString, string categoryPath,
+ * int numTags, string[numTags] tags, int numDepends, string[numDepends] depends,
+ * int numFields, field[numFields] fields,
+ * string descriptionHtml
+ * field: string varName, string label, string help, string type, string defaultValue,
+ *        boolean required, int order, boolean disposeOnSubmit
+ * </pre>
+ *
+ * with strings written by {@link CatalogIndex#writeString}.  descriptionHtml is the rendered
+ * Asciidoc description, or null if the description isn't Asciidoc or hasn't been rendered yet.
+ * Entries are written to a temp file and renamed into place, so readers never see a partial
+ * entry, and an unreadable entry is treated as a miss.
+ */
+final class FormCache {
+    private static final int MAGIC = 0x53484d46; // SHMF
+    // Bump when the parser or the Asciidoc rendering changes, to invalidate old entries
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".form";
+
+    static final int MAX_ENTRIES = 500;
+
+    // Hits only refresh an entry's mtime, for pruning, if it is older than this
+    private static final long TOUCH_INTERVAL = 24 * 60 * 60 * 1000L;
+
+    private final File dir;
+
+    static class Entry {
+        final Form form;
+        final String descriptionHtml;
+
+        Entry(Form form, String descriptionHtml) {
+            this.form = form;
+            this.descriptionHtml = descriptionHtml;
+        }
+    }
+
+    FormCache(File dir) {
+        this.dir = dir;
+    }
+
+    static File getDefaultDir() {
+        return new File(Main.getShellmarksDir(), "forms");
+    }
+
+    /**
+     * The form of a script, from the cache if it is there, and otherwise parsed and cached.
+     * @param contents The script's contents.
+     */
+    Entry load(byte[] contents) {
+        String hash = CatalogIndex.hash(contents);
+        Entry entry;
+        try (PhaseTimer.Phase phase = PhaseTimer.start("load cached form")) {
+            entry = get(hash);
+        }
+        if (entry == null) {
+            try (PhaseTimer.Phase phase = PhaseTimer.start("parse markup")) {
+                entry = new Entry(Main.parseUI(new String(contents, StandardCharsets.UTF_8)), null);
+            }
+            put(hash, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @param hash The SHA-256 hash of the script's contents.
+     * @return The cached form, or null if there isn't one.
+     */
+    Entry get(String hash) {
+        File file = new File(dir, hash+SUFFIX);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file.toPath());
+        } catch (IOException ex) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            String title = CatalogIndex.readString(in);
+            String description = CatalogIndex.readString(in);
+            String docString = CatalogIndex.readString(in);
+            String categoryPath = CatalogIndex.readString(in);
+            Set<String> tags = new HashSet<String>();
+            for (int i=in.readInt(); i>0; i--) {
+                tags.add(CatalogIndex.readString(in));
+            }
+            List<String> depends = new ArrayList<String>();
+            for (int i=in.readInt(); i>0; i--) {
+                depends.add(CatalogIndex.readString(in));
+            }
+            List<Field> fields = new ArrayList<Field>();
+            for (int i=in.readInt(); i>0; i--) {
+                String varName = CatalogIndex.readString(in);
+                String label = CatalogIndex.readString(in);
+                String help = CatalogIndex.readString(in);
+                FieldType type = FieldType.valueOf(CatalogIndex.readString(in));
+                String defaultValue = CatalogIndex.readString(in);
+                boolean required = in.readBoolean();
+                int order = in.readInt();
+                boolean disposeOnSubmit = in.readBoolean();
+                fields.add(new Field(varName, label, help, type, defaultValue, required, order, disposeOnSubmit));
+            }
+            String descriptionHtml = CatalogIndex.readString(in);
+            long now = System.currentTimeMillis();
+            if (now - file.lastModified() > TOUCH_INTERVAL) {
+                file.setLastModified(now);
+            }
+            return new Entry(new Form(title, description, docString, categoryPath, tags, fields, depends), descriptionHtml);
+        } catch (IOException | IllegalArgumentException ex) {
+            // Truncated, or written by an incompatible version
+            return null;
+        }
+    }
+
+    /**
+     * Saves a form.  Failures are reported but otherwise ignored, since the cache is only an
+     * optimization.
+     */
+    void put(String hash, Entry entry) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            Form form = entry.form;
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            CatalogIndex.writeString(out, form.title);
+            CatalogIndex.writeString(out, form.description);
+            CatalogIndex.writeString(out, form.docString);
+            CatalogIndex.writeString(out, form.categoryPath);
+            out.writeInt(form.tags.size());
+            for (String tag : form.tags) {
+                CatalogIndex.writeString(out, tag);
+            }
+            out.writeInt(form.depends.size());
+            for (String depend : form.depends) {
+                CatalogIndex.writeString(out, depend);
+            }
+            out.writeInt(form.fields.size());
+            for (Field field : form.fields) {
+                CatalogIndex.writeString(out, field.varName);
+                CatalogIndex.writeString(out, field.label);
+                CatalogIndex.writeString(out, field.help);
+                CatalogIndex.writeString(out, field.type.name());
+                CatalogIndex.writeString(out, field.defaultValue);
+                out.writeBoolean(field.required);
+                out.writeInt(field.order);
+                out.writeBoolean(field.disposeOnSubmit);
+            }
+            CatalogIndex.writeString(out, entry.descriptionHtml);
+        } catch (IOException ex) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new UncheckedIOException(ex);
+        }
+
+        try {
+            dir.mkdirs();
+            File temp = File.createTempFile(hash, ".tmp", dir);
+            try {
+                Files.write(temp.toPath(), bytes.toByteArray());
+                Files.move(temp.toPath(), new File(dir, hash+SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                temp.delete();
+            }
+            prune();
+        } catch (IOException ex) {
+            System.err.println("Failed to save form cache entry in "+dir+". "+ex.getMessage());
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries once there are more than {@link #MAX_ENTRIES}.
+     */
+    private void prune() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null || files.length <= MAX_ENTRIES) {
+            return;
+        }
+        long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i=0; i<files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(lastModified[a], lastModified[b]));
+        for (int i=0; i<files.length - MAX_ENTRIES; i++) {
+            files[order[i]].delete();
+        }
+    }
+}
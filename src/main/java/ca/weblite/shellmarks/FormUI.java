@@ -0,0 +1,612 @@
+package ca.weblite.shellmarks;
+
+import ca.weblite.shellmarks.Main.Field;
+import ca.weblite.shellmarks.Main.FieldType;
+import ca.weblite.shellmarks.Main.Form;
+import com.alexandriasoftware.swing.Validation;
+import com.alexandriasoftware.swing.VerifyingValidator;
+import org.asciidoctor.OptionsBuilder;
+import org.asciidoctor.SafeMode;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.HyperlinkEvent;
+import javax.swing.text.JTextComponent;
+import java.awt.*;
+import java.awt.event.WindowEvent;
+import java.awt.event.WindowListener;
+import java.io.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+/**
+ * The Swing form that collects a script's field values before the script is run.
+ *
+ * This lives outside of {@link Main} so that command paths that don't show a form (listing,
+ * installing, and running scripts without fields) never load Swing.
+ */
+class FormUI {
+    private final Main main;
+    private final Form form;
+    private final File scriptFile;
+    private final Map<String,String> environment;
+    // Counted down when the form is submitted or cancelled.  A latch rather than a monitor,
+    // since show() may be called on a virtual thread, which Object.wait() would pin.
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private volatile boolean submitted = false;
+    private volatile boolean cancelled = false;
+    private boolean disposeOnSubmit;
+    private volatile PhaseTimer.Phase waitPhase;
+    private final String cachedDescription;
+    private final Consumer<String> descriptionRendered;
+
+    /**
+     *
+     * @param main The session that runs the script.
+     * @param form The form to show.
+     * @param scriptFile The script that the form belongs to.
+     * @param environment Receives the field values, keyed by variable name.
+     * @param cachedDescription The form's Asciidoc description, already rendered to HTML, or
+     *                          null to render it.
+     * @param descriptionRendered Receives the HTML if the description had to be rendered, so
+     *                            that it can be cached.
+     */
+    FormUI(Main main, Form form, File scriptFile, Map<String,String> environment, String cachedDescription,
+           Consumer<String> descriptionRendered) {
+        this.main = main;
+        this.form = form;
+        this.scriptFile = scriptFile;
+        this.environment = environment;
+        this.cachedDescription = cachedDescription;
+        this.descriptionRendered = descriptionRendered;
+    }
+
+    /**
+     * Shows the form and waits until it is submitted or closed.
+     * @return True if the script should be run now that the form has been submitted.
+     */
+    boolean show() throws InterruptedException {
+        EventQueue.invokeLater(()->{
+            PhaseTimer.Phase buildPhase = PhaseTimer.start("build form");
+            JPanel ui = buildUI(form);
+            JFrame f = new JFrame("Run Script");
+            f.setJMenuBar(buildMenuBar(f, scriptFile));
+            f.setLocationRelativeTo(null);
+            if (Main.doNotExit) {
+                f.addWindowListener(new WindowListener() {
+
+
+                    @Override
+                    public void windowOpened(WindowEvent e) {
+
+                    }
+
+                    @Override
+                    public void windowClosing(WindowEvent e) {
+
+                    }
+
+                    @Override
+                    public void windowClosed(WindowEvent e) {
+                        if (!submitted) {
+                            cancelled = true;
+                            closed.countDown();
+                        }
+                    }
+
+                    @Override
+                    public void windowIconified(WindowEvent e) {
+
+                    }
+
+                    @Override
+                    public void windowDeiconified(WindowEvent e) {
+
+                    }
+
+                    @Override
+                    public void windowActivated(WindowEvent e) {
+
+                    }
+
+                    @Override
+                    public void windowDeactivated(WindowEvent e) {
+
+                    }
+                });
+
+                f.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+            } else {
+                f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            }
+            if (form.title != null) {
+                f.setTitle(form.title);
+            }
+            f.getContentPane().setLayout(new BorderLayout());
+            f.getContentPane().add(ui, BorderLayout.CENTER);
+
+
+            f.pack();
+            f.setVisible(true);
+            buildPhase.close();
+            waitPhase = PhaseTimer.start("wait for submit");
+
+        });
+        closed.await();
+        PhaseTimer.Phase phase = waitPhase;
+        if (phase != null) {
+            phase.close();
+        }
+
+        return !cancelled && disposeOnSubmit;
+    }
+
+    private JPanel buildUI(Form form) {
+        JPanel out = new JPanel();
+        out.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+        out.setLayout(new BoxLayout(out, BoxLayout.Y_AXIS));
+
+        if (form.description != null) {
+            boolean isHtml = false;
+            String description = form.description;
+
+            if (description.trim().startsWith("<html>")) {
+                isHtml = true;
+            } else if (Main.isAsciidocDescription(description) && cachedDescription != null) {
+                isHtml = true;
+                description = cachedDescription;
+            } else if (Main.isAsciidocDescription(description)) {
+                isHtml = true;
+                int startPos = description.indexOf(">")+1;
+                int endPos;
+                if (startPos < 0) {
+                    startPos = 0;
+                    endPos = description.length();
+                } else {
+                    endPos = description.indexOf("</asciidoc>", startPos);
+                    if (endPos < 0) {
+                        endPos = description.length();
+                    }
+                }
+                String asciidocContent = description.substring(startPos, endPos);
+
+                try (PhaseTimer.Phase phase = PhaseTimer.start("render description")) {
+                    description = AsciidocEngine.convert(asciidocContent, OptionsBuilder.options()
+                            .safe(SafeMode.UNSAFE)
+                            .docType("html"));
+                    descriptionRendered.accept(description);
+                } catch (Exception ex) {
+                    System.err.println("Failed to convert Asciidoc. "+ex.getMessage());
+                    ex.printStackTrace(System.err);
+                    if (!Main.doNotExit) {
+                        System.exit(1);
+                    }
+                }
+            }
+            if (isHtml) {
+                JEditorPane editorPane = new JEditorPane();
+                editorPane.setOpaque(false);
+                editorPane.setBorder(BorderFactory.createEmptyBorder(0, 0, 15, 0));
+                editorPane.setEditable(false);
+                editorPane.setContentType("text/html");
+                editorPane.setText(description);
+                editorPane.addHyperlinkListener(evt -> {
+                    if (evt.getEventType() == HyperlinkEvent.EventType.ACTIVATED) {
+
+                        if (Desktop.isDesktopSupported()) {
+                            try {
+                                Desktop.getDesktop().browse(evt.getURL().toURI());
+                            } catch (Exception ex) {
+                            }
+                        }
+                    }
+                });
+
+                out.add(editorPane);
+            } else {
+                JTextArea textArea = new JTextArea();
+                textArea.setEditable(false);
+                textArea.setText(description);
+                textArea.setOpaque(false);
+                textArea.setBorder(BorderFactory.createEmptyBorder(0, 0, 15, 0));
+
+                out.add(textArea);
+            }
+
+        }
+
+
+        List<JButton> buttons = new ArrayList<JButton>();
+        for (Field field : form.fields) {
+            if (field.type != FieldType.Button) {
+                out.add(buildUI(field));
+            } else {
+                buttons.add((JButton)buildUI(field));
+            }
+        }
+
+        if (buttons.isEmpty()) {
+            JButton submit = new JButton("Run");
+            submit.addActionListener(evt->{
+                disposeOnSubmit = true;
+            });
+            buttons.add(submit);
+        }
+        for (JButton submit : buttons) {
+            submit.addActionListener(evt -> {
+                for (JButton b : buttons) {
+                    // If there are multiple button fields, then we need to remove environment variables
+                    // from other buttons that may have been run previously
+                    if (b != submit) {
+                        Field buttonField = getFieldForComponent(b);
+                        if (buttonField != null) {
+                            environment.remove(buttonField.varName);
+                        }
+                    }
+                }
+                EventQueue.invokeLater(()->{
+                    try {
+                        validateForm(out);
+                    } catch (ValidationFailure ex) {
+                        JOptionPane.showMessageDialog(out, ex.getMessage(), "Validation Failure", JOptionPane.ERROR_MESSAGE);
+                        return;
+                    }
+
+
+                    if (disposeOnSubmit) {
+                        submitted = true;
+                        closed.countDown();
+                        try {
+                            JFrame top = (JFrame) submit.getTopLevelAncestor();
+                            top.dispose();
+                        } catch (Exception ex) {
+                            System.err.println("Problem getting top level ancestor of submit button");
+                            ex.printStackTrace(System.err);
+                        }
+                    } else {
+                        // We aren't disposing on submit, so we should run directly.
+                        Threads.start("shellmarks-run-script", ()->{
+                            try {
+                                main.runScript(Main.readToString(new FileInputStream(scriptFile)));
+                            } catch (Exception ex) {
+                                System.err.println("An error occurred while running "+scriptFile+". "+ex.getMessage());
+                                ex.printStackTrace(System.err);
+                            }
+                        });
+                    }
+                });
+
+            });
+        }
+
+        JButton cancel = new JButton("Cancel");
+        cancel.addActionListener(evt->{
+            cancelled = true;
+            closed.countDown();
+            try {
+                JFrame top = (JFrame) cancel.getTopLevelAncestor();
+                top.dispose();
+            } catch (Exception ex) {
+                System.err.println("Problem getting top level ancestor of submit button");
+                ex.printStackTrace(System.err);
+            }
+        });
+
+        buttons.add(cancel);
+        out.add(center(buttons.toArray(new JButton[buttons.size()])));
+
+        return out;
+    }
+
+    private JPanel center(JComponent... wrapped) {
+        JPanel out = new JPanel();
+        out.setLayout(new FlowLayout(FlowLayout.CENTER));
+        for (JComponent c : wrapped) {
+            out.add(c);
+        }
+        return out;
+    }
+
+    private JComponent buildUI(Field field) {
+        switch (field.type) {
+            case File:
+            case Directory:
+                return buildFileField(field);
+
+            case Text:
+            case Number:
+            case Date:
+                return buildTextField(field);
+
+            case CheckBox:
+                return buildCheckboxField(field);
+            case Button:
+                return buildButtonField(field);
+
+
+
+        }
+        throw new RuntimeException("No registered builder for field "+field.type);
+
+    }
+
+    private static final String FIELD_KEY = "Shellmarks.Field";
+
+
+    private void installValidation(JTextField pathField, Field field) {
+        if (field.required) {
+            pathField.setInputVerifier(new InputVerifier() {
+                @Override
+                public boolean verify(JComponent input) {
+                    return !pathField.getText().trim().isEmpty();
+                }
+            });
+            pathField.setInputVerifier(new VerifyingValidator(pathField,
+                    pathField.getInputVerifier(),
+                    new Validation(Validation.Type.DANGER, "Too short")));
+        }
+    }
+
+    private JComponent buildFileField(Field field) {
+        JPanel panel = new JPanel();
+        panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+
+        JLabel label = new JLabel(field.label);
+
+        JPanel labelWrapper = new JPanel();
+
+        labelWrapper.add(label);
+        labelWrapper.setLayout(new FlowLayout(FlowLayout.LEFT));
+        panel.add(labelWrapper);
+
+        JTextField pathField = new JTextField();
+        if (field.help != null) {
+            pathField.setToolTipText(field.help);
+            label.setToolTipText(field.help);
+        }
+        pathField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                environment.put(field.varName, pathField.getText());
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                environment.put(field.varName, pathField.getText());
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                environment.put(field.varName, pathField.getText());
+            }
+        });
+        installValidation(pathField, field);
+        pathField.setColumns(30);
+        pathField.putClientProperty(FIELD_KEY, field);
+        if (environment.containsKey(field.varName)) {
+            pathField.setText(environment.get(field.varName));
+        } else if (field.defaultValue != null) {
+            pathField.setText(field.defaultValue);
+            environment.put(field.varName, field.defaultValue);
+        }
+        pathField.addActionListener(evt->{
+            environment.put(field.varName, pathField.getText());
+        });
+
+
+        JButton browseButton = new JButton("...");
+        browseButton.addActionListener(evt->{
+            if (field.type == FieldType.Directory) {
+                System.setProperty("apple.awt.fileDialogForDirectories", "true");
+            }
+            FileDialog dialog = new FileDialog((Frame)null, "Select file", FileDialog.LOAD);
+            if (!pathField.getText().isEmpty()) {
+                dialog.setFile(pathField.getText());
+            }
+            dialog.setVisible(true);
+
+            for (File f : dialog.getFiles()) {
+                pathField.setText(f.getAbsolutePath());
+                environment.put(field.varName, pathField.getText());
+            }
+            if (field.type == FieldType.Directory) {
+                System.setProperty("apple.awt.fileDialogForDirectories", "false");
+            }
+        });
+
+
+        JPanel wrapper = new JPanel();
+        wrapper.setLayout(new BorderLayout());
+        wrapper.add(pathField, BorderLayout.CENTER);
+        wrapper.add(browseButton, BorderLayout.EAST);
+
+        panel.add(wrapper);
+
+        return panel;
+    }
+
+
+
+    private JComponent buildCheckboxField(Field field) {
+
+        JCheckBox out =  new JCheckBox(field.label);
+        if (environment.containsKey(field.varName)) {
+            String v = environment.get(field.varName).toLowerCase();
+            out.setSelected("true".equals(v) || "1".equals(v) || "on".equals(v) || "checked".equals(v) || "yes".equals(v));
+        } else if (("true".equalsIgnoreCase(field.defaultValue) || "1".equals(field.defaultValue) || "on".equalsIgnoreCase(field.defaultValue) || "checked".equalsIgnoreCase(field.defaultValue) || "yes".equalsIgnoreCase(field.defaultValue))) {
+            out.setSelected(true);
+            environment.put(field.varName, "1");
+        }
+        if (field.help != null) {
+            out.setToolTipText(field.help);
+        }
+        out.putClientProperty(FIELD_KEY, field);
+        out.addActionListener(evt -> {
+            if (out.isSelected()) {
+                environment.put(field.varName, "1");
+            } else {
+                environment.remove(field.varName);
+            }
+        });
+
+
+        JPanel wrapper = new JPanel();
+        wrapper.setLayout(new FlowLayout(FlowLayout.LEFT));
+        wrapper.add(out);
+        return wrapper;
+
+    }
+
+    private Field getFieldForComponent(JComponent cmp) {
+        return (Field)cmp.getClientProperty(FIELD_KEY);
+    }
+
+    private JComponent buildButtonField(Field field) {
+
+        JButton out =  new JButton(field.label);
+        if (("true".equalsIgnoreCase(field.defaultValue) || "1".equals(field.defaultValue) || "on".equalsIgnoreCase(field.defaultValue) || "checked".equalsIgnoreCase(field.defaultValue) || "yes".equalsIgnoreCase(field.defaultValue))) {
+            environment.put(field.varName, "1");
+        }
+        if (field.help != null) {
+            out.setToolTipText(field.help);
+        }
+        out.putClientProperty(FIELD_KEY, field);
+        out.addActionListener(evt -> {
+            disposeOnSubmit = field.disposeOnSubmit;
+            environment.put(field.varName, "1");
+
+
+        });
+        return out;
+
+    }
+
+    private JComponent buildTextField(Field field) {
+        JPanel panel = new JPanel();
+        panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+        JLabel label = new JLabel(field.label);
+        JPanel labelWrapper = new JPanel();
+        labelWrapper.setLayout(new FlowLayout(FlowLayout.LEFT));
+        labelWrapper.add(label);
+        panel.add(labelWrapper);
+
+
+
+        JTextField pathField = new JTextField();
+        installValidation(pathField, field);
+        pathField.putClientProperty(FIELD_KEY, field);
+        if (environment.containsKey(field.varName)) {
+            pathField.setText(environment.get(field.varName));
+        } else if (field.defaultValue != null) {
+            pathField.setText(field.defaultValue);
+            environment.put(field.varName, field.defaultValue);
+        }
+        if (field.help != null) {
+            pathField.setToolTipText(field.help);
+            label.setToolTipText(field.help);
+        }
+        pathField.addActionListener(evt->{
+
+            environment.put(field.varName, pathField.getText());
+
+        });
+        pathField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                environment.put(field.varName, pathField.getText());
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                environment.put(field.varName, pathField.getText());
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                environment.put(field.varName, pathField.getText());
+            }
+        });
+        panel.add(pathField);
+
+        return panel;
+    }
+
+    private JComponent findComponentForField(JComponent root, Field field) {
+        if (root.getClientProperty(FIELD_KEY) == field) return root;
+        int len = root.getComponentCount();
+        for (int i=0; i<len; i++) {
+            JComponent child  = (JComponent)root.getComponent(i);
+            JComponent match = findComponentForField(child, field);
+            if (match != null) {
+                return match;
+            }
+
+        }
+        return null;
+    }
+
+    private class ValidationFailure extends Exception {
+        private Field field;
+
+        ValidationFailure(String message, Field field) {
+            super(message);
+            this.field = field;
+        }
+    }
+
+    private void validateField(JComponent root, Field field) throws ValidationFailure {
+        JComponent cmp = findComponentForField(root, field);
+        if (cmp == null) {
+            throw new ValidationFailure("Field "+field.varName+" not found in form.", field);
+        }
+        if (field.required) {
+            if (cmp instanceof JTextComponent) {
+                JTextComponent textComponent = (JTextComponent) cmp;
+                if (textComponent.getText().isEmpty()) {
+                    throw new ValidationFailure("Field "+field.varName+" is required", field);
+                }
+            }
+        }
+
+    }
+
+    private void validateForm(JComponent root) throws ValidationFailure {
+        if (form.fields != null) {
+            for (Field field : form.fields) {
+                validateField(root, field);
+            }
+        }
+    }
+
+
+
+    private JMenuBar buildMenuBar(JFrame parent, File file) {
+        System.setProperty("apple.laf.useScreenMenuBar", "true");
+        if (form.title != null) {
+            System.setProperty("com.apple.mrj.application.apple.menu.about.name", form.title);
+        }
+        JMenuBar out = new JMenuBar();
+        JMenu fileMenu = new JMenu("File");
+        JMenuItem edit = new JMenuItem("Edit Script");
+        edit.addActionListener(evt->{
+            if (Desktop.isDesktopSupported()) {
+                try {
+                    Desktop.getDesktop().edit(file);
+
+                } catch (Exception ex) {
+                    System.err.println("Failed to open file for editing");
+                    ex.printStackTrace(System.err);
+                    JOptionPane.showMessageDialog(parent, "Failed to open file for editing.  "+ex.getMessage(), "Failed", JOptionPane.ERROR_MESSAGE);
+                }
+            } else {
+                JOptionPane.showMessageDialog(parent, "Not supported", "Editing not supported on this platform", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+        fileMenu.add(edit);
+        out.add(fileMenu);
+        return out;
+    }
+}
@@ -0,0 +1,172 @@
+package ca.weblite.shellmarks;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records where the scripts in an install directory were downloaded from, so that --update can
+ * check them for changes.  Stored as .shellmarks-installs.json in the install directory, which
+ * the catalog skips like any other hidden file:
+ *
+ * <pre>
+ * {"hello.sh": {"url": "https://...", "etag": "\"abc\"", "lastModified": "Tue, ...",
+ *               "sha256": "...", "size": 1234, "pinned": false}}
+ * </pre>
+ *
+ * The manifest is small, so it is rewritten as a whole, to a temp file that is then renamed
+ * over it.  Changes are made with the manifest locked (see {@link #lock(File)}), so that an
+ * --install and an --update that run at the same time don't drop each other's entries.
+ */
+final class InstallManifest implements Closeable {
+    static final String FILE_NAME = ".shellmarks-installs.json";
+    static final String LOCK_FILE_NAME = FILE_NAME+".lock";
+
+    // File locks are held by the whole process, so threads also take this one
+    private static final ReentrantLock threadLock = new ReentrantLock();
+
+    static class Entry {
+        final String name;
+        String url;
+        String etag;
+        String lastModified;
+        String sha256;
+        long size;
+        // Installed with --hash, so it shouldn't change
+        boolean pinned;
+
+        Entry(String name) {
+            this.name = name;
+        }
+    }
+
+    private final File file;
+    private final Map<String,Entry> entries = new TreeMap<String,Entry>();
+    private FileChannel lockChannel;
+
+    private InstallManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Locks the manifest in the given install directory and loads it.  The lock is held, and
+     * other processes and threads that lock the manifest wait, until the result is closed.
+     */
+    static InstallManifest lock(File installDir) throws IOException {
+        installDir.mkdirs();
+        threadLock.lock();
+        FileChannel channel = null;
+        try {
+            // The lock file is never deleted, since another process may be waiting on it
+            channel = FileChannel.open(new File(installDir, LOCK_FILE_NAME).toPath(),
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            channel.lock();
+            InstallManifest manifest = load(installDir);
+            manifest.lockChannel = channel;
+            return manifest;
+        } catch (IOException | RuntimeException ex) {
+            if (channel != null) {
+                channel.close();
+            }
+            threadLock.unlock();
+            throw ex;
+        }
+    }
+
+    /**
+     * Loads the manifest without locking it.
+     */
+    static InstallManifest load(File installDir) throws IOException {
+        InstallManifest manifest = new InstallManifest(new File(installDir, FILE_NAME));
+        if (!manifest.file.exists()) {
+            return manifest;
+        }
+        JSONObject json;
+        try {
+            json = new JSONObject(new String(Files.readAllBytes(manifest.file.toPath()), StandardCharsets.UTF_8));
+        } catch (JSONException ex) {
+            throw new IOException("Invalid install manifest "+manifest.file+". "+ex.getMessage(), ex);
+        }
+        for (String name : json.keySet()) {
+            JSONObject o = json.getJSONObject(name);
+            Entry entry = new Entry(name);
+            entry.url = o.optString("url", null);
+            entry.etag = o.optString("etag", null);
+            entry.lastModified = o.optString("lastModified", null);
+            entry.sha256 = o.optString("sha256", null);
+            entry.size = o.optLong("size", 0);
+            entry.pinned = o.optBoolean("pinned", false);
+            if (entry.url != null) {
+                manifest.entries.put(name, entry);
+            }
+        }
+        return manifest;
+    }
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    Collection<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    void put(Entry entry) {
+        entries.put(entry.name, entry);
+    }
+
+    void remove(String name) {
+        entries.remove(name);
+    }
+
+    void save() throws IOException {
+        JSONObject json = new JSONObject();
+        for (Entry entry : entries.values()) {
+            JSONObject o = new JSONObject();
+            o.put("url", entry.url);
+            o.putOpt("etag", entry.etag);
+            o.putOpt("lastModified", entry.lastModified);
+            o.putOpt("sha256", entry.sha256);
+            o.put("size", entry.size);
+            o.put("pinned", entry.pinned);
+            json.put(entry.name, o);
+        }
+        File temp = File.createTempFile(FILE_NAME+"-", ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            Files.write(temp.toPath(), json.toString(2).getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Releases the lock, if the manifest was loaded with {@link #lock(File)}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (lockChannel == null) {
+            return;
+        }
+        try {
+            // Closing the channel releases the file lock
+            lockChannel.close();
+        } finally {
+            lockChannel = null;
+            threadLock.unlock();
+        }
+    }
+}
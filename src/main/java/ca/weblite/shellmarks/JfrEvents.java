@@ -0,0 +1,243 @@
+package ca.weblite.shellmarks;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events for the work that shellmarks does, so that recordings of long
+ * viewer sessions show which scripts and documents the time went to instead of anonymous
+ * JRuby frames.
+ *
+ * Every event is used as:
+ *
+ * <pre>
+ * ScriptLoad event = new ScriptLoad();
+ * event.begin();
+ * ...
+ * if (event.shouldCommit()) {
+ *     event.scriptName = ...;
+ *     event.commit();
+ * }
+ * </pre>
+ *
+ * so that when recording is off, the only cost is an allocation that the JIT can eliminate.
+ * The events are enabled whenever a recording is running, e.g. one started with
+ * -XX:StartFlightRecording.
+ */
+final class JfrEvents {
+    private static final String CATEGORY = "Shellmarks";
+
+    private JfrEvents() {
+
+    }
+
+    @Name("ca.weblite.shellmarks.ScriptLoad")
+    @Label("Script Load")
+    @Description("A script was loaded into the catalog, from the catalog index or by parsing it")
+    @Category({CATEGORY, "Catalog"})
+    @StackTrace(false)
+    static class ScriptLoad extends Event {
+        @Label("Script Name")
+        String scriptName;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Field Count")
+        int fieldCount;
+
+        @Label("From Index")
+        @Description("Whether the script was found in the catalog index, so it didn't need to be parsed")
+        boolean fromIndex;
+    }
+
+    @Name("ca.weblite.shellmarks.ParseMarkup")
+    @Label("Parse Markup")
+    @Description("Shellmarks TOML markup was parsed from a script")
+    @Category({CATEGORY, "Parsing"})
+    @StackTrace(false)
+    static class ParseMarkup extends Event {
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Field Count")
+        int fieldCount;
+    }
+
+    @Name("ca.weblite.shellmarks.AsciidocConvert")
+    @Label("Asciidoc Convert")
+    @Description("Asciidoc was converted to HTML.  This includes waiting for the shared engine.")
+    @Category({CATEGORY, "Rendering"})
+    @StackTrace(false)
+    static class AsciidocConvert extends Event {
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("HTML Bytes")
+        @DataAmount
+        long htmlBytes;
+    }
+
+    @Name("ca.weblite.shellmarks.GenerateCatalog")
+    @Label("Generate Catalog")
+    @Description("The catalog page was generated")
+    @Category({CATEGORY, "Catalog"})
+    @StackTrace(false)
+    static class GenerateCatalog extends Event {
+        @Label("Fragment Count")
+        int fragmentCount;
+
+        @Label("Converted Fragments")
+        @Description("The number of fragments that weren't in the render cache")
+        int convertedFragments;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("ca.weblite.shellmarks.ProcessStart")
+    @Label("Process Start")
+    @Description("A script's process was started")
+    @Category({CATEGORY, "Scripts"})
+    @StackTrace(false)
+    static class ProcessStart extends Event {
+        @Label("Script Name")
+        String scriptName;
+
+        @Label("Executable")
+        String executable;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("ca.weblite.shellmarks.ProcessRun")
+    @Label("Process Run")
+    @Description("A script's process ran until it exited")
+    @Category({CATEGORY, "Scripts"})
+    @StackTrace(false)
+    static class ProcessRun extends Event {
+        @Label("Script Name")
+        String scriptName;
+
+        @Label("Field Count")
+        int fieldCount;
+
+        @Label("Exit Code")
+        int exitCode;
+    }
+
+    @Name("ca.weblite.shellmarks.ViewerAction")
+    @Label("Viewer Action")
+    @Description("The catalog viewer asked shellmarks to do something, e.g. run or edit a script")
+    @Category({CATEGORY, "Catalog"})
+    @StackTrace(false)
+    static class ViewerAction extends Event {
+        @Label("Action")
+        String action;
+
+        @Label("Script Name")
+        String scriptName;
+    }
+
+    /**
+     * Wraps a listener so that each callback is recorded as a {@link ViewerAction}.
+     */
+    static RunScriptListener record(RunScriptListener listener) {
+        return new RunScriptListener() {
+            private ViewerAction begin() {
+                ViewerAction event = new ViewerAction();
+                event.begin();
+                return event;
+            }
+
+            private void commit(ViewerAction event, String action, String name) {
+                if (event.shouldCommit()) {
+                    event.action = action;
+                    event.scriptName = name;
+                    event.commit();
+                }
+            }
+
+            @Override
+            public void runScript(DocumentationAppFX app, String name) {
+                ViewerAction event = begin();
+                listener.runScript(app, name);
+                commit(event, "run", name);
+            }
+
+            @Override
+            public void editScript(DocumentationAppFX app, String name) {
+                ViewerAction event = begin();
+                listener.editScript(app, name);
+                commit(event, "edit", name);
+            }
+
+            @Override
+            public void deleteScript(DocumentationAppFX app, String name) {
+                ViewerAction event = begin();
+                listener.deleteScript(app, name);
+                commit(event, "delete", name);
+            }
+
+            @Override
+            public void cloneScript(DocumentationAppFX app, String name) {
+                ViewerAction event = begin();
+                listener.cloneScript(app, name);
+                commit(event, "clone", name);
+            }
+
+            @Override
+            public void refresh(DocumentationAppFX app) {
+                ViewerAction event = begin();
+                listener.refresh(app);
+                commit(event, "refresh", null);
+            }
+
+            @Override
+            public void newScript(DocumentationAppFX app) {
+                ViewerAction event = begin();
+                listener.newScript(app);
+                commit(event, "newScript", null);
+            }
+
+            @Override
+            public void importScriptFromFileSystem(DocumentationAppFX app) {
+                ViewerAction event = begin();
+                listener.importScriptFromFileSystem(app);
+                commit(event, "importFromFileSystem", null);
+            }
+
+            @Override
+            public void importScriptFromURL(DocumentationAppFX app) {
+                ViewerAction event = begin();
+                listener.importScriptFromURL(app);
+                commit(event, "importFromURL", null);
+            }
+
+            @Override
+            public void editSection(DocumentationAppFX app, String sectionName) {
+                ViewerAction event = begin();
+                listener.editSection(app, sectionName);
+                commit(event, "editSection", sectionName);
+            }
+
+            @Override
+            public void newSection(DocumentationAppFX app) {
+                ViewerAction event = begin();
+                listener.newSection(app);
+                commit(event, "newSection", null);
+            }
+        };
+    }
+}
@@ -0,0 +1,165 @@
+package ca.weblite.shellmarks;
+
+/**
+ * Iterates over the lines of a CharSequence without allocating a String per line.
+ *
+ * Lines are split on the same terminators as {@link java.util.Scanner#nextLine()}, and as with
+ * Scanner, a terminator at the very end of the input doesn't produce a trailing empty line.
+ * The matchers operate on the current line in place, and replace the regular expressions that
+ * were previously used to recognize shellmarks markup.
+ */
+final class LineTokenizer {
+    private final CharSequence text;
+    private final int limit;
+    private int pos;
+    private int start = -1;
+    private int end = -1;
+
+    LineTokenizer(CharSequence text) {
+        this(text, 0, text.length());
+    }
+
+    LineTokenizer(CharSequence text, int from, int to) {
+        this.text = text;
+        this.pos = from;
+        this.limit = to;
+    }
+
+    /**
+     * Advances to the next line.
+     * @return False if there are no more lines.
+     */
+    boolean next() {
+        if (pos >= limit) {
+            return false;
+        }
+        start = pos;
+        int i = pos;
+        while (i < limit) {
+            char c = text.charAt(i);
+            if (c == '\n' || c == '\u2028' || c == '\u2029' || c == '\u0085') {
+                end = i;
+                pos = i + 1;
+                return true;
+            }
+            if (c == '\r') {
+                end = i;
+                pos = (i + 1 < limit && text.charAt(i + 1) == '\n') ? i + 2 : i + 1;
+                return true;
+            }
+            i++;
+        }
+        end = limit;
+        pos = limit;
+        return true;
+    }
+
+    /**
+     * The offset of the start of the current line.
+     */
+    int start() {
+        return start;
+    }
+
+    /**
+     * The offset of the end of the current line, excluding the line terminator.
+     */
+    int end() {
+        return end;
+    }
+
+    /**
+     * The offset where the next line starts.
+     */
+    int nextStart() {
+        return pos;
+    }
+
+    int length() {
+        return end - start;
+    }
+
+    String line() {
+        return text.subSequence(start, end).toString();
+    }
+
+    boolean startsWith(String prefix) {
+        int len = prefix.length();
+        if (end - start < len) {
+            return false;
+        }
+        for (int i=0; i<len; i++) {
+            if (text.charAt(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the current line only contains whitespace, as per {@link String#trim()}.
+     */
+    boolean isBlank() {
+        for (int i=start; i<end; i++) {
+            if (text.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Matches {@code ^--+$}, the separator that precedes TOML markup at the end of a script.
+     */
+    boolean isDashLine() {
+        if (end - start < 2) {
+            return false;
+        }
+        for (int i=start; i<end; i++) {
+            if (text.charAt(i) != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Matches {@code ^=+ [A-Za-z0-9].*$}, i.e. an Asciidoc section title.
+     * @return The heading level (number of = characters), or -1 if this line isn't a heading.
+     */
+    int headingLevel() {
+        int i = start;
+        while (i < end && text.charAt(i) == '=') {
+            i++;
+        }
+        int level = i - start;
+        if (level == 0 || i + 1 >= end || text.charAt(i) != ' ' || !isAsciiLetterOrDigit(text.charAt(i + 1))) {
+            return -1;
+        }
+        return level;
+    }
+
+    /**
+     * Matches a TOML table header like {@code [fieldName]}, ignoring surrounding whitespace.  This is
+     * the equivalent of {@code line.trim().matches("^\\[[A-Za-z].*\\]$")}.
+     * @return The table name, or null if this line isn't a table header.
+     */
+    String tableName() {
+        int s = start;
+        int e = end;
+        while (s < e && text.charAt(s) <= ' ') s++;
+        while (e > s && text.charAt(e - 1) <= ' ') e--;
+        if (e - s < 3 || text.charAt(s) != '[' || text.charAt(e - 1) != ']' || !isAsciiLetter(text.charAt(s + 1))) {
+            return null;
+        }
+        return text.subSequence(s + 1, e - 1).toString();
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    private static boolean isAsciiLetterOrDigit(char c) {
+        return isAsciiLetter(c) || (c >= '0' && c <= '9');
+    }
+}
@@ -1,29 +1,16 @@
 package ca.weblite.shellmarks;
 
-import com.alexandriasoftware.swing.Validation;
-import com.alexandriasoftware.swing.VerifyingValidator;
 import com.moandjiezana.toml.Toml;
-import javafx.application.Platform;
-import jnr.ffi.Struct;
 import org.apache.commons.io.FileUtils;
-import org.asciidoctor.Asciidoctor;
-import org.asciidoctor.OptionsBuilder;
-import org.asciidoctor.SafeMode;
 import picocli.CommandLine;
 
 import javax.swing.*;
-import javax.swing.event.DocumentEvent;
-import javax.swing.event.DocumentListener;
-import javax.swing.event.HyperlinkEvent;
-import javax.swing.text.JTextComponent;
 import java.awt.*;
-import java.awt.event.WindowEvent;
-import java.awt.event.WindowListener;
 import java.io.*;
-import java.lang.reflect.InvocationTargetException;
-import java.math.BigInteger;
+import java.net.URI;
 import java.net.URL;
-import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -34,11 +21,19 @@ public class Main implements Runnable {
     private Map<String,String> environment = new HashMap<>();
     private File scriptFile;
     private Form form;
-    private final Object lock = new Object();
-    private boolean submitted = false;
-    private boolean cancelled = false;
-    private static boolean doNotExit;
-    private boolean disposeOnSubmit;
+    static boolean doNotExit;
+
+    // When running on behalf of a daemon client, scripts get the client's environment, working
+    // directory and output streams instead of this process'.
+    private Map<String,String> baseEnvironment;
+    private File workingDirectory;
+    private OutputStream stdout;
+    private OutputStream stderr;
+
+    // The running script's process, so that a parallel run can stop it
+    private volatile Process process;
+    private volatile boolean cancelled;
+    private int exitCode;
 
     @CommandLine.Option(names = {"-i", "--install"}, description = "Install scripts")
     private boolean installScript;
@@ -52,78 +47,88 @@ public class Main implements Runnable {
     @CommandLine.Option(names = {"-l", "--list"}, description = "Print a list of installed scripts")
     private boolean listScripts;
 
-    @CommandLine.Option(names = {"--hash"}, description = "SHA1 hash onf install script contents to verify that script is not tampered with.")
-    private String hash;
+    @CommandLine.Option(names = {"--hash"}, description = "SHA-1 or SHA-256 hash of the installed script's contents to verify that the script is not tampered with.  When installing several URLs, give one --hash per URL, in the same order.")
+    private List<String> hashes;
+
+    @CommandLine.Option(names = {"--offline"}, description = "With --install, install scripts from the local script store without downloading them")
+    private boolean offline;
+
+    @CommandLine.Option(names = {"--update"}, description = "Check the scripts that were installed from URLs, or the given scripts, for changes and download the ones that changed.  With -f, also replace scripts that were edited or installed with --hash.")
+    private boolean update;
+
+    @CommandLine.Option(names = {"--gc-store"}, description = "Delete scripts from the local script store that are no longer installed")
+    private boolean gcStore;
 
     @CommandLine.Option(names = {"-e", "--edit"}, description = "Edit the provided scripts in default text editor app")
     private boolean edit;
 
 
+    @CommandLine.Option(names = {"--daemon"}, description = "Keep running in the background, and run scripts for other shellmarks invocations")
+    private boolean daemon;
+
+    @CommandLine.Option(names = {"--timings"}, description = "Print how long each phase took to stderr on exit")
+    private boolean timings;
+
+    @CommandLine.Option(names = {"--timings-format"}, paramLabel = "<format>", description = "Format of the --timings report: table or json (default: ${DEFAULT-VALUE})")
+    private String timingsFormat = PhaseTimer.FORMAT_TABLE;
+
+    @CommandLine.Option(names = {"--metrics-file"}, paramLabel = "<file>",
+            description = "Add script run metrics to this Prometheus text file on exit.  Defaults to $SHELLMARKS_METRICS_FILE.")
+    private File metricsFile;
+
+    @CommandLine.Option(names = {"--metrics-port"}, paramLabel = "<port>",
+            description = "With --daemon, serve metrics at http://127.0.0.1:<port>/metrics")
+    private int metricsPort = -1;
+
+    @CommandLine.Option(names = {"--stats"}, description = "Print run counts, failure rates and p50/p95/p99 durations from the run history, for all scripts or the given script")
+    private boolean stats;
+
+    @CommandLine.Option(names = {"--compact-journal"}, paramLabel = "<days>",
+            description = "Merge old run history segments, dropping runs older than this many days (0 keeps all runs)")
+    private Integer compactJournalDays;
+
+    @CommandLine.Option(names = {"--parallel"}, paramLabel = "<N>",
+            description = "Run the given scripts concurrently, at most N at a time, prefixing each line of output with the script name")
+    private Integer parallel;
+
+    @CommandLine.Option(names = {"--keep-going"},
+            description = "With --parallel, keep running the other scripts after one fails instead of stopping them")
+    private boolean keepGoing;
+
+    @CommandLine.Option(names = {"--no-log"}, description = "Don't save the scripts' output in ~/.shellmarks/logs")
+    private boolean noLog;
+
+    @CommandLine.Option(names = {"--log"},
+            description = "Save the scripts' output in ~/.shellmarks/logs even when it goes to a terminal.  The scripts then don't see the terminal.")
+    private boolean log;
+
     @CommandLine.Parameters(paramLabel = "<script>", description = "Shell scripts to be run")
     private String[] files;
 
 
 
 
-    private File findScript(String name) {
-        String includePaths = System.getenv("SHELLMARKS_PATH");
-        if (includePaths == null) {
-            includePaths = System.getProperty("user.home") + File.separator + ".shellmarks" + File.separator + "scripts";
-        }
-        String[] includePathsArr = includePaths.split(File.pathSeparator);
-        for (String p : includePathsArr) {
-            File f = new File(p + File.separator + name);
-            if (f.exists()) return f;
-        }
-        return null;
+    static File getShellmarksDir() {
+        return new File(System.getProperty("user.home") + File.separator + ".shellmarks");
     }
 
-    private File[] getScriptPaths() {
-        String includePaths = System.getenv("SHELLMARKS_PATH");
-        if (includePaths == null) {
-            includePaths = System.getProperty("user.home") + File.separator + ".shellmarks" + File.separator + "scripts";
-        }
-        String[] includePathsArr = includePaths.split(File.pathSeparator);
-        List<File> includePathFiles = new ArrayList<File>();
-        int index = 0;
-        for (String p : includePathsArr) {
-            File f = new File(p);
-            if (f.exists()) includePathFiles.add(f);
-        }
-        if (includePathFiles.isEmpty()) {
-            if (includePathsArr.length > 0) {
-                File f = new File(includePathsArr[0]);
-                f.mkdirs();
-                includePathFiles.add(f);
-            }
-        }
-        return includePathFiles.toArray(new File[includePathFiles.size()]);
+    private ScriptResolver getScriptResolver() {
+        return baseEnvironment == null ? ScriptResolver.getDefault() : ScriptResolver.forEnvironment(baseEnvironment);
+    }
+
+    File findScript(String name) {
+        return getScriptResolver().find(name);
+    }
+
+    File[] getScriptPaths() {
+        return getScriptResolver().getScriptPaths();
     }
 
     public static String sha1(String input)
     {
         try {
-            // getInstance() method is called with algorithm SHA-1
             MessageDigest md = MessageDigest.getInstance("SHA-1");
-
-            // digest() method is called
-            // to calculate message digest of the input string
-            // returned as array of byte
-            byte[] messageDigest = md.digest(input.getBytes());
-
-            // Convert byte array into signum representation
-            BigInteger no = new BigInteger(1, messageDigest);
-
-            // Convert message digest into hex value
-            String hashtext = no.toString(16);
-
-            // Add preceding 0s to make it 32 bit
-            while (hashtext.length() < 32) {
-                hashtext = "0" + hashtext;
-            }
-
-            // return the HashText
-            return hashtext;
+            return ScriptDownloader.toHex(md.digest(input.getBytes(StandardCharsets.UTF_8)), 40);
         }
 
         // For specifying wrong message digest algorithms
@@ -137,7 +142,7 @@ public class Main implements Runnable {
         runInstall((URL)null, (File)null);
     }
 
-    private void runInstall(URL installUrl, File installFile) {
+    void runInstall(URL installUrl, File installFile) {
         if (installUrl != null) {
             files = new String[]{installUrl.toString()};
         } else if (installFile != null) {
@@ -148,144 +153,402 @@ public class Main implements Runnable {
             System.err.println("Use --help flag to see usage");
             System.exit(1);
         }
-        File installDir = getScriptPaths().length > 0 ? getScriptPaths()[0] : null;
-        if (installDir == null) {
-            installDir = new File(System.getProperty("user.home") + File.separator + ".shellmarks" + File.separator + "scripts");
-
+        File installDir = getInstallDir();
+        for (String arg : files) {
+            if (BundleInstaller.isBundle(arg)) {
+                boolean showDialogs = installUrl != null || installFile != null;
+                if (!installBundle(arg, files.length, installDir, showDialogs) && !doNotExit) {
+                    System.exit(1);
+                }
+                return;
+            }
         }
-        installDir.mkdirs();
+        List<String> urls = new ArrayList<String>();
+        List<String> localFiles = new ArrayList<String>();
         for (String arg : files) {
             if (arg.startsWith("http:") || arg.startsWith("https")) {
-                URL u;
-
+                urls.add(arg);
+            } else {
+                localFiles.add(arg);
+            }
+        }
+        if (!urls.isEmpty() && !installUrls(urls, installDir, installUrl != null)) {
+            if (!doNotExit) {
+                System.exit(1);
+            }
+            return;
+        }
+        for (String arg : localFiles) {
+            File f = new File(arg);
+            String name = f.getName();
+            if (targetName != null && !targetName.isEmpty()) {
+                name = targetName;
+            }
+            File dest = new File(installDir, name);
+            if (f.exists()) {
                 try {
-                    u = new URL(arg);
+                    FileUtils.copyFile(f, dest);
+                    forgetInstalls(installDir, Collections.singleton(name));
+                    System.out.println("Successfully installed script at "+dest);
+                    if (installFile != null) {
+                        EventQueue.invokeLater(()->{
+                            JOptionPane.showMessageDialog((Component)null, "Script successfully installed at "+dest);
+                        });
+                    }
+                    if (!doNotExit) {
+                        System.exit(0);
+                    }
                 } catch (Exception ex) {
-                    System.err.println("Failed to parse URL "+arg+".");
+                    System.err.println("Failed to install script to "+dest);
                     ex.printStackTrace(System.err);
                     if (!doNotExit) {
                         System.exit(1);
                     }
-                    if (installUrl != null) {
+                    if (installFile != null) {
                         EventQueue.invokeLater(()->{
-                            JOptionPane.showMessageDialog((Component)null, "Failed to parse URL: "+ex.getMessage(), "Failed to parse URL", JOptionPane.ERROR_MESSAGE);
-
+                            JOptionPane.showMessageDialog((Component)null, "Failed to install script to "+dest, "Failed", JOptionPane.ERROR_MESSAGE);
                         });
                     }
-                    return;
                 }
-                String name = new File(u.getFile()).getName();
-                if (targetName != null && !targetName.isEmpty()) {
-                    name = targetName;
+            } else {
+                System.err.println("Install failed because "+f+" does not exist");
+                if (!doNotExit) {
+                    System.exit(1);
+                }
+                if (installFile != null) {
+                    EventQueue.invokeLater(()->{
+                        JOptionPane.showMessageDialog((Component)null, "Install failed because "+f+" does not exist", "Failed", JOptionPane.ERROR_MESSAGE);
+                    });
                 }
-                File dest = new File(installDir, name);
-                if (dest.exists()) {
-                    System.err.println("A script already exists at "+dest+".  Use -f option to force overwite");
-                    if (!doNotExit) {
-                        System.exit(1);
-                    }
-                    if (installUrl != null) {
-                        EventQueue.invokeLater(()->{
-                            JOptionPane.showMessageDialog((Component)null, "A script with this name is already installed.", "Import Failed", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
 
-                        });
-                    }
-                    return;
+    private File getInstallDir() {
+        File[] scriptPaths = getScriptPaths();
+        File installDir = scriptPaths.length > 0 ? scriptPaths[0] : null;
+        if (installDir == null) {
+            installDir = new File(System.getProperty("user.home") + File.separator + ".shellmarks" + File.separator + "scripts");
+            installDir.mkdirs();
+        }
+        return installDir;
+    }
+
+    /**
+     * Removes a script that is no longer installed from a URL from the install manifest, so that
+     * --update leaves it alone.
+     */
+    private void forgetInstalls(File installDir, Collection<String> names) {
+        try (InstallManifest manifest = InstallManifest.lock(installDir)) {
+            boolean changed = false;
+            for (String name : names) {
+                if (manifest.get(name) != null) {
+                    manifest.remove(name);
+                    changed = true;
                 }
-                if (hash != null && !hash.isEmpty()) {
-                    try {
-                        File temp = File.createTempFile(dest.getName(), ".tmp");
-                        temp.deleteOnExit();
-                        FileUtils.copyURLToFile(u, temp);
-                        String scriptContent = FileUtils.readFileToString(temp, "UTF-8");
-                        String scriptHash = sha1(scriptContent);
-                        if (!scriptHash.equals(hash)) {
-                            System.err.println("SHA-1 Hash for script at "+u+" did not match the provided hash.  Found "+scriptHash+" but expected "+hash);
-                            if (!doNotExit) {
-                                System.exit(1);
-                            }
-                        }
-                        FileUtils.moveFile(temp, dest);
-                        if (installUrl != null) {
-                            EventQueue.invokeLater(()->{
-                                JOptionPane.showMessageDialog((Component)null, "The script was installed sucessfully");
-                            });
-                        }
-                    } catch (IOException ex) {
-                        System.err.println("Failed to download script from "+u);
+            }
+            if (changed) {
+                manifest.save();
+            }
+        } catch (IOException ex) {
+            System.err.println("Failed to update the install manifest in "+installDir+". "+ex.getMessage());
+        }
+    }
 
-                        ex.printStackTrace(System.err);
-                        if (!doNotExit) {
-                            System.exit(1);
-                        }
+    /**
+     * Installs the scripts and sections in a zip or tar.gz bundle, streaming it from its URL or
+     * file.  The catalog index is updated once, after everything is installed.
+     * @param numFiles The number of files given to --install.
+     * @return True if the bundle was installed.
+     */
+    private boolean installBundle(String source, int numFiles, File installDir, boolean showDialogs) {
+        String error = null;
+        String expectedHash = hashes == null || hashes.isEmpty() ? null : hashes.get(0).toLowerCase(Locale.ROOT);
+        if (numFiles > 1) {
+            error = "A bundle has to be installed on its own";
+        } else if (targetName != null && !targetName.isEmpty()) {
+            error = "--as can't be used when installing a bundle";
+        } else if (hashes != null && hashes.size() > 1) {
+            error = "Found "+hashes.size()+" hashes for 1 bundle";
+        } else {
+            error = ScriptDownloader.checkHash(expectedHash);
+        }
+
+        List<File> installed = null;
+        if (error == null) {
+            ScriptStore store = new ScriptStore(ScriptStore.getDefaultDir());
+            boolean isUrl = source.startsWith("http:") || source.startsWith("https:");
+            MessageDigest digest = expectedHash == null ? null
+                    : ScriptDownloader.newDigest(expectedHash.length() == 64 ? "SHA-256" : "SHA-1");
+            try (InputStream in = isUrl
+                    ? new ScriptDownloader(store, forceOverwrite, false).openStream(new URI(source))
+                    : new FileInputStream(source)) {
+                InputStream bundleIn = digest == null ? in : new DigestInputStream(in, digest);
+                BundleInstaller.Bundle bundle = new BundleInstaller(store, installDir, forceOverwrite)
+                        .extract(new BufferedInputStream(bundleIn, 64 * 1024), source);
+                try {
+                    String actual = digest == null ? null : ScriptDownloader.toHex(digest.digest(), expectedHash.length());
+                    if (actual != null && !actual.equals(expectedHash)) {
+                        error = (expectedHash.length() == 64 ? "SHA-256" : "SHA-1")+" Hash for bundle at "+source
+                                +" did not match the provided hash.  Found "+actual+" but expected "+expectedHash;
+                    } else {
+                        installed = bundle.commit();
                     }
-                } else {
-                    try {
-
-                        FileUtils.copyURLToFile(u, dest);
-                        System.out.println("Script successfully installed at "+dest);
-                        if (installUrl != null) {
-                            EventQueue.invokeLater(()->{
-                                JOptionPane.showMessageDialog((Component)null, "Script successfully installed at "+dest);
-                            });
-                        }
+                } finally {
+                    bundle.discard();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                error = "Interrupted";
+            } catch (Exception ex) {
+                error = "Failed to install bundle "+source+". "+ex.getMessage();
+            }
+        }
+        if (installed != null) {
+            List<String> names = new ArrayList<String>();
+            for (File f : installed) {
+                names.add(f.getName());
+            }
+            // These no longer come from a single script URL
+            forgetInstalls(installDir, names);
+            try {
+                // Only the installed files are parsed, and the viewer isn't loaded
+                CatalogIndex index = CatalogIndex.load(CatalogIndex.getDefaultIndexFile());
+                index.update(installed);
+                index.save();
+            } catch (IOException ex) {
+                System.err.println("Failed to update the catalog index. "+ex.getMessage());
+            }
+        }
 
-                    } catch (Exception ex) {
-                        System.err.println("Failed to download "+u+" to "+dest);
-                        ex.printStackTrace(System.err);
-                        if (installUrl != null) {
-                            EventQueue.invokeLater(()->{
-                                JOptionPane.showMessageDialog((Component)null, "Failed to download "+u+" to "+dest, "Failed", JOptionPane.ERROR_MESSAGE);
-                            });
-                        }
-                    }
+        String message = error != null ? error : "Installed "+installed.size()+" files from "+source+" in "+installDir;
+        if (error != null) {
+            System.err.println(message);
+        } else {
+            System.out.println(message);
+        }
+        if (showDialogs) {
+            boolean succeeded = error == null;
+            EventQueue.invokeLater(()->{
+                if (succeeded) {
+                    JOptionPane.showMessageDialog((Component)null, message);
+                } else {
+                    JOptionPane.showMessageDialog((Component)null, message, "Import Failed", JOptionPane.ERROR_MESSAGE);
                 }
+            });
+        }
+        return error == null;
+    }
 
-            } else {
+    /**
+     * Downloads the given scripts into the install directory concurrently.
+     * @param showDialogs Whether to report the result in a dialog, for imports from the catalog.
+     * @return True if every script was installed.
+     */
+    private boolean installUrls(List<String> urls, File installDir, boolean showDialogs) {
+        String error = null;
+        if (urls.size() > 1 && targetName != null && !targetName.isEmpty()) {
+            error = "--as can only be used when installing a single script";
+        } else if (hashes != null && !hashes.isEmpty() && hashes.size() != urls.size()) {
+            error = "Found "+hashes.size()+" hashes for "+urls.size()+" URLs.  Give one --hash per URL.";
+        } else if (hashes != null) {
+            for (String h : hashes) {
+                error = error == null ? ScriptDownloader.checkHash(h) : error;
+            }
+        }
+        List<ScriptDownloader.Download> downloads = new ArrayList<ScriptDownloader.Download>();
+        for (int i=0; i<urls.size() && error == null; i++) {
+            URI u;
+            try {
+                u = new URI(urls.get(i));
+            } catch (Exception ex) {
+                error = "Failed to parse URL "+urls.get(i)+". "+ex.getMessage();
+                break;
+            }
+            String name = new File(u.getPath()).getName();
+            if (targetName != null && !targetName.isEmpty()) {
+                name = targetName;
+            }
+            String expectedHash = hashes == null || hashes.isEmpty() ? null : hashes.get(i);
+            downloads.add(new ScriptDownloader.Download(u, new File(installDir, name), expectedHash));
+        }
+        if (error != null) {
+            System.err.println(error);
+            String message = error;
+            if (showDialogs) {
+                EventQueue.invokeLater(()->{
+                    JOptionPane.showMessageDialog((Component)null, message, "Import Failed", JOptionPane.ERROR_MESSAGE);
+                });
+            }
+            return false;
+        }
 
-                File f = new File(arg);
-                String name = f.getName();
-                if (targetName != null && !targetName.isEmpty()) {
-                    name = targetName;
+        try {
+            new ScriptDownloader(new ScriptStore(ScriptStore.getDefaultDir()), forceOverwrite, offline).downloadAll(downloads);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try (InstallManifest manifest = InstallManifest.lock(installDir)) {
+            for (ScriptDownloader.Download download : downloads) {
+                if (download.isSuccessful()) {
+                    InstallManifest.Entry entry = new InstallManifest.Entry(download.dest.getName());
+                    entry.url = download.uri.toString();
+                    entry.etag = download.etag;
+                    entry.lastModified = download.lastModified;
+                    entry.sha256 = download.sha256;
+                    entry.size = download.bytes;
+                    entry.pinned = download.expectedHash != null;
+                    manifest.put(entry);
                 }
-                File dest = new File(installDir, name);
-                if (f.exists()) {
-                    try {
-                        FileUtils.copyFile(f, dest);
-                        System.out.println("Successfully installed script at "+dest);
-                        if (installFile != null) {
-                            EventQueue.invokeLater(()->{
-                                JOptionPane.showMessageDialog((Component)null, "Script successfully installed at "+dest);
-                            });
-                        }
-                        if (!doNotExit) {
-                            System.exit(0);
-                        }
-                    } catch (Exception ex) {
-                        System.err.println("Failed to install script to "+dest);
-                        ex.printStackTrace(System.err);
-                        if (!doNotExit) {
-                            System.exit(1);
-                        }
-                        if (installFile != null) {
-                            EventQueue.invokeLater(()->{
-                                JOptionPane.showMessageDialog((Component)null, "Failed to install script to "+dest, "Failed", JOptionPane.ERROR_MESSAGE);
-                            });
-                        }
+            }
+            manifest.save();
+        } catch (Exception ex) {
+            System.err.println("Failed to record the installed scripts for --update. "+ex.getMessage());
+        }
+        boolean succeeded = true;
+        for (ScriptDownloader.Download download : downloads) {
+            if (download.isSuccessful()) {
+                System.out.println("Script successfully installed at "+download.dest+(download.fromStore ? " from the local script store" : ""));
+            } else {
+                System.err.println(download.error);
+                succeeded = false;
+            }
+            if (showDialogs) {
+                EventQueue.invokeLater(()->{
+                    if (download.isSuccessful()) {
+                        JOptionPane.showMessageDialog((Component)null, "Script successfully installed at "+download.dest);
+                    } else {
+                        JOptionPane.showMessageDialog((Component)null, download.error, "Import Failed", JOptionPane.ERROR_MESSAGE);
                     }
+                });
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * Checks the scripts in the install manifest for changes with conditional GETs, and replaces
+     * the ones that changed.  Scripts that were edited since they were installed, or that were
+     * installed with --hash, are left alone unless -f was given.
+     */
+    private void runUpdate() {
+        File installDir = getInstallDir();
+        int failed;
+        // Locked until the results are saved, so that an --install in the meantime waits rather
+        // than having its entry overwritten
+        try (InstallManifest manifest = InstallManifest.lock(installDir)) {
+            failed = update(installDir, manifest);
+        } catch (IOException ex) {
+            System.err.println("Failed to update the install manifest in "+installDir+". "+ex.getMessage());
+            failed = 1;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failed = 1;
+        }
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Updates the scripts in a locked install manifest, and saves it.
+     * @return The number of scripts that failed to update.
+     */
+    private int update(File installDir, InstallManifest manifest) throws InterruptedException {
+        Set<String> names = files == null || files.length == 0 ? null : new LinkedHashSet<String>(Arrays.asList(files));
+        int skipped = 0;
+        int failed = 0;
+        List<ScriptDownloader.Download> downloads = new ArrayList<ScriptDownloader.Download>();
+        Map<ScriptDownloader.Download,InstallManifest.Entry> downloadEntries = new HashMap<ScriptDownloader.Download,InstallManifest.Entry>();
+        for (InstallManifest.Entry entry : manifest.getEntries()) {
+            if (names != null && !names.remove(entry.name)) {
+                continue;
+            }
+            File dest = new File(installDir, entry.name);
+            if (!dest.exists()) {
+                System.out.println("Forgetting "+entry.name+" because it is no longer installed");
+                manifest.remove(entry.name);
+                continue;
+            }
+            String localHash;
+            try {
+                localHash = CatalogIndex.hash(dest);
+            } catch (IOException ex) {
+                System.err.println("Failed to read "+dest+". "+ex.getMessage());
+                failed++;
+                continue;
+            }
+            boolean modified = !localHash.equals(entry.sha256);
+            if (!forceOverwrite && entry.pinned) {
+                System.out.println("Skipping "+entry.name+" because it was installed with --hash.  Use -f to update it anyway.");
+                skipped++;
+                continue;
+            }
+            if (!forceOverwrite && modified) {
+                System.out.println("Skipping "+entry.name+" because it was changed since it was installed.  Use -f to replace it.");
+                skipped++;
+                continue;
+            }
+            ScriptDownloader.Download download;
+            try {
+                download = new ScriptDownloader.Download(new URI(entry.url), dest, null);
+            } catch (Exception ex) {
+                System.err.println("Failed to parse URL "+entry.url+" for "+entry.name+". "+ex.getMessage());
+                failed++;
+                continue;
+            }
+            if (!modified) {
+                download.ifNoneMatch = entry.etag;
+                download.ifModifiedSince = entry.lastModified;
+            }
+            download.installedHash = localHash;
+            downloads.add(download);
+            downloadEntries.put(download, entry);
+        }
+        if (names != null) {
+            for (String name : names) {
+                System.err.println(name+" was not installed from a URL in "+installDir);
+                failed++;
+            }
+        }
+
+        new ScriptDownloader(new ScriptStore(ScriptStore.getDefaultDir()), true, false).downloadAll(downloads);
+        int updated = 0;
+        int unchanged = 0;
+        long downloaded = 0;
+        long saved = 0;
+        for (ScriptDownloader.Download download : downloads) {
+            InstallManifest.Entry entry = downloadEntries.get(download);
+            if (!download.isSuccessful()) {
+                System.err.println("Failed to update "+entry.name+". "+download.error);
+                failed++;
+            } else if (download.notModified) {
+                unchanged++;
+                saved += entry.size;
+            } else {
+                downloaded += download.bytes;
+                if (download.sha256.equals(download.installedHash)) {
+                    unchanged++;
                 } else {
-                    System.err.println("Install failed because "+f+" does not exist");
-                    if (!doNotExit) {
-                        System.exit(1);
-                    }
-                    if (installFile != null) {
-                        EventQueue.invokeLater(()->{
-                            JOptionPane.showMessageDialog((Component)null, "Install failed because "+f+" does not exist", "Failed", JOptionPane.ERROR_MESSAGE);
-                        });
-                    }
+                    System.out.println("Updated "+download.dest);
+                    updated++;
                 }
+                entry.etag = download.etag;
+                entry.lastModified = download.lastModified;
+                entry.sha256 = download.sha256;
+                entry.size = download.bytes;
             }
         }
+        try {
+            manifest.save();
+        } catch (IOException ex) {
+            System.err.println("Failed to save the install manifest in "+installDir+". "+ex.getMessage());
+            failed++;
+        }
+        System.out.println("Checked "+(updated+unchanged+skipped+failed)+" scripts: "+updated+" updated, "+unchanged+" unchanged, "
+                +skipped+" skipped, "+failed+" failed.  Downloaded "+downloaded+" bytes, and saved "+saved+" bytes with conditional requests.");
+        return failed;
     }
 
     private void runEdit() {
@@ -335,166 +598,391 @@ public class Main implements Runnable {
     }
 
 
-    private void startConsoleListener() {
-        Thread t = new Thread(()->{
-            Scanner scanner = new Scanner(System.in);
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                if (line.trim().isEmpty()) continue;
-                try {
-                    Process p = Runtime.getRuntime().exec(line);
-                    InputStream inputStream = p.getInputStream();
-                    Thread inputThread = new Thread(()->{
-                        Scanner inputScanner = new Scanner(inputStream);
-                        while (inputScanner.hasNextLine()) {
-                            System.out.println(inputScanner.nextLine());
-                        }
-
-                    });
-                    inputThread.start();
-
-                } catch (Exception ex) {
-                    ex.printStackTrace(System.err);
-                }
-
-            }
-        });
-        t.start();
-    }
-
-    private void runDocs() {
-        doNotExit = true;
-        System.out.println("Generating Documentation.  Please wait...");
-        if (useJavaFX) {
-            try {
-                startConsoleListener();
-                showDocs();
-
-            } catch (Exception ex) {
-                System.err.println("Failed to show docs");
-                ex.printStackTrace(System.err);
-            }
-        } else {
-            EventQueue.invokeLater(() -> {
-                try {
-                    showDocs();
-
-                } catch (Exception ex) {
-                    System.err.println("Failed to show docs");
-                    ex.printStackTrace(System.err);
-                }
-            });
-        }
-
-    }
-
     @Override
     public void run() {
-        if (edit) {
+        if (timings) {
+            PhaseTimer.enable(timingsFormat, getMode());
+        }
+        File metricsFile = getMetricsFile();
+        if (metricsFile != null) {
+            Metrics.get().flushOnExit(metricsFile);
+        }
+        if (daemon) {
+            runDaemon();
+        } else if (edit) {
             runEdit();
         } if (installScript) {
             runInstall();
         } else if (listScripts) {
             runList();
+        } else if (stats) {
+            runStats();
+        } else if (compactJournalDays != null) {
+            runCompactJournal();
+        } else if (update) {
+            runUpdate();
+        } else if (gcStore) {
+            runGcStore();
         } else {
             if (files == null || files.length == 0) {
-                runDocs();
+                AsciidocEngine.warmUp();
+                new CatalogViewer(this).runDocs();
                 return;
             }
-            for (String arg : files) {
-                File f = new File(arg);
-                if (!f.exists()) {
-                    f = findScript(arg);
-                }
-                if (f.exists()) {
-                    try {
-                        Main main = new Main();
-                        main.run(f);
-                    } catch (Exception ex) {
-                        System.err.println("Failed to run "+f);
-                        ex.printStackTrace();
-                        System.exit(1);
-                    }
-                } else {
-                    System.err.println("Cannot find file ["+f+"]");
-                    System.exit(1);
-                }
-
+            int exitCode = runScripts(files);
+            if (exitCode != 0) {
+                System.exit(exitCode);
             }
         }
     }
 
-    private class Form {
-        List<Field> fields = new ArrayList<>();
-        String title;
-        String description;
-        String docString;
+    private void runStats() {
+        try {
+            RunStats.load(new RunJournal(RunJournal.getDefaultDir()), files == null || files.length == 0 ? null : files[0])
+                    .print(System.out);
+        } catch (IOException ex) {
+            System.err.println("Failed to read the run history. "+ex.getMessage());
+            ex.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
 
-        // A conceptual path to where this script should be bookmarked.
-        // Like a file path, but used for documentation.
-        String categoryPath;
-        Set<String> tags = new HashSet<String>();
+    private void runCompactJournal() {
+        long minStartTime = compactJournalDays <= 0 ? Long.MIN_VALUE : System.currentTimeMillis() - compactJournalDays * 86400000L;
+        try {
+            long dropped = new RunJournal(RunJournal.getDefaultDir()).compact(minStartTime);
+            System.out.println("Compacted the run history.  Dropped "+dropped+" runs.");
+        } catch (IOException ex) {
+            System.err.println("Failed to compact the run history. "+ex.getMessage());
+            ex.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
 
-        void addField(Field field) {
-            if (fields == null) fields = new ArrayList<>();
-            fields.add(field);
+    private void runGcStore() {
+        try {
+            long freed = new ScriptStore(ScriptStore.getDefaultDir()).gc(getScriptPaths());
+            System.out.println("Cleaned up the script store.  Freed "+freed+" bytes.");
+        } catch (IOException ex) {
+            System.err.println("Failed to clean up the script store. "+ex.getMessage());
+            ex.printStackTrace(System.err);
+            System.exit(1);
         }
+    }
 
-        boolean hasFields() {
-            return fields != null && !fields.isEmpty();
+    private String getMode() {
+        if (daemon) return "daemon";
+        if (edit) return "edit";
+        if (installScript) return "install";
+        if (listScripts) return "list";
+        if (stats) return "stats";
+        if (compactJournalDays != null) return "compact-journal";
+        if (update) return "update";
+        if (gcStore) return "gc-store";
+        if (files == null || files.length == 0) return "catalog";
+        return "script";
+    }
+
+    private File getMetricsFile() {
+        if (metricsFile != null) {
+            return metricsFile;
         }
+        String path = System.getenv("SHELLMARKS_METRICS_FILE");
+        return path == null || path.isEmpty() ? null : new File(path);
+    }
 
-        public void setTags(String value) {
-            String[] parts = value.split(" ");
-            tags.clear();
-            for (String part : parts) {
-                if (part.isEmpty()) continue;
-                if (part.charAt(0) == '#') {
-                    tags.add(part.substring(1).toLowerCase());
-                } else {
-                    tags.add(part.toLowerCase());
-                }
+    private void runDaemon() {
+        doNotExit = true;
+        try {
+            if (metricsPort >= 0) {
+                Metrics.get().serve(metricsPort);
+                System.out.println("Serving metrics at http://127.0.0.1:"+metricsPort+"/metrics");
             }
+            new Daemon(DaemonProtocol.getSocketFile(), getMetricsFile()).serve();
+        } catch (IOException ex) {
+            System.err.println("Failed to start shellmarks daemon. "+ex.getMessage());
+            ex.printStackTrace(System.err);
+            System.exit(1);
         }
+    }
 
+    /**
+     * Creates a session that runs scripts with the given environment instead of this process'
+     * environment, and resolves script names against its SHELLMARKS_PATH.
+     */
+    static Main withEnvironment(Map<String,String> env) {
+        Main main = new Main();
+        main.baseEnvironment = env;
+        return main;
+    }
 
+    /**
+     * Runs the given scripts on behalf of a daemon client.
+     * @return The exit code for the client.
+     */
+    static int runForClient(String[] args, Map<String,String> env, File workingDirectory, OutputStream stdout, OutputStream stderr) {
+        Main main = withEnvironment(env);
+        main.workingDirectory = workingDirectory;
+        main.stdout = stdout;
+        main.stderr = stderr;
+        // Pick up scripts that were added or removed since the last client
+        main.getScriptResolver().invalidate();
+        return main.runScripts(args);
     }
 
-    private class Field {
-        boolean required;
-        String varName;
-        String label, help;
-        FieldType type;
-        String defaultValue;
-        int order;
-        boolean disposeOnSubmit;
+    /**
+     * Runs the given scripts, along with the scripts they depend on through __depends__.
+     * Without --parallel the scripts run one at a time in dependency order, stopping at the
+     * first one that fails.
+     * @return 0 if all of the scripts ran successfully, and 1 otherwise.
+     */
+    private int runScripts(String[] args) {
+        PrintStream err = stderr == null ? System.err : new PrintStream(stderr, true);
+        List<File> scripts = new ArrayList<File>();
+        for (String arg : args) {
+            File f = resolveScript(arg);
+            if (f == null) {
+                err.println("Cannot find file ["+arg+"]");
+                return 1;
+            }
+            scripts.add(f);
+        }
+        ScriptGraph graph;
+        try {
+            graph = ScriptGraph.resolve(this, scripts);
+        } catch (IOException ex) {
+            err.println(ex.getMessage());
+            return 1;
+        }
+        if (parallel != null) {
+            return new ParallelRunner(this, parallel, !keepGoing).run(graph);
+        }
+        for (ScriptGraph.Node node : graph.getNodes()) {
+            try {
+                newSession(stdout, stderr).run(node.script);
+            } catch (Exception ex) {
+                err.println("Failed to run "+node.script);
+                ex.printStackTrace(err);
+                return 1;
+            }
+        }
+        return 0;
     }
 
-    private enum FieldType {
-        File,
-        Directory,
-        Text,
-        Number,
-        Date,
-        CheckBox,
-        Button
+    /**
+     * Finds a script given as a command line argument, either as a path relative to the working
+     * directory or by name on the script path.
+     * @return The script, or null if it doesn't exist.
+     */
+    private File resolveScript(String arg) {
+        File f = new File(arg);
+        if (!f.isAbsolute() && workingDirectory != null) {
+            f = new File(workingDirectory, arg);
+        }
+        if (!f.exists()) {
+            try (PhaseTimer.Phase phase = PhaseTimer.start("find script")) {
+                f = findScript(arg);
+            }
+        }
+        return f != null && f.exists() ? f : null;
     }
 
-    private boolean parseUI2(String scriptString) {
-        int pos = scriptString.indexOf("<shellmarks>");
-        String tomlString;
-        if (pos < 0) {
-            StringBuilder tomlStringBuilder = new StringBuilder();
+    /**
+     * Creates a session for running a single script with this session's environment and working
+     * directory.
+     * @param stdout Where the script's output goes, or null for this process' stdout.
+     * @param stderr Where the script's errors go.  Only used if stdout isn't null.
+     */
+    Main newSession(OutputStream stdout, OutputStream stderr) {
+        Main main = new Main();
+        main.baseEnvironment = baseEnvironment;
+        main.workingDirectory = workingDirectory;
+        main.stdout = stdout;
+        main.stderr = stderr;
+        main.noLog = noLog;
+        main.log = log;
+        return main;
+    }
+
+    OutputStream getStdout() {
+        return stdout;
+    }
+
+    OutputStream getStderr() {
+        return stderr;
+    }
+
+    /**
+     * The exit code of the last script that this session ran.
+     */
+    int getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * Stops the script that this session is running, or stops it as soon as it starts.
+     */
+    void cancel() {
+        cancelled = true;
+        Process p = process;
+        if (p != null) {
+            p.destroy();
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * The form described by a script's shellmarks markup.  Forms are immutable so that they can
+     * be parsed concurrently and shared between threads.
+     */
+    static class Form {
+        final List<Field> fields;
+        final String title;
+        final String description;
+        final String docString;
+
+        // A conceptual path to where this script should be bookmarked.
+        // Like a file path, but used for documentation.
+        final String categoryPath;
+        final Set<String> tags;
+
+        // Names of the scripts that must run before this one
+        final List<String> depends;
+
+        Form(String title, String description, String docString, String categoryPath, Set<String> tags, List<Field> fields) {
+            this(title, description, docString, categoryPath, tags, fields, null);
+        }
+
+        Form(String title, String description, String docString, String categoryPath, Set<String> tags, List<Field> fields, List<String> depends) {
+            this.title = title;
+            this.description = description;
+            this.docString = docString;
+            this.categoryPath = categoryPath;
+            this.tags = tags == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(new HashSet<String>(tags));
+            this.fields = fields == null ? Collections.<Field>emptyList() : Collections.unmodifiableList(new ArrayList<Field>(fields));
+            this.depends = depends == null ? Collections.<String>emptyList() : Collections.unmodifiableList(new ArrayList<String>(depends));
+        }
+
+        boolean hasFields() {
+            return fields != null && !fields.isEmpty();
+        }
+
+        /**
+         * Parses __depends__, which is either an array of script names or a string of names
+         * separated by spaces or commas.
+         */
+        static List<String> parseDepends(Object value) {
+            List<String> out = new ArrayList<String>();
+            if (value instanceof List) {
+                for (Object item : (List<?>)value) {
+                    if (item != null && !item.toString().trim().isEmpty()) {
+                        out.add(item.toString().trim());
+                    }
+                }
+            } else if (value != null) {
+                for (String part : value.toString().split("[\\s,]+")) {
+                    if (!part.isEmpty()) {
+                        out.add(part);
+                    }
+                }
+            }
+            return out;
+        }
+
+        static Set<String> parseTags(String value) {
+            String[] parts = value.split(" ");
+            Set<String> tags = new HashSet<String>();
+            for (String part : parts) {
+                if (part.isEmpty()) continue;
+                if (part.charAt(0) == '#') {
+                    tags.add(part.substring(1).toLowerCase());
+                } else {
+                    tags.add(part.toLowerCase());
+                }
+            }
+            return tags;
+        }
+
+
+    }
+
+    static class Field {
+        final boolean required;
+        final String varName;
+        final String label, help;
+        final FieldType type;
+        final String defaultValue;
+        final int order;
+        final boolean disposeOnSubmit;
+
+        Field(String varName, String label, String help, FieldType type, String defaultValue, boolean required, int order, boolean disposeOnSubmit) {
+            this.varName = varName;
+            this.label = label;
+            this.help = help;
+            this.type = type;
+            this.defaultValue = defaultValue;
+            this.required = required;
+            this.order = order;
+            this.disposeOnSubmit = disposeOnSubmit;
+        }
+
+        Field withRequired(boolean required) {
+            return new Field(varName, label, help, type, defaultValue, required, order, disposeOnSubmit);
+        }
+
+        Field withType(FieldType type) {
+            return new Field(varName, label, help, type, defaultValue, required, order, disposeOnSubmit);
+        }
+
+        Field withLabel(String label) {
+            return new Field(varName, label, help, type, defaultValue, required, order, disposeOnSubmit);
+        }
+
+        Field withDefaultValue(String defaultValue) {
+            return new Field(varName, label, help, type, defaultValue, required, order, disposeOnSubmit);
+        }
+    }
+
+    enum FieldType {
+        File,
+        Directory,
+        Text,
+        Number,
+        Date,
+        CheckBox,
+        Button
+    }
+
+    /**
+     * Parses the TOML form markup from the given script.  Returns null if the script doesn't
+     * contain any TOML markup.
+     */
+    static Form parseUI2(String scriptString) {
+        long started = System.nanoTime();
+        JfrEvents.ParseMarkup event = new JfrEvents.ParseMarkup();
+        event.begin();
+        int pos = scriptString.indexOf("<shellmarks>");
+        String tomlString;
+        List<String> fieldOrders = new ArrayList<String>();
+        if (pos < 0) {
+            StringBuilder tomlStringBuilder = new StringBuilder();
             boolean inHeadMatter = true;
-            Scanner scanner = new Scanner(scriptString);
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                if (line.matches("^--+$")) {
+            String sep = System.lineSeparator();
+            LineTokenizer lines = new LineTokenizer(scriptString);
+            while (lines.next()) {
+                if (lines.isDashLine()) {
                     inHeadMatter = false;
                     continue;
                 }
                 if (!inHeadMatter) {
-                    tomlStringBuilder.append(line).append(System.lineSeparator());
+                    tomlStringBuilder.append(scriptString, lines.start(), lines.end()).append(sep);
+                    String tableName = lines.tableName();
+                    if (tableName != null) {
+                        fieldOrders.add(tableName);
+                    }
                 }
             }
             tomlString = tomlStringBuilder.toString();
@@ -506,98 +994,144 @@ public class Main implements Runnable {
             }
 
             tomlString = scriptString.substring(pos, lpos);
+            findFieldOrders(tomlString, fieldOrders);
+        }
+
+        Form form = tomlString.trim().isEmpty() ? null : parseToml(tomlString, fieldOrders);
+        Metrics.get().recordParse(System.nanoTime() - started);
+        if (event.shouldCommit()) {
+            event.bytes = scriptString.length();
+            event.fieldCount = form == null ? 0 : form.fields.size();
+            event.commit();
         }
+        return form;
+    }
 
-        if (tomlString.trim().isEmpty()) return false;
+    /**
+     * Parses a form from TOML markup that has already been extracted from a script.
+     */
+    static Form parseToml(String tomlString) {
+        long started = System.nanoTime();
+        JfrEvents.ParseMarkup event = new JfrEvents.ParseMarkup();
+        event.begin();
         List<String> fieldOrders = new ArrayList<String>();
-        Scanner scanner = new Scanner(tomlString);
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine();
-            if (line.trim().matches("^\\[[A-Za-z].*\\]$")) {
-                fieldOrders.add(line.substring(line.indexOf("[")+1, line.lastIndexOf("]")));
+        findFieldOrders(tomlString, fieldOrders);
+        Form form = parseToml(tomlString, fieldOrders);
+        Metrics.get().recordParse(System.nanoTime() - started);
+        if (event.shouldCommit()) {
+            event.bytes = tomlString.length();
+            event.fieldCount = form.fields.size();
+            event.commit();
+        }
+        return form;
+    }
+
+    /**
+     * Collects the names of the TOML tables in the order that they appear, since the parsed
+     * Toml object doesn't preserve it.
+     */
+    private static void findFieldOrders(String tomlString, List<String> fieldOrders) {
+        LineTokenizer lines = new LineTokenizer(tomlString);
+        while (lines.next()) {
+            String tableName = lines.tableName();
+            if (tableName != null) {
+                fieldOrders.add(tableName);
             }
         }
+    }
 
-
+    private static Form parseToml(String tomlString, List<String> fieldOrders) {
         Toml toml = new Toml().read(tomlString);
-        form = new Form();
+        String title = null;
+        String description = null;
+        String docString = null;
+        String categoryPath = null;
+        Set<String> tags = null;
+        List<String> depends = null;
+        List<Field> fields = new ArrayList<Field>();
 
 
         for (Map.Entry<String,Object> entry : toml.entrySet()) {
             if (entry.getKey().equalsIgnoreCase("__title__")) {
-                form.title = (String)entry.getValue();
+                title = (String)entry.getValue();
             } else if (entry.getKey().equalsIgnoreCase("__description__")) {
-                form.description = (String) entry.getValue();
+                description = (String) entry.getValue();
             } else if (entry.getKey().equalsIgnoreCase("__category__") ) {
-                form.categoryPath = (String) entry.getValue();
+                categoryPath = (String) entry.getValue();
             } else if (entry.getKey().equalsIgnoreCase("__tags__")) {
-                form.setTags((String)entry.getValue());
+                tags = Form.parseTags((String)entry.getValue());
+            } else if (entry.getKey().equalsIgnoreCase("__depends__")) {
+                depends = Form.parseDepends(entry.getValue());
             } else if (entry.getKey().equals("__doc__")) {
-                form.docString = (String) entry.getValue();
+                docString = (String) entry.getValue();
             } else if (entry.getValue() instanceof Toml) {
                 Toml value = (Toml)entry.getValue();
-                Field field = new Field();
-                field.varName = entry.getKey();
-                field.varName = entry.getKey();
-                field.label = value.getString("label", field.varName);
-                field.help = value.getString("help", null);
-                field.order = fieldOrders.indexOf(field.varName);
-                field.disposeOnSubmit = value.getBoolean("disposeOnSubmit", true);
+                String varName = entry.getKey();
+                FieldType type;
                 String typestr = value.getString("type", "Text").toLowerCase();
                 switch (typestr) {
                     case "file":
-                        field.type = FieldType.File; break;
+                        type = FieldType.File; break;
                     case "directory":
-                        field.type = FieldType.Directory; break;
+                        type = FieldType.Directory; break;
                     case "text":
-                        field.type = FieldType.Text; break;
+                        type = FieldType.Text; break;
                     case "number":
-                        field.type = FieldType.Number; break;
+                        type = FieldType.Number; break;
                     case "date":
-                        field.type = FieldType.Date; break;
+                        type = FieldType.Date; break;
                     case "checkbox":
-                        field.type = FieldType.CheckBox; break;
+                        type = FieldType.CheckBox; break;
                     case "button":
-                        field.type = FieldType.Button; break;
+                        type = FieldType.Button; break;
                     default:
-                        field.type = FieldType.Text; break;
+                        type = FieldType.Text; break;
                 }
-                field.required = value.getBoolean("required", false);
-                field.defaultValue = value.getString("default", null);
-                form.addField(field);
+                fields.add(new Field(
+                        varName,
+                        value.getString("label", varName),
+                        value.getString("help", null),
+                        type,
+                        value.getString("default", null),
+                        value.getBoolean("required", false),
+                        fieldOrders.indexOf(varName),
+                        value.getBoolean("disposeOnSubmit", true)
+                ));
 
             }
 
         }
-        if (form.fields != null) {
-            Collections.sort(form.fields, (f1, f2) -> {
-                return f1.order - f2.order;
-            });
-        }
+        Collections.sort(fields, (f1, f2) -> {
+            return f1.order - f2.order;
+        });
 
-        return true;
+        return new Form(title, description, docString, categoryPath, tags, fields, depends);
     }
 
 
-    private void parseUI(String scriptString) {
-        if (parseUI2(scriptString)) {
-            return;
+    static Form parseUI(String scriptString) {
+        Form tomlForm = parseUI2(scriptString);
+        if (tomlForm != null) {
+            return tomlForm;
         }
         //System.out.println("Parsing UI for "+scriptString);
-        Scanner scanner = new Scanner(scriptString);
+        LineTokenizer lines = new LineTokenizer(scriptString);
         int mode = 0;
         Field currField = null;
-        form = new Form();
+        List<Field> fields = new ArrayList<Field>();
         int lineNumber=0;
-        while (scanner.hasNextLine()) {
+        while (lines.next()) {
             lineNumber++;
-            String line = scanner.nextLine();
+            if (!lines.startsWith("#")) {
+                // Only comment lines carry legacy field markup
+                continue;
+            }
+            String line = lines.line();
             switch (mode) {
                 case 0: {
                     // Default mode
                     if (line.startsWith("#:")) {
                         mode = 1;
-                        Field field = new Field();
                         String varName = line.substring(2).trim();
                         if (varName.indexOf(" ") > 0) {
                             varName = varName.substring(0, varName.indexOf(" "));
@@ -605,15 +1139,12 @@ public class Main implements Runnable {
                         if (varName.indexOf("{") > 0) {
                             varName = varName.substring(0, varName.indexOf("{")).trim();
                         }
-                        field.varName = varName;
-                        field.label = varName;
-                        field.type = FieldType.Text;
-                        field.required = false;
+                        Field field = new Field(varName, varName, null, FieldType.Text, null, false, 0, false);
                         if (line.indexOf("{") > 0 && line.indexOf("}") < line.indexOf("{")) {
                             currField = field;
                         } else {
                             mode = 0;
-                            form.addField(field);
+                            fields.add(field);
                         }
 
                     }
@@ -623,15 +1154,15 @@ public class Main implements Runnable {
                     if (line.startsWith("#")) {
                         String param = line.substring(1).trim();
                         if (param.equalsIgnoreCase("required")) {
-                            currField.required = true;
+                            currField = currField.withRequired(true);
                         } else if (param.equalsIgnoreCase("file")) {
-                            currField.type = FieldType.File;
+                            currField = currField.withType(FieldType.File);
                         } else if (param.equalsIgnoreCase("text")) {
-                            currField.type = FieldType.Text;
+                            currField = currField.withType(FieldType.Text);
                         } else if (param.equalsIgnoreCase("number")) {
-                            currField.type = FieldType.Number;
+                            currField = currField.withType(FieldType.Number);
                         } else if (param.equalsIgnoreCase("date")) {
-                            currField.type = FieldType.Date;
+                            currField = currField.withType(FieldType.Date);
                         } else if (param.indexOf(":") > 0) {
                             String key = param.substring(0, param.indexOf(":")).trim();
                             String value = param.substring(param.indexOf(":")+1).trim();
@@ -639,16 +1170,16 @@ public class Main implements Runnable {
                                 case "type" : {
                                     switch (value) {
                                         case "file":
-                                            currField.type = FieldType.File;
+                                            currField = currField.withType(FieldType.File);
                                             break;
                                         case "text":
-                                            currField.type = FieldType.Text;
+                                            currField = currField.withType(FieldType.Text);
                                             break;
                                         case "number":
-                                            currField.type = FieldType.Number;
+                                            currField = currField.withType(FieldType.Number);
                                             break;
                                         case "date":
-                                            currField.type = FieldType.Date;
+                                            currField = currField.withType(FieldType.Date);
                                             break;
                                         default:
                                             throw new RuntimeException("Unknown field type "+value+" on line "+lineNumber+" : "+line);
@@ -657,13 +1188,13 @@ public class Main implements Runnable {
                                 }
 
                                 case "label":
-                                    currField.label = value;
+                                    currField = currField.withLabel(value);
                                     break;
                                 case "default":
-                                    currField.defaultValue = value;
+                                    currField = currField.withDefaultValue(value);
                                     break;
                                 case "required":
-                                    currField.required = Boolean.parseBoolean(value);
+                                    currField = currField.withRequired(Boolean.parseBoolean(value));
                                     break;
                                 default:
                                     throw new RuntimeException("Unexpected property key for field "+currField.varName+" on line "+lineNumber+": "+line);
@@ -672,7 +1203,7 @@ public class Main implements Runnable {
 
 
                         } else if (param.indexOf("}") >= 0) {
-                            form.addField(currField);
+                            fields.add(currField);
                             currField = null;
                             mode = 0;
                         }
@@ -680,1596 +1211,223 @@ public class Main implements Runnable {
             }
 
         }
+        return new Form(null, null, null, null, null, fields);
     }
 
-    private JPanel buildUI() {
-        return buildUI(form);
-    }
-
-    private JPanel buildUI(Form form) {
-        JPanel out = new JPanel();
-        out.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
-        out.setLayout(new BoxLayout(out, BoxLayout.Y_AXIS));
-
-        if (form.description != null) {
-            boolean isHtml = false;
-
-            if (form.description.trim().startsWith("<html>")) {
-                isHtml = true;
-            } else if (form.description.trim().startsWith("<asciidoc>") || form.description.trim().contains("\n")) {
-                isHtml = true;
-                int startPos = form.description.indexOf(">")+1;
-                int endPos;
-                if (startPos < 0) {
-                    startPos = 0;
-                    endPos = form.description.length();
-                } else {
-                    endPos = form.description.indexOf("</asciidoc>", startPos);
-                    if (endPos < 0) {
-                        endPos = form.description.length();
-                    }
-                }
-                String asciidocContent = form.description.substring(startPos, endPos);
-
-                Asciidoctor asciidoctor = Asciidoctor.Factory.create();
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                asciidoctor.convert(asciidocContent, OptionsBuilder.options()
-                        .safe(SafeMode.UNSAFE)
-                        .docType("html")
-                        .toStream(baos)
-                        .build());
-                try {
-                    form.description = baos.toString("UTF-8");
-                } catch (Exception ex) {
-                    System.err.println("Failed to convert Asciidoc. "+ex.getMessage());
-                    ex.printStackTrace(System.err);
-                    System.exit(1);
-                }
-            }
-            if (isHtml) {
-                JEditorPane editorPane = new JEditorPane();
-                editorPane.setOpaque(false);
-                editorPane.setBorder(BorderFactory.createEmptyBorder(0, 0, 15, 0));
-                editorPane.setEditable(false);
-                editorPane.setContentType("text/html");
-                editorPane.setText(form.description);
-                editorPane.addHyperlinkListener(evt -> {
-                    if (evt.getEventType() == HyperlinkEvent.EventType.ACTIVATED) {
-
-                        if (Desktop.isDesktopSupported()) {
-                            try {
-                                Desktop.getDesktop().browse(evt.getURL().toURI());
-                            } catch (Exception ex) {
-                            }
-                        }
-                    }
-                });
-
-                out.add(editorPane);
-            } else {
-                JTextArea textArea = new JTextArea();
-                textArea.setEditable(false);
-                textArea.setText(form.description);
-                textArea.setOpaque(false);
-                textArea.setBorder(BorderFactory.createEmptyBorder(0, 0, 15, 0));
-
-                out.add(textArea);
-            }
-
-        }
-
-
-        List<JButton> buttons = new ArrayList<JButton>();
-        for (Field field : form.fields) {
-            if (field.type != FieldType.Button) {
-                out.add(buildUI(field));
-            } else {
-                buttons.add((JButton)buildUI(field));
-            }
-        }
-
-        if (buttons.isEmpty()) {
-            JButton submit = new JButton("Run");
-            submit.addActionListener(evt->{
-                disposeOnSubmit = true;
-            });
-            buttons.add(submit);
-        }
-        for (JButton submit : buttons) {
-            submit.addActionListener(evt -> {
-                for (JButton b : buttons) {
-                    // If there are multiple button fields, then we need to remove environment variables
-                    // from other buttons that may have been run previously
-                    if (b != submit) {
-                        Field buttonField = getFieldForComponent(b);
-                        if (buttonField != null) {
-                            environment.remove(buttonField.varName);
-                        }
-                    }
-                }
-                EventQueue.invokeLater(()->{
-                    try {
-                        validateForm(out);
-                    } catch (ValidationFailure ex) {
-                        JOptionPane.showMessageDialog(out, ex.getMessage(), "Validation Failure", JOptionPane.ERROR_MESSAGE);
-                        return;
-                    }
-
-
-                    if (disposeOnSubmit) {
-                        synchronized (lock) {
-                            submitted = true;
-                            lock.notifyAll();
-                        }
-                        try {
-                            JFrame top = (JFrame) submit.getTopLevelAncestor();
-                            top.dispose();
-                        } catch (Exception ex) {
-                            System.err.println("Problem getting top level ancestor of submit button");
-                            ex.printStackTrace(System.err);
-                        }
-                    } else {
-                        // We aren't disposing on submit, so we should run directly.
-                        new Thread(()->{
-                            try {
-                                runScript(readToString(new FileInputStream(scriptFile)));
-                            } catch (Exception ex) {
-                                System.err.println("An error occurred while running "+scriptFile+". "+ex.getMessage());
-                                ex.printStackTrace(System.err);
-                            }
-                        }).start();
-                    }
-                });
-
-            });
-        }
-
-        JButton cancel = new JButton("Cancel");
-        cancel.addActionListener(evt->{
-            synchronized (lock) {
-                cancelled = true;
-                lock.notifyAll();
-            }
-            try {
-                JFrame top = (JFrame) cancel.getTopLevelAncestor();
-                top.dispose();
-            } catch (Exception ex) {
-                System.err.println("Problem getting top level ancestor of submit button");
-                ex.printStackTrace(System.err);
-            }
-        });
-
-        buttons.add(cancel);
-        out.add(center(buttons.toArray(new JButton[buttons.size()])));
-
-        return out;
-    }
-
-    private JPanel center(JComponent... wrapped) {
-        JPanel out = new JPanel();
-        out.setLayout(new FlowLayout(FlowLayout.CENTER));
-        for (JComponent c : wrapped) {
-            out.add(c);
+    static boolean isAsciidocDescription(String description) {
+        if (description == null || description.trim().startsWith("<html>")) {
+            return false;
         }
-        return out;
+        return description.trim().startsWith("<asciidoc>") || description.trim().contains("\n");
     }
 
     private void runScriptFile() throws Exception {
         runScript(readToString(new FileInputStream(scriptFile)));
     }
 
-    private JComponent buildUI(Field field) {
-        switch (field.type) {
-            case File:
-            case Directory:
-                return buildFileField(field);
-
-            case Text:
-            case Number:
-            case Date:
-                return buildTextField(field);
-
-            case CheckBox:
-                return buildCheckboxField(field);
-            case Button:
-                return buildButtonField(field);
-
-
-
+    public static void main(String[] args) {
+        PhaseTimer.startClock();
+        if (DaemonClient.canForward(args)) {
+            int exitCode = DaemonClient.forward(args);
+            if (exitCode >= 0) {
+                System.exit(exitCode);
+            }
         }
-        throw new RuntimeException("No registered builder for field "+field.type);
+        int exitCode = new CommandLine(new Main()).execute(args); // |7|
 
+        if (!doNotExit) System.exit(exitCode);
     }
 
-    private static final String FIELD_KEY = "Shellmarks.Field";
-
-
-    private void installValidation(JTextField pathField, Field field) {
-        if (field.required) {
-            pathField.setInputVerifier(new InputVerifier() {
-                @Override
-                public boolean verify(JComponent input) {
-                    return !pathField.getText().trim().isEmpty();
-                }
-            });
-            pathField.setInputVerifier(new VerifyingValidator(pathField,
-                    pathField.getInputVerifier(),
-                    new Validation(Validation.Type.DANGER, "Too short")));
-        }
+    void run(File file) throws IOException, InterruptedException {
+        run(file, new HashMap<String,String>());
     }
 
-    private JComponent buildFileField(Field field) {
-        JPanel panel = new JPanel();
-        panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
-
-        JLabel label = new JLabel(field.label);
-
-        JPanel labelWrapper = new JPanel();
-
-        labelWrapper.add(label);
-        labelWrapper.setLayout(new FlowLayout(FlowLayout.LEFT));
-        panel.add(labelWrapper);
+    void run(File file, Map<String,String> env) throws IOException, InterruptedException {
+        if (!file.exists()) {
+            throw new IOException("File not found "+file);
 
-        JTextField pathField = new JTextField();
-        if (field.help != null) {
-            pathField.setToolTipText(field.help);
-            label.setToolTipText(field.help);
         }
-        pathField.getDocument().addDocumentListener(new DocumentListener() {
-            @Override
-            public void insertUpdate(DocumentEvent e) {
-                environment.put(field.varName, pathField.getText());
-            }
-
-            @Override
-            public void removeUpdate(DocumentEvent e) {
-                environment.put(field.varName, pathField.getText());
-            }
-
-            @Override
-            public void changedUpdate(DocumentEvent e) {
-                environment.put(field.varName, pathField.getText());
-            }
-        });
-        installValidation(pathField, field);
-        pathField.setColumns(30);
-        pathField.putClientProperty(FIELD_KEY, field);
-        if (environment.containsKey(field.varName)) {
-            pathField.setText(environment.get(field.varName));
-        } else if (field.defaultValue != null) {
-            pathField.setText(field.defaultValue);
-            environment.put(field.varName, field.defaultValue);
-        }
-        pathField.addActionListener(evt->{
-            environment.put(field.varName, pathField.getText());
-        });
-
-
-        JButton browseButton = new JButton("...");
-        browseButton.addActionListener(evt->{
-            if (field.type == FieldType.Directory) {
-                System.setProperty("apple.awt.fileDialogForDirectories", "true");
-            }
-            FileDialog dialog = new FileDialog((Frame)null, "Select file", FileDialog.LOAD);
-            if (!pathField.getText().isEmpty()) {
-                dialog.setFile(pathField.getText());
-            }
-            dialog.setVisible(true);
-
-            for (File f : dialog.getFiles()) {
-                pathField.setText(f.getAbsolutePath());
-                environment.put(field.varName, pathField.getText());
+        if (env != null) {
+            environment.putAll(env);
+        }
+        this.scriptFile = file;
+        //System.out.println("Running script: "+readToString(new FileInputStream(scriptFile)));
+        byte[] bytes;
+        String contents;
+        try (PhaseTimer.Phase phase = PhaseTimer.start("read script")) {
+            bytes = FileUtils.readFileToByteArray(scriptFile);
+            contents = new String(bytes, StandardCharsets.UTF_8);
+        }
+        FormCache formCache = new FormCache(FormCache.getDefaultDir());
+        FormCache.Entry cached = formCache.load(bytes);
+        form = cached.form;
+        if (isAsciidocDescription(form.description) && cached.descriptionHtml == null) {
+            // Start the engine while the Swing frame is being built
+            AsciidocEngine.warmUp();
+        }
+        if (form.hasFields() || (form.description != null && !form.description.isEmpty())) {
+            boolean submitted;
+            Form shown = form;
+            try (PhaseTimer.Phase phase = PhaseTimer.start("show form")) {
+                submitted = new FormUI(this, form, scriptFile, environment, cached.descriptionHtml,
+                        html -> formCache.put(CatalogIndex.hash(bytes), new FormCache.Entry(shown, html))).show();
             }
-            if (field.type == FieldType.Directory) {
-                System.setProperty("apple.awt.fileDialogForDirectories", "false");
+            if (submitted) {
+                runScript(readToString(new FileInputStream(scriptFile)));
             }
-        });
-
-
-        JPanel wrapper = new JPanel();
-        wrapper.setLayout(new BorderLayout());
-        wrapper.add(pathField, BorderLayout.CENTER);
-        wrapper.add(browseButton, BorderLayout.EAST);
+        } else {
+            // Nothing to ask the user, so the script can run right away without loading Swing
+            runScript(contents);
+        }
 
-        panel.add(wrapper);
 
-        return panel;
     }
 
 
 
-    private JComponent buildCheckboxField(Field field) {
 
-        JCheckBox out =  new JCheckBox(field.label);
-        if (environment.containsKey(field.varName)) {
-            String v = environment.get(field.varName).toLowerCase();
-            out.setSelected("true".equals(v) || "1".equals(v) || "on".equals(v) || "checked".equals(v) || "yes".equals(v));
-        } else if (("true".equalsIgnoreCase(field.defaultValue) || "1".equals(field.defaultValue) || "on".equalsIgnoreCase(field.defaultValue) || "checked".equalsIgnoreCase(field.defaultValue) || "yes".equalsIgnoreCase(field.defaultValue))) {
-            out.setSelected(true);
-            environment.put(field.varName, "1");
-        }
-        if (field.help != null) {
-            out.setToolTipText(field.help);
+    private void runScriptByName(String name) throws IOException, InterruptedException {
+        File f = findScript(name);
+        if (f == null) {
+            throw new IOException("Cannot find script "+name);
         }
-        out.putClientProperty(FIELD_KEY, field);
-        out.addActionListener(evt -> {
-            if (out.isSelected()) {
-                environment.put(field.varName, "1");
-            } else {
-                environment.remove(field.varName);
-            }
-        });
-
-
-        JPanel wrapper = new JPanel();
-        wrapper.setLayout(new FlowLayout(FlowLayout.LEFT));
-        wrapper.add(out);
-        return wrapper;
-
-    }
-
-    private Field getFieldForComponent(JComponent cmp) {
-        return (Field)cmp.getClientProperty(FIELD_KEY);
+        runScript(FileUtils.readFileToString(f, "UTF-8"));
     }
 
-    private JComponent buildButtonField(Field field) {
-
-        JButton out =  new JButton(field.label);
-        if (("true".equalsIgnoreCase(field.defaultValue) || "1".equals(field.defaultValue) || "on".equalsIgnoreCase(field.defaultValue) || "checked".equalsIgnoreCase(field.defaultValue) || "yes".equalsIgnoreCase(field.defaultValue))) {
-            environment.put(field.varName, "1");
-        }
-        if (field.help != null) {
-            out.setToolTipText(field.help);
+    void runScript(String scriptString) throws IOException, InterruptedException {
+        if (!scriptString.startsWith("#!")) {
+            throw new IOException("Script doesn't start with #!");
         }
-        out.putClientProperty(FIELD_KEY, field);
-        out.addActionListener(evt -> {
-            disposeOnSubmit = field.disposeOnSubmit;
-            environment.put(field.varName, "1");
-
-
-        });
-        return out;
-
-    }
-
-    private JComponent buildTextField(Field field) {
-        JPanel panel = new JPanel();
-        panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
-        JLabel label = new JLabel(field.label);
-        JPanel labelWrapper = new JPanel();
-        labelWrapper.setLayout(new FlowLayout(FlowLayout.LEFT));
-        labelWrapper.add(label);
-        panel.add(labelWrapper);
-
 
+        String executable = scriptString.substring(2, scriptString.indexOf("\n")).trim();
+        File executableFile = new File(executable);
+        if (!executableFile.exists()) {
+            throw new IOException("Cannot find executable "+executable);
+        }
 
-        JTextField pathField = new JTextField();
-        installValidation(pathField, field);
-        pathField.putClientProperty(FIELD_KEY, field);
-        if (environment.containsKey(field.varName)) {
-            pathField.setText(environment.get(field.varName));
-        } else if (field.defaultValue != null) {
-            pathField.setText(field.defaultValue);
-            environment.put(field.varName, field.defaultValue);
+        ProcessBuilder pb = new ProcessBuilder(executable, scriptFile.getAbsolutePath());
+        if (workingDirectory != null) {
+            pb.directory(workingDirectory);
         }
-        if (field.help != null) {
-            pathField.setToolTipText(field.help);
-            label.setToolTipText(field.help);
+        if (baseEnvironment != null) {
+            pb.environment().clear();
+            pb.environment().putAll(baseEnvironment);
         }
-        pathField.addActionListener(evt->{
-
-            environment.put(field.varName, pathField.getText());
+        pb.environment().putAll(environment);
 
-        });
-        pathField.getDocument().addDocumentListener(new DocumentListener() {
-            @Override
-            public void insertUpdate(DocumentEvent e) {
-                environment.put(field.varName, pathField.getText());
+        int result;
+        try (PhaseTimer.Phase phase = PhaseTimer.start("run script")) {
+            // Output is only captured when it goes to a client or a log.  Output that goes to a
+            // terminal isn't logged unless --log was given, so that the script gets the terminal
+            // itself and can tell that it is interactive.
+            boolean logged = !noLog && (log || stdout != null || System.console() == null);
+            boolean capture = stdout != null || logged;
+            if (stdout == null) {
+                pb.redirectInput(ProcessBuilder.Redirect.INHERIT);
+            } else {
+                pb.redirectInput(ProcessBuilder.Redirect.from(getNullFile()));
             }
-
-            @Override
-            public void removeUpdate(DocumentEvent e) {
-                environment.put(field.varName, pathField.getText());
+            if (!capture) {
+                pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+                pb.redirectError(ProcessBuilder.Redirect.INHERIT);
             }
-
-            @Override
-            public void changedUpdate(DocumentEvent e) {
-                environment.put(field.varName, pathField.getText());
+            long startTime = System.currentTimeMillis();
+            long started = System.nanoTime();
+            JfrEvents.ProcessStart startEvent = new JfrEvents.ProcessStart();
+            startEvent.begin();
+            Process process = pb.start();
+            this.process = process;
+            if (cancelled) {
+                process.destroy();
             }
-        });
-        panel.add(pathField);
-
-        return panel;
-    }
-
-    private JComponent findComponentForField(JComponent root, Field field) {
-        if (root.getClientProperty(FIELD_KEY) == field) return root;
-        int len = root.getComponentCount();
-        for (int i=0; i<len; i++) {
-            JComponent child  = (JComponent)root.getComponent(i);
-            JComponent match = findComponentForField(child, field);
-            if (match != null) {
-                return match;
+            if (startEvent.shouldCommit()) {
+                startEvent.scriptName = scriptFile.getName();
+                startEvent.executable = executable;
+                startEvent.bytes = scriptString.length();
+                startEvent.commit();
             }
-
+            JfrEvents.ProcessRun runEvent = new JfrEvents.ProcessRun();
+            runEvent.begin();
+            if (capture) {
+                result = waitForCaptured(process, startTime, logged);
+            } else {
+                result = Threads.waitFor(process);
+            }
+            recordRun(startTime, System.nanoTime() - started, result, runEvent);
+        }
+        exitCode = result;
+        if (result != 0) {
+            throw new RuntimeException("Failed with exit code "+result);
         }
-        return null;
-    }
 
-    private class ValidationFailure extends Exception {
-        private Field field;
 
-        ValidationFailure(String message, Field field) {
-            super(message);
-            this.field = field;
-        }
     }
 
-    private void validateField(JComponent root, Field field) throws ValidationFailure {
-        JComponent cmp = findComponentForField(root, field);
-        if (cmp == null) {
-            throw new ValidationFailure("Field "+field.varName+" not found in form.", field);
+    /**
+     * Copies the output of a script to the session's streams, and to a run log if it is logged,
+     * until it exits.
+     * @return The script's exit code.
+     */
+    private int waitForCaptured(Process process, long startTime, boolean logged) throws IOException, InterruptedException {
+        RunLog runLog = null;
+        if (logged) {
+            try {
+                runLog = RunLog.create(RunLog.getDefaultDir(), scriptFile.getName(), startTime, process.pid());
+            } catch (IOException ex) {
+                System.err.println("Failed to create log in "+RunLog.getDefaultDir()+". "+ex.getMessage());
+            }
         }
-        if (field.required) {
-            if (cmp instanceof JTextComponent) {
-                JTextComponent textComponent = (JTextComponent) cmp;
-                if (textComponent.getText().isEmpty()) {
-                    throw new ValidationFailure("Field "+field.varName+" is required", field);
-                }
+        try {
+            OutputCapture output = new OutputCapture(process,
+                    stdout == null ? System.out : stdout,
+                    stdout == null ? System.err : stderr,
+                    runLog);
+            output.start();
+            int result = Threads.waitFor(process);
+            output.await();
+            return result;
+        } finally {
+            if (runLog != null) {
+                runLog.close();
             }
         }
-
     }
 
-    private void validateForm(JComponent root) throws ValidationFailure {
-        if (form.fields != null) {
-            for (Field field : form.fields) {
-                validateField(root, field);
-            }
+    /**
+     * Records a finished run in the metrics, the run journal and the flight recorder.
+     */
+    private void recordRun(long startTime, long duration, int result, JfrEvents.ProcessRun runEvent) {
+        Metrics.get().recordRun(scriptFile.getName(), duration, result);
+        try {
+            new RunJournal(RunJournal.getDefaultDir()).append(scriptFile.getName(), startTime, duration, result, environment.keySet());
+        } catch (IOException ex) {
+            System.err.println("Failed to record run in "+RunJournal.getDefaultDir()+". "+ex.getMessage());
+        }
+        if (runEvent.shouldCommit()) {
+            runEvent.scriptName = scriptFile.getName();
+            runEvent.fieldCount = form == null ? 0 : form.fields.size();
+            runEvent.exitCode = result;
+            runEvent.commit();
         }
     }
 
+    /**
+     * The platform's null device, for scripts that must not read from the terminal.
+     */
+    private static File getNullFile() {
+        boolean isWindows = System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("windows");
+        return new File(isWindows ? "NUL" : "/dev/null");
+    }
 
+    static String readToString(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[12400];
+        int count;
+        while ((count = inputStream.read(buffer)) > -1) {
+            baos.write(buffer, 0, count);
+        }
+        return baos.toString("UTF-8");
 
-    public static void main(String[] args) {
-	// write your code here
-        int exitCode = new CommandLine(new Main()).execute(args); // |7|
-
-        if (!doNotExit) System.exit(exitCode);
     }
 
-    private JMenuBar buildMenuBar(JFrame parent, File file) {
-        System.setProperty("apple.laf.useScreenMenuBar", "true");
-        if (form.title != null) {
-            System.setProperty("com.apple.mrj.application.apple.menu.about.name", form.title);
-        }
-        JMenuBar out = new JMenuBar();
-        JMenu fileMenu = new JMenu("File");
-        JMenuItem edit = new JMenuItem("Edit Script");
-        edit.addActionListener(evt->{
-            if (Desktop.isDesktopSupported()) {
-                try {
-                    Desktop.getDesktop().edit(file);
-
-                } catch (Exception ex) {
-                    System.err.println("Failed to open file for editing");
-                    ex.printStackTrace(System.err);
-                    JOptionPane.showMessageDialog(parent, "Failed to open file for editing.  "+ex.getMessage(), "Failed", JOptionPane.ERROR_MESSAGE);
-                }
-            } else {
-                JOptionPane.showMessageDialog(parent, "Not supported", "Editing not supported on this platform", JOptionPane.ERROR_MESSAGE);
-            }
-        });
-        fileMenu.add(edit);
-        out.add(fileMenu);
-        return out;
-    }
-
-
-    private void run(File file) throws IOException, InterruptedException {
-        run(file, new HashMap<String,String>());
-    }
-
-    private void run(File file, Map<String,String> env) throws IOException, InterruptedException {
-        if (!file.exists()) {
-            throw new IOException("File not found "+file);
-
-        }
-        if (env != null) {
-            environment.putAll(env);
-        }
-        this.scriptFile = file;
-        //System.out.println("Running script: "+readToString(new FileInputStream(scriptFile)));
-        parseUI(readToString(new FileInputStream(scriptFile)));
-        if (form.hasFields() || (form.description != null && !form.description.isEmpty())) {
-            EventQueue.invokeLater(()->{
-                JPanel ui = buildUI();
-                JFrame f = new JFrame("Run Script");
-                f.setJMenuBar(buildMenuBar(f, file));
-                f.setLocationRelativeTo(null);
-                if (doNotExit) {
-                    f.addWindowListener(new WindowListener() {
-
-
-                        @Override
-                        public void windowOpened(WindowEvent e) {
-
-                        }
-
-                        @Override
-                        public void windowClosing(WindowEvent e) {
-
-                        }
-
-                        @Override
-                        public void windowClosed(WindowEvent e) {
-                            if (!submitted) {
-                                synchronized (lock) {
-                                    cancelled = true;
-                                    lock.notifyAll();
-                                }
-                            }
-                        }
-
-                        @Override
-                        public void windowIconified(WindowEvent e) {
-
-                        }
-
-                        @Override
-                        public void windowDeiconified(WindowEvent e) {
-
-                        }
-
-                        @Override
-                        public void windowActivated(WindowEvent e) {
-
-                        }
-
-                        @Override
-                        public void windowDeactivated(WindowEvent e) {
-
-                        }
-                    });
-
-                    f.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-                } else {
-                    f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-                }
-                if (form.title != null) {
-                    f.setTitle(form.title);
-                }
-                f.getContentPane().setLayout(new BorderLayout());
-                f.getContentPane().add(ui, BorderLayout.CENTER);
-
-
-                f.pack();
-                f.setVisible(true);
-
-            });
-            while (!submitted && !cancelled) {
-                synchronized (lock) {
-                    lock.wait();
-                }
-            }
-        }
-
-        if (!cancelled && disposeOnSubmit) {
-            runScript(readToString(new FileInputStream(scriptFile)));
-        }
-
-
-    }
-
-
-
-
-    private void runScriptByName(String name) throws IOException, InterruptedException {
-        File f = findScript(name);
-        if (f == null) {
-            throw new IOException("Cannot find script "+name);
-        }
-        runScript(FileUtils.readFileToString(f, "UTF-8"));
-    }
-
-    private void runScript(String scriptString) throws IOException, InterruptedException {
-        if (!scriptString.startsWith("#!")) {
-            throw new IOException("Script doesn't start with #!");
-        }
-
-        String executable = scriptString.substring(2, scriptString.indexOf("\n")).trim();
-        File executableFile = new File(executable);
-        if (!executableFile.exists()) {
-            throw new IOException("Cannot find executable "+executable);
-        }
-
-        ProcessBuilder pb = new ProcessBuilder(executable, scriptFile.getAbsolutePath())
-                .inheritIO();
-
-        pb.environment().putAll(environment);
-        int result = pb.start().waitFor();
-        if (result != 0) {
-            throw new RuntimeException("Failed with exit code "+result);
-        }
-
-
-    }
-
-    private String readToString(InputStream inputStream) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buffer = new byte[12400];
-        int count;
-        while ((count = inputStream.read(buffer)) > -1) {
-            baos.write(buffer, 0, count);
-        }
-        return baos.toString("UTF-8");
-
-    }
-
-    private File[] getAllScriptFiles() {
-        List<File> out = new ArrayList<File>();
-        for (File dir : getScriptPaths()) {
-            for (File file : dir.listFiles()) {
-                if (!file.getName().startsWith(".") && !file.getName().endsWith(".adoc") && !file.getName().endsWith(".asciidoc")) {
-                    out.add(file);
-                }
-            }
-
-        }
-        return out.toArray(new File[out.size()]);
-    }
-
-    private File[] getAllSectionFiles() {
-        List<File> out = new ArrayList<File>();
-        for (File dir : getScriptPaths()) {
-            for (File file : dir.listFiles()) {
-                if (!file.getName().startsWith(".") && (file.getName().endsWith(".adoc") || file.getName().endsWith(".asciidoc"))) {
-                    out.add(file);
-                }
-            }
-
-        }
-        return out.toArray(new File[out.size()]);
-    }
-
-    private Script[] loadAllScripts() throws IOException {
-        List<Script> out = new ArrayList<Script>();
-        for (File f : getAllScriptFiles()) {
-            Script script = new Script();
-            script.load(f);
-            out.add(script);
-        }
-        return out.toArray(new Script[out.size()]);
-    }
-
-    private ScriptCategory loadAllScriptCategories() throws IOException {
-        List<ScriptCategory> out = new ArrayList<ScriptCategory>();
-        Map<String,ScriptCategory> categoryMap = new HashMap<String,ScriptCategory>();
-
-        ScriptCategory root = new ScriptCategory("");
-        out.add(root);
-        categoryMap.put("", root);
-        for (File f : getAllSectionFiles()) {
-            ScriptCategory cat = new ScriptCategory();
-            cat.load(f);
-            categoryMap.put(cat.name, cat);
-            out.add(cat);
-        }
-
-        for (ScriptCategory cat : new ArrayList<ScriptCategory>(out)) {
-            if (cat == root) continue;
-            if (cat.parentName != null && !categoryMap.containsKey(cat.parentName)) {
-                // A parent category is referenced but it doesn't have
-                // an explicit asciidoc file
-                ScriptCategory parentCategory = new ScriptCategory(cat.parentName);
-                parentCategory.add(cat);
-                categoryMap.put(parentCategory.name, parentCategory);
-                root.add(parentCategory);
-                out.add(parentCategory);
-            } else if (cat.parentName != null) {
-                ScriptCategory parentCategory = categoryMap.get(cat.parentName);
-                parentCategory.add(cat);
-
-            } else {
-                root.add(cat);
-            }
-        }
-
-        Script[] allScripts = loadAllScripts();
-        for (Script script : allScripts) {
-            if (script.getTags().isEmpty()) {
-                root.add(script);
-            } else {
-
-                for (String tag : script.getTags()) {
-                    if (!categoryMap.containsKey(tag)) {
-                        ScriptCategory cat = new ScriptCategory(tag);
-                        categoryMap.put(tag, cat);
-                        out.add(cat);
-                        root.add(cat);
-                    }
-                    categoryMap.get(tag).add(script);
-                }
-            }
-
-        }
-
-        out.sort((cat1, cat2) -> {
-            return cat1.name.compareTo(cat2.name);
-        });
-
-        root.pruneEmptyCategories();
-
-        return root;
-    }
-
-    private class Script {
-        File file;
-        String contents;
-        Form form;
-
-        private void load(File file) throws IOException {
-            this.file = file;
-            this.contents = FileUtils.readFileToString(file, "UTF-8");
-            parseUI(contents);
-            Script.this.form = Main.this.form;
-        }
-
-        private String getCategoryPath() {
-            if (form.categoryPath == null) {
-                return "";
-            }
-            return form.categoryPath;
-        }
-
-        private String getTitle() {
-            if (form != null && form.title != null) return form.title;
-            return file.getName();
-        }
-
-        Set<String> getTags() {
-            return form.tags;
-        }
-
-        private String _getDocString() {
-            if (form != null && form.docString != null) return form.docString;
-            if (form != null && form.description != null) return form.description;
-            return "";
-        }
-
-        private String getDocString() {
-            String sep = System.lineSeparator();
-            String str = _getDocString();
-            if (str.startsWith("<asciidoc>")) {
-                int endPos = str.indexOf("</asciidoc>");
-                if (endPos >= 0) {
-                    return str.substring("<asciidoc>".length(), endPos);
-                } else {
-                    return str.substring("<asciidoc>".length());
-                }
-            } else if (str.startsWith("<html>")) {
-                int endPos = str.indexOf("</html>");
-                if (endPos >= 0) {
-                    return "++++"+sep+"<br>"+str.substring("<html>".length(), endPos)+sep+"++++"+sep;
-                } else {
-                    return "++++"+sep+"<br>"+str.substring("<html>".length())+sep+"++++"+sep;
-                }
-            } else {
-                return str;
-            }
-        }
-    }
-
-    private static String prefixAsciidocHeadings(String content, int minHeadingLevel) {
-        int currMinLevel = -1;
-        Scanner scanner = new Scanner(content);
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine();
-            if (line.matches("^=+ [A-Za-z0-9].*$")) {
-                int headingLevel = line.indexOf(" ");
-                if (currMinLevel < 0 || currMinLevel > headingLevel) {
-                    currMinLevel = headingLevel;
-                }
-            }
-        }
-
-        if (currMinLevel > 0 && currMinLevel < minHeadingLevel) {
-            int levelsToAdd = minHeadingLevel - currMinLevel;
-            StringBuilder out = new StringBuilder();
-            scanner = new Scanner(content);
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                if (line.matches("^=+ [A-Za-z0-9].*$")) {
-                    for (int i=0; i<levelsToAdd; i++) {
-                        out.append("=");
-                    }
-                }
-                out.append(line).append(System.lineSeparator());
-            }
-            return out.toString();
-        }
-        return content;
-
-    }
-
-    private class ScriptCategory {
-        private String parentName;
-        private ScriptCategory parent;
-        private String name;
-        private String label;
-        private String description;
-        private LinkedHashMap<String,ScriptCategory> subCategories = new LinkedHashMap<String,ScriptCategory>();
-        private List<Script> scripts = new ArrayList<Script>();
-
-
-        ScriptCategory() {
-
-        }
-
-        void pruneEmptyCategories() {
-            List<String> emptyCategories = new ArrayList<String>();
-            for (String catName : subCategories.keySet()) {
-                ScriptCategory cat = subCategories.get(catName);
-                if (cat.isEmpty()) {
-                    emptyCategories.add(catName);
-                }
-            }
-            for (String catName : emptyCategories) {
-                subCategories.remove(catName);
-            }
-            for (ScriptCategory cat : subCategories.values()) {
-                cat.pruneEmptyCategories();
-            }
-        }
-
-        boolean isEmpty() {
-            return subCategories.isEmpty() && scripts.isEmpty() && (description == null || description.trim().isEmpty());
-        }
-
-        ScriptCategory(String name) {
-            this.name = name;
-            StringBuilder labelBuilder = new StringBuilder();
-            int len = name.length();
-            char[] nameChars = name.toCharArray();
-            for (int i=0; i<len; i++) {
-                char c = nameChars[i];
-                if (c == '-') {
-                    if (len > i + 1) {
-                        labelBuilder.append(" ").append(Character.toTitleCase(nameChars[i + 1]));
-                        i++;
-                    }
-                } else {
-                    labelBuilder.append(c);
-                }
-            }
-            label = labelBuilder.toString();
-        }
-
-        String getLabel() {
-            if (label == null) {
-                if (name != null) {
-                    return name;
-                }
-                return "";
-            }
-            return label;
-        }
-
-        private boolean isRoot() {
-            return parent == null;
-        }
-
-        private void add(ScriptCategory subcategory) {
-            subcategory.parent = this;
-            subCategories.put(subcategory.name, subcategory);
-            subcategory.parentName = name;
-        }
-
-        private void add(Script script) {
-            scripts.add(script);
-        }
-
-
-
-        public void load(File f) throws IOException {
-            name = f.getName();
-            if (name.endsWith(".adoc") || name.endsWith(".asciidoc")) {
-                name = name.substring(0, name.lastIndexOf("."));
-            }
-            StringBuilder labelBuilder = new StringBuilder();
-            int len = name.length();
-            char[] nameChars = name.toCharArray();
-            for (int i=0; i<len; i++) {
-                char c = nameChars[i];
-                if (c == '-') {
-                    if (len > i + 1) {
-                        labelBuilder.append(" ").append(Character.toTitleCase(nameChars[i + 1]));
-                        i++;
-                    }
-                } else {
-                    labelBuilder.append(c);
-                }
-            }
-            label = labelBuilder.toString();
-
-            description = FileUtils.readFileToString(f, "UTF-8");
-            Scanner scanner = new Scanner(description);
-            StringBuilder descriptionBuilder = new StringBuilder();
-            boolean firstLine = true;
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                if (firstLine && line.trim().isEmpty()) {
-                    continue;
-                }
-                if (firstLine && line.matches("^=+ [A-Za-z0-9].*$")) {
-                    label = line.substring(line.indexOf(" ") + 1).trim();
-                    firstLine = false;
-                } else if (line.matches("^\\:parent\\: .*$")) {
-                    parentName = line.substring(line.indexOf(" ")+1).trim();
-                } else {
-                    descriptionBuilder.append(line).append(System.lineSeparator());
-                }
-            }
-
-            description = descriptionBuilder.toString();
-
-
-
-
-
-        }
-    }
-
-    private boolean useJavaFX = true;
-
-    File findSectionFile(String name) {
-        File[] files = getAllSectionFiles();
-        for (File f : files) {
-            if (f.getName().equals(name)) {
-                return f;
-            }
-        }
-        for (File f : files) {
-            if (f.getName().equalsIgnoreCase(name+".adoc") || f.getName().equalsIgnoreCase(name+".asciidoc")) {
-                return f;
-            }
-        }
-        return null;
-    }
-
-
-    private static Map<String, String> parseQuerystring(String queryString) {
-        Map<String, String> map = new HashMap<String, String>();
-        if ((queryString == null) || (queryString.equals(""))) {
-            return map;
-        }
-        String[] params = queryString.split("&");
-        for (String param : params) {
-            try {
-                String[] keyValuePair = param.split("=", 2);
-                String name = URLDecoder.decode(keyValuePair[0], "UTF-8");
-                if (name == "") {
-                    continue;
-                }
-                String value = keyValuePair.length > 1 ? URLDecoder.decode(
-                        keyValuePair[1], "UTF-8") : "";
-                map.put(name, value);
-            } catch (UnsupportedEncodingException e) {
-                // ignore this parameter if it can't be decoded
-            }
-        }
-        return map;
-    }
-
-
-
-
-    private String newSectionTemplate(String sectionName) {
-        String label = sectionName;
-        StringBuilder labelBuilder = new StringBuilder();
-        int len = sectionName.length();
-        char[] nameChars = sectionName.toCharArray();
-        for (int i=0; i<len; i++) {
-            char c = nameChars[i];
-            if (c == '-') {
-                if (len > i + 1) {
-                    labelBuilder.append(" ").append(Character.toTitleCase(nameChars[i + 1]));
-                    i++;
-                }
-            } else {
-                labelBuilder.append(c);
-            }
-        }
-        label = labelBuilder.toString();
-        StringBuilder contents = new StringBuilder();
-        contents
-                .append("= ").append(label).append(System.lineSeparator())
-                .append(System.lineSeparator())
-                .append("This is the section description formatted as https://asciidoctor.org/docs/asciidoc-writers-guide/[Asciidoc]").append(System.lineSeparator())
-                .append(System.lineSeparator()).append("Lorem ipsum, etc...").append(System.lineSeparator());
-        return contents.toString();
-
-    }
-
-    private File getOrCreateSection(String sectionName) throws IOException {
-        File sectionFile = findSectionFile(sectionName);
-        if (sectionFile != null && sectionFile.exists()) {
-            return sectionFile;
-        }
-
-        if (sectionFile == null) {
-            sectionFile = new File(getScriptPaths()[0], sectionName+".adoc");
-        }
-        FileUtils.writeStringToFile(sectionFile, newSectionTemplate(sectionName), "UTF-8");
-        return sectionFile;
-
-    }
-
-
-
-
-    private void showDocs() throws IOException {
-        if (useJavaFX) {
-            RunScriptListener listener = new RunScriptListener() {
-                @Override
-                public void runScript(DocumentationAppFX app, String name) {
-                    Thread t = new Thread(()->{
-                        try {
-                            String scriptName = name;
-                            Map<String,String> query;
-                            if (name.contains("?")) {
-                                scriptName = name.substring(0, name.indexOf("?"));
-                                query = parseQuerystring(name.substring(name.indexOf("?")+1));
-
-
-                            } else {
-                                query = new HashMap<String,String>();
-                            }
-                            new Main().run(findScript(scriptName), query);
-                        } catch (Exception ex) {
-                            System.err.println("Script execution failed: "+ex.getMessage());
-                            ex.printStackTrace(System.err);
-                        }
-                    });
-                    t.start();
-                }
-
-                @Override
-                public void newSection(DocumentationAppFX app) {
-
-                    EventQueue.invokeLater(()->{
-                        String sectionName = JOptionPane.showInputDialog("Please enter a section name.");
-                        if (sectionName == null) {
-                            return;
-                        }
-                        String sectionLabel = sectionName;
-                        sectionName = sectionName.replace(' ', '-').replaceAll("[^A-Z0-9a-z\\._\\-]", "");
-                        if (sectionName.isEmpty()) {
-                            JOptionPane.showMessageDialog((Component)null, "Invalid name.  Name should only contain letters, numbers, hyphens, periods, and underscores.", "Invalid name", JOptionPane.ERROR_MESSAGE);
-                            return;
-                        }
-                        String fileName = sectionName;
-                        if (fileName.endsWith(".adoc")) {
-                            sectionName = sectionName.substring(0, sectionName.lastIndexOf("."));
-                            sectionLabel = sectionLabel.substring(0, sectionLabel.lastIndexOf("."));
-                        } else {
-                            fileName += ".adoc";
-                        }
-                        editSection(app, sectionName);
-
-
-                    });
-                }
-
-                @Override
-                public void editSection(DocumentationAppFX app, String sectionName) {
-                    new Thread(()->{
-                        File sectionFile = findSectionFile(sectionName);
-                        if (sectionFile == null || !sectionFile.exists()) {
-                            try {
-                                sectionFile = getOrCreateSection(sectionName);
-                            } catch (Exception ex) {
-                                final File fSectionFile = sectionFile;
-                                EventQueue.invokeLater(()->{
-                                    JOptionPane.showMessageDialog((Component)null, "Failed to write file: "+ex.getMessage(), "Oops", JOptionPane.ERROR_MESSAGE);
-                                    System.err.println("Failed to write section file "+fSectionFile);
-                                    ex.printStackTrace(System.err);
-                                });
-                            }
-
-                        }
-                        if (sectionFile != null && sectionFile.exists()) {
-                            if (Desktop.isDesktopSupported()) {
-                                try {
-                                    Desktop.getDesktop().edit(sectionFile);
-                                } catch (Exception ex) {
-                                    final File fSectionFile = sectionFile;
-                                    EventQueue.invokeLater(()->{
-                                        JOptionPane.showMessageDialog((Component)null, "Error opening file: "+ex.getMessage(), "Oops", JOptionPane.ERROR_MESSAGE);
-                                        System.err.println("Failed to open section file "+fSectionFile);
-                                        ex.printStackTrace(System.err);
-                                    });
-                                }
-                            } else {
-                                EventQueue.invokeLater(()->{
-                                    JOptionPane.showMessageDialog((Component)null, "Sorry, this platform doesn't support opening asciidoc files for editing", "Not supported", JOptionPane.ERROR_MESSAGE);
-                                });
-
-                            }
-                        }
-
-                    }).start();
-                }
-
-                @Override
-                public void editScript(DocumentationAppFX app, String name) {
-                    Thread t = new Thread(()->{
-
-                        try {
-                            File script = findScript(name);
-                            if (script != null && script.exists()) {
-                                if (Desktop.isDesktopSupported()) {
-                                    Desktop.getDesktop().edit(script);
-                                } else {
-                                    System.err.println("Editing not supported on this platform.");
-                                }
-                            }
-                        } catch (Exception ex) {
-                            System.err.println("Failed to open script for editing: "+ex.getMessage());
-                            ex.printStackTrace(System.err);
-                        }
-                    });
-                    t.start();
-                }
-
-                @Override
-                public void deleteScript(DocumentationAppFX app, String name) {
-                    Thread t = new Thread(()->{
-                        int[] result = new int[1];
-                        try {
-                            EventQueue.invokeAndWait(() -> {
-                                result[0] = JOptionPane.showConfirmDialog(null, "Are you sure you want to delete this script?");
-                            });
-                        } catch (Exception ex) {
-                            ex.printStackTrace(System.err);
-                        }
-                        if (result[0] != JOptionPane.OK_OPTION) {
-                            return;
-                        }
-
-                        File script = findScript(name);
-                        if (script == null || !script.exists()) {
-                            try {
-                                EventQueue.invokeAndWait(() -> {
-                                    JOptionPane.showMessageDialog((Component)null,"Could not delete this script because it could not be found","Failed", JOptionPane.ERROR_MESSAGE);
-                                });
-                            } catch (Exception ex) {
-                                ex.printStackTrace(System.err);
-                            }
-                            return;
-                        }
-
-                        if (Desktop.isDesktopSupported()) {
-                            Desktop.getDesktop().moveToTrash(script);
-                        }
-                        try {
-                            EventQueue.invokeAndWait(() -> {
-                                JOptionPane.showMessageDialog((Component)null,"The script has been moved to the trash.  Press 'Refresh' to update shellmarks to reflect this change.", "Moved to trash", JOptionPane.INFORMATION_MESSAGE);
-                            });
-                        } catch (Exception ex) {
-                            ex.printStackTrace(System.err);
-                        }
-                        return;
-                    });
-
-                    t.start();
-                }
-
-                @Override
-                public void refresh(DocumentationAppFX app) {
-                    EventQueue.invokeLater(()->{
-                        JOptionPane opt = new JOptionPane("Please regenerating shellmarks catalog.  Please wait.", JOptionPane.INFORMATION_MESSAGE);
-                        String[] newContent = new String[1];
-                        Thread t = new Thread(()-> {
-                            try {
-                                newContent[0] = generateDocs();
-                                Platform.runLater(()->{
-                                    app.updateContents(newContent[0]);
-                                });
-                                EventQueue.invokeLater(()->{
-                                    opt.setVisible(false);
-                                });
-                            } catch (Exception ex) {
-                                opt.setVisible(false);
-                                System.err.println("Failed to regenerate shellmarks catalog: "+ex.getMessage());
-                                ex.printStackTrace(System.err);
-                                EventQueue.invokeLater(()-> {
-                                    JOptionPane.showMessageDialog(null, "Failed to regenerate catalog: "+ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-                                });
-                            }
-                        });
-                        t.start();
-                    });
-                }
-
-                @Override
-                public void newScript(DocumentationAppFX app) {
-                    EventQueue.invokeLater(()->{
-                        String name = JOptionPane.showInputDialog("Script name", "myscript.sh");
-                        if (name == null) return;
-                        File file = new File(getScriptPaths()[0], name);
-                        if (file.exists()) {
-                            JOptionPane.showMessageDialog((Component)null, "A script by this name already exists", "Cannot create script", JOptionPane.ERROR_MESSAGE);
-                            return;
-                        }
-                        String sep = System.lineSeparator();
-                        String contents = "#!/bin/bash\n" +
-                                "echo \"Hello ${firstName} ${lastName}\"" + sep +
-                                "echo \"You selected ${selectedFile}\"" + sep +
-                                "if [ ! -z \"${option1}\" ]; then " + sep +
-                                "  echo \"Option1 was selected\"" + sep +
-                                "fi" + System.lineSeparator() +
-                                "if [ ! -z \"${option2}\" ]; then " + sep +
-                                "  echo \"Option2 was selected\"" +   sep+
-                                "fi" + sep +
-                                "exit 0" + sep +
-                                "---" + sep +
-                                "# The script title" + sep +
-                                "__title__=\"" + name + "\"" + sep +
-                                sep +
-                                "# Script description in Asciidoc format" + sep +
-                                "__description__='''" + sep +
-                                //"  <asciidoc>" + sep +
-                                "This description will be displayed at the top of the form." + sep +
-                                sep +
-                                "It can be multiline and include https://example.com[Links]" + sep +
-                                //"</asciidoc>" + sep +
-                                "'''" + sep +
-                                sep +
-                                "# Doc string.  In asciidoc format.  Displayed in Shellmarks catalog" + sep +
-                                "__doc__='''" + sep +
-                                "This will be displayed in the shellmarks catalog. " + sep +
-                                sep +
-                                "You can include _asciidoc_ markup, as well as https://www.example.com[links]." + sep +
-                                "'''" + sep +
-                                sep +
-                                "# Tags used to place script into one or more sections of the catalog" + sep +
-                                "__tags__=\"#custom-tag1 #custom-tag2\"" + sep +
-                                sep +
-                                "[firstName]\n" +
-                                "  label=\"First Name\"" + sep +
-                                "  required=true" + sep +
-                                sep +
-                                "[lastName]" + sep +
-                                "  label=\"Last Name\"" + sep +
-                                sep +
-                                "[selectedFile]" + sep +
-                                "  label=\"Please select a file\"" + sep +
-                                "  type=\"file\"" + sep +
-                                sep +
-                                "[option1]" + sep +
-                                "  label=\"Option 1\"" + sep +
-                                "  type=\"checkbox\"" + sep +
-                                sep +
-                                "[option2]" + sep +
-                                "  label=\"Option 2\"" + sep +
-                                "  type=\"checkbox\"" + sep +
-                                sep; //+
-                                //"</shellmarks>";
-                        try {
-                            FileUtils.writeStringToFile(file, contents, "UTF-8");
-                        } catch (IOException ex) {
-                            JOptionPane.showMessageDialog((Component)null, "Failed to create script. "+ex.getMessage(), "Cannot create script", JOptionPane.ERROR_MESSAGE);
-                            ex.printStackTrace(System.err);
-                            return;
-                        }
-                        if (Desktop.isDesktopSupported()) {
-                            try {
-                                Desktop.getDesktop().edit(file);
-                            } catch (IOException ex) {
-                                System.err.println("Failed to open script for editing");
-                                ex.printStackTrace(System.err);
-                            }
-                        } else {
-                            System.err.println("Script was created at "+file+" but was not opened for editing because this platform doesn't support it.");
-                        }
-
-                        new Thread(() -> {
-                            try {
-                                String html = generateDocs();
-                                Platform.runLater(()->{
-                                    app.updateContents(html);
-                                });
-                            } catch (IOException ex) {
-                                System.err.println("Failed to generate catalog. "+ex.getMessage());
-                                ex.printStackTrace(System.err);
-                            }
-                        }).start();
-
-                    });
-                }
-
-                @Override
-                public void importScriptFromFileSystem(DocumentationAppFX app) {
-                    EventQueue.invokeLater(()->{
-                        FileDialog fileDialog = new FileDialog((Frame)null, "Select script", FileDialog.LOAD);
-
-                        fileDialog.setVisible(true);
-                        File[] files = fileDialog.getFiles();
-                        File file = null;
-                        if (files == null) return;
-                        for (File f : files) {
-                            if (f.isDirectory() || !f.exists()) continue;
-                            try {
-                                String contents = FileUtils.readFileToString(f, "UTF-8");
-                                if (!contents.startsWith("#!")) {
-                                    continue;
-                                }
-                            } catch (Exception ex) {
-
-                            }
-                            file = f;
-                        }
-
-                        if (file == null) {
-                            JOptionPane.showMessageDialog((Component)null, "The file you selected could not be imported.  Make sure that the file includes a hashbang (#!) on its first line.", "Invalid script", JOptionPane.ERROR_MESSAGE );
-                            return;
-                        }
-
-                        File fFile = file;
-                        new Thread(()->{
-                            runInstall((URL)null, fFile);
-
-                            try {
-                                String newDocs = generateDocs();
-                                Platform.runLater(() -> {
-                                    app.updateContents(newDocs);
-                                });
-                            } catch (Exception ex) {
-                                System.err.println("Failed to generate catalog: "+ex.getMessage());
-                                ex.printStackTrace(System.err);
-                            }
-
-
-                        }).start();
-
-                    });
-                }
-
-                @Override
-                public void importScriptFromURL(DocumentationAppFX app) {
-                    EventQueue.invokeLater(()->{
-                        String url = JOptionPane.showInputDialog("Please enter the URL of the script you want to import");
-                        if (url == null) return;
-                        new Thread(()->{
-                            try {
-                                URL u = new URL(url);
-                                runInstall(u, null);
-
-
-                            } catch (Exception ex) {
-                                EventQueue.invokeLater(()->{
-                                    JOptionPane.showMessageDialog((Component)null, "Failed to parse URL. "+ex.getMessage(), "Check URL", JOptionPane.ERROR_MESSAGE);
-                                    ex.printStackTrace(System.err);
-                                });
-                                return;
-                            }
-                            try {
-                                String newDocs = generateDocs();
-                                Platform.runLater(() -> {
-                                    app.updateContents(newDocs);
-                                });
-                            } catch (Exception ex) {
-                                System.err.println("Failed to generate catalog: "+ex.getMessage());
-                                ex.printStackTrace(System.err);
-                            }
-
-                        }).start();
-
-                    });
-
-                }
-
-                @Override
-                public void cloneScript(DocumentationAppFX app, String name) {
-                    EventQueue.invokeLater(()->{
-                        String newName = JOptionPane.showInputDialog("Please enter a name for the cloned script", name+"-copy");
-                        if (newName == null) {
-                            return;
-                        }
-                        boolean validated = true;
-                        String message = null;
-
-                        if (!newName.matches("^[a-zA-Z_\\-]+$")) {
-                            validated = false;
-                            message = "Invalid name.  Name can only include letters, numbers, underscores, and dashes";
-                        }
-
-                        if (validated) {
-                            File existing = findScript(newName);
-                            if (existing != null && existing.exists()) {
-                                validated = false;
-                                message = "A script by that name already exists.";
-
-                            }
-                        }
-
-                        File original = findScript(name);
-                        if (validated) {
-                            if (original == null || !original.exists()) {
-                                validated = false;
-                                message = "Cannot find original script named "+name+".  It may have been moved or deleted.";
-                            }
-                        }
-
-                        if (!validated) {
-                            JOptionPane.showMessageDialog((Component) null, message, "Invalid name", JOptionPane.ERROR_MESSAGE);
-                            return;
-                        }
-                        try {
-                            FileUtils.copyFile(original, new File(getScriptPaths()[0], newName));
-                        } catch (Exception ex) {
-                            message = "Failed to copy script: "+ex.getMessage();
-                            ex.printStackTrace(System.err);
-                            JOptionPane.showMessageDialog((Component) null, message, "Copy failure", JOptionPane.ERROR_MESSAGE);
-                            return;
-                        }
-
-                        JOptionPane opt = new JOptionPane("Please regenerating shellmarks catalog.  Please wait.", JOptionPane.INFORMATION_MESSAGE);
-                        String[] newContent = new String[1];
-                        Thread t = new Thread(()-> {
-                            try {
-                                newContent[0] = generateDocs();
-                                Platform.runLater(()->{
-                                    app.updateContents(newContent[0]);
-                                });
-                                EventQueue.invokeLater(()->{
-                                    opt.setVisible(false);
-                                });
-                            } catch (Exception ex) {
-                                opt.setVisible(false);
-                                System.err.println("Failed to regenerate shellmarks catalog: "+ex.getMessage());
-                                ex.printStackTrace(System.err);
-                                EventQueue.invokeLater(()-> {
-                                    JOptionPane.showMessageDialog(null, "Failed to regenerate catalog: "+ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-                                });
-                            }
-                        });
-                        t.start();
-
-
-
-                    });
-                }
-
-
-            };
-
-            DocumentationAppFX.launchNow("ShellMarks", generateDocs(), listener);
-        } else {
-            JEditorPane editor = new JEditorPane();
-            editor.setEditable(false);
-            editor.setContentType("text/html");
-            editor.setText(generateDocs());
-
-            JFrame frame = new JFrame();
-            JScrollPane scrollPane = new JScrollPane(editor);
-            frame.getContentPane().add(scrollPane, BorderLayout.CENTER);
-            frame.pack();
-            frame.setLocationRelativeTo(null);
-
-
-            frame.setVisible(true);
-        }
-
-    }
-
-
-    private void appendScripts(StringBuilder out) {
-
-    }
-
-    private String generateDocs() throws IOException {
-        StringBuilder out = new StringBuilder();
-        String sep = System.lineSeparator();
-        out.append(sep).append("= Shellmarks").append(sep)
-                .append(":doctype: book").append(sep)
-                .append(":encoding: utf-8").append(sep)
-                .append(":lang: en").append(sep)
-                .append(":toc: left").append(sep)
-                .append(":docinfo: private").append(sep).append(sep);
-
-        out.append(new String(Main.class.getResourceAsStream("welcome.adoc")
-                        .readAllBytes()));
-
-        out.append(sep).append(sep).append("++++").append(sep)
-
-                .append("<style>a.command {border: 1px solid gray; padding: 8px; font-family:sans-serif; color:#333333; border-radius: 3px; text-decoration:none;}" +
-                        "a.command:active {background-color: #eaeaea} .section-menu {float:right; margin-top: 20px;    } div.section-menu-content {display:none; float:right; clear:right;  border: 1px solid #cccccc;" +
-                        "margin-top:10px;" +
-                        "background-color: #eaeaea;" +
-                        "padding: 5px;" +
-                        "font-family: sans-serif;" +
-                        "color: black;" +
-                        "border-radius: 3px;} div.section-menu-content.active {display:block} div.section-menu-content a {text-decoration: none; padding: 5px;} " +
-                        "div.section-menu-content a span {padding-left: 10px;}</style>")
-                .append(sep).append("++++").append(sep);
-        appendToDocs(out, loadAllScriptCategories(), 0);
-
-        out.append("++++").append(sep).append("<script>").append(sep);
-        out.append(new String(Main.class.getResourceAsStream("documentation.js")
-                .readAllBytes()));
-
-        out.append(sep).append("</script>").append(sep).append("++++").append(sep);
-
-        Asciidoctor asciidoctor = Asciidoctor.Factory.create();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-        asciidoctor.convert(out.toString(), OptionsBuilder.options()
-                .safe(SafeMode.UNSAFE)
-
-                .docType("html")
-                        .headerFooter(true)
-                        .compact(true)
-                .toStream(baos)
-                .build());
-        try {
-            String strout =  baos.toString("UTF-8");
-            FileUtils.writeStringToFile(new File("/tmp/docs.html"), strout, "UTF-8");
-            return strout;
-        } catch (Exception ex) {
-            System.err.println("Failed to convert Asciidoc. "+ex.getMessage());
-            ex.printStackTrace(System.err);
-            System.exit(1);
-        }
-        return "";
-
-    }
-
-    private void appendToDocs(StringBuilder out, ScriptCategory category, int depth) {
-        String sep = System.lineSeparator();
-        if (!category.isRoot()) {
-            out.append("[#").append(category.name).append("]\n");
-            out.append("=");
-            for (int i=0; i < depth; i++) {
-                out.append("=");
-            }
-            out.append(" ").append(category.getLabel()).append(sep).append(sep);
-        }
-
-        if (category.description != null) {
-            out.append(prefixAsciidocHeadings(category.description, depth+2)).append(sep).append(sep);
-        }
-
-        List<Script> sortedScripts = new ArrayList<Script>(category.scripts);
-        sortedScripts.sort((script1, script2) -> {
-            return script1.getTitle().compareTo(script2.getTitle());
-        });
-        for (Script script : sortedScripts) {
-
-            out.append("==");
-            for (int i=0; i < depth; i++) {
-                out.append("=");
-            }
-            out.append(" ").append(script.getTitle()).append(sep).append(sep);
-            out.append(script.getDocString()).append(sep).append(sep);
-            out.append(".Script Command").append(sep).append("[source,bash]").append(sep).append("----").append(sep).append("shellmarks ").append(script.file.getName()).append(sep).append("----").append(sep);
-            out.append("++++").append(sep)
-
-                    .append("<p><a class='command' href='run:").append(script.file.getName()).append("'>Run</a>")
-                    .append(" <a class='command' href='edit:").append(script.file.getName()).append("'>Edit</a>")
-                    .append(" <a class='command' href='delete:").append(script.file.getName()).append("'>Delete</a>")
-                    .append(" <a class='command' href='clone:").append(script.file.getName()).append("'>Clone</a>")
-                    .append("</p>").append(sep);
-            out.append("++++").append(sep);
-
-        }
-        List<ScriptCategory> subcategories = new ArrayList<ScriptCategory>(category.subCategories.values());
-        subcategories.sort((c1, c2) -> {
-            return c1.name.compareTo(c2.name);
-        });
-        for (ScriptCategory subcategory : subcategories) {
-            appendToDocs(out, subcategory, depth+1);
-        }
-    }
 }
@@ -0,0 +1,292 @@
+package ca.weblite.shellmarks;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Script run, catalog and parse metrics, exported in the Prometheus text format.
+ *
+ * Recording is lock-free: every counter and histogram bucket is a {@link LongAdder}, and each
+ * series is created once with ConcurrentHashMap.computeIfAbsent().  The metrics can be exported
+ * in two ways:
+ *
+ * <ul>
+ *     <li>To a text file for the node_exporter textfile collector ({@link #flush(File)}).  Each
+ *     shellmarks process only lives as long as its scripts, so the values recorded since the last
+ *     flush are added to the values that are already in the file.  The file is replaced
+ *     atomically, and concurrent flushes are serialized with a lock file.</li>
+ *     <li>From an HTTP endpoint on localhost in daemon mode ({@link #serve(int)}), which reports
+ *     the values recorded since the daemon started.</li>
+ * </ul>
+ */
+final class Metrics {
+    private static final String RUNS = "shellmarks_script_runs_total";
+    private static final String FAILURES = "shellmarks_script_failures_total";
+    private static final String DURATION = "shellmarks_script_duration_seconds";
+    private static final String CATALOG = "shellmarks_catalog_generation_seconds";
+    private static final String PARSE = "shellmarks_parse_seconds";
+
+    private static final String[][] FAMILIES = {
+            {RUNS, "counter", "Number of times each script was run"},
+            {FAILURES, "counter", "Number of script runs that exited with a non-zero exit code"},
+            {DURATION, "histogram", "How long each script ran for"},
+            {CATALOG, "histogram", "How long it took to generate the catalog"},
+            {PARSE, "histogram", "How long it took to parse a script's shellmarks markup"},
+    };
+
+    private static final double[] SCRIPT_BUCKETS = {0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+    private static final double[] CATALOG_BUCKETS = {0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    private static final double[] PARSE_BUCKETS = {0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5};
+
+    private static final Metrics instance = new Metrics();
+
+    // Series are keyed by their rendered label set, e.g. script="backup.sh"
+    private final Map<String,LongAdder> runs = new ConcurrentHashMap<>();
+    private final Map<String,LongAdder> failures = new ConcurrentHashMap<>();
+    private final Map<String,Histogram> durations = new ConcurrentHashMap<>();
+    private final Histogram catalogLatency = new Histogram(CATALOG_BUCKETS);
+    private final Histogram parseLatency = new Histogram(PARSE_BUCKETS);
+
+    // The values that were written by the last flush, so the next flush only adds what's new
+    private final Map<String,Double> flushed = new HashMap<>();
+
+    static final class Histogram {
+        private final double[] bounds;
+        // Per-bucket counts.  They are only made cumulative when the histogram is exported.
+        private final LongAdder[] counts;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.counts = new LongAdder[bounds.length + 1];
+            for (int i=0; i<counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void observe(double value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            counts[i].increment();
+            sum.add(value);
+        }
+
+        private void appendSamples(Map<String,Double> out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i=0; i<counts.length; i++) {
+                cumulative += counts[i].sum();
+                String le = i < bounds.length ? Double.toString(bounds[i]) : "+Inf";
+                out.put(name + "_bucket{" + prefix + "le=\"" + le + "\"}", (double)cumulative);
+            }
+            String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.put(name + "_sum" + suffix, sum.sum());
+            out.put(name + "_count" + suffix, (double)cumulative);
+        }
+    }
+
+    static Metrics get() {
+        return instance;
+    }
+
+    /**
+     * Records a finished script run.
+     */
+    void recordRun(String scriptName, long durationNanos, int exitCode) {
+        String labels = "script=\"" + escape(scriptName) + "\"";
+        runs.computeIfAbsent(labels, k -> new LongAdder()).increment();
+        if (exitCode != 0) {
+            failures.computeIfAbsent(labels + ",exit_code=\"" + exitCode + "\"", k -> new LongAdder()).increment();
+        }
+        durations.computeIfAbsent(labels, k -> new Histogram(SCRIPT_BUCKETS)).observe(seconds(durationNanos));
+    }
+
+    void recordCatalogGeneration(long durationNanos) {
+        catalogLatency.observe(seconds(durationNanos));
+    }
+
+    void recordParse(long durationNanos) {
+        parseLatency.observe(seconds(durationNanos));
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * A snapshot of every sample, keyed by series (metric name and labels).
+     */
+    Map<String,Double> samples() {
+        Map<String,Double> out = new LinkedHashMap<>();
+        for (Map.Entry<String,LongAdder> e : new TreeMap<>(runs).entrySet()) {
+            out.put(RUNS + "{" + e.getKey() + "}", (double)e.getValue().sum());
+        }
+        for (Map.Entry<String,LongAdder> e : new TreeMap<>(failures).entrySet()) {
+            out.put(FAILURES + "{" + e.getKey() + "}", (double)e.getValue().sum());
+        }
+        for (Map.Entry<String,Histogram> e : new TreeMap<>(durations).entrySet()) {
+            e.getValue().appendSamples(out, DURATION, e.getKey());
+        }
+        catalogLatency.appendSamples(out, CATALOG, "");
+        parseLatency.appendSamples(out, PARSE, "");
+        return out;
+    }
+
+    /**
+     * Renders the given samples in the Prometheus text format.  Samples that don't belong to one
+     * of the shellmarks metrics are dropped.
+     */
+    static String format(Map<String,Double> samples) {
+        StringBuilder out = new StringBuilder();
+        for (String[] family : FAMILIES) {
+            StringBuilder series = new StringBuilder();
+            for (Map.Entry<String,Double> e : samples.entrySet()) {
+                if (family(e.getKey()).equals(family[0])) {
+                    series.append(e.getKey()).append(' ').append(formatValue(e.getValue())).append('\n');
+                }
+            }
+            if (series.length() > 0) {
+                out.append("# HELP ").append(family[0]).append(' ').append(family[2]).append('\n')
+                        .append("# TYPE ").append(family[0]).append(' ').append(family[1]).append('\n')
+                        .append(series);
+            }
+        }
+        return out.toString();
+    }
+
+    private static String family(String series) {
+        int brace = series.indexOf('{');
+        String name = brace < 0 ? series : series.substring(0, brace);
+        for (String suffix : new String[]{"_bucket", "_sum", "_count"}) {
+            if (name.endsWith(suffix)) {
+                return name.substring(0, name.length() - suffix.length());
+            }
+        }
+        return name;
+    }
+
+    private static String formatValue(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long)value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * Parses samples from a file in the Prometheus text format.
+     */
+    static Map<String,Double> parse(String text) {
+        Map<String,Double> out = new LinkedHashMap<>();
+        LineTokenizer lines = new LineTokenizer(text);
+        while (lines.next()) {
+            if (lines.isBlank() || lines.startsWith("#")) {
+                continue;
+            }
+            String line = lines.line().trim();
+            int space = line.lastIndexOf(' ');
+            if (space < 0) {
+                continue;
+            }
+            try {
+                out.put(line.substring(0, space).trim(), Double.parseDouble(line.substring(space + 1)));
+            } catch (NumberFormatException ex) {
+                // Not a sample that we wrote
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Adds everything that was recorded since the last flush to the values in the given text
+     * file.
+     */
+    synchronized void flush(File file) throws IOException {
+        Map<String,Double> current = samples();
+        Map<String,Double> delta = new LinkedHashMap<>();
+        for (Map.Entry<String,Double> e : current.entrySet()) {
+            double change = e.getValue() - flushed.getOrDefault(e.getKey(), 0.0);
+            if (change != 0) {
+                delta.put(e.getKey(), change);
+            }
+        }
+        if (delta.isEmpty()) {
+            return;
+        }
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File lockFile = new File(dir, "." + file.getName() + ".lock");
+        try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = lockChannel.lock()) {
+            Map<String,Double> merged = file.exists()
+                    ? parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8))
+                    : new LinkedHashMap<>();
+            for (Map.Entry<String,Double> e : delta.entrySet()) {
+                merged.merge(e.getKey(), e.getValue(), Double::sum);
+            }
+            File temp = File.createTempFile(file.getName(), ".tmp", dir);
+            try {
+                Files.write(temp.toPath(), format(merged).getBytes(StandardCharsets.UTF_8));
+                // The textfile collector requires the file to be world readable
+                temp.setReadable(true, false);
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                temp.delete();
+            }
+        }
+        flushed.putAll(current);
+    }
+
+    /**
+     * Flushes to the given file when the JVM exits.
+     */
+    void flushOnExit(File file) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                flush(file);
+            } catch (IOException ex) {
+                System.err.println("Failed to write metrics to "+file+". "+ex.getMessage());
+            }
+        }, "shellmarks-metrics"));
+    }
+
+    /**
+     * Serves the metrics at http://127.0.0.1:port/metrics.
+     */
+    HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            try {
+                byte[] body = format(samples()).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,208 @@
+package ca.weblite.shellmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Drains a script's stdout and stderr, copying them to the terminal (or a daemon client) and
+ * to the run's {@link RunLog}.
+ *
+ * Each stream has a pump thread that reads into a chunk from a bounded pool, writes the chunk to
+ * its terminal stream straight away, and hands it to a single log writer thread.  The writer
+ * returns chunks to the pool once they're on disk.  The pool bounds the memory a run can use:
+ * if the disk falls behind, the pumps wait for a free chunk and the script blocks on its pipe,
+ * the same as it would writing to a slow terminal.
+ *
+ * If writing to the terminal fails, for example because a daemon client went away, the output
+ * is still drained into the log so the script doesn't block forever.
+ */
+class OutputCapture {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int NUM_CHUNKS = 16;
+
+    // The first chunks are small, so that a script with little output doesn't cost a full chunk
+    // per stream.  That matters when many scripts run at once.
+    private static final int SMALL_CHUNK_SIZE = 4 * 1024;
+    private static final int NUM_SMALL_CHUNKS = 2;
+
+    private static final int STDOUT = 0;
+    private static final int STDERR = 1;
+
+    private static class Chunk {
+        final byte[] data;
+        int stream;
+        // -1 marks the end of the stream
+        int length;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private final RunLog log;
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(NUM_CHUNKS);
+    private final BlockingQueue<Chunk> written = new ArrayBlockingQueue<Chunk>(NUM_CHUNKS + 2);
+    private final Process process;
+    private final OutputStream out;
+    private final OutputStream err;
+    private Thread outPump;
+    private Thread errPump;
+    private Thread logWriter;
+    private boolean logFailed;
+    private final int maxChunks;
+    private int numChunks;
+
+    /**
+     * @param log Where to save the output, or null to only copy it to out and err.
+     */
+    OutputCapture(Process process, OutputStream out, OutputStream err, RunLog log) {
+        this.process = process;
+        this.out = out;
+        this.err = err;
+        this.log = log;
+        this.maxChunks = log == null ? 2 : NUM_CHUNKS;
+    }
+
+    void start() {
+        if (log != null) {
+            logWriter = Threads.start("shellmarks-log", this::writeLog);
+        }
+        InputStream stdout = process.getInputStream();
+        InputStream stderr = process.getErrorStream();
+        outPump = Threads.start("shellmarks-stdout", () -> pump(stdout, out, STDOUT));
+        errPump = Threads.start("shellmarks-stderr", () -> pump(stderr, err, STDERR));
+    }
+
+    /**
+     * Waits until both streams have been drained and the log has been written.
+     */
+    void await() throws InterruptedException {
+        outPump.join();
+        errPump.join();
+        if (logWriter != null) {
+            logWriter.join();
+        }
+    }
+
+    /**
+     * A free chunk, allocating one if fewer than maxChunks have been allocated so far.
+     */
+    private Chunk takeChunk() throws InterruptedException {
+        Chunk chunk = free.poll();
+        if (chunk != null) {
+            return chunk;
+        }
+        synchronized (free) {
+            if (numChunks < maxChunks) {
+                numChunks++;
+                return new Chunk(numChunks <= NUM_SMALL_CHUNKS ? SMALL_CHUNK_SIZE : CHUNK_SIZE);
+            }
+        }
+        return free.take();
+    }
+
+    private void pump(InputStream in, OutputStream out, int stream) {
+        boolean terminal = true;
+        try {
+            while (true) {
+                Chunk chunk = takeChunk();
+                int count = in.read(chunk.data);
+                if (count < 0) {
+                    free.add(chunk);
+                    break;
+                }
+                // Pipe reads return at most a pipe buffer's worth, which is often only a
+                // few KB.  Fill the chunk with whatever else is already waiting so that a
+                // fast writer costs fewer handoffs and log writes.
+                int more;
+                while (count < chunk.data.length && in.available() > 0
+                        && (more = in.read(chunk.data, count, chunk.data.length - count)) > 0) {
+                    count += more;
+                }
+                if (terminal) {
+                    try {
+                        out.write(chunk.data, 0, count);
+                        out.flush();
+                    } catch (IOException ex) {
+                        terminal = false;
+                    }
+                }
+                if (log == null) {
+                    free.add(chunk);
+                } else {
+                    chunk.stream = stream;
+                    chunk.length = count;
+                    written.put(chunk);
+                }
+            }
+        } catch (IOException ex) {
+            // The process has gone away
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (log != null) {
+                Chunk end = new Chunk(0);
+                end.stream = stream;
+                end.length = -1;
+                written.add(end);
+            }
+        }
+    }
+
+    /**
+     * Writes chunks to the log a line at a time per stream, so that a line of stderr never ends
+     * up in the middle of a line of stdout.  The unfinished last line of a chunk is held back
+     * until the rest of the line arrives, the stream ends, or it gets too long.
+     */
+    private void writeLog() {
+        ByteArrayOutputStream[] partial = {new ByteArrayOutputStream(), new ByteArrayOutputStream()};
+        int ended = 0;
+        try {
+            while (ended < 2) {
+                Chunk chunk = written.take();
+                ByteArrayOutputStream held = partial[chunk.stream];
+                if (chunk.length < 0) {
+                    ended++;
+                    writeLog(held.toByteArray(), 0, held.size());
+                    held.reset();
+                    continue;
+                }
+                int lineEnd = chunk.length;
+                while (lineEnd > 0 && chunk.data[lineEnd - 1] != '\n') {
+                    lineEnd--;
+                }
+                if (lineEnd > 0 && held.size() > 0) {
+                    held.write(chunk.data, 0, lineEnd);
+                    writeLog(held.toByteArray(), 0, held.size());
+                    held.reset();
+                } else if (lineEnd > 0) {
+                    writeLog(chunk.data, 0, lineEnd);
+                }
+                held.write(chunk.data, lineEnd, chunk.length - lineEnd);
+                if (held.size() > CHUNK_SIZE) {
+                    writeLog(held.toByteArray(), 0, held.size());
+                    held.reset();
+                }
+                free.add(chunk);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLog(byte[] b, int off, int len) {
+        if (len == 0 || logFailed) {
+            return;
+        }
+        try {
+            log.write(b, off, len);
+        } catch (IOException ex) {
+            System.err.println("Failed to write log "+log.getFile()+". "+ex.getMessage());
+            logFailed = true;
+        }
+    }
+}
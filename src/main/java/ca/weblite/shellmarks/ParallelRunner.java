@@ -0,0 +1,241 @@
+package ca.weblite.shellmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the scripts of a {@link ScriptGraph} concurrently for --parallel.
+ *
+ * A script starts as soon as every script it depends on has succeeded, with at most
+ * {@code parallelism} scripts running at once.  Each script runs in its own {@link Main} session.
+ * Its stdout and stderr are prefixed with the script name a line at a time, so lines from
+ * different scripts never get mixed up.
+ *
+ * When a script fails, the scripts that depend on it are skipped.  In fail-fast mode the first
+ * failure also stops the scripts that are still running and skips everything that hasn't
+ * started.  Otherwise independent scripts keep running.  A summary is printed at the end.
+ */
+class ParallelRunner {
+    enum Status {
+        Succeeded, Failed, Cancelled, Skipped
+    }
+
+    private static class Result {
+        final ScriptGraph.Node node;
+        final String label;
+        Status status;
+        int exitCode;
+        long durationNanos;
+        String detail;
+        int pendingDepends;
+
+        Result(ScriptGraph.Node node, String label) {
+            this.node = node;
+            this.label = label;
+            this.pendingDepends = node.depends.size();
+        }
+    }
+
+    private final Main session;
+    private final int parallelism;
+    private final boolean failFast;
+
+    /**
+     * @param session The session whose environment, working directory and output streams the
+     *                scripts use.
+     * @param parallelism The maximum number of scripts to run at once.
+     * @param failFast Whether to stop the other scripts as soon as one fails.
+     */
+    ParallelRunner(Main session, int parallelism, boolean failFast) {
+        this.session = session;
+        this.parallelism = Math.max(1, parallelism);
+        this.failFast = failFast;
+    }
+
+    /**
+     * Runs the scripts and prints a summary.
+     * @return 0 if every script succeeded, and 1 otherwise.
+     */
+    int run(ScriptGraph graph) {
+        OutputStream out = session.getStdout() == null ? System.out : session.getStdout();
+        OutputStream err = session.getStderr() == null ? System.err : session.getStderr();
+        List<ScriptGraph.Node> nodes = graph.getNodes();
+        List<String> labels = labels(nodes);
+        Map<ScriptGraph.Node,Result> results = new LinkedHashMap<ScriptGraph.Node,Result>();
+        for (int i=0; i<nodes.size(); i++) {
+            results.put(nodes.get(i), new Result(nodes.get(i), labels.get(i)));
+        }
+
+        ExecutorService executor = Threads.newFixedPool("shellmarks-parallel", Math.min(parallelism, Math.max(1, nodes.size())));
+        CompletionService<Result> completions = new ExecutorCompletionService<Result>(executor);
+        Set<Main> running = ConcurrentHashMap.newKeySet();
+        AtomicBoolean stopped = new AtomicBoolean();
+        long started = System.nanoTime();
+
+        // Only this thread schedules scripts and updates the results of finished scripts
+        int inFlight = 0;
+        for (Result result : results.values()) {
+            if (result.pendingDepends == 0) {
+                submit(completions, result, out, err, running, stopped);
+                inFlight++;
+            }
+        }
+        while (inFlight > 0) {
+            Result finished;
+            try {
+                finished = completions.take().get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ex) {
+                // The task catches everything that a script can throw
+                throw new IllegalStateException(ex.getCause());
+            }
+            inFlight--;
+            if (finished.status == Status.Succeeded) {
+                if (stopped.get()) {
+                    continue;
+                }
+                for (ScriptGraph.Node dependent : finished.node.dependents) {
+                    Result next = results.get(dependent);
+                    if (--next.pendingDepends == 0 && next.status == null) {
+                        submit(completions, next, out, err, running, stopped);
+                        inFlight++;
+                    }
+                }
+            } else if (finished.status == Status.Failed) {
+                skipDependents(finished, results);
+                if (failFast && stopped.compareAndSet(false, true)) {
+                    for (Main main : running) {
+                        main.cancel();
+                    }
+                }
+            }
+        }
+        executor.shutdownNow();
+
+        printSummary(new PrintStream(err, true), results.values(), System.nanoTime() - started);
+        for (Result result : results.values()) {
+            if (result.status != Status.Succeeded) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    private void submit(CompletionService<Result> completions, Result result, OutputStream out, OutputStream err, Set<Main> running, AtomicBoolean stopped) {
+        String prefix = "[" + result.label + "] ";
+        completions.submit(() -> {
+            PrefixedOutputStream scriptOut = new PrefixedOutputStream(out, prefix);
+            PrefixedOutputStream scriptErr = new PrefixedOutputStream(err, prefix);
+            Main main = session.newSession(scriptOut, scriptErr);
+            running.add(main);
+            if (stopped.get()) {
+                // Queued behind the pool when the run was stopped
+                running.remove(main);
+                result.status = Status.Cancelled;
+                return result;
+            }
+            long scriptStarted = System.nanoTime();
+            try {
+                main.run(result.node.script);
+                result.status = Status.Succeeded;
+            } catch (Exception ex) {
+                result.exitCode = main.getExitCode();
+                result.status = main.isCancelled() ? Status.Cancelled : Status.Failed;
+                if (result.status == Status.Failed) {
+                    result.detail = result.exitCode != 0 ? "exit code " + result.exitCode : ex.getMessage();
+                }
+            } finally {
+                result.durationNanos = System.nanoTime() - scriptStarted;
+                running.remove(main);
+                close(scriptOut);
+                close(scriptErr);
+            }
+            return result;
+        });
+    }
+
+    private static void skipDependents(Result failed, Map<ScriptGraph.Node,Result> results) {
+        Deque<ScriptGraph.Node> queue = new ArrayDeque<ScriptGraph.Node>(failed.node.dependents);
+        while (!queue.isEmpty()) {
+            Result result = results.get(queue.pop());
+            if (result.status == null) {
+                result.status = Status.Skipped;
+                result.detail = "needs " + failed.label;
+                queue.addAll(result.node.dependents);
+            }
+        }
+    }
+
+    /**
+     * Script file names, or paths if two scripts have the same name.
+     */
+    private static List<String> labels(List<ScriptGraph.Node> nodes) {
+        Map<String,Integer> counts = new HashMap<String,Integer>();
+        for (ScriptGraph.Node node : nodes) {
+            counts.merge(node.getName(), 1, Integer::sum);
+        }
+        List<String> out = new ArrayList<String>();
+        for (ScriptGraph.Node node : nodes) {
+            out.add(counts.get(node.getName()) > 1 ? node.script.getPath() : node.getName());
+        }
+        return out;
+    }
+
+    private static void printSummary(PrintStream out, Collection<Result> results, long durationNanos) {
+        Map<Status,Integer> counts = new EnumMap<Status,Integer>(Status.class);
+        for (Status status : Status.values()) {
+            counts.put(status, 0);
+        }
+        int width = 0;
+        for (Result result : results) {
+            width = Math.max(width, result.label.length());
+        }
+        StringBuilder lines = new StringBuilder();
+        for (Result result : results) {
+            if (result.status == null) {
+                // Never started because the run was stopped
+                result.status = Status.Cancelled;
+            }
+            counts.merge(result.status, 1, Integer::sum);
+            String detail;
+            switch (result.status) {
+                case Succeeded:
+                    detail = seconds(result.durationNanos);
+                    break;
+                case Failed:
+                    detail = seconds(result.durationNanos) + "  " + result.detail;
+                    break;
+                default:
+                    detail = result.detail == null ? "" : result.detail;
+            }
+            lines.append(String.format(Locale.ROOT, "  %-10s %-" + width + "s  %s", result.status, result.label, detail).stripTrailing())
+                    .append(System.lineSeparator());
+        }
+        synchronized (out) {
+            out.println();
+            out.println("Ran " + results.size() + " scripts in " + seconds(durationNanos) + ": "
+                    + counts.get(Status.Succeeded) + " succeeded, " + counts.get(Status.Failed) + " failed, "
+                    + counts.get(Status.Cancelled) + " cancelled, " + counts.get(Status.Skipped) + " skipped");
+            out.print(lines);
+            out.flush();
+        }
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.1fs", nanos / 1e9);
+    }
+
+    private static void close(OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException ex) {
+            // Nothing to do
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package ca.weblite.shellmarks;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records how long each phase of a shellmarks invocation takes, for the --timings option.
+ *
+ * Timing is off unless {@link #enable(String, String)} is called, in which case {@link #start(String)}
+ * returns a no-op phase so that instrumented code paths cost next to nothing.  When enabled, the
+ * phases are printed to stderr when the JVM exits, either as a table or as a single JSON object.
+ * Phases may end on a different thread than they started on.  Nesting is inferred from the
+ * timestamps of phases that started on the same thread.
+ */
+final class PhaseTimer {
+    static final String FORMAT_TABLE = "table";
+    static final String FORMAT_JSON = "json";
+
+    private static final Phase NOOP = new Phase(null, null);
+
+    /**
+     * Taken when this class is first loaded, which is when Main.main() calls {@link #startClock()}.
+     */
+    private static final long ORIGIN = System.nanoTime();
+
+    private static volatile PhaseTimer current;
+
+    private final String format;
+    private final String mode;
+    private final long jvmStartupNanos;
+    private final List<Phase> phases = new ArrayList<Phase>();
+
+    /**
+     * A timed phase.  Closing it records its end time.
+     */
+    static final class Phase implements AutoCloseable {
+        private final PhaseTimer timer;
+        private final String name;
+        private final String thread;
+        private final long start;
+        private long end = -1;
+
+        private Phase(PhaseTimer timer, String name) {
+            this(timer, name, System.nanoTime());
+        }
+
+        private Phase(PhaseTimer timer, String name, long start) {
+            this.timer = timer;
+            this.name = name;
+            this.thread = Thread.currentThread().getName();
+            this.start = start;
+        }
+
+        @Override
+        public void close() {
+            if (timer != null && end < 0) {
+                end = System.nanoTime();
+                timer.add(this);
+            }
+        }
+    }
+
+    private PhaseTimer(String format, String mode) {
+        this.format = format;
+        this.mode = mode;
+        // The JVM's uptime only has millisecond resolution, which is plenty for startup
+        long uptimeNanos = ManagementFactory.getRuntimeMXBean().getUptime() * 1000000L;
+        this.jvmStartupNanos = Math.max(0, uptimeNanos - (System.nanoTime() - ORIGIN));
+    }
+
+    /**
+     * Starts recording phases, and prints them when the JVM exits.  The time from the top of
+     * Main.main() until now is recorded as argument parsing.
+     * @param format Either {@link #FORMAT_TABLE} or {@link #FORMAT_JSON}.
+     * @param mode What this invocation does (e.g. "script" or "catalog"), which is included in
+     *             the report.
+     */
+    static synchronized void enable(String format, String mode) {
+        if (current != null) {
+            return;
+        }
+        PhaseTimer timer = new PhaseTimer(format, mode);
+        new Phase(timer, "parse arguments", ORIGIN).close();
+        current = timer;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> timer.print(System.err), "shellmarks-timings"));
+    }
+
+    /**
+     * Loads this class, so that phase start times are relative to the call.
+     */
+    static void startClock() {
+
+    }
+
+    static boolean isEnabled() {
+        return current != null;
+    }
+
+    /**
+     * Starts a phase.  Use in a try-with-resources block, or call close() on the result when
+     * the phase is over.
+     */
+    static Phase start(String name) {
+        PhaseTimer timer = current;
+        return timer == null ? NOOP : new Phase(timer, name);
+    }
+
+    private synchronized void add(Phase phase) {
+        phases.add(phase);
+    }
+
+    private synchronized List<Phase> sortedPhases() {
+        List<Phase> out = new ArrayList<Phase>(phases);
+        // Longer phases first when they start together, so that parents come before children
+        out.sort(Comparator.<Phase>comparingLong(p -> p.start).thenComparing(p -> -p.end));
+        return out;
+    }
+
+    private static int depth(Phase phase, List<Phase> sorted, int index) {
+        int depth = 0;
+        for (int i=0; i<index; i++) {
+            Phase other = sorted.get(i);
+            if (other.thread.equals(phase.thread) && other.start <= phase.start && other.end >= phase.end) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    void print(PrintStream out) {
+        long end = System.nanoTime();
+        List<Phase> sorted = sortedPhases();
+        if (FORMAT_JSON.equals(format)) {
+            out.println(toJson(sorted, end));
+        } else {
+            out.print(toTable(sorted, end));
+        }
+        out.flush();
+    }
+
+    private String toTable(List<Phase> sorted, long end) {
+        String sep = System.lineSeparator();
+        StringBuilder out = new StringBuilder();
+        out.append(sep).append("shellmarks timings (").append(mode).append(")").append(sep);
+        out.append(String.format(Locale.ROOT, "%-40s %10s %10s  %s", "Phase", "Start ms", "Time ms", "Thread")).append(sep);
+        out.append(String.format(Locale.ROOT, "%-40s %10s %10.1f", "jvm startup", "", millis(jvmStartupNanos))).append(sep);
+        for (int i=0; i<sorted.size(); i++) {
+            Phase phase = sorted.get(i);
+            StringBuilder name = new StringBuilder();
+            for (int d=depth(phase, sorted, i); d>0; d--) {
+                name.append("  ");
+            }
+            name.append(phase.name);
+            out.append(String.format(Locale.ROOT, "%-40s %10.1f %10.1f  %s", name,
+                    millis(phase.start - ORIGIN), millis(phase.end - phase.start), phase.thread)).append(sep);
+        }
+        out.append(String.format(Locale.ROOT, "%-40s %10s %10.1f", "total", "", millis(jvmStartupNanos + end - ORIGIN))).append(sep);
+        return out.toString();
+    }
+
+    private String toJson(List<Phase> sorted, long end) {
+        StringBuilder out = new StringBuilder();
+        out.append("{\"version\":").append(jsonString(Main.class.getAnnotation(picocli.CommandLine.Command.class).version()[0]))
+                .append(",\"mode\":").append(jsonString(mode))
+                .append(",\"jvmStartupMs\":").append(String.format(Locale.ROOT, "%.3f", millis(jvmStartupNanos)))
+                .append(",\"totalMs\":").append(String.format(Locale.ROOT, "%.3f", millis(jvmStartupNanos + end - ORIGIN)))
+                .append(",\"phases\":[");
+        for (int i=0; i<sorted.size(); i++) {
+            Phase phase = sorted.get(i);
+            if (i > 0) out.append(',');
+            out.append("{\"name\":").append(jsonString(phase.name))
+                    .append(",\"depth\":").append(depth(phase, sorted, i))
+                    .append(",\"thread\":").append(jsonString(phase.thread))
+                    .append(",\"startMs\":").append(String.format(Locale.ROOT, "%.3f", millis(phase.start - ORIGIN)))
+                    .append(",\"durationMs\":").append(String.format(Locale.ROOT, "%.3f", millis(phase.end - phase.start)))
+                    .append('}');
+        }
+        return out.append("]}").toString();
+    }
+
+    private static String jsonString(String str) {
+        StringBuilder out = new StringBuilder("\"");
+        for (char c : str.toCharArray()) {
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"').toString();
+    }
+}
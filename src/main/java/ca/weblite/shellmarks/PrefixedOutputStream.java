@@ -0,0 +1,90 @@
+package ca.weblite.shellmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes complete lines to a shared stream, each one starting with a prefix, so that the
+ * output of scripts that run in parallel doesn't get interleaved mid-line.
+ *
+ * Lines end at '\n' or '\r', so progress output that redraws a line with '\r' still comes
+ * through as it happens, and a '\n' straight after a '\r' completes that line without starting
+ * another one.  A line that grows past {@link #MAX_LINE} bytes is written in pieces, each ended
+ * with a newline.
+ *
+ * Lines are written while holding the target stream's monitor, which PrintStream also uses, so
+ * every writer to the target must go through a PrefixedOutputStream or a PrintStream.
+ */
+class PrefixedOutputStream extends OutputStream {
+    static final int MAX_LINE = 64 * 1024;
+
+    private final OutputStream target;
+    private final byte[] prefix;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+    // Whether the last line ended with '\r', in which case a '\n' that follows belongs to it
+    private boolean afterCarriageReturn;
+
+    PrefixedOutputStream(OutputStream target, String prefix) {
+        this.target = target;
+        this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int start = off;
+        for (int i=off; i<end; i++) {
+            if (afterCarriageReturn) {
+                afterCarriageReturn = false;
+                if (b[i] == '\n') {
+                    synchronized (target) {
+                        target.write('\n');
+                        target.flush();
+                    }
+                    start = i + 1;
+                    continue;
+                }
+            }
+            if (b[i] == '\n' || b[i] == '\r') {
+                line.write(b, start, i + 1 - start);
+                writeLine();
+                afterCarriageReturn = b[i] == '\r';
+                start = i + 1;
+            } else if (line.size() + i + 1 - start >= MAX_LINE) {
+                line.write(b, start, i + 1 - start);
+                line.write('\n');
+                writeLine();
+                start = i + 1;
+            }
+        }
+        line.write(b, start, end - start);
+    }
+
+    private void writeLine() throws IOException {
+        synchronized (target) {
+            target.write(prefix);
+            line.writeTo(target);
+            target.flush();
+        }
+        line.reset();
+    }
+
+    /**
+     * Writes the last line if it didn't end with a newline.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (line.size() > 0) {
+            line.write('\n');
+            writeLine();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package ca.weblite.shellmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of rendered HTML fragments for the shellmarks catalog.
+ *
+ * Fragments are keyed by a hash of their Asciidoc source, so that a catalog regeneration only
+ * needs to convert the fragments whose source actually changed.  A fragment is converted as a
+ * document of its own, so only source that renders the same on its own as it does inside the
+ * catalog can be a fragment (see {@link #isSelfContained}).  Anything else, e.g. a description
+ * with headings, has to be written into the catalog page itself.
+ */
+class RenderCache {
+    private static final String PLACEHOLDER_PREFIX = "<!--shellmarks-fragment:";
+    private static final String PLACEHOLDER_SUFFIX = "-->";
+
+    private final Map<String,String> fragments = new ConcurrentHashMap<>();
+
+    /**
+     * A fragment of the catalog that is rendered on its own.  The id is stable across
+     * regenerations (e.g. it is derived from the script file name), and is used as the
+     * id of the element that wraps the fragment in the assembled page.
+     */
+    static class Fragment {
+        final String id;
+        final String source;
+        final String key;
+
+        Fragment(String id, String source) {
+            this.id = id;
+            this.source = source;
+            this.key = key(source);
+        }
+    }
+
+    /**
+     * A rendered catalog page.
+     */
+    static class Page {
+        final String key;
+        final String html;
+        final Map<String,String> fragmentHtml;
+
+        Page(String key, String html, Map<String,String> fragmentHtml) {
+            this.key = key;
+            this.html = html;
+            this.fragmentHtml = fragmentHtml;
+        }
+    }
+
+    static String key(String source) {
+        return CatalogIndex.hash(source.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String placeholder(int index) {
+        return PLACEHOLDER_PREFIX + index + PLACEHOLDER_SUFFIX;
+    }
+
+    static String openWrapper(String id) {
+        return "<div class=\"shellmarks-fragment\" id=\"" + escapeAttribute(id) + "\">";
+    }
+
+    static String closeWrapper() {
+        return "</div>";
+    }
+
+    /**
+     * Whether the given Asciidoc renders the same on its own as it does as part of a larger
+     * document.  That rules out anything that reads or changes document state: headings, which
+     * belong in the table of contents and get ids from the document's section sequence, attribute
+     * entries and references, anchors and cross references, footnotes, and block titles, which
+     * are numbered through the document for tables, figures and examples.  This errs on the side
+     * of false, which only costs a re-render of the page.
+     */
+    static boolean isSelfContained(String source) {
+        if (source.contains("{") || source.contains("[[") || source.contains("<<") || source.contains("[#")
+                || source.contains("xref:") || source.contains("anchor:") || source.contains("footnote")
+                || source.contains("toc::")) {
+            return false;
+        }
+        LineTokenizer lines = new LineTokenizer(source);
+        while (lines.next()) {
+            if (lines.headingLevel() > 0 || lines.startsWith(":")) {
+                return false;
+            }
+            if (lines.length() > 1 && lines.startsWith(".")) {
+                char c = source.charAt(lines.start() + 1);
+                if (c != '.' && !Character.isWhitespace(c)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    String get(String key) {
+        return fragments.get(key);
+    }
+
+    void put(String key, String html) {
+        fragments.put(key, html);
+    }
+
+    /**
+     * Drops all fragments that aren't in the given set of keys.  Called after each catalog
+     * generation so that the cache only holds fragments for the current catalog.
+     */
+    void retainAll(Collection<String> keys) {
+        Set<String> keep = new HashSet<String>(keys);
+        fragments.keySet().retainAll(keep);
+    }
+
+    /**
+     * Replaces each fragment placeholder in the given page with its rendered HTML, wrapped
+     * in an element whose id is the fragment id.  The result is the same as converting the page
+     * with each fragment's source in place of its placeholder, between passthrough blocks with
+     * {@link #openWrapper} and {@link #closeWrapper}.
+     *
+     * @param pageKey The key of the page source.
+     * @param pageHtml The rendered page, containing placeholders.
+     * @param fragmentList The fragments in placeholder order.
+     * @param renderedFragments The rendered HTML for each fragment, in placeholder order.
+     */
+    Page assemble(String pageKey, String pageHtml, List<Fragment> fragmentList, List<String> renderedFragments) {
+        Map<String,String> fragmentHtml = new LinkedHashMap<String,String>();
+        StringBuilder out = new StringBuilder(pageHtml.length() + renderedFragments.size() * 512);
+        int pos = 0;
+        int len = pageHtml.length();
+        while (pos < len) {
+            int start = pageHtml.indexOf(PLACEHOLDER_PREFIX, pos);
+            if (start < 0) {
+                break;
+            }
+            int end = pageHtml.indexOf(PLACEHOLDER_SUFFIX, start + PLACEHOLDER_PREFIX.length());
+            if (end < 0) {
+                break;
+            }
+            int index;
+            try {
+                index = Integer.parseInt(pageHtml.substring(start + PLACEHOLDER_PREFIX.length(), end));
+            } catch (NumberFormatException ex) {
+                index = -1;
+            }
+            if (index < 0 || index >= fragmentList.size()) {
+                out.append(pageHtml, pos, end + PLACEHOLDER_SUFFIX.length());
+            } else {
+                Fragment fragment = fragmentList.get(index);
+                String html = renderedFragments.get(index);
+                fragmentHtml.put(fragment.id, html);
+                out.append(pageHtml, pos, start)
+                        .append(openWrapper(fragment.id)).append('\n')
+                        .append(html).append('\n')
+                        .append(closeWrapper());
+            }
+            pos = end + PLACEHOLDER_SUFFIX.length();
+        }
+        out.append(pageHtml, pos, len);
+        return new Page(pageKey, out.toString(), fragmentHtml);
+    }
+
+    private static String escapeAttribute(String str) {
+        return str.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
@@ -0,0 +1,378 @@
+package ca.weblite.shellmarks;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only history of script runs, stored in ~/.shellmarks/journal.
+ *
+ * The journal is a sequence of segment files (segment-0000000001.journal, ...).  Each segment
+ * starts with a magic number and version, followed by records of the form
+ *
+ * <pre>
+ * int length, byte[length] body, int crc32(body)
+ * body: long startTime, long durationNanos, int exitCode, string scriptName,
+ *       short numVariables, string[numVariables] variableNames
+ * string: unsigned short length, UTF-8 bytes
+ * </pre>
+ *
+ * Every record is appended with a single write to a file opened with O_APPEND, so concurrent
+ * shellmarks processes can share the journal without locking, and a record is never
+ * interleaved with another.  Appends are not fsync'd.  A record that was torn by a crash fails
+ * its checksum, and reading that segment stops there.
+ *
+ * Once the newest segment reaches {@link #SEGMENT_SIZE}, the next append starts a new one.
+ * Older segments are sealed, so {@link #compact(long)} can rewrite them without coordinating
+ * with writers.  Compaction merges a run of sealed segments into a segment named after the range
+ * of sequence numbers that it replaces (segment-0000000001-0000000005.journal), and only then
+ * deletes the inputs.  A segment whose range is covered by another segment's range is
+ * superseded: readers skip it, and the next compaction deletes it.  So a crash part way through
+ * a compaction leaves every record readable exactly once.
+ */
+final class RunJournal {
+    static final int MAGIC = 0x53484d4a;
+    static final int VERSION = 1;
+    static final long SEGMENT_SIZE = 8L * 1024 * 1024;
+
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".journal";
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    // Segments that were written to recently may still have an append in flight
+    private static final long QUIET_PERIOD = 60000;
+
+    private final File dir;
+
+    /**
+     * A single script run.  Readers reuse one instance for every record.
+     */
+    static class Record {
+        String scriptName;
+        long startTime;
+        long durationNanos;
+        int exitCode;
+        final List<String> variableNames = new ArrayList<String>();
+    }
+
+    interface RecordHandler {
+        void handle(Record record) throws IOException;
+    }
+
+    RunJournal(File dir) {
+        this.dir = dir;
+    }
+
+    static File getDefaultDir() {
+        return new File(Main.getShellmarksDir(), "journal");
+    }
+
+    /**
+     * Records a script run.
+     * @param variableNames The names of the variables that the form set.  Values are never
+     *                      recorded.
+     */
+    void append(String scriptName, long startTime, long durationNanos, int exitCode, Collection<String> variableNames) throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(encode(scriptName, startTime, durationNanos, exitCode, variableNames));
+        try (FileChannel channel = FileChannel.open(activeSegment().toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        }
+    }
+
+    /**
+     * Encodes a record, including its length and checksum.
+     */
+    private static byte[] encode(String scriptName, long startTime, long durationNanos, int exitCode, Collection<String> variableNames) throws IOException {
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(64);
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        body.writeLong(startTime);
+        body.writeLong(durationNanos);
+        body.writeInt(exitCode);
+        writeString(body, scriptName);
+        int numVariables = Math.min(variableNames.size(), 0xffff);
+        body.writeShort(numVariables);
+        int i = 0;
+        for (String name : variableNames) {
+            if (i++ >= numVariables) break;
+            writeString(body, name);
+        }
+        body.flush();
+        byte[] bytes = bodyBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return ByteBuffer.allocate(bytes.length + 8).putInt(bytes.length).put(bytes).putInt((int)crc.getValue()).array();
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        int len = Math.min(bytes.length, 0xffff);
+        out.writeShort(len);
+        out.write(bytes, 0, len);
+    }
+
+    /**
+     * The segment that appends go to, creating a new one if the newest is full.
+     */
+    private File activeSegment() throws IOException {
+        List<File> segments = getSegments();
+        if (!segments.isEmpty()) {
+            File last = segments.get(segments.size() - 1);
+            if (last.length() < SEGMENT_SIZE) {
+                return last;
+            }
+            return createSegment(sequence(last) + 1);
+        }
+        return createSegment(1);
+    }
+
+    /**
+     * Creates a segment with its header in place, so that no process ever appends to a segment
+     * that doesn't have its header yet.  If another process created it first, that one is used.
+     */
+    private File createSegment(long sequence) throws IOException {
+        dir.mkdirs();
+        File segment = new File(dir, String.format(Locale.ROOT, "%s%010d%s", PREFIX, sequence, SUFFIX));
+        File temp = File.createTempFile(PREFIX, ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            try {
+                Files.createLink(segment.toPath(), temp.toPath());
+            } catch (FileAlreadyExistsException ex) {
+                // Another process got there first
+            }
+        } finally {
+            temp.delete();
+        }
+        return segment;
+    }
+
+    /**
+     * The last sequence number that a segment covers.
+     */
+    private static long sequence(File segment) {
+        return range(segment)[1];
+    }
+
+    /**
+     * The first and last sequence numbers that a segment covers.  They are the same except for
+     * segments that were merged by {@link #compact(long)}.
+     */
+    private static long[] range(File segment) {
+        String name = segment.getName();
+        String numbers = name.substring(PREFIX.length(), name.length() - SUFFIX.length());
+        int dash = numbers.indexOf('-');
+        if (dash < 0) {
+            long sequence = Long.parseLong(numbers);
+            return new long[]{sequence, sequence};
+        }
+        long[] range = new long[]{Long.parseLong(numbers.substring(0, dash)), Long.parseLong(numbers.substring(dash + 1))};
+        if (range[0] > range[1]) {
+            throw new NumberFormatException(numbers);
+        }
+        return range;
+    }
+
+    private static boolean isMerged(File segment) {
+        return segment.getName().indexOf('-', PREFIX.length()) >= 0;
+    }
+
+    /**
+     * Whether segment a's records are all in segment b, i.e. b's range covers a's.
+     */
+    private static boolean supersedes(File b, File a) {
+        long[] rangeA = range(a);
+        long[] rangeB = range(b);
+        if (rangeB[0] > rangeA[0] || rangeB[1] < rangeA[1]) {
+            return false;
+        }
+        if (rangeB[0] == rangeA[0] && rangeB[1] == rangeA[1]) {
+            // A merge of a single segment keeps its name, so this only happens when segment
+            // n-n was merged but n wasn't deleted yet
+            return isMerged(b) && !isMerged(a);
+        }
+        return true;
+    }
+
+    /**
+     * All segments, oldest first.
+     */
+    List<File> getSegments() {
+        return getSegments(null);
+    }
+
+    /**
+     * @param superseded Receives the segments that were replaced by a merged segment, and are
+     *                   left out of the result.  May be null.
+     */
+    private List<File> getSegments(List<File> superseded) {
+        List<File> all = new ArrayList<File>();
+        List<File> out = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return out;
+        }
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                try {
+                    range(f);
+                    all.add(f);
+                } catch (NumberFormatException ex) {
+                    // Not one of ours
+                }
+            }
+        }
+        outer:
+        for (File f : all) {
+            for (File other : all) {
+                if (other != f && supersedes(other, f)) {
+                    if (superseded != null) {
+                        superseded.add(f);
+                    }
+                    continue outer;
+                }
+            }
+            out.add(f);
+        }
+        out.sort((a, b) -> Long.compare(sequence(a), sequence(b)));
+        return out;
+    }
+
+    /**
+     * Streams every record in the journal to the handler, oldest first.
+     * @param withVariables Whether to decode the variable names.  Skipping them makes reading faster.
+     */
+    void read(RecordHandler handler, boolean withVariables) throws IOException {
+        for (File segment : getSegments()) {
+            read(segment, handler, withVariables);
+        }
+    }
+
+    private static void read(File segment, RecordHandler handler, boolean withVariables) throws IOException {
+        Record record = new Record();
+        CRC32 crc = new CRC32();
+        byte[] body = new byte[256];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 65536))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.err.println("Skipping unrecognized journal segment "+segment);
+                return;
+            }
+            while (true) {
+                int len;
+                try {
+                    len = in.readInt();
+                } catch (EOFException ex) {
+                    return;
+                }
+                if (len < 0 || len > MAX_RECORD_SIZE) {
+                    return;
+                }
+                if (body.length < len) {
+                    body = new byte[Math.max(len, body.length * 2)];
+                }
+                in.readFully(body, 0, len);
+                int checksum = in.readInt();
+                crc.reset();
+                crc.update(body, 0, len);
+                if ((int)crc.getValue() != checksum) {
+                    // Torn write
+                    return;
+                }
+                ByteBuffer buf = ByteBuffer.wrap(body, 0, len);
+                record.startTime = buf.getLong();
+                record.durationNanos = buf.getLong();
+                record.exitCode = buf.getInt();
+                record.scriptName = readString(buf);
+                record.variableNames.clear();
+                if (withVariables) {
+                    int numVariables = buf.getShort() & 0xffff;
+                    for (int i=0; i<numVariables; i++) {
+                        record.variableNames.add(readString(buf));
+                    }
+                }
+                handler.handle(record);
+            }
+        } catch (EOFException ex) {
+            // Truncated record at the end of the segment
+        }
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getShort() & 0xffff;
+        String out = new String(buf.array(), buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return out;
+    }
+
+    /**
+     * Merges the sealed segments into one, dropping records that started before minStartTime.
+     * The newest segment, and any segment that was modified within the last minute, are left
+     * alone because they may still be appended to.  Segments left behind by an interrupted
+     * compaction are deleted.
+     * @return The number of records that were dropped.
+     */
+    long compact(long minStartTime) throws IOException {
+        List<File> superseded = new ArrayList<File>();
+        List<File> segments = getSegments(superseded);
+        for (File segment : superseded) {
+            segment.delete();
+        }
+        List<File> sealed = new ArrayList<File>();
+        long now = System.currentTimeMillis();
+        for (int i=0; i<segments.size() - 1; i++) {
+            File segment = segments.get(i);
+            if (now - segment.lastModified() < QUIET_PERIOD) {
+                break;
+            }
+            sealed.add(segment);
+        }
+        if (sealed.isEmpty()) {
+            return 0;
+        }
+        // A single segment is simply replaced.  Otherwise the merged segment gets a new name, so
+        // that its inputs are superseded as soon as it exists.
+        File target = sealed.size() == 1 ? sealed.get(0) : new File(dir, String.format(Locale.ROOT, "%s%010d-%010d%s",
+                PREFIX, range(sealed.get(0))[0], sequence(sealed.get(sealed.size() - 1)), SUFFIX));
+        File temp = File.createTempFile(PREFIX, ".tmp", dir);
+        long[] dropped = new long[1];
+        try {
+            try (DataOutputStream dest = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                dest.writeInt(MAGIC);
+                dest.writeInt(VERSION);
+                for (File segment : sealed) {
+                    read(segment, record -> {
+                        if (record.startTime < minStartTime) {
+                            dropped[0]++;
+                            return;
+                        }
+                        dest.write(encode(record.scriptName, record.startTime, record.durationNanos, record.exitCode, record.variableNames));
+                    }, true);
+                }
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+        if (sealed.size() > 1) {
+            for (File segment : sealed) {
+                segment.delete();
+            }
+        }
+        return dropped[0];
+    }
+}
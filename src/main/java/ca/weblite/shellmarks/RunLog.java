@@ -0,0 +1,190 @@
+package ca.weblite.shellmarks;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The saved output of a single script run, stored in ~/.shellmarks/logs/&lt;script&gt;.
+ *
+ * Output is written to &lt;start time&gt;-&lt;pid&gt;.log.  Once that reaches
+ * {@link #SEGMENT_SIZE} it is renamed to &lt;start time&gt;-&lt;pid&gt;.log.1, and so on, and a
+ * background thread gzips the renamed segment so that compression never holds up the script.
+ * Only the newest {@link #MAX_SEGMENTS} rotated segments of a run are kept, and only the newest
+ * {@link #MAX_RUNS} runs of each script.
+ */
+final class RunLog implements Closeable {
+    static final long SEGMENT_SIZE = 16L * 1024 * 1024;
+    static final int MAX_SEGMENTS = 8;
+    static final int MAX_RUNS = 20;
+
+    private static final String SUFFIX = ".log";
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final File STOP = new File("");
+
+    private final File dir;
+    private final String baseName;
+    private final File file;
+    private FileChannel channel;
+    private long size;
+    private volatile int numSegments;
+
+    // Rotated segments waiting to be compressed
+    private final BlockingQueue<File> pending = new LinkedBlockingQueue<File>();
+    private Thread compressor;
+
+    private RunLog(File dir, String baseName) throws IOException {
+        this.dir = dir;
+        this.baseName = baseName;
+        this.file = new File(dir, baseName + SUFFIX);
+        this.channel = open(file);
+    }
+
+    static File getDefaultDir() {
+        return new File(Main.getShellmarksDir(), "logs");
+    }
+
+    /**
+     * Starts the log of a script run.
+     * @param pid The pid of the script's process, which tells apart runs that started in the
+     *            same millisecond.
+     */
+    static RunLog create(File logsDir, String scriptName, long startTime, long pid) throws IOException {
+        File dir = new File(logsDir, scriptName);
+        dir.mkdirs();
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss.SSS", Locale.ROOT);
+        return new RunLog(dir, format.format(new Date(startTime)) + "-" + pid);
+    }
+
+    private static FileChannel open(File f) throws IOException {
+        return FileChannel.open(f.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        if (size > 0 && size + len > SEGMENT_SIZE) {
+            rotate();
+        }
+        ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        size += len;
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        File segment = segment(++numSegments);
+        Files.move(file.toPath(), segment.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        channel = open(file);
+        size = 0;
+        if (compressor == null) {
+            compressor = Threads.startDaemon("shellmarks-log-gzip", this::compressPending);
+        }
+        pending.add(segment);
+    }
+
+    private File segment(int index) {
+        return new File(dir, baseName + SUFFIX + "." + index);
+    }
+
+    private boolean isExpired(int index) {
+        return index <= numSegments - MAX_SEGMENTS;
+    }
+
+    private void compressPending() {
+        while (true) {
+            File segment;
+            try {
+                segment = pending.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (segment == STOP) {
+                return;
+            }
+            String name = segment.getName();
+            if (isExpired(Integer.parseInt(name.substring(name.lastIndexOf('.') + 1)))) {
+                // Rotated out before we got to it
+                segment.delete();
+                continue;
+            }
+            File gz = new File(dir, name + GZIP_SUFFIX);
+            File temp = new File(dir, name + GZIP_SUFFIX + ".tmp");
+            try {
+                try (InputStream in = new FileInputStream(segment);
+                     OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), 65536) {{ def.setLevel(Deflater.BEST_SPEED); }}) {
+                    byte[] buf = new byte[65536];
+                    int count;
+                    while ((count = in.read(buf)) > -1) {
+                        out.write(buf, 0, count);
+                    }
+                }
+                Files.move(temp.toPath(), gz.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                segment.delete();
+            } catch (IOException ex) {
+                // Keep the uncompressed segment
+                System.err.println("Failed to compress log segment "+segment+". "+ex.getMessage());
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Closes the log, waits for the rotated segments to be compressed, and deletes segments and
+     * runs that are past the retention limits.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (compressor != null) {
+            pending.add(STOP);
+            try {
+                compressor.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            for (int i=1; isExpired(i); i++) {
+                segment(i).delete();
+                new File(dir, segment(i).getName() + GZIP_SUFFIX).delete();
+            }
+        }
+        pruneRuns(dir);
+    }
+
+    /**
+     * Deletes all but the newest {@link #MAX_RUNS} runs in a script's log directory.
+     */
+    private static void pruneRuns(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // Runs are named by start time, so they sort oldest first
+        TreeMap<String,List<File>> runs = new TreeMap<String,List<File>>();
+        for (File f : files) {
+            String name = f.getName();
+            int pos = name.indexOf(SUFFIX);
+            if (pos > 0) {
+                runs.computeIfAbsent(name.substring(0, pos), k -> new ArrayList<File>()).add(f);
+            }
+        }
+        while (runs.size() > MAX_RUNS) {
+            for (File f : runs.pollFirstEntry().getValue()) {
+                f.delete();
+            }
+        }
+    }
+}
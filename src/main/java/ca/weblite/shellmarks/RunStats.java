@@ -0,0 +1,120 @@
+package ca.weblite.shellmarks;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Per-script run counts, failure rates and duration percentiles, computed from the
+ * {@link RunJournal} for --stats.
+ *
+ * Durations go into log-linear histograms with 32 sub-buckets per power of two, so memory use
+ * doesn't depend on the number of runs and percentiles are accurate to about 3%.
+ */
+class RunStats {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final Map<String,ScriptStats> scripts = new TreeMap<String,ScriptStats>();
+
+    static class ScriptStats {
+        long runs;
+        long failures;
+        // Durations in microseconds
+        private long[] buckets = new long[SUB_BUCKETS * 4];
+
+        void add(long durationMicros, int exitCode) {
+            runs++;
+            if (exitCode != 0) {
+                failures++;
+            }
+            int index = bucket(Math.max(0, durationMicros));
+            if (index >= buckets.length) {
+                buckets = Arrays.copyOf(buckets, Math.max(index + 1, buckets.length * 2));
+            }
+            buckets[index]++;
+        }
+
+        /**
+         * @param percentile Between 0 and 100.
+         * @return The duration in microseconds that the given percentage of runs finished within.
+         */
+        long percentile(double percentile) {
+            long rank = Math.max(1, (long)Math.ceil(percentile / 100.0 * runs));
+            long seen = 0;
+            for (int i=0; i<buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return value(i);
+                }
+            }
+            return 0;
+        }
+    }
+
+    private static int bucket(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int)value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int)(value >> shift);
+    }
+
+    /**
+     * The midpoint of the values that fall into the given bucket.
+     */
+    private static long value(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long)(bucket - shift * SUB_BUCKETS) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+
+    /**
+     * Streams the journal and collects the stats.
+     * @param scriptName Only collect stats for this script, or null for all scripts.
+     */
+    static RunStats load(RunJournal journal, String scriptName) throws IOException {
+        RunStats out = new RunStats();
+        journal.read(record -> {
+            if (scriptName == null || scriptName.equals(record.scriptName)) {
+                ScriptStats stats = out.scripts.get(record.scriptName);
+                if (stats == null) {
+                    stats = new ScriptStats();
+                    out.scripts.put(record.scriptName, stats);
+                }
+                stats.add(record.durationNanos / 1000, record.exitCode);
+            }
+        }, false);
+        return out;
+    }
+
+    Map<String,ScriptStats> getScripts() {
+        return scripts;
+    }
+
+    void print(PrintStream out) {
+        if (scripts.isEmpty()) {
+            out.println("No script runs have been recorded");
+            return;
+        }
+        int nameWidth = "Script".length();
+        for (String name : scripts.keySet()) {
+            nameWidth = Math.max(nameWidth, name.length());
+        }
+        String rowFormat = "%-" + nameWidth + "s %8s %9s %8s %10s %10s %10s%n";
+        out.printf(Locale.ROOT, rowFormat, "Script", "Runs", "Failures", "Fail %", "p50 ms", "p95 ms", "p99 ms");
+        for (Map.Entry<String,ScriptStats> e : scripts.entrySet()) {
+            ScriptStats stats = e.getValue();
+            out.printf(Locale.ROOT, rowFormat, e.getKey(), stats.runs, stats.failures,
+                    String.format(Locale.ROOT, "%.1f", 100.0 * stats.failures / stats.runs),
+                    millis(stats.percentile(50)), millis(stats.percentile(95)), millis(stats.percentile(99)));
+        }
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.ROOT, "%.1f", micros / 1000.0);
+    }
+}
@@ -0,0 +1,312 @@
+package ca.weblite.shellmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads scripts for --install, several at a time.
+ *
+ * Scripts go through the {@link ScriptStore}.  If an expected hash was given and the store
+ * already has a script with that hash, it is installed from the store without touching the
+ * network.  Otherwise the response body streams into a temp file in the store, and each buffer
+ * also goes through a SHA-256 digest (plus SHA-1 if the expected hash is a SHA-1 hash) on the
+ * way, so the script is never read back after it has been written.  If the hash doesn't match
+ * the temp file is deleted.  Otherwise it is renamed to its blob and copied into place
+ * atomically, so a half-downloaded or unverified script is never visible on the script path.
+ */
+class ScriptDownloader {
+    private static final int MAX_PARALLEL_DOWNLOADS = 8;
+
+    static class Download {
+        final URI uri;
+        final File dest;
+        final String expectedHash;
+        // Sent as If-None-Match and If-Modified-Since, so that an unchanged script isn't
+        // downloaded again
+        String ifNoneMatch;
+        String ifModifiedSince;
+        // The SHA-256 hash of the script at dest, if it is replaced.  A download with the same
+        // hash leaves dest alone.
+        String installedHash;
+
+        long bytes;
+        boolean fromStore;
+        boolean notModified;
+        String sha256;
+        String etag;
+        String lastModified;
+        String error;
+
+        /**
+         * @param expectedHash The SHA-1 or SHA-256 hash of the script in hex, or null to skip
+         *                     verification.
+         */
+        Download(URI uri, File dest, String expectedHash) {
+            this.uri = uri;
+            this.dest = dest;
+            this.expectedHash = expectedHash == null || expectedHash.isEmpty() ? null : expectedHash.toLowerCase(Locale.ROOT);
+        }
+
+        boolean isSuccessful() {
+            return error == null;
+        }
+    }
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(30))
+            .build();
+    private final ScriptStore store;
+    private final boolean overwrite;
+    private final boolean offline;
+
+    /**
+     * @param overwrite Whether to replace scripts that are already installed.
+     * @param offline Whether to only install scripts that are already in the store.
+     */
+    ScriptDownloader(ScriptStore store, boolean overwrite, boolean offline) {
+        this.store = store;
+        this.overwrite = overwrite;
+        this.offline = offline;
+    }
+
+    /**
+     * Returns an error message if the given hash isn't a hex SHA-1 or SHA-256 hash, and null
+     * otherwise.
+     */
+    static String checkHash(String hash) {
+        if (hash == null || hash.isEmpty()) {
+            return null;
+        }
+        if ((hash.length() != 40 && hash.length() != 64) || !hash.matches("[0-9a-fA-F]+")) {
+            return "Invalid hash "+hash+".  Expected a 40 digit SHA-1 or 64 digit SHA-256 hash in hex.";
+        }
+        return null;
+    }
+
+    /**
+     * Downloads all of the scripts, at most {@link #MAX_PARALLEL_DOWNLOADS} at a time, and waits
+     * for them to finish.  Each download's outcome is recorded in the download.
+     */
+    void downloadAll(List<Download> downloads) throws InterruptedException {
+        if (downloads.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Threads.newFixedPool("shellmarks-download", Math.min(MAX_PARALLEL_DOWNLOADS, downloads.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (Download download : downloads) {
+                futures.add(executor.submit(() -> {
+                    try {
+                        download(download);
+                    } catch (IOException ex) {
+                        download.error = ex.getMessage();
+                    } catch (InterruptedException ex) {
+                        download.error = "Interrupted";
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException ex) {
+                        // A bug rather than a failed download, but it shouldn't abandon the
+                        // other downloads
+                        download.error = ex.toString();
+                        ex.printStackTrace(System.err);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    // Only an Error gets here.  Everything else is recorded in the download.
+                    throw new IllegalStateException(ex.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void download(Download download) throws IOException, InterruptedException {
+        if (download.dest.exists() && !overwrite) {
+            throw new IOException("A script already exists at "+download.dest+".  Use -f option to force overwite");
+        }
+        File blob = null;
+        if (download.expectedHash != null) {
+            blob = store.find(download.expectedHash);
+        } else if (offline) {
+            blob = store.findByUrl(download.uri.toString());
+        }
+        if (blob != null) {
+            download.fromStore = true;
+        } else if (offline) {
+            throw new IOException(download.uri+" is not in the script store, and --offline was given");
+        } else {
+            blob = fetch(download);
+            if (blob == null) {
+                download.notModified = true;
+                return;
+            }
+        }
+        download.sha256 = blob.getName();
+        download.bytes = blob.length();
+        if (!download.sha256.equals(download.installedHash)) {
+            store.install(blob, download.dest, overwrite);
+        }
+    }
+
+    /**
+     * Downloads a script into the store, checking its hash on the way.
+     * @return The blob, or null if the server said the script hasn't changed.
+     */
+    private File fetch(Download download) throws IOException, InterruptedException {
+        MessageDigest sha256 = newDigest("SHA-256");
+        MessageDigest sha1 = download.expectedHash != null && download.expectedHash.length() == 40 ? newDigest("SHA-1") : null;
+        File temp = store.createTempFile();
+        try {
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                HttpRequest.Builder request = HttpRequest.newBuilder(download.uri).GET();
+                if (download.ifNoneMatch != null) {
+                    request.header("If-None-Match", download.ifNoneMatch);
+                }
+                if (download.ifModifiedSince != null) {
+                    request.header("If-Modified-Since", download.ifModifiedSince);
+                }
+                HttpResponse<Long> response = client.send(request.build(), info -> info.statusCode() == 200
+                        ? new FileSubscriber(channel, sha1 == null ? new MessageDigest[]{sha256} : new MessageDigest[]{sha256, sha1})
+                        : HttpResponse.BodySubscribers.replacing(-1L));
+                if (response.statusCode() == 304) {
+                    return null;
+                }
+                if (response.statusCode() != 200) {
+                    throw new IOException("Failed to download "+download.uri+".  The server responded with HTTP "+response.statusCode());
+                }
+                download.etag = response.headers().firstValue("ETag").orElse(null);
+                download.lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+            }
+            String sha256Hex = toHex(sha256.digest(), 64);
+            String sha1Hex = sha1 == null ? null : toHex(sha1.digest(), 40);
+            if (download.expectedHash != null) {
+                String actual = sha1 == null ? sha256Hex : sha1Hex;
+                if (!actual.equals(download.expectedHash)) {
+                    throw new IOException((sha1 == null ? "SHA-256" : "SHA-1")+" Hash for script at "+download.uri
+                            +" did not match the provided hash.  Found "+actual+" but expected "+download.expectedHash);
+                }
+            }
+            return store.add(temp, sha256Hex, sha1Hex, download.uri.toString());
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Opens a stream of the body at the given URI, for callers that process it as it arrives.
+     */
+    InputStream openStream(URI uri) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(uri).GET().build();
+        HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new IOException("Failed to download "+uri+".  The server responded with HTTP "+response.statusCode());
+        }
+        return response.body();
+    }
+
+    /**
+     * Writes a response body to a file as it arrives, updating digests with each buffer on the
+     * way.  This does what a DigestInputStream over BodyHandlers.ofInputStream() would, without
+     * handing every buffer to a second thread through a queue, which halves throughput.
+     */
+    private static class FileSubscriber implements HttpResponse.BodySubscriber<Long> {
+        private final FileChannel channel;
+        private final MessageDigest[] digests;
+        private final CompletableFuture<Long> result = new CompletableFuture<Long>();
+        private Flow.Subscription subscription;
+        private long bytes;
+
+        FileSubscriber(FileChannel channel, MessageDigest[] digests) {
+            this.channel = channel;
+            this.digests = digests;
+        }
+
+        @Override
+        public CompletionStage<Long> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            try {
+                for (ByteBuffer buf : buffers) {
+                    for (MessageDigest digest : digests) {
+                        digest.update(buf.duplicate());
+                    }
+                    while (buf.hasRemaining()) {
+                        bytes += channel.write(buf);
+                    }
+                }
+            } catch (IOException ex) {
+                subscription.cancel();
+                result.completeExceptionally(ex);
+                return;
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            result.complete(bytes);
+        }
+    }
+
+    static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform supports SHA-1 and SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * The digest in hex, padded with leading zeros to the full width of the digest.
+     */
+    static String toHex(byte[] digest, int digits) {
+        String hex = new BigInteger(1, digest).toString(16);
+        StringBuilder out = new StringBuilder(digits);
+        for (int i=hex.length(); i<digits; i++) {
+            out.append('0');
+        }
+        return out.append(hex).toString();
+    }
+}
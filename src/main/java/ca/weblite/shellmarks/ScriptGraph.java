@@ -0,0 +1,122 @@
+package ca.weblite.shellmarks;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The scripts that an invocation runs, together with everything they transitively depend on
+ * through __depends__.
+ *
+ * Each script appears once no matter how many scripts depend on it, so it runs at most once.
+ * A dependency is looked up next to the script that depends on it first, and then on the
+ * script path.
+ */
+class ScriptGraph {
+    // Larger scripts, e.g. with an embedded payload, only have their markup read
+    private static final long MAX_CACHED_SIZE = 64 * 1024;
+
+    static class Node {
+        final File script;
+        final List<Node> depends = new ArrayList<Node>();
+        final List<Node> dependents = new ArrayList<Node>();
+
+        Node(File script) {
+            this.script = script;
+        }
+
+        String getName() {
+            return script.getName();
+        }
+    }
+
+    // In dependency order: every node comes after the nodes that it depends on
+    private final List<Node> nodes = new ArrayList<Node>();
+
+    private ScriptGraph() {
+
+    }
+
+    /**
+     * Resolves the dependencies of the given scripts.
+     * @throws IOException If a dependency can't be found, or the dependencies have a cycle.
+     */
+    static ScriptGraph resolve(Main session, List<File> targets) throws IOException {
+        ScriptGraph graph = new ScriptGraph();
+        Map<String,Node> visited = new HashMap<String,Node>();
+        Set<String> inProgress = new LinkedHashSet<String>();
+        for (File target : targets) {
+            graph.visit(session, target, visited, inProgress);
+        }
+        return graph;
+    }
+
+    private Node visit(Main session, File script, Map<String,Node> visited, Set<String> inProgress) throws IOException {
+        String key = script.getCanonicalPath();
+        Node node = visited.get(key);
+        if (node != null) {
+            return node;
+        }
+        if (!inProgress.add(key)) {
+            StringBuilder cycle = new StringBuilder();
+            boolean inCycle = false;
+            for (String path : inProgress) {
+                inCycle = inCycle || path.equals(key);
+                if (inCycle) {
+                    cycle.append(new File(path).getName()).append(" -> ");
+                }
+            }
+            throw new IOException("Script dependencies have a cycle: " + cycle + script.getName());
+        }
+        node = new Node(script);
+        for (String name : readDepends(script)) {
+            File dependency = new File(script.getAbsoluteFile().getParentFile(), name);
+            if (!dependency.isFile()) {
+                dependency = session.findScript(name);
+            }
+            if (dependency == null || !dependency.isFile()) {
+                throw new IOException("Cannot find script ["+name+"] that "+script.getName()+" depends on");
+            }
+            Node dependencyNode = visit(session, dependency, visited, inProgress);
+            if (!node.depends.contains(dependencyNode)) {
+                node.depends.add(dependencyNode);
+                dependencyNode.dependents.add(node);
+            }
+        }
+        inProgress.remove(key);
+        visited.put(key, node);
+        nodes.add(node);
+        return node;
+    }
+
+    private static List<String> readDepends(File script) throws IOException {
+        if (script.length() <= MAX_CACHED_SIZE) {
+            // The same cached form that running the script will use, so a cache hit doesn't
+            // need the TOML parser at all
+            try {
+                return new FormCache(FormCache.getDefaultDir()).load(FileUtils.readFileToByteArray(script)).form.depends;
+            } catch (RuntimeException ex) {
+                throw new IOException("Failed to parse the shellmarks markup of "+script.getName()+". "+ex.getMessage(), ex);
+            }
+        }
+        String header = ScriptHeaderReader.readHeader(script);
+        if (header == null || header.trim().isEmpty()) {
+            // The legacy format doesn't support dependencies
+            return Collections.emptyList();
+        }
+        try {
+            return Main.parseToml(header).depends;
+        } catch (RuntimeException ex) {
+            throw new IOException("Failed to parse the shellmarks markup of "+script.getName()+". "+ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * All of the scripts, with every script after the scripts that it depends on.
+     */
+    List<Node> getNodes() {
+        return nodes;
+    }
+}
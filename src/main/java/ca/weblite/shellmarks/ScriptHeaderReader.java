@@ -0,0 +1,123 @@
+package ca.weblite.shellmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Extracts the shellmarks markup from a script file without reading the whole script into
+ * memory.
+ *
+ * The file is streamed through a fixed size buffer, so a script that embeds a multi-MB payload
+ * only costs as much heap as its markup, and the file is closed as soon as this returns.  Lines
+ * are split on the same terminators as {@link LineTokenizer}.  If the file contains a
+ * &lt;shellmarks&gt; tag, reading stops at the closing tag.
+ *
+ * This bounds memory, not I/O.  In the "---" format the markup comes after the script body, and
+ * a &lt;shellmarks&gt; tag anywhere in the file takes precedence over it, so a script without the
+ * tag is always read to the end.
+ */
+class ScriptHeaderReader {
+    private static final int BUFFER_SIZE = 8192;
+    private static final String OPEN_TAG = "<shellmarks>";
+    private static final String CLOSE_TAG = "</shellmarks>";
+
+    /**
+     * Returns the TOML markup of the given script, exactly as {@link Main#parseUI2(String)} would
+     * extract it, or null if the script has no &lt;shellmarks&gt; tag and no "---" separator.
+     * Scripts without markup need to be read in full and parsed with the legacy parser.
+     */
+    static String readHeader(File file) throws IOException {
+        try (Reader in = new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8)) {
+            return readHeader(in);
+        }
+    }
+
+    static String readHeader(Reader in) throws IOException {
+        String sep = System.lineSeparator();
+        char[] buf = new char[BUFFER_SIZE];
+
+        // Markup after the first dash line, in case the script has no <shellmarks> tag
+        StringBuilder markup = null;
+        int lineStart = 0;
+        int lineLength = 0;
+        boolean allDashes = true;
+        boolean skipLineFeed = false;
+        int openMatched = 0;
+
+        // Set once the open tag is found
+        StringBuilder tagged = null;
+        int closeMatched = 0;
+
+        int count;
+        while ((count = in.read(buf)) >= 0) {
+            for (int i=0; i<count; i++) {
+                char c = buf[i];
+                if (tagged != null) {
+                    tagged.append(c);
+                    closeMatched = c == CLOSE_TAG.charAt(closeMatched) ? closeMatched + 1 : (c == '<' ? 1 : 0);
+                    if (closeMatched == CLOSE_TAG.length()) {
+                        tagged.setLength(tagged.length() - CLOSE_TAG.length());
+                        return tagged.toString();
+                    }
+                    continue;
+                }
+
+                openMatched = c == OPEN_TAG.charAt(openMatched) ? openMatched + 1 : (c == '<' ? 1 : 0);
+                if (openMatched == OPEN_TAG.length()) {
+                    tagged = new StringBuilder();
+                    continue;
+                }
+
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+                    if (c == '\n') {
+                        continue;
+                    }
+                }
+                if (c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029' || c == '\u0085') {
+                    skipLineFeed = c == '\r';
+                    markup = endLine(markup, lineStart, lineLength, allDashes, sep);
+                    lineStart = markup == null ? 0 : markup.length();
+                    lineLength = 0;
+                    allDashes = true;
+                    continue;
+                }
+                lineLength++;
+                allDashes = allDashes && c == '-';
+                if (markup != null) {
+                    markup.append(c);
+                }
+            }
+        }
+        if (tagged != null) {
+            return tagged.toString();
+        }
+        if (lineLength > 0) {
+            // The last line has no terminator
+            markup = endLine(markup, lineStart, lineLength, allDashes, sep);
+        }
+        return markup == null ? null : markup.toString();
+    }
+
+    /**
+     * Ends the current line, whose characters have been appended to markup if it isn't null.
+     * @return The markup after the line.
+     */
+    private static StringBuilder endLine(StringBuilder markup, int lineStart, int lineLength, boolean allDashes, String sep) {
+        boolean isDashLine = allDashes && lineLength >= 2;
+        if (markup == null) {
+            return isDashLine ? new StringBuilder() : null;
+        }
+        if (isDashLine) {
+            // Dash lines after the first one aren't part of the markup either
+            markup.setLength(lineStart);
+        } else {
+            markup.append(sep);
+        }
+        return markup;
+    }
+}
@@ -0,0 +1,261 @@
+package ca.weblite.shellmarks;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves script names against the directories of the SHELLMARKS_PATH.
+ *
+ * Rather than probing every directory for every lookup, the resolver works from directory
+ * listings.  Listings are persisted in ~/.shellmarks/paths.index along with the directory's
+ * mtime, so a later process only needs to stat a directory to know that its listing is still
+ * current.  Directories are consulted in path order and the first directory that contains a
+ * name wins, so a script in an earlier directory shadows a script of the same name in a later
+ * one.  Results, including misses, are cached for the life of the process until
+ * {@link #invalidate()} is called.
+ *
+ * The persisted listings are also the negative cache: a plain name that isn't in any current
+ * listing is a miss, without probing the directories for it, so a lookup of an unknown name
+ * costs one stat per directory even on a slow mount.  Only names with a path component are
+ * probed.  On platforms whose file systems are usually case-insensitive, a name that only
+ * matches a listed name when case is ignored is checked against the file system, since the
+ * listing can't tell whether this directory's file system ignores case.
+ */
+class ScriptResolver {
+    private static final int MAGIC = 0x53484d50; // SHMP
+    private static final int VERSION = 1;
+
+    /**
+     * Listings of directories that were modified this recently aren't trusted by later
+     * processes, since a change within the same mtime tick wouldn't be detected.
+     */
+    private static final long RACY_WINDOW = 2000;
+
+    private static final boolean CASE_INSENSITIVE_PLATFORM;
+    static {
+        String os = System.getProperty("os.name", "").toLowerCase(Locale.ROOT);
+        CASE_INSENSITIVE_PLATFORM = os.startsWith("windows") || os.startsWith("mac");
+    }
+
+    private static final Map<String,ScriptResolver> resolvers = new ConcurrentHashMap<String,ScriptResolver>();
+
+    private final String[] includePathsArr;
+    private final File indexFile;
+    private final Map<String,Listing> listings = new HashMap<String,Listing>();
+    private final Map<String,File> resolved = new HashMap<String,File>();
+    private final Set<String> validated = new HashSet<String>();
+    private File[] scriptPaths;
+    private boolean loaded;
+    private boolean dirty;
+
+    private static class Listing {
+        String path;
+        long lastModified;
+        Set<String> names;
+    }
+
+    ScriptResolver(String includePaths, File indexFile) {
+        this.includePathsArr = includePaths.split(File.pathSeparator);
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Returns the resolver for the current SHELLMARKS_PATH.
+     */
+    static ScriptResolver getDefault() {
+        return forEnvironment(System.getenv());
+    }
+
+    /**
+     * Returns the resolver for the SHELLMARKS_PATH in the given environment.  Resolvers are
+     * shared by every caller that uses the same path.
+     */
+    static ScriptResolver forEnvironment(Map<String,String> env) {
+        String includePaths = env.get("SHELLMARKS_PATH");
+        if (includePaths == null) {
+            includePaths = System.getProperty("user.home") + File.separator + ".shellmarks" + File.separator + "scripts";
+        }
+        return resolvers.computeIfAbsent(includePaths,
+                p -> new ScriptResolver(p, new File(Main.getShellmarksDir(), "paths.index")));
+    }
+
+    /**
+     * Finds the script with the given name.
+     * @return The script file, or null if no directory on the path contains it.
+     */
+    synchronized File find(String name) {
+        if (resolved.containsKey(name)) {
+            return resolved.get(name);
+        }
+        File out = null;
+        if (isPlainName(name)) {
+            try {
+                for (String p : includePathsArr) {
+                    Listing listing = getListing(p);
+                    if (listing != null && (listing.names.contains(name)
+                            || CASE_INSENSITIVE_PLATFORM && containsIgnoreCase(listing.names, name)
+                                    && new File(p + File.separator + name).exists())) {
+                        out = new File(p + File.separator + name);
+                        break;
+                    }
+                }
+            } finally {
+                save();
+            }
+        } else {
+            // Names that contain a path aren't in the listings
+            for (String p : includePathsArr) {
+                File f = new File(p + File.separator + name);
+                if (f.exists()) {
+                    out = f;
+                    break;
+                }
+            }
+        }
+        resolved.put(name, out);
+        return out;
+    }
+
+    private static boolean containsIgnoreCase(Set<String> names, String name) {
+        for (String n : names) {
+            if (n.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the directories on the path that exist.  If none of them exist, the first one
+     * is created.
+     */
+    synchronized File[] getScriptPaths() {
+        if (scriptPaths != null) {
+            return scriptPaths.clone();
+        }
+        List<File> includePathFiles = new ArrayList<File>();
+        for (String p : includePathsArr) {
+            File f = new File(p);
+            if (f.exists()) includePathFiles.add(f);
+        }
+        if (includePathFiles.isEmpty()) {
+            if (includePathsArr.length > 0) {
+                File f = new File(includePathsArr[0]);
+                f.mkdirs();
+                includePathFiles.add(f);
+            }
+        }
+        scriptPaths = includePathFiles.toArray(new File[includePathFiles.size()]);
+        return scriptPaths.clone();
+    }
+
+    /**
+     * Discards cached results.  Must be called after scripts are added to or removed from
+     * the path by this process.  Listings are kept, but are checked against the directory
+     * mtimes again on the next lookup.
+     */
+    synchronized void invalidate() {
+        resolved.clear();
+        validated.clear();
+        scriptPaths = null;
+    }
+
+    private static boolean isPlainName(String name) {
+        return !name.isEmpty() && !name.equals(".") && !name.equals("..")
+                && name.indexOf('/') < 0 && name.indexOf(File.separatorChar) < 0;
+    }
+
+    private Listing getListing(String path) {
+        load();
+        Listing listing = listings.get(path);
+        if (validated.contains(path)) {
+            return listing;
+        }
+        validated.add(path);
+        File dir = new File(path);
+        // Read the mtime before listing so that a concurrent change makes the listing stale
+        long lastModified = dir.lastModified();
+        if (listing != null && lastModified != 0 && listing.lastModified == lastModified) {
+            return listing;
+        }
+        String[] names = lastModified == 0 ? null : dir.list();
+        if (names == null) {
+            if (listings.remove(path) != null) {
+                dirty = true;
+            }
+            return null;
+        }
+        listing = new Listing();
+        listing.path = path;
+        listing.lastModified = System.currentTimeMillis() - lastModified < RACY_WINDOW ? -1 : lastModified;
+        listing.names = new HashSet<String>(Arrays.asList(names));
+        listings.put(path, listing);
+        dirty = true;
+        return listing;
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int numListings = in.readInt();
+            for (int i=0; i<numListings; i++) {
+                Listing listing = new Listing();
+                listing.path = CatalogIndex.readString(in);
+                listing.lastModified = in.readLong();
+                int numNames = in.readInt();
+                listing.names = new HashSet<String>(numNames * 2);
+                for (int j=0; j<numNames; j++) {
+                    listing.names.add(CatalogIndex.readString(in));
+                }
+                listings.put(listing.path, listing);
+            }
+        } catch (IOException ex) {
+            // A corrupt index just means that the directories are listed again
+            listings.clear();
+        }
+    }
+
+    private void save() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        try {
+            File dir = indexFile.getAbsoluteFile().getParentFile();
+            dir.mkdirs();
+            File temp = File.createTempFile(indexFile.getName(), ".tmp", dir);
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(listings.size());
+                    for (Listing listing : listings.values()) {
+                        CatalogIndex.writeString(out, listing.path);
+                        out.writeLong(listing.lastModified);
+                        out.writeInt(listing.names.size());
+                        for (String name : listing.names) {
+                            CatalogIndex.writeString(out, name);
+                        }
+                    }
+                }
+                Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                temp.delete();
+            }
+        } catch (IOException ex) {
+            System.err.println("Failed to save script path index. "+ex.getMessage());
+        }
+    }
+}
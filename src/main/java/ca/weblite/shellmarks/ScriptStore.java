@@ -0,0 +1,311 @@
+package ca.weblite.shellmarks;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Content-addressed store of downloaded scripts in ~/.shellmarks/store.
+ *
+ * Every script that --install downloads is kept as store/&lt;sha256&gt;, and installed scripts
+ * are copies of their blob.  The store's index file maps the URLs that blobs were downloaded
+ * from, and their SHA-1 hashes, to their SHA-256 hashes, one entry per line:
+ *
+ * <pre>
+ * &lt;sha256&gt; &lt;sha1, or - if it wasn't computed&gt; &lt;url&gt;
+ * </pre>
+ *
+ * Entries are appended with a single write to a file opened with O_APPEND, so concurrent
+ * installs don't need a lock, and the last entry for a URL wins.
+ *
+ * Installed scripts are copies rather than hard links, so that editing one in place changes
+ * neither the blob nor any other script that was installed from it.  Blobs are read-only, and
+ * are still verified against their name before they are installed, in case something changed
+ * one anyway (or it is a hard link left by an older version).  A blob that doesn't match is
+ * dropped from the store.
+ */
+final class ScriptStore {
+    private static final String INDEX = "index";
+    private static final String TEMP_PREFIX = ".tmp-";
+
+    // Blobs and temp files younger than this may belong to an install that is in progress
+    private static final long GC_GRACE_PERIOD = 60 * 60 * 1000L;
+
+    private final File dir;
+
+    ScriptStore(File dir) {
+        this.dir = dir;
+    }
+
+    static File getDefaultDir() {
+        return new File(Main.getShellmarksDir(), "store");
+    }
+
+    File getDir() {
+        return dir;
+    }
+
+    /**
+     * Creates a temp file in the store, so that it can be renamed to a blob atomically.
+     */
+    File createTempFile() throws IOException {
+        dir.mkdirs();
+        return File.createTempFile(TEMP_PREFIX, ".download", dir);
+    }
+
+    /**
+     * Finds a blob by its SHA-256 hash, or by a SHA-1 hash that was recorded in the index.
+     * @return The blob, or null if the store doesn't have it or it has been modified.
+     */
+    File find(String hash) throws IOException {
+        String sha256 = hash.length() == 64 ? hash : readIndex().get(hash);
+        return sha256 == null ? null : verify(sha256);
+    }
+
+    /**
+     * Finds the blob that was most recently downloaded from the given URL.
+     * @return The blob, or null if the store doesn't have it or it has been modified.
+     */
+    File findByUrl(String url) throws IOException {
+        String sha256 = readIndex().get(url);
+        return sha256 == null ? null : verify(sha256);
+    }
+
+    private File verify(String sha256) throws IOException {
+        File blob = new File(dir, sha256);
+        if (!blob.isFile()) {
+            return null;
+        }
+        if (!sha256.equals(CatalogIndex.hash(blob))) {
+            System.err.println("Dropping "+blob+" from the script store because it was modified");
+            delete(blob);
+            return null;
+        }
+        return blob;
+    }
+
+    /**
+     * Moves a downloaded file into the store and records where it came from.
+     * @param sha1 The file's SHA-1 hash, or null if it wasn't computed.
+     * @return The blob.
+     */
+    File add(File temp, String sha256, String sha1, String url) throws IOException {
+        File blob = verify(sha256);
+        if (blob != null) {
+            temp.delete();
+        } else {
+            blob = new File(dir, sha256);
+            // Temp files are only readable by their owner, and blobs are never written to
+            temp.setReadable(true, false);
+            temp.setWritable(false, false);
+            Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        byte[] entry = (sha256+" "+(sha1 == null ? "-" : sha1)+" "+url+"\n").getBytes(StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(new File(dir, INDEX).toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            ByteBuffer buf = ByteBuffer.wrap(entry);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+        return blob;
+    }
+
+    /**
+     * Installs a copy of a blob at dest.  The copy is written next to dest and renamed into
+     * place, so dest is never seen half written.
+     * @param overwrite Whether to replace dest if it exists.  If not, and dest exists, this
+     *                  fails even if another install created dest a moment ago.
+     */
+    void install(File blob, File dest, boolean overwrite) throws IOException {
+        File temp = stage(blob, dest, false);
+        try {
+            moveIntoPlace(temp, dest, overwrite);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Copies a blob to a temp file next to dest, to be moved there with
+     * {@link #moveIntoPlace(File, File, boolean)}.  The caller deletes the temp file if it
+     * isn't moved.
+     * @param executable Whether to make the copy executable.
+     */
+    File stage(File blob, File dest, boolean executable) throws IOException {
+        File destDir = dest.getAbsoluteFile().getParentFile();
+        destDir.mkdirs();
+        File temp = File.createTempFile("."+dest.getName()+"-", ".install", destDir);
+        try {
+            Files.copy(blob.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            // The copy gets the blob's read-only mode
+            temp.setWritable(true);
+            if (executable) {
+                temp.setExecutable(true, false);
+            }
+            return temp;
+        } catch (IOException | RuntimeException ex) {
+            temp.delete();
+            throw ex;
+        }
+    }
+
+    /**
+     * Renames a staged copy to dest.
+     * @param overwrite Whether to replace dest if it exists.  If not, and dest exists, this
+     *                  fails even if another install created dest a moment ago.
+     */
+    void moveIntoPlace(File temp, File dest, boolean overwrite) throws IOException {
+        if (overwrite) {
+            Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        // A hard link fails if dest exists, where a rename would silently replace it
+        try {
+            Files.createLink(dest.toPath(), temp.toPath());
+            temp.delete();
+        } catch (FileAlreadyExistsException ex) {
+            throw new IOException("A script already exists at "+dest+".  Use -f option to force overwite");
+        } catch (UnsupportedOperationException ex) {
+            Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Maps URLs and SHA-1 hashes to SHA-256 hashes.  Later entries replace earlier ones.
+     */
+    private Map<String,String> readIndex() throws IOException {
+        Map<String,String> out = new HashMap<String,String>();
+        for (String[] entry : readEntries()) {
+            if (entry[1].length() == 40) {
+                out.put(entry[1], entry[0]);
+            }
+            out.put(entry[2], entry[0]);
+        }
+        return out;
+    }
+
+    private List<String[]> readEntries() throws IOException {
+        List<String[]> out = new ArrayList<String[]>();
+        File index = new File(dir, INDEX);
+        if (!index.exists()) {
+            return out;
+        }
+        for (String line : Files.readAllLines(index.toPath(), StandardCharsets.UTF_8)) {
+            String[] entry = line.split(" ", 3);
+            if (entry.length == 3 && entry[0].length() == 64) {
+                out.add(entry);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Deletes blobs that no installed script refers to, along with their index entries.
+     *
+     * A blob is referenced if a file in one of the script directories has the same contents, or
+     * if another name links to it (a script that was installed as a hard link by an older
+     * version).
+     * Blobs that were added within the last hour are kept, since an install may be about to
+     * link them.
+     * @return The number of bytes that were freed.
+     */
+    long gc(File[] scriptDirs) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        // Copies are only hashed if a blob has the same size
+        Map<Long,List<File>> scriptsBySize = new HashMap<Long,List<File>>();
+        for (File scriptDir : scriptDirs) {
+            File[] scripts = scriptDir.listFiles();
+            if (scripts == null) continue;
+            for (File script : scripts) {
+                if (script.isFile()) {
+                    scriptsBySize.computeIfAbsent(script.length(), k -> new ArrayList<File>()).add(script);
+                }
+            }
+        }
+        Set<String> copied = new HashSet<String>();
+        Set<File> hashed = new HashSet<File>();
+        long freed = 0;
+        Set<String> kept = new HashSet<String>();
+        for (File f : files) {
+            String name = f.getName();
+            if (name.equals(INDEX)) {
+                continue;
+            }
+            if (now - f.lastModified() < GC_GRACE_PERIOD) {
+                kept.add(name);
+                continue;
+            }
+            if (name.startsWith(TEMP_PREFIX)) {
+                // Left behind by an install that crashed
+                freed += f.length();
+                f.delete();
+                continue;
+            }
+            if (linkCount(f) > 1) {
+                kept.add(name);
+                continue;
+            }
+            List<File> sameSize = scriptsBySize.get(f.length());
+            if (sameSize != null) {
+                for (File script : sameSize) {
+                    if (hashed.add(script)) {
+                        copied.add(CatalogIndex.hash(script));
+                    }
+                }
+                if (copied.contains(name)) {
+                    kept.add(name);
+                    continue;
+                }
+            }
+            freed += f.length();
+            delete(f);
+        }
+        rewriteIndex(kept);
+        return freed;
+    }
+
+    /**
+     * Deletes a blob, which is read-only, so it has to be made writable first on Windows.
+     */
+    private static void delete(File blob) {
+        blob.setWritable(true);
+        blob.delete();
+    }
+
+    private static int linkCount(File f) throws IOException {
+        try {
+            return ((Number)Files.getAttribute(f.toPath(), "unix:nlink")).intValue();
+        } catch (UnsupportedOperationException | IllegalArgumentException ex) {
+            // No link counts on this platform, so keep every blob
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private void rewriteIndex(Set<String> kept) throws IOException {
+        File index = new File(dir, INDEX);
+        if (!index.exists()) {
+            return;
+        }
+        StringBuilder out = new StringBuilder();
+        for (String[] entry : readEntries()) {
+            if (kept.contains(entry[0])) {
+                out.append(entry[0]).append(' ').append(entry[1]).append(' ').append(entry[2]).append('\n');
+            }
+        }
+        File temp = createTempFile();
+        try {
+            Files.write(temp.toPath(), out.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temp.delete();
+        }
+    }
+}
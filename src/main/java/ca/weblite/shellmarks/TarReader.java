@@ -0,0 +1,227 @@
+package ca.weblite.shellmarks;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a tar stream one entry at a time, without buffering more than a header.
+ *
+ * Understands ustar headers, GNU long names and pax path records, which covers archives made by
+ * GNU tar, bsdtar and most libraries.  Links, devices and other special entries are returned
+ * with {@link Entry#isFile} false so that callers can skip them.
+ */
+final class TarReader {
+    private static final int BLOCK = 512;
+
+    static class Entry {
+        String name;
+        long size;
+        int mode;
+        boolean isFile;
+    }
+
+    private final InputStream in;
+    private final byte[] header = new byte[BLOCK];
+    private long remaining;
+    private long padding;
+
+    TarReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Skips the rest of the current entry and reads the next one's header.
+     * @return The entry, or null at the end of the archive.
+     */
+    Entry next() throws IOException {
+        skip(remaining + padding);
+        remaining = padding = 0;
+        String longName = null;
+        while (true) {
+            if (!readBlock()) {
+                return null;
+            }
+            if (isZeroBlock()) {
+                return null;
+            }
+            checkChecksum();
+            Entry entry = new Entry();
+            entry.name = longName != null ? longName : readName();
+            entry.size = readNumber(124, 12);
+            entry.mode = (int)readNumber(100, 8);
+            char type = (char)header[156];
+            if (type == 'L' || type == 'x') {
+                // The data of this entry describes the next one
+                String data = new String(readData(entry.size), StandardCharsets.UTF_8);
+                if (type == 'L') {
+                    longName = trimNul(data);
+                } else {
+                    String path = readPaxPath(data);
+                    longName = path != null ? path : longName;
+                }
+                continue;
+            }
+            entry.isFile = type == '0' || type == 0 || type == '7';
+            if (type == '1' || type == '2' || type == '3' || type == '4' || type == '5' || type == '6') {
+                // Links, devices, directories and fifos have no data in the stream
+                entry.size = 0;
+            }
+            remaining = entry.size;
+            padding = (BLOCK - entry.size % BLOCK) % BLOCK;
+            return entry;
+        }
+    }
+
+    /**
+     * The current entry's data.  Closing it doesn't close the archive.
+     */
+    InputStream getEntryStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int count = in.read(b, off, (int)Math.min(len, remaining));
+                if (count < 0) {
+                    throw new EOFException("Unexpected end of tar archive");
+                }
+                remaining -= count;
+                return count;
+            }
+        };
+    }
+
+    private boolean readBlock() throws IOException {
+        int off = 0;
+        while (off < BLOCK) {
+            int count = in.read(header, off, BLOCK - off);
+            if (count < 0) {
+                if (off == 0) {
+                    // Some writers leave out the end of archive blocks
+                    return false;
+                }
+                throw new EOFException("Unexpected end of tar archive");
+            }
+            off += count;
+        }
+        return true;
+    }
+
+    private boolean isZeroBlock() {
+        for (byte b : header) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void checkChecksum() throws IOException {
+        long sum = 0;
+        for (int i=0; i<BLOCK; i++) {
+            sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+        }
+        if (sum != readNumber(148, 8)) {
+            throw new IOException("Not a tar archive, or the archive is corrupt");
+        }
+    }
+
+    private String readName() {
+        String name = readString(0, 100);
+        if (new String(header, 257, 5, StandardCharsets.US_ASCII).equals("ustar")) {
+            String prefix = readString(345, 155);
+            if (!prefix.isEmpty()) {
+                name = prefix+"/"+name;
+            }
+        }
+        return name;
+    }
+
+    private String readString(int off, int len) {
+        int end = off;
+        while (end < off + len && header[end] != 0) {
+            end++;
+        }
+        return new String(header, off, end - off, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads an octal field, or a base-256 field for large sizes.
+     */
+    private long readNumber(int off, int len) throws IOException {
+        if ((header[off] & 0x80) != 0) {
+            long value = header[off] & 0x7f;
+            for (int i=off+1; i<off+len; i++) {
+                value = (value << 8) | (header[i] & 0xff);
+            }
+            return value;
+        }
+        String field = readString(off, len).trim();
+        if (field.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(field, 8);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Not a tar archive, or the archive is corrupt");
+        }
+    }
+
+    private byte[] readData(long size) throws IOException {
+        if (size > 1024 * 1024) {
+            throw new IOException("Tar header record is too large");
+        }
+        byte[] data = new byte[(int)size];
+        int off = 0;
+        while (off < data.length) {
+            int count = in.read(data, off, data.length - off);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of tar archive");
+            }
+            off += count;
+        }
+        skip((BLOCK - size % BLOCK) % BLOCK);
+        return data;
+    }
+
+    /**
+     * Finds the path in pax extended header records of the form "length key=value\n".
+     */
+    private static String readPaxPath(String data) {
+        String path = null;
+        for (String record : data.split("\n")) {
+            int space = record.indexOf(' ');
+            if (space >= 0 && record.startsWith("path=", space + 1)) {
+                path = record.substring(space + 1 + "path=".length());
+            }
+        }
+        return path;
+    }
+
+    private static String trimNul(String str) {
+        int end = str.indexOf('\0');
+        return end < 0 ? str : str.substring(0, end);
+    }
+
+    private void skip(long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Unexpected end of tar archive");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package ca.weblite.shellmarks;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads that do shellmarks' blocking work: running scripts and waiting for them,
+ * pumping their output, handling catalog and form actions, daemon sessions, downloads and
+ * catalog generation.
+ *
+ * This is the Java 11 version, which uses platform threads.  Building with the java21 profile
+ * adds a Java 21 version to the jar (src/main/java21) that uses virtual threads instead, and the
+ * JVM picks it automatically when running on Java 21 or later.  Virtual threads are always
+ * daemon threads, so callers must not rely on {@link #start(String, Runnable)} keeping the JVM
+ * alive.
+ */
+final class Threads {
+
+    private Threads() {
+
+    }
+
+    /**
+     * Whether threads are virtual threads.
+     */
+    static boolean isVirtual() {
+        return false;
+    }
+
+    static Thread start(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.start();
+        return t;
+    }
+
+    static Thread startDaemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * An executor that runs at most size tasks at a time, on daemon threads named name-1, name-2...
+     */
+    static ExecutorService newFixedPool(String name, int size) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, name+"-"+count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        return Executors.newFixedThreadPool(size, factory);
+    }
+
+    /**
+     * Waits for a process to exit.
+     * @return Its exit code.
+     */
+    static int waitFor(Process process) throws InterruptedException {
+        return process.waitFor();
+    }
+}
@@ -0,0 +1,56 @@
+package ca.weblite.shellmarks;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The Java 21 version of Threads, which is packaged in META-INF/versions/21 by the java21
+ * profile.  Blocking work runs on virtual threads, so a thousand scripts with three output and
+ * supervision threads each don't need thousands of platform threads and their stacks.
+ *
+ * Run with -Dshellmarks.virtualThreads=false to use platform threads anyway.
+ */
+final class Threads {
+    private static final boolean VIRTUAL = !"false".equals(System.getProperty("shellmarks.virtualThreads"));
+
+    private Threads() {
+
+    }
+
+    static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    static Thread start(String name, Runnable task) {
+        return VIRTUAL ? Thread.ofVirtual().name(name).start(task) : Thread.ofPlatform().name(name).start(task);
+    }
+
+    static Thread startDaemon(String name, Runnable task) {
+        return VIRTUAL ? Thread.ofVirtual().name(name).start(task) : Thread.ofPlatform().name(name).daemon().start(task);
+    }
+
+    static ExecutorService newFixedPool(String name, int size) {
+        ThreadFactory factory = VIRTUAL
+                ? Thread.ofVirtual().name(name+"-", 1).factory()
+                : Thread.ofPlatform().name(name+"-", 1).daemon().factory();
+        return Executors.newFixedThreadPool(size, factory);
+    }
+
+    /**
+     * Waits for a process to exit.  Process.waitFor() blocks in Object.wait(), which pins a
+     * virtual thread to its carrier, so virtual threads wait on onExit() instead.
+     * @return Its exit code.
+     */
+    static int waitFor(Process process) throws InterruptedException {
+        if (!VIRTUAL) {
+            return process.waitFor();
+        }
+        try {
+            return process.onExit().get().exitValue();
+        } catch (ExecutionException ex) {
+            return process.waitFor();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package ca.weblite.shellmarks;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsciidocEngineTest {
+    @TempDir
+    File dir;
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i=0; i<3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Regenerating the catalog from scratch 100 times converts every script each time, and
+     * shouldn't grow the heap, as it did when each conversion started its own JRuby runtime.
+     * The catalog is small so that 100 regenerations stay quick.
+     */
+    @Test
+    void repeatedRegenerationsKeepHeapFlat() throws IOException, InterruptedException {
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.numScripts = 10;
+        generator.generate(dir);
+        Map<String,String> env = new HashMap<String,String>();
+        env.put("SHELLMARKS_PATH", dir.getAbsolutePath());
+        CatalogViewer viewer = new CatalogViewer(Main.withEnvironment(env));
+        CatalogViewer.ScriptCategory root = viewer.loadAllScriptCategories(new CatalogIndex(new File(dir, ".index")));
+
+        AsciidocEngine.warmUp();
+        long baseline = 0;
+        String first = null;
+        for (int i=0; i<100; i++) {
+            CatalogViewer.renderCache.retainAll(Collections.<String>emptyList());
+            String html = viewer.renderCatalog(root, new JfrEvents.GenerateCatalog()).html;
+            if (first == null) {
+                first = html;
+            } else {
+                assertEquals(first, html);
+            }
+            if (i == 9) {
+                // After the engine and the JIT have settled
+                baseline = usedHeapAfterGc();
+            }
+        }
+        long growth = usedHeapAfterGc() - baseline;
+        assertTrue(growth < 16 * 1024 * 1024, "Heap grew by "+growth/1024+"K over 90 regenerations");
+    }
+}
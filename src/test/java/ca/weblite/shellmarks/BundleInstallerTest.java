@@ -0,0 +1,171 @@
+package ca.weblite.shellmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BundleInstallerTest {
+    @TempDir
+    File dir;
+
+    private static String manifest(Map<String,String> files) {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String,String> file : files.entrySet()) {
+            out.append(CatalogIndex.hash(file.getValue().getBytes(StandardCharsets.UTF_8))).append("  ").append(file.getKey()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static byte[] zip(Map<String,String> files) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+            out.putNextEntry(new ZipEntry(BundleInstaller.MANIFEST));
+            out.write(manifest(files).getBytes(StandardCharsets.UTF_8));
+            for (Map.Entry<String,String> file : files.entrySet()) {
+                out.putNextEntry(new ZipEntry(file.getKey()));
+                out.write(file.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A tar.gz with every file at the given mode.
+     */
+    private static byte[] tarGz(Map<String,String> files, int mode) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            writeTarEntry(out, BundleInstaller.MANIFEST, manifest(files).getBytes(StandardCharsets.UTF_8), 0644);
+            for (Map.Entry<String,String> file : files.entrySet()) {
+                writeTarEntry(out, file.getKey(), file.getValue().getBytes(StandardCharsets.UTF_8), mode);
+            }
+            out.write(new byte[1024]);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeTarEntry(GZIPOutputStream out, String name, byte[] data, int mode) throws IOException {
+        byte[] header = new byte[512];
+        putField(header, 0, name);
+        putField(header, 100, String.format("%07o", mode));
+        putField(header, 108, "0000000");
+        putField(header, 116, "0000000");
+        putField(header, 124, String.format("%011o", data.length));
+        putField(header, 136, "00000000000");
+        header[156] = '0';
+        putField(header, 257, "ustar");
+        Arrays.fill(header, 148, 156, (byte)' ');
+        long sum = 0;
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+        putField(header, 148, String.format("%06o", sum));
+        out.write(header);
+        out.write(data);
+        out.write(new byte[(512 - data.length % 512) % 512]);
+    }
+
+    private static void putField(byte[] header, int offset, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+
+    private List<File> install(byte[] archive, String source, boolean overwrite, File installDir) throws IOException {
+        ScriptStore store = new ScriptStore(new File(dir, "store"));
+        BundleInstaller.Bundle bundle = new BundleInstaller(store, installDir, overwrite)
+                .extract(new ByteArrayInputStream(archive), source);
+        try {
+            return bundle.commit();
+        } finally {
+            bundle.discard();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        return FileUtils.readFileToString(file, "UTF-8");
+    }
+
+    @Test
+    void setsTheExecutableBitOnTheInstalledCopy() throws IOException {
+        Map<String,String> files = new LinkedHashMap<String,String>();
+        files.put("hello.sh", "#!/bin/sh\necho hello\n");
+        File installDir = new File(dir, "scripts");
+        List<File> installed = install(tarGz(files, 0755), "bundle.tar.gz", false, installDir);
+
+        assertEquals(1, installed.size());
+        assertTrue(Files.getPosixFilePermissions(installed.get(0).toPath()).contains(PosixFilePermission.OWNER_EXECUTE));
+        File blob = new ScriptStore(new File(dir, "store")).find(CatalogIndex.hash(installed.get(0)));
+        assertFalse(Files.getPosixFilePermissions(blob.toPath()).contains(PosixFilePermission.OWNER_EXECUTE));
+    }
+
+    @Test
+    void failedCommitRestoresTheScriptPath() throws IOException {
+        File installDir = new File(dir, "scripts");
+        installDir.mkdirs();
+        File a = new File(installDir, "a.sh");
+        FileUtils.writeStringToFile(a, "echo old a\n", "UTF-8");
+        // Can't be replaced by a file
+        File b = new File(installDir, "b.sh");
+        FileUtils.writeStringToFile(new File(b, "child"), "x", "UTF-8");
+
+        Map<String,String> files = new LinkedHashMap<String,String>();
+        files.put("a.sh", "echo new a\n");
+        files.put("c.sh", "echo new c\n");
+        files.put("b.sh", "echo new b\n");
+        assertThrows(IOException.class, () -> install(zip(files), "bundle.zip", true, installDir));
+
+        assertEquals("echo old a\n", read(a));
+        assertFalse(new File(installDir, "c.sh").exists());
+        assertTrue(b.isDirectory());
+        // No staged copies or backups are left behind
+        String[] names = installDir.list();
+        Arrays.sort(names);
+        assertArrayEquals(new String[]{"a.sh", "b.sh"}, names);
+
+        FileUtils.deleteDirectory(b);
+        List<File> installed = install(zip(files), "bundle.zip", true, installDir);
+        assertEquals(3, installed.size());
+        assertEquals("echo new a\n", read(a));
+        assertEquals("echo new b\n", read(b));
+        assertEquals(3, installDir.list().length);
+    }
+
+    @Test
+    void indexesInstalledFilesWithoutTheViewer() throws IOException {
+        Map<String,String> files = new LinkedHashMap<String,String>();
+        files.put("hello.sh", "#!/bin/sh\necho hello\n---\n__title__=\"Hello\"\n__tags__=\"#greetings\"\n");
+        files.put("greetings.adoc", "= Greetings\n\nScripts that say hello.\n");
+        File installDir = new File(dir, "scripts");
+        List<File> installed = install(zip(files), "bundle.zip", false, installDir);
+
+        File indexFile = new File(dir, "catalog.index");
+        CatalogIndex index = CatalogIndex.load(indexFile);
+        index.update(installed);
+        index.save();
+
+        CatalogIndex loaded = CatalogIndex.load(indexFile);
+        CatalogIndex.ScriptEntry script = loaded.getScript(new File(installDir, "hello.sh"));
+        assertEquals("Hello", script.title);
+        assertTrue(script.tags.contains("greetings"));
+        CatalogIndex.SectionEntry section = loaded.getSection(new File(installDir, "greetings.adoc"));
+        assertEquals("Greetings", section.label);
+        assertTrue(section.description.contains("Scripts that say hello."));
+    }
+}
@@ -0,0 +1,77 @@
+package ca.weblite.shellmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CatalogRenderTest {
+    @TempDir
+    File dir;
+
+    private void write(String name, String contents) throws IOException {
+        FileUtils.writeStringToFile(new File(dir, name), contents, "UTF-8");
+    }
+
+    private CatalogViewer newViewer() {
+        Map<String,String> env = new HashMap<String,String>();
+        env.put("SHELLMARKS_PATH", dir.getAbsolutePath());
+        return new CatalogViewer(Main.withEnvironment(env));
+    }
+
+    @Test
+    void fragmentsRenderTheSameAsOnePass() throws IOException {
+        write("deployment.adoc", "= Deployment\n\nHow we deploy.\n\n== Staging\n\nStaging comes first.\n\n=== Rollback\n\nUndo it.\n");
+        write("notes.adoc", "= Notes\n\nNotes without any headings.\n");
+        write("deploy.sh", "#!/bin/bash\necho deploy\n---\n__title__=\"Deploy\"\n__tags__=\"#deployment\"\n"
+                + "__description__='''\nDeploys the app.\n\n== Usage\n\nRun it after the build.\n'''\n");
+        write("hosts.sh", "#!/bin/bash\necho hosts\n---\n__title__=\"Hosts\"\n__tags__=\"#notes\"\n"
+                + "__description__='''\nThe hosts.\n\n.Hosts\n|===\n|web |db\n|===\n'''\n");
+        write("plain.sh", "#!/bin/bash\necho plain\n---\n__title__=\"Plain\"\n__tags__=\"#notes\"\n"
+                + "__description__='''\nJust a paragraph with *bold* text.\n'''\n");
+        write("bare.sh", "#!/bin/bash\necho bare\n---\n__title__=\"Bare\"\n");
+
+        CatalogViewer viewer = newViewer();
+        CatalogViewer.ScriptCategory root = viewer.loadAllScriptCategories(new CatalogIndex(new File(dir, ".index")));
+        CatalogViewer.renderCache.retainAll(Collections.<String>emptyList());
+        RenderCache.Page page = viewer.renderCatalog(root, new JfrEvents.GenerateCatalog());
+        String singlePass = viewer.renderCatalogSinglePass(root);
+
+        // Only the descriptions without headings, titles etc. are rendered on their own
+        assertEquals(new HashSet<String>(Arrays.asList("shellmarks-section:notes", "shellmarks-script:notes/plain.sh", "shellmarks-script:/bare.sh")),
+                page.fragmentHtml.keySet());
+        assertEquals(singlePass, page.html);
+
+        // Headings from the section and the script doc string are part of the page's sections
+        String toc = page.html.substring(page.html.indexOf("<div id=\"toc\""), page.html.indexOf("<div id=\"content\">"));
+        assertTrue(toc.contains(">Staging</a>"), toc);
+        assertTrue(toc.contains(">Usage</a>"), toc);
+        assertTrue(page.html.contains("<h4 id=\"_rollback\">Rollback</h4>"));
+        assertTrue(page.html.contains("Table 1. Hosts"));
+
+        // Cached fragments are spliced into the same page
+        RenderCache.Page cached = viewer.renderCatalog(root, new JfrEvents.GenerateCatalog());
+        assertEquals(singlePass, cached.html);
+    }
+
+    @Test
+    void isSelfContained() {
+        assertTrue(RenderCache.isSelfContained("A paragraph.\n\n* a list\n* with *bold*\n\n----\necho hi\n----\n"));
+        assertTrue(RenderCache.isSelfContained("An ellipsis...\n\n...and more.\n"));
+        assertFalse(RenderCache.isSelfContained("Intro\n\n== Heading\n\nText\n"));
+        assertFalse(RenderCache.isSelfContained(":name: value\n\nText\n"));
+        assertFalse(RenderCache.isSelfContained("Uses {name}.\n"));
+        assertFalse(RenderCache.isSelfContained("See <<other>>.\n"));
+        assertFalse(RenderCache.isSelfContained("Text.footnote:[A note]\n"));
+        assertFalse(RenderCache.isSelfContained(".Title\n|===\n|a\n|===\n"));
+    }
+}
@@ -0,0 +1,102 @@
+package ca.weblite.shellmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CatalogViewerTest {
+    @TempDir
+    File dir;
+
+    private File write(String name, String contents) throws IOException {
+        File file = new File(dir, name);
+        FileUtils.writeStringToFile(file, contents, "UTF-8");
+        return file;
+    }
+
+    private static String script(String title) {
+        return script(title, "#tools");
+    }
+
+    private static String script(String title, String tags) {
+        return "#!/bin/bash\necho hi\n---\n__title__=\""+title+"\"\n__tags__=\""+tags+"\"\n";
+    }
+
+    private CatalogViewer newViewer() {
+        Map<String,String> env = new HashMap<String,String>();
+        env.put("SHELLMARKS_PATH", dir.getAbsolutePath());
+        return new CatalogViewer(Main.withEnvironment(env));
+    }
+
+    @Test
+    void reloadsOnlyChangedFiles() throws IOException {
+        File a = write("a.sh", script("Alpha"));
+        File b = write("b.sh", script("Beta"));
+        File section = write("tools.adoc", "= Tools\n\nUseful tools.\n");
+        CatalogViewer viewer = newViewer();
+        CatalogIndex index = new CatalogIndex(new File(dir, ".index"));
+        String source = viewer.buildCatalogSource(viewer.loadAllScriptCategories(index), null);
+        assertTrue(source.contains("Alpha") && source.contains("Beta") && source.contains("Useful tools."));
+
+        // b.sh changes too, but isn't reported, so it keeps its old title
+        write("a.sh", script("Alpha 2"));
+        write("b.sh", script("Beta 2"));
+        write("tools.adoc", "= Tools\n\nHandy tools.\n");
+        File c = write("c.sh", script("Gamma"));
+        source = viewer.buildCatalogSource(viewer.reloadScriptCategories(index, new HashSet<File>(Arrays.asList(a, section, c))), null);
+        assertTrue(source.contains("Alpha 2"));
+        assertTrue(source.contains("== Beta" + System.lineSeparator()));
+        assertTrue(source.contains("Gamma"));
+        assertTrue(source.contains("Handy tools."));
+
+        assertTrue(b.delete());
+        source = viewer.buildCatalogSource(viewer.reloadScriptCategories(index, new HashSet<File>(Arrays.asList(b))), null);
+        assertFalse(source.contains("Beta"));
+        assertTrue(source.contains("Alpha 2") && source.contains("Gamma"));
+    }
+
+    @Test
+    void incrementalRebuildMatchesColdScan() throws IOException {
+        File indexFile = new File(dir, ".index");
+        write("tools.adoc", "= Tools\n\nUseful tools.\n");
+        write("network.adoc", "= Network\n:parent: tools\n\nNetworking tools.\n");
+        File a = write("a.sh", script("Alpha", "#tools"));
+        File b = write("b.sh", script("Beta", "#network"));
+        write("c.sh", script("Gamma", "#network #tools"));
+        write("e.sh", script("Epsilon", ""));
+
+        CatalogViewer viewer = newViewer();
+        CatalogIndex index = CatalogIndex.load(indexFile);
+        viewer.buildCatalogSource(viewer.loadAllScriptCategories(index), null);
+        index.save();
+
+        // One edit, one add and one delete
+        write("a.sh", script("Alpha 2", "#network"));
+        File d = write("d.sh", script("Delta", "#tools"));
+        assertTrue(b.delete());
+        Set<File> changed = new HashSet<File>(Arrays.asList(a, b, d));
+
+        index = CatalogIndex.load(indexFile);
+        String incremental = viewer.buildCatalogSource(viewer.reloadScriptCategories(index, changed), null);
+        index.save();
+        // A new process, with the index that the incremental rebuild saved
+        CatalogViewer restarted = newViewer();
+        String indexed = restarted.buildCatalogSource(restarted.loadAllScriptCategories(CatalogIndex.load(indexFile)), null);
+
+        CatalogViewer cold = newViewer();
+        String scanned = cold.buildCatalogSource(cold.loadAllScriptCategories(new CatalogIndex(new File(dir, ".cold-index"))), null);
+        assertTrue(scanned.contains("Alpha 2") && scanned.contains("Delta") && !scanned.contains("Beta"), scanned);
+        assertEquals(scanned, incremental);
+        assertEquals(scanned, indexed);
+    }
+}
@@ -0,0 +1,112 @@
+package ca.weblite.shellmarks;
+
+import ca.weblite.shellmarks.Main.Field;
+import ca.weblite.shellmarks.Main.FieldType;
+import ca.weblite.shellmarks.Main.Form;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FormCacheTest {
+    private static final long OLD = System.currentTimeMillis() / 1000 * 1000 - 24 * 60 * 60 * 1000L;
+
+    @TempDir
+    File dir;
+
+    private static Form form() {
+        List<Field> fields = Arrays.asList(
+                new Field("NAME", "Name", "Who to greet", FieldType.Text, "world", true, 2, false),
+                new Field("GO", "Go", null, FieldType.Button, null, false, 1, true)
+        );
+        return new Form("Hello", "Says hello", "= Hello\n\nSays *hello*.", "Greetings/Hello",
+                new HashSet<String>(Arrays.asList("greetings", "demo")), fields, Arrays.asList("setup.sh", "other.sh"));
+    }
+
+    private static String hash(String contents) {
+        return CatalogIndex.hash(contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void roundTripsEveryField() {
+        FormCache cache = new FormCache(dir);
+        String hash = hash("echo hello");
+        Form form = form();
+        cache.put(hash, new FormCache.Entry(form, "<p>Says <strong>hello</strong>.</p>"));
+
+        FormCache.Entry entry = new FormCache(dir).get(hash);
+        assertNotNull(entry);
+        assertEquals("<p>Says <strong>hello</strong>.</p>", entry.descriptionHtml);
+        assertEquals(form.title, entry.form.title);
+        assertEquals(form.description, entry.form.description);
+        assertEquals(form.docString, entry.form.docString);
+        assertEquals(form.categoryPath, entry.form.categoryPath);
+        assertEquals(form.tags, entry.form.tags);
+        assertEquals(form.depends, entry.form.depends);
+        assertEquals(form.fields.size(), entry.form.fields.size());
+        for (int i=0; i<form.fields.size(); i++) {
+            Field expected = form.fields.get(i);
+            Field actual = entry.form.fields.get(i);
+            assertEquals(expected.varName, actual.varName);
+            assertEquals(expected.label, actual.label);
+            assertEquals(expected.help, actual.help);
+            assertEquals(expected.type, actual.type);
+            assertEquals(expected.defaultValue, actual.defaultValue);
+            assertEquals(expected.required, actual.required);
+            assertEquals(expected.order, actual.order);
+            assertEquals(expected.disposeOnSubmit, actual.disposeOnSubmit);
+        }
+
+        cache.put(hash, new FormCache.Entry(form, null));
+        assertNull(cache.get(hash).descriptionHtml);
+    }
+
+    @Test
+    void unreadableEntriesAreMisses() throws IOException {
+        FormCache cache = new FormCache(dir);
+        String hash = hash("echo hello");
+        cache.put(hash, new FormCache.Entry(form(), "<p>hello</p>"));
+        File file = new File(dir, hash+".form");
+        byte[] bytes = Files.readAllBytes(file.toPath());
+
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 5));
+        assertNull(cache.get(hash));
+
+        byte[] badMagic = bytes.clone();
+        badMagic[0] ^= 0xff;
+        Files.write(file.toPath(), badMagic);
+        assertNull(cache.get(hash));
+
+        assertNull(cache.get(hash("missing")));
+    }
+
+    @Test
+    void pruneKeepsTheNewestEntries() throws IOException {
+        FormCache cache = new FormCache(dir);
+        cache.put(hash("template"), new FormCache.Entry(form(), null));
+        byte[] bytes = Files.readAllBytes(new File(dir, hash("template")+".form").toPath());
+        // Fill the cache to the limit with entries that are all older than the template
+        new File(dir, hash("template")+".form").delete();
+        for (int i=0; i<FormCache.MAX_ENTRIES; i++) {
+            File file = new File(dir, hash("script "+i)+".form");
+            Files.write(file.toPath(), bytes);
+            file.setLastModified(OLD + i*1000L);
+        }
+
+        cache.put(hash("newest"), new FormCache.Entry(form(), null));
+        assertEquals(FormCache.MAX_ENTRIES, dir.list((d, name) -> name.endsWith(".form")).length);
+        assertNull(cache.get(hash("script 0")));
+        assertNotNull(cache.get(hash("script 1")));
+        assertNotNull(cache.get(hash("newest")));
+        // Temp files aren't left behind
+        assertEquals(0, dir.list((d, name) -> name.endsWith(".tmp")).length);
+    }
+}
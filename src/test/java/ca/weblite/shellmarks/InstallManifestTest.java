@@ -0,0 +1,64 @@
+package ca.weblite.shellmarks;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InstallManifestTest {
+    @TempDir
+    File dir;
+
+    private static InstallManifest.Entry entry(String name) {
+        InstallManifest.Entry entry = new InstallManifest.Entry(name);
+        entry.url = "https://example.com/"+name;
+        entry.etag = "\"abc\"";
+        entry.sha256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+        entry.size = 12;
+        return entry;
+    }
+
+    @Test
+    void savesAndLoads() throws IOException {
+        try (InstallManifest manifest = InstallManifest.lock(dir)) {
+            manifest.put(entry("a.sh"));
+            manifest.save();
+        }
+        InstallManifest.Entry loaded = InstallManifest.load(dir).get("a.sh");
+        assertEquals("https://example.com/a.sh", loaded.url);
+        assertEquals("\"abc\"", loaded.etag);
+        assertNull(loaded.lastModified);
+        assertEquals(12, loaded.size);
+        assertFalse(loaded.pinned);
+    }
+
+    @Test
+    void lockWaitsForOtherChangesToBeSaved() throws Exception {
+        CompletableFuture<InstallManifest.Entry> other;
+        try (InstallManifest manifest = InstallManifest.lock(dir)) {
+            other = CompletableFuture.supplyAsync(() -> {
+                try (InstallManifest second = InstallManifest.lock(dir)) {
+                    InstallManifest.Entry seen = second.get("a.sh");
+                    second.put(entry("b.sh"));
+                    second.save();
+                    return seen;
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+            assertThrows(TimeoutException.class, () -> other.get(200, TimeUnit.MILLISECONDS));
+            manifest.put(entry("a.sh"));
+            manifest.save();
+        }
+        assertNotNull(other.get(10, TimeUnit.SECONDS));
+        InstallManifest loaded = InstallManifest.load(dir);
+        assertNotNull(loaded.get("a.sh"));
+        assertNotNull(loaded.get("b.sh"));
+    }
+}
@@ -0,0 +1,71 @@
+package ca.weblite.shellmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest {
+    @TempDir
+    File dir;
+
+    private static Map<String,Double> read(File file) throws IOException {
+        return Metrics.parse(FileUtils.readFileToString(file, "UTF-8"));
+    }
+
+    @Test
+    void flushesOnlyAddWhatIsNew() throws IOException {
+        File file = new File(dir, "shellmarks.prom");
+        Metrics first = new Metrics();
+        first.recordRun("a.sh", 100_000_000L, 0);
+        first.recordRun("b.sh", 3_000_000_000L, 2);
+        first.flush(file);
+
+        // Nothing new, so the file is left alone
+        first.flush(file);
+        assertEquals(1.0, read(file).get("shellmarks_script_runs_total{script=\"a.sh\"}"));
+
+        first.recordRun("a.sh", 200_000_000L, 0);
+        first.flush(file);
+
+        Metrics second = new Metrics();
+        second.recordRun("a.sh", 50_000_000L, 1);
+        second.recordCatalogGeneration(20_000_000L);
+        second.flush(file);
+
+        Map<String,Double> samples = read(file);
+        assertEquals(3.0, samples.get("shellmarks_script_runs_total{script=\"a.sh\"}"));
+        assertEquals(1.0, samples.get("shellmarks_script_runs_total{script=\"b.sh\"}"));
+        assertEquals(1.0, samples.get("shellmarks_script_failures_total{script=\"a.sh\",exit_code=\"1\"}"));
+        assertEquals(1.0, samples.get("shellmarks_script_failures_total{script=\"b.sh\",exit_code=\"2\"}"));
+        assertEquals(3.0, samples.get("shellmarks_script_duration_seconds_count{script=\"a.sh\"}"));
+        assertEquals(0.35, samples.get("shellmarks_script_duration_seconds_sum{script=\"a.sh\"}"), 1e-9);
+        assertEquals(1.0, samples.get("shellmarks_script_duration_seconds_bucket{script=\"a.sh\",le=\"0.05\"}"));
+        assertEquals(2.0, samples.get("shellmarks_script_duration_seconds_bucket{script=\"a.sh\",le=\"0.1\"}"));
+        assertEquals(3.0, samples.get("shellmarks_script_duration_seconds_bucket{script=\"a.sh\",le=\"+Inf\"}"));
+        assertEquals(1.0, samples.get("shellmarks_catalog_generation_seconds_count"));
+
+        // Flushing the second registry again doesn't count its runs twice
+        second.flush(file);
+        assertEquals(samples, read(file));
+    }
+
+    @Test
+    void parseReadsWhatFormatWrites() {
+        Metrics metrics = new Metrics();
+        String name = "my \"quoted\" script\\with\nnewline.sh";
+        metrics.recordRun(name, 1_000_000L, 0);
+        metrics.recordRun("plain.sh", 1_000_000L, 0);
+        Map<String,Double> samples = metrics.samples();
+
+        String text = Metrics.format(samples);
+        assertTrue(text.contains("shellmarks_script_runs_total{script=\"my \\\"quoted\\\" script\\\\with\\nnewline.sh\"} 1\n"), text);
+        assertEquals(samples, Metrics.parse(text));
+        assertEquals(text, Metrics.format(Metrics.parse(text)));
+    }
+}
@@ -0,0 +1,106 @@
+package ca.weblite.shellmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelRunnerTest {
+    @TempDir
+    File dir;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    /**
+     * A script that records that it ran in the file "ran", then runs body.
+     */
+    private File script(String name, String body, String... depends) throws IOException {
+        StringBuilder contents = new StringBuilder("#!/bin/sh\n")
+                .append("echo ").append(name).append(" >> '").append(new File(dir, "ran").getAbsolutePath()).append("'\n")
+                .append(body).append('\n');
+        if (depends.length > 0) {
+            contents.append("---\n__depends__=\"").append(String.join(" ", depends)).append("\"\n");
+        }
+        File file = new File(dir, name);
+        FileUtils.writeStringToFile(file, contents.toString(), "UTF-8");
+        return file;
+    }
+
+    private int run(boolean failFast, File... targets) throws IOException {
+        Map<String,String> env = new HashMap<String,String>(System.getenv());
+        env.put("SHELLMARKS_PATH", dir.getAbsolutePath());
+        Main session = Main.withEnvironment(env).newSession(out, err);
+        return new ParallelRunner(session, 4, failFast).run(ScriptGraph.resolve(session, Arrays.asList(targets)));
+    }
+
+    private List<String> ran() throws IOException {
+        File ran = new File(dir, "ran");
+        return ran.exists() ? FileUtils.readLines(ran, "UTF-8") : Collections.<String>emptyList();
+    }
+
+    private String summary() {
+        return new String(err.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void runsEachScriptOfADiamondOnce() throws IOException {
+        script("a.sh", "echo from a");
+        script("b.sh", "sleep 0.2", "a.sh");
+        script("c.sh", "", "a.sh");
+        File d = script("d.sh", "", "b.sh", "c.sh");
+
+        assertEquals(0, run(true, d));
+        List<String> ran = ran();
+        assertEquals(4, ran.size(), ran.toString());
+        assertEquals("a.sh", ran.get(0));
+        assertEquals("d.sh", ran.get(3));
+        assertTrue(ran.containsAll(Arrays.asList("b.sh", "c.sh")));
+        assertTrue(new String(out.toByteArray(), StandardCharsets.UTF_8).contains("[a.sh] from a"));
+        assertTrue(summary().contains("Ran 4 scripts"), summary());
+        assertTrue(summary().contains("4 succeeded, 0 failed, 0 cancelled, 0 skipped"), summary());
+    }
+
+    @Test
+    void skipsDependentsOfAFailedScript() throws IOException {
+        script("a.sh", "exit 3");
+        script("b.sh", "", "a.sh");
+        File c = script("c.sh", "", "b.sh");
+        File other = script("other.sh", "sleep 0.5");
+
+        assertEquals(1, run(false, c, other));
+        List<String> ran = ran();
+        Collections.sort(ran);
+        assertEquals(Arrays.asList("a.sh", "other.sh"), ran);
+        String summary = summary();
+        assertTrue(summary.contains("1 succeeded, 1 failed, 0 cancelled, 2 skipped"), summary);
+        assertTrue(summary.contains("exit code 3"), summary);
+        assertTrue(summary.contains("needs a.sh"), summary);
+    }
+
+    @Test
+    void failFastCancelsRunningScripts() throws IOException {
+        script("fails.sh", "sleep 0.2; exit 1");
+        // exec, so that cancelling the script kills the sleep, which holds its output open
+        script("slow.sh", "exec sleep 30");
+        File after = script("after.sh", "", "slow.sh");
+
+        long started = System.nanoTime();
+        assertEquals(1, run(true, new File(dir, "fails.sh"), after));
+        assertTrue(System.nanoTime() - started < 20_000_000_000L, "The slow script wasn't stopped");
+        assertFalse(ran().contains("after.sh"));
+        String summary = summary();
+        assertTrue(summary.contains("0 succeeded, 1 failed, 2 cancelled, 0 skipped"), summary);
+    }
+}
@@ -0,0 +1,47 @@
+package ca.weblite.shellmarks;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PrefixedOutputStreamTest {
+
+    private static String write(String... chunks) throws IOException {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        PrefixedOutputStream out = new PrefixedOutputStream(target, "[a] ");
+        for (String chunk : chunks) {
+            out.write(chunk.getBytes(StandardCharsets.UTF_8));
+        }
+        out.close();
+        return target.toString("UTF-8");
+    }
+
+    @Test
+    void prefixesEachLine() throws IOException {
+        assertEquals("[a] one\n[a] two\n[a] three\n", write("one\ntw", "o\nthree"));
+    }
+
+    @Test
+    void endsLinesAtCarriageReturns() throws IOException {
+        assertEquals("[a] 10%\r[a] 20%\r[a] done\n", write("10%\r20", "%\rdone\n"));
+        // A CRLF ends a single line, even when it is split across writes
+        assertEquals("[a] one\r\n[a] two\r\n", write("one\r\ntwo\r", "\n"));
+    }
+
+    @Test
+    void splitsLongLines() throws IOException {
+        char[] chars = new char[PrefixedOutputStream.MAX_LINE * 2 + 10];
+        Arrays.fill(chars, 'x');
+        String out = write(new String(chars, 0, 100), new String(chars, 100, chars.length - 100));
+        String[] lines = out.split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("[a] ".length() + PrefixedOutputStream.MAX_LINE, lines[0].length());
+        assertEquals("[a] ".length() + PrefixedOutputStream.MAX_LINE, lines[1].length());
+        assertEquals("[a] ".length() + 10, lines[2].length());
+    }
+}
@@ -0,0 +1,107 @@
+package ca.weblite.shellmarks;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RunJournalTest {
+    @TempDir
+    File dir;
+
+    private static List<Long> startTimes(RunJournal journal) throws IOException {
+        List<Long> out = new ArrayList<Long>();
+        journal.read(record -> out.add(record.startTime), false);
+        return out;
+    }
+
+    /**
+     * Makes segments 1 to n, each holding one record whose start time is its sequence number,
+     * old enough to be compacted.
+     */
+    private RunJournal makeSegments(int n) throws IOException {
+        RunJournal journal = new RunJournal(dir);
+        journal.append("first.sh", 1, 10, 0, Collections.<String>emptyList());
+        File first = journal.getSegments().get(0);
+        byte[] header = Arrays.copyOf(Files.readAllBytes(first.toPath()), 8);
+        for (int i=2; i<=n; i++) {
+            File segment = new File(dir, String.format("segment-%010d.journal", i));
+            Files.write(segment.toPath(), header);
+            // Appends go to the newest segment
+            journal.append("script"+i+".sh", i, 10, 0, Collections.<String>emptyList());
+        }
+        for (File segment : journal.getSegments()) {
+            segment.setLastModified(System.currentTimeMillis() - 120000);
+        }
+        return journal;
+    }
+
+    @Test
+    void compactMergesSealedSegments() throws IOException {
+        RunJournal journal = makeSegments(4);
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), startTimes(journal));
+
+        assertEquals(1, journal.compact(2));
+        List<File> segments = journal.getSegments();
+        assertEquals(2, segments.size());
+        assertEquals("segment-0000000001-0000000003.journal", segments.get(0).getName());
+        assertEquals(Arrays.asList(2L, 3L, 4L), startTimes(journal));
+        assertEquals(2, dir.list((d, name) -> name.endsWith(".journal")).length);
+
+        // New appends still go after the merged segment
+        journal.append("next.sh", 5, 10, 0, Collections.<String>emptyList());
+        assertEquals(Arrays.asList(2L, 3L, 4L, 5L), startTimes(journal));
+    }
+
+    @Test
+    void interruptedCompactionDoesNotDuplicateRecords() throws IOException {
+        RunJournal journal = makeSegments(4);
+        List<byte[]> inputs = new ArrayList<byte[]>();
+        for (int i=1; i<=3; i++) {
+            inputs.add(Files.readAllBytes(new File(dir, String.format("segment-%010d.journal", i)).toPath()));
+        }
+        journal.compact(0);
+
+        // As if the process died after writing the merged segment but before deleting its inputs
+        for (int i=1; i<=3; i++) {
+            Files.write(new File(dir, String.format("segment-%010d.journal", i)).toPath(), inputs.get(i - 1));
+        }
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), startTimes(journal));
+
+        // The next compaction cleans them up
+        for (File segment : dir.listFiles()) {
+            segment.setLastModified(System.currentTimeMillis() - 120000);
+        }
+        journal.compact(0);
+        assertFalse(new File(dir, "segment-0000000001.journal").exists());
+        assertFalse(new File(dir, "segment-0000000002.journal").exists());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), startTimes(journal));
+    }
+
+    @Test
+    void compactsMergedSegmentsAgain() throws IOException {
+        RunJournal journal = makeSegments(3);
+        journal.compact(0);
+        File header = new File(dir, "segment-0000000003.journal");
+        assertTrue(header.exists());
+        File next = new File(dir, "segment-0000000004.journal");
+        Files.write(next.toPath(), Arrays.copyOf(Files.readAllBytes(header.toPath()), 8));
+        journal.append("script4.sh", 4, 10, 0, Collections.<String>emptyList());
+        for (File segment : dir.listFiles()) {
+            segment.setLastModified(System.currentTimeMillis() - 120000);
+        }
+
+        journal.compact(0);
+        assertEquals("segment-0000000001-0000000003.journal", journal.getSegments().get(0).getName());
+        assertEquals(2, journal.getSegments().size());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), startTimes(journal));
+    }
+}
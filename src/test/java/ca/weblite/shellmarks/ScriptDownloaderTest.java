@@ -0,0 +1,246 @@
+package ca.weblite.shellmarks;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScriptDownloaderTest {
+    @TempDir
+    File dir;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private final Map<String,byte[]> scripts = new ConcurrentHashMap<String,byte[]>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger bodiesSent = new AtomicInteger();
+    private volatile CountDownLatch gate;
+
+    private File storeDir;
+    private File installDir;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        storeDir = new File(dir, "store");
+        installDir = new File(dir, "scripts");
+        installDir.mkdirs();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/", exchange -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                CountDownLatch gate = this.gate;
+                if (gate != null) {
+                    // Hold every response until they have all been requested
+                    gate.countDown();
+                    gate.await(10, TimeUnit.SECONDS);
+                }
+                byte[] body = scripts.get(exchange.getRequestURI().getPath());
+                if (body == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    String etag = "\""+hash("SHA-256", body).substring(0, 16)+"\"";
+                    String lastModified = lastModified(body);
+                    exchange.getResponseHeaders().set("ETag", etag);
+                    exchange.getResponseHeaders().set("Last-Modified", lastModified);
+                    if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))
+                            || lastModified.equals(exchange.getRequestHeaders().getFirst("If-Modified-Since"))) {
+                        exchange.sendResponseHeaders(304, -1);
+                        return;
+                    }
+                    bodiesSent.incrementAndGet();
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                inFlight.decrementAndGet();
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://"+server.getAddress().getHostString()+":"+server.getAddress().getPort()+path);
+    }
+
+    private static String hash(String algorithm, byte[] bytes) {
+        return ScriptDownloader.toHex(ScriptDownloader.newDigest(algorithm).digest(bytes), algorithm.equals("SHA-1") ? 40 : 64);
+    }
+
+    /**
+     * A Last-Modified date that changes with the body.
+     */
+    private static String lastModified(byte[] body) {
+        return "Tue, 0"+(1 + body.length % 9)+" Sep 2026 10:00:00 GMT";
+    }
+
+    private byte[] serve(String name) {
+        byte[] body = ("#!/bin/sh\necho "+name+"\n").getBytes(StandardCharsets.UTF_8);
+        scripts.put("/"+name, body);
+        return body;
+    }
+
+    private ScriptDownloader newDownloader() {
+        return new ScriptDownloader(new ScriptStore(storeDir), false, false);
+    }
+
+    @Test
+    void downloadsConcurrently() throws Exception {
+        List<ScriptDownloader.Download> downloads = new ArrayList<ScriptDownloader.Download>();
+        for (int i=0; i<4; i++) {
+            serve("s"+i+".sh");
+            downloads.add(new ScriptDownloader.Download(uri("/s"+i+".sh"), new File(installDir, "s"+i+".sh"), null));
+        }
+        gate = new CountDownLatch(4);
+        newDownloader().downloadAll(downloads);
+
+        assertEquals(4, maxInFlight.get());
+        for (int i=0; i<4; i++) {
+            ScriptDownloader.Download download = downloads.get(i);
+            assertTrue(download.isSuccessful(), download.error);
+            assertArrayEquals(scripts.get("/s"+i+".sh"), Files.readAllBytes(download.dest.toPath()));
+            assertEquals(hash("SHA-256", scripts.get("/s"+i+".sh")), download.sha256);
+        }
+    }
+
+    @Test
+    void verifiesSha256AndSha1() throws Exception {
+        byte[] a = serve("a.sh");
+        byte[] b = serve("b.sh");
+        ScriptDownloader.Download bySha256 = new ScriptDownloader.Download(uri("/a.sh"), new File(installDir, "a.sh"), hash("SHA-256", a));
+        ScriptDownloader.Download bySha1 = new ScriptDownloader.Download(uri("/b.sh"), new File(installDir, "b.sh"), hash("SHA-1", b).toUpperCase(Locale.ROOT));
+        newDownloader().downloadAll(Arrays.asList(bySha256, bySha1));
+
+        assertTrue(bySha256.isSuccessful(), bySha256.error);
+        assertTrue(bySha1.isSuccessful(), bySha1.error);
+        assertArrayEquals(a, Files.readAllBytes(new File(installDir, "a.sh").toPath()));
+        assertArrayEquals(b, Files.readAllBytes(new File(installDir, "b.sh").toPath()));
+        // The SHA-1 hash is recorded, so the store can find the script by it next time
+        assertNotNull(new ScriptStore(storeDir).find(hash("SHA-1", b)));
+    }
+
+    @Test
+    void hashMismatchInstallsNothing() throws Exception {
+        byte[] a = serve("a.sh");
+        String wrong = hash("SHA-256", "something else".getBytes(StandardCharsets.UTF_8));
+        ScriptDownloader.Download download = new ScriptDownloader.Download(uri("/a.sh"), new File(installDir, "a.sh"), wrong);
+        ScriptDownloader.Download sha1Download = new ScriptDownloader.Download(uri("/a.sh"), new File(installDir, "a1.sh"),
+                hash("SHA-1", "something else".getBytes(StandardCharsets.UTF_8)));
+        newDownloader().downloadAll(Arrays.asList(download, sha1Download));
+
+        assertFalse(download.isSuccessful());
+        assertTrue(download.error.contains("did not match"), download.error);
+        assertFalse(sha1Download.isSuccessful());
+        assertTrue(sha1Download.error.contains("SHA-1"), sha1Download.error);
+        assertEquals(0, installDir.list().length);
+        // No temp file or blob is left in the store
+        String[] stored = storeDir.list((d, name) -> !name.equals("index"));
+        assertEquals(0, stored == null ? 0 : stored.length, Arrays.toString(stored));
+        assertNull(new ScriptStore(storeDir).find(hash("SHA-256", a)));
+    }
+
+    @Test
+    void recordsUnexpectedExceptions() throws Exception {
+        serve("a.sh");
+        ScriptDownloader.Download ok = new ScriptDownloader.Download(uri("/a.sh"), new File(installDir, "a.sh"), null);
+        // HttpClient throws IllegalArgumentException for schemes other than http and https
+        ScriptDownloader.Download failing = new ScriptDownloader.Download(URI.create("ftp://localhost/b.sh"), new File(installDir, "b.sh"), null);
+        ScriptDownloader.Download missing = new ScriptDownloader.Download(uri("/missing.sh"), new File(installDir, "c.sh"), null);
+        newDownloader().downloadAll(Arrays.asList(failing, missing, ok));
+
+        assertFalse(failing.isSuccessful());
+        assertTrue(failing.error.contains("IllegalArgumentException"), failing.error);
+        assertFalse(missing.isSuccessful());
+        assertTrue(missing.error.contains("404"), missing.error);
+        assertTrue(ok.isSuccessful(), ok.error);
+        assertArrayEquals(new String[]{"a.sh"}, installDir.list());
+    }
+
+    @Test
+    void conditionalRequestsRoundTripEtagAndLastModified() throws Exception {
+        serve("a.sh");
+        File dest = new File(installDir, "a.sh");
+        ScriptDownloader.Download first = new ScriptDownloader.Download(uri("/a.sh"), dest, null);
+        newDownloader().downloadAll(Collections.singletonList(first));
+        assertTrue(first.isSuccessful(), first.error);
+        assertNotNull(first.etag);
+        assertNotNull(first.lastModified);
+        assertEquals(1, bodiesSent.get());
+
+        ScriptDownloader overwriting = new ScriptDownloader(new ScriptStore(storeDir), true, false);
+        ScriptDownloader.Download byEtag = new ScriptDownloader.Download(uri("/a.sh"), dest, null);
+        byEtag.ifNoneMatch = first.etag;
+        ScriptDownloader.Download byDate = new ScriptDownloader.Download(uri("/a.sh"), dest, null);
+        byDate.ifModifiedSince = first.lastModified;
+        overwriting.downloadAll(Arrays.asList(byEtag, byDate));
+        assertTrue(byEtag.isSuccessful(), byEtag.error);
+        assertTrue(byEtag.notModified);
+        assertTrue(byDate.isSuccessful(), byDate.error);
+        assertTrue(byDate.notModified);
+        assertEquals(1, bodiesSent.get());
+
+        // Once the script changes, the old validators no longer match
+        scripts.put("/a.sh", "#!/bin/sh\necho changed a.sh\n".getBytes(StandardCharsets.UTF_8));
+        ScriptDownloader.Download changed = new ScriptDownloader.Download(uri("/a.sh"), dest, null);
+        changed.ifNoneMatch = first.etag;
+        changed.ifModifiedSince = first.lastModified;
+        overwriting.downloadAll(Collections.singletonList(changed));
+        assertTrue(changed.isSuccessful(), changed.error);
+        assertFalse(changed.notModified);
+        assertNotEquals(first.etag, changed.etag);
+        assertNotEquals(first.lastModified, changed.lastModified);
+        assertArrayEquals(scripts.get("/a.sh"), Files.readAllBytes(dest.toPath()));
+    }
+
+    @Test
+    void unchangedDownloadLeavesInstalledScriptAlone() throws Exception {
+        byte[] a = serve("a.sh");
+        File dest = new File(installDir, "a.sh");
+        ScriptDownloader.Download first = new ScriptDownloader.Download(uri("/a.sh"), dest, null);
+        newDownloader().downloadAll(Collections.singletonList(first));
+        assertTrue(first.isSuccessful(), first.error);
+        Object inode = Files.getAttribute(dest.toPath(), "unix:ino");
+
+        // A server that ignores conditional requests sends the same script again
+        ScriptDownloader.Download again = new ScriptDownloader.Download(uri("/a.sh"), dest, null);
+        again.installedHash = hash("SHA-256", a);
+        new ScriptDownloader(new ScriptStore(storeDir), true, false).downloadAll(Collections.singletonList(again));
+        assertTrue(again.isSuccessful(), again.error);
+        assertFalse(again.notModified);
+        assertEquals(again.installedHash, again.sha256);
+        assertEquals(2, bodiesSent.get());
+        assertEquals(inode, Files.getAttribute(dest.toPath(), "unix:ino"));
+    }
+}
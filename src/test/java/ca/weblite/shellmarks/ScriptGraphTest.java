@@ -0,0 +1,94 @@
+package ca.weblite.shellmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScriptGraphTest {
+    @TempDir
+    File dir;
+
+    private File script(String name, String... depends) throws IOException {
+        StringBuilder contents = new StringBuilder("#!/bin/sh\necho "+name+"\n");
+        if (depends.length > 0) {
+            contents.append("---\n__depends__=\"").append(String.join(" ", depends)).append("\"\n");
+        }
+        File file = new File(dir, name);
+        FileUtils.writeStringToFile(file, contents.toString(), "UTF-8");
+        return file;
+    }
+
+    private ScriptGraph resolve(File... targets) throws IOException {
+        Map<String,String> env = new HashMap<String,String>();
+        env.put("SHELLMARKS_PATH", dir.getAbsolutePath());
+        return ScriptGraph.resolve(Main.withEnvironment(env), Arrays.asList(targets));
+    }
+
+    private static List<String> names(List<ScriptGraph.Node> nodes) {
+        List<String> out = new ArrayList<String>();
+        for (ScriptGraph.Node node : nodes) {
+            out.add(node.getName());
+        }
+        return out;
+    }
+
+    @Test
+    void diamondHasEachScriptOnce() throws IOException {
+        script("a.sh");
+        script("b.sh", "a.sh");
+        script("c.sh", "a.sh");
+        File d = script("d.sh", "b.sh", "c.sh");
+
+        List<ScriptGraph.Node> nodes = resolve(d).getNodes();
+        assertEquals(Arrays.asList("a.sh", "b.sh", "c.sh", "d.sh"), names(nodes));
+        ScriptGraph.Node a = nodes.get(0);
+        assertEquals(Arrays.asList("b.sh", "c.sh"), names(a.dependents));
+        assertEquals(Arrays.asList("b.sh", "c.sh"), names(nodes.get(3).depends));
+
+        // Naming a dependency as a target too doesn't add it again
+        assertEquals(Arrays.asList("a.sh", "b.sh", "c.sh", "d.sh"), names(resolve(d, new File(dir, "a.sh")).getNodes()));
+    }
+
+    @Test
+    void reportsCycles() throws IOException {
+        File a = script("a.sh", "b.sh");
+        script("b.sh", "c.sh");
+        script("c.sh", "a.sh");
+        IOException ex = assertThrows(IOException.class, () -> resolve(a));
+        assertEquals("Script dependencies have a cycle: a.sh -> b.sh -> c.sh -> a.sh", ex.getMessage());
+
+        File self = script("self.sh", "self.sh");
+        ex = assertThrows(IOException.class, () -> resolve(self));
+        assertEquals("Script dependencies have a cycle: self.sh -> self.sh", ex.getMessage());
+    }
+
+    @Test
+    void reportsMissingDependencies() throws IOException {
+        File a = script("a.sh", "missing.sh");
+        IOException ex = assertThrows(IOException.class, () -> resolve(a));
+        assertEquals("Cannot find script [missing.sh] that a.sh depends on", ex.getMessage());
+    }
+
+    @Test
+    void findsDependenciesNextToTheScriptFirst() throws IOException {
+        File sub = new File(dir, "sub");
+        FileUtils.writeStringToFile(new File(sub, "a.sh"), "#!/bin/sh\necho sub a\n", "UTF-8");
+        FileUtils.writeStringToFile(new File(sub, "b.sh"), "#!/bin/sh\n---\n__depends__=[\"a.sh\"]\n", "UTF-8");
+        script("a.sh");
+
+        List<ScriptGraph.Node> nodes = resolve(new File(sub, "b.sh")).getNodes();
+        assertEquals(new File(sub, "a.sh"), nodes.get(0).script);
+        assertEquals(Collections.singletonList(nodes.get(0)), nodes.get(1).depends);
+    }
+}
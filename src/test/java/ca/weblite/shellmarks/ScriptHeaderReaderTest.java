@@ -0,0 +1,77 @@
+package ca.weblite.shellmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScriptHeaderReaderTest {
+    private static final String SEP = System.lineSeparator();
+
+    @TempDir
+    File dir;
+
+    private static String read(String script) throws IOException {
+        return ScriptHeaderReader.readHeader(new StringReader(script));
+    }
+
+    @Test
+    void readsMarkupAfterDashLine() throws IOException {
+        assertEquals("a=1" + SEP + "b=2" + SEP, read("echo hi\n---\na=1\n----\nb=2\n"));
+        assertEquals("a=1" + SEP + SEP, read("echo hi\n---\na=1\n\n"));
+        assertEquals("a=1" + SEP, read("echo hi\n---\na=1"));
+        assertEquals("", read("echo hi\n---\n"));
+        assertNull(read("echo hi\n-\necho bye\n"));
+        assertNull(read(""));
+    }
+
+    @Test
+    void splitsLinesLikeLineTokenizer() throws IOException {
+        assertEquals("a=1" + SEP + "b=2" + SEP + "c=3" + SEP + "d=4" + SEP + SEP + "e=5" + SEP,
+                read("echo hi\u2028---\u2029a=1\r\nb=2\rc=3\u0085d=4\r\n\re=5"));
+        assertEquals("", read("echo hi\r\n--\r\n"));
+    }
+
+    @Test
+    void readsMarkupBetweenTags() throws IOException {
+        assertEquals("\na=1\n", read("echo hi\n---\nnot=markup\n: <<'X'\n<shellmarks>\na=1\n</shellmarks>\nX\n"));
+        assertEquals("\na=1\n", read("<shellm<shellmarks>\na=1\n"));
+        assertEquals("a=\"<b>\"", read("<shellmarks>a=\"<b>\"</shellmarks>"));
+    }
+
+    @Test
+    void readsLargeFilesAcrossBufferBoundaries() throws IOException {
+        StringBuilder script = new StringBuilder("#!/bin/bash\n");
+        for (int i=0; i<20000; i++) {
+            script.append("echo line ").append(i).append("\r\n");
+        }
+        // The tag straddles a buffer boundary
+        while (script.length() % 8192 != 8186) {
+            script.append('x');
+        }
+        script.append("\n<shellmarks>\n__title__=\"Big\"\n</shellmarks>\n");
+        File file = new File(dir, "big.sh");
+        FileUtils.writeStringToFile(file, script.toString(), "UTF-8");
+        assertEquals("\n__title__=\"Big\"\n", ScriptHeaderReader.readHeader(file));
+
+        // The file isn't held open or mapped, so it can be replaced straight away
+        File replacement = new File(dir, "replacement.sh");
+        FileUtils.writeStringToFile(replacement, "echo hi\n---\n__title__=\"Small\"\n", "UTF-8");
+        Files.move(replacement.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        assertEquals("__title__=\"Small\"" + SEP, ScriptHeaderReader.readHeader(file));
+    }
+
+    @Test
+    void matchesParseUI2() throws IOException {
+        String script = "#!/bin/bash\u2028echo $name\r\n---\r\n[name]\u0085type=\"text\"\u2029label=\"Name\"\n";
+        assertEquals(Main.parseUI2(script).fields.size(), Main.parseToml(read(script)).fields.size());
+        assertEquals("Name", Main.parseToml(read(script)).fields.get(0).label);
+    }
+}
@@ -0,0 +1,61 @@
+package ca.weblite.shellmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScriptResolverTest {
+    // Older than the racy window, so that listings are trusted by the next resolver
+    private static final long OLD = System.currentTimeMillis() / 1000 * 1000 - 60000;
+
+    @TempDir
+    File dir;
+
+    private File makeDir(String name) {
+        File f = new File(dir, name);
+        f.mkdirs();
+        return f;
+    }
+
+    @Test
+    void earlierDirectoriesShadowLaterOnes() throws IOException {
+        File first = makeDir("first");
+        File second = makeDir("second");
+        FileUtils.writeStringToFile(new File(second, "a.sh"), "echo second", "UTF-8");
+        FileUtils.writeStringToFile(new File(first, "a.sh"), "echo first", "UTF-8");
+        FileUtils.writeStringToFile(new File(second, "b.sh"), "echo b", "UTF-8");
+        FileUtils.writeStringToFile(new File(second, "sub/c.sh"), "echo c", "UTF-8");
+        ScriptResolver resolver = new ScriptResolver(first+File.pathSeparator+second, new File(dir, "paths.index"));
+
+        assertEquals(new File(first, "a.sh"), resolver.find("a.sh"));
+        assertEquals(new File(second, "b.sh"), resolver.find("b.sh"));
+        assertEquals(new File(second, "sub/c.sh"), resolver.find("sub/c.sh"));
+        assertNull(resolver.find("missing.sh"));
+    }
+
+    @Test
+    void currentListingsAreTheNegativeCache() throws IOException {
+        File scripts = makeDir("scripts");
+        FileUtils.writeStringToFile(new File(scripts, "a.sh"), "echo a", "UTF-8");
+        scripts.setLastModified(OLD);
+        File index = new File(dir, "paths.index");
+        assertNull(new ScriptResolver(scripts.getPath(), index).find("b.sh"));
+
+        // A file that appears without changing the directory's mtime isn't probed for, since the
+        // persisted listing is still current
+        FileUtils.writeStringToFile(new File(scripts, "b.sh"), "echo b", "UTF-8");
+        scripts.setLastModified(OLD);
+        ScriptResolver next = new ScriptResolver(scripts.getPath(), index);
+        assertNull(next.find("b.sh"));
+        assertEquals(new File(scripts, "a.sh"), next.find("a.sh"));
+
+        // Once the directory's mtime changes, it is listed again
+        scripts.setLastModified(OLD + 30000);
+        assertEquals(new File(scripts, "b.sh"), new ScriptResolver(scripts.getPath(), index).find("b.sh"));
+    }
+}
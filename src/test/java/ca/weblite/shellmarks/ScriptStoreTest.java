@@ -0,0 +1,57 @@
+package ca.weblite.shellmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScriptStoreTest {
+    @TempDir
+    File dir;
+
+    private File addBlob(ScriptStore store, String contents) throws IOException {
+        File temp = store.createTempFile();
+        FileUtils.writeStringToFile(temp, contents, "UTF-8");
+        return store.add(temp, CatalogIndex.hash(temp), null, "https://example.com/hello.sh");
+    }
+
+    @Test
+    void editingAnInstalledScriptLeavesTheBlobAlone() throws IOException {
+        ScriptStore store = new ScriptStore(new File(dir, "store"));
+        File blob = addBlob(store, "#!/bin/bash\necho hi\n");
+        String sha256 = blob.getName();
+        // canWrite() is always true for root
+        assertFalse(Files.getPosixFilePermissions(blob.toPath()).contains(PosixFilePermission.OWNER_WRITE));
+
+        File a = new File(dir, "scripts/a.sh");
+        File b = new File(dir, "scripts/b.sh");
+        store.install(blob, a, false);
+        store.install(blob, b, false);
+        assertTrue(Files.getPosixFilePermissions(a.toPath()).contains(PosixFilePermission.OWNER_WRITE));
+
+        FileUtils.writeStringToFile(a, "#!/bin/bash\necho bye\n", "UTF-8");
+        assertEquals("#!/bin/bash\necho hi\n", FileUtils.readFileToString(b, "UTF-8"));
+        assertEquals(blob, store.find(sha256));
+        assertEquals(sha256, CatalogIndex.hash(blob));
+    }
+
+    @Test
+    void installDoesNotReplaceExistingScripts() throws IOException {
+        ScriptStore store = new ScriptStore(new File(dir, "store"));
+        File blob = addBlob(store, "echo hi\n");
+        File dest = new File(dir, "hello.sh");
+        FileUtils.writeStringToFile(dest, "echo mine\n", "UTF-8");
+
+        assertThrows(IOException.class, () -> store.install(blob, dest, false));
+        assertEquals("echo mine\n", FileUtils.readFileToString(dest, "UTF-8"));
+        store.install(blob, dest, true);
+        assertEquals("echo hi\n", FileUtils.readFileToString(dest, "UTF-8"));
+        assertEquals(0, dir.list((d, name) -> name.endsWith(".install")).length);
+    }
+}